@@ -0,0 +1,91 @@
+package bench.jmh;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.ExcessiveAmountException;
+import common.Money;
+import common.NegativeAmountException;
+import server.BankAccountServant;
+
+/**
+ * Measures deposits and withdrawals applied directly to BankAccountServants,
+ * without RMI transport. The shared benchmarks have every thread operate on
+ * one servant, so they measure the account under contention; the private
+ * benchmarks give each thread a servant of its own for comparison. Each
+ * call includes the servant's recording of the operation in its
+ * ServerMetrics.
+ *
+ * The number of threads is set by the caller: BenchmarkRunner runs this
+ * benchmark at 1, 2, 4 and so on up to its maximum number of threads, and
+ * JMH's -t option does the same for a single run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountServantBenchmark {
+
+	/* Amount, in cents, of every deposit and withdrawal. */
+	private static final long AMOUNT = 100;
+
+	/* A servant on an account with an initial balance of zero. */
+	public static abstract class ServantState {
+		BankAccountServant fServant;
+
+		@Setup
+		public void export() throws RemoteException {
+			fServant = new BankAccountServant(new Money(), "Benchmark",
+					"10000000", Money.fromCents(Long.MAX_VALUE));
+		}
+
+		@TearDown
+		public void unexport() throws RemoteException {
+			UnicastRemoteObject.unexportObject(fServant, true);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Shared extends ServantState {
+	}
+
+	@State(Scope.Thread)
+	public static class Private extends ServantState {
+	}
+
+	@Benchmark
+	public void depositShared(Shared state) throws NegativeAmountException {
+		state.fServant.depositCents(AMOUNT);
+	}
+
+	@Benchmark
+	public void withdrawShared(Shared state) throws NegativeAmountException,
+			ExcessiveAmountException {
+		state.fServant.withdrawCents(AMOUNT);
+	}
+
+	@Benchmark
+	public void depositPrivate(Private state) throws NegativeAmountException {
+		state.fServant.depositCents(AMOUNT);
+	}
+
+	@Benchmark
+	public void withdrawPrivate(Private state)
+			throws NegativeAmountException, ExcessiveAmountException {
+		state.fServant.withdrawCents(AMOUNT);
+	}
+}
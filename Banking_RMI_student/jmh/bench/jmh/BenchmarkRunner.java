@@ -0,0 +1,91 @@
+package bench.jmh;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.NoBenchmarksException;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of this project and writes their results, in JMH's
+ * JSON result format, to a single file so that runs can be compared with
+ * each other or with tools that read JMH results. AccountServantBenchmark is
+ * run once for each thread count from 1, doubling up to the maximum number
+ * of threads (which is always included); the other benchmarks are run on
+ * one thread.
+ *
+ * Usage: BenchmarkRunner [results-file] [max-threads] [include-regex]
+ * [registry-port]
+ *
+ * The include expression selects benchmarks as JMH's own command line does;
+ * for example "Money" runs only MoneyBenchmark.
+ */
+public class BenchmarkRunner {
+
+	private static final String CONTENDED = AccountServantBenchmark.class
+			.getName();
+
+	public static void main(String[] args) throws RunnerException {
+		String resultsFile = args.length > 0 ? args[0] : "jmh-results.json";
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime
+				.getRuntime().availableProcessors();
+		String include = args.length > 2 ? args[2] : "bench\\.jmh\\..*";
+		String registryPort = args.length > 3 ? args[3] : "10040";
+
+		List<RunResult> results = new ArrayList<RunResult>();
+
+		/* Everything except the contended benchmark, on one thread. */
+		ChainedOptionsBuilder options = new OptionsBuilder().include(include)
+				.exclude(CONTENDED).param("registryPort", registryPort)
+				.threads(1);
+		results.addAll(run(options));
+
+		/* The contended benchmark at each thread count. */
+		if (matches(include, CONTENDED)) {
+			for (int threads = 1; threads <= maxThreads; threads = next(
+					threads, maxThreads)) {
+				options = new OptionsBuilder().include(CONTENDED).threads(
+						threads);
+				results.addAll(run(options));
+			}
+		}
+
+		ResultFormatFactory.getInstance(ResultFormatType.JSON, resultsFile)
+				.writeOut(results);
+		System.out.println("Wrote " + results.size() + " results to "
+				+ resultsFile);
+	}
+
+	/*
+	 * Runs the benchmarks selected by a set of options, returning no results
+	 * if the options select none.
+	 */
+	private static Collection<RunResult> run(ChainedOptionsBuilder options)
+			throws RunnerException {
+		try {
+			return new Runner(options.build()).run();
+		} catch (NoBenchmarksException e) {
+			return new ArrayList<RunResult>();
+		}
+	}
+
+	private static boolean matches(String include, String benchmark) {
+		return Pattern.compile(include).matcher(benchmark).find();
+	}
+
+	/* Returns the next thread count: the next power of two, capped at max. */
+	private static int next(int threads, int max) {
+		if (threads == max) {
+			return max + 1;
+		}
+		return Math.min(threads * 2, max);
+	}
+}
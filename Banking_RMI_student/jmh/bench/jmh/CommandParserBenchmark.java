@@ -0,0 +1,125 @@
+package bench.jmh;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import client.BankCommandParser;
+import client.Command;
+import client.CommandSink;
+import client.IllegalSyntaxException;
+
+/**
+ * Measures the number of commands per second parsed from a file of
+ * operations in the format of data/operations.dat. The file holds COMMANDS
+ * commands, a mix of name, balance, deposit and withdraw commands on a
+ * thousand accounts, written to a temporary file before the benchmark runs.
+ *
+ * The mode parameter selects the parsing path: "regex" matches each command
+ * against the grammar and tokenizes it with parse(), "stream" and "mapped"
+ * produce typed Commands with parseCommands() reading the file as a
+ * character stream or through a memory mapping, and "parallel" uses
+ * parseCommandsInParallel() on one thread per processor.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandParserBenchmark {
+
+	/* Number of commands in the input file. */
+	public static final int COMMANDS = 100000;
+
+	private static final String[] NAMES = { "name", "balance", "deposit",
+			"withdraw" };
+
+	@Param({ "regex", "stream", "mapped", "parallel" })
+	public String mode;
+
+	private BankCommandParser fParser;
+
+	private File fFile;
+
+	/* Counts the commands passed to it, so none are dead code. */
+	private static class CountingSink implements CommandSink {
+		long fCount;
+
+		long fCents;
+
+		public void put(Command command) {
+			fCount++;
+			fCents += command.getCents();
+		}
+	}
+
+	@Setup
+	public void writeFile() throws IOException {
+		fParser = new BankCommandParser();
+		fFile = File.createTempFile("operations", ".dat");
+
+		Random random = new Random(42);
+		PrintWriter out = new PrintWriter(new FileWriter(fFile));
+		try {
+			out.println("! Generated by CommandParserBenchmark");
+			for (int i = 0; i < COMMANDS; i++) {
+				String command = NAMES[random.nextInt(NAMES.length)];
+				String account = BankCommandParser
+						.formatAccountNumber(10000000 + random.nextInt(1000));
+				out.print(command + ", " + account);
+				if (command.equals("deposit") || command.equals("withdraw")) {
+					out.print(", " + random.nextInt(2000) + ", "
+							+ random.nextInt(100));
+				}
+				out.println(";");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown
+	public void deleteFile() {
+		fFile.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COMMANDS)
+	public long parse() throws IOException, IllegalSyntaxException,
+			InterruptedException {
+		String filename = fFile.getPath();
+		if (mode.equals("regex")) {
+			LinkedBlockingQueue<String[]> queue = new LinkedBlockingQueue<String[]>();
+			fParser.parse(filename, 0, queue);
+			return queue.size();
+		}
+
+		CountingSink sink = new CountingSink();
+		if (mode.equals("parallel")) {
+			fParser.parseCommandsInParallel(filename, 0, sink, Runtime
+					.getRuntime().availableProcessors());
+		} else {
+			fParser.parseCommands(filename, 0, sink, mode.equals("mapped"));
+		}
+		return sink.fCount + sink.fCents;
+	}
+}
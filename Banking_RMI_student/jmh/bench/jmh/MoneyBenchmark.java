@@ -0,0 +1,84 @@
+package bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.IllegalMoneyException;
+import common.Money;
+
+/**
+ * Measures the cost of constructing Money objects and of the arithmetic and
+ * formatting applied to them. The operands are held in fields of the state
+ * object so that they are not folded into constants by the compiler.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MoneyBenchmark {
+
+	private String fDollars = "1001";
+
+	private String fCentsString = "59";
+
+	private long fDollarsValue = 1001;
+
+	private int fCentsValue = 59;
+
+	private long fTotalCents = 100159;
+
+	private Money fAmount = Money.fromCents(100159);
+
+	private Money fOther = Money.fromCents(-29108);
+
+	@Benchmark
+	public Money constructFromStrings() throws IllegalMoneyException {
+		return new Money(fDollars, fCentsString);
+	}
+
+	@Benchmark
+	public long parseCents() throws IllegalMoneyException {
+		return Money.parseCents(fDollars, fCentsString);
+	}
+
+	@Benchmark
+	public Money constructFromValues() throws IllegalMoneyException {
+		return new Money(fDollarsValue, fCentsValue);
+	}
+
+	@Benchmark
+	public Money fromCents() {
+		return Money.fromCents(fTotalCents);
+	}
+
+	@Benchmark
+	public Money add() {
+		return fAmount.add(fOther);
+	}
+
+	@Benchmark
+	public Money subtract() {
+		return fAmount.subtract(fOther);
+	}
+
+	@Benchmark
+	public int compareTo() {
+		return fAmount.compareTo(fOther);
+	}
+
+	@Benchmark
+	public String format() {
+		return fAmount.toString();
+	}
+}
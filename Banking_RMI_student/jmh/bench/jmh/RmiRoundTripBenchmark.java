@@ -0,0 +1,167 @@
+package bench.jmh;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import client.BankCommandParser;
+import common.Bank;
+import common.BankAccount;
+import common.Money;
+import common.NegativeAmountException;
+import common.NoSuchAccountException;
+import common.OperationBatch;
+import server.Account;
+import server.AccountTable;
+import server.BankServant;
+
+/**
+ * Measures the latency of remote calls through a registry created with
+ * LocateRegistry in the benchmark's own JVM. A BankServant holding ACCOUNTS
+ * accounts is bound in the registry on registryPort, and each benchmark
+ * calls it through a stub looked up from the registry, so every call
+ * crosses the loopback interface and is serialized as it would be between
+ * a client and the server.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RmiRoundTripBenchmark {
+
+	/* Number of accounts held by the bank. */
+	public static final int ACCOUNTS = 1000;
+
+	/* Number of operations in each batch applied by applyBatch(). */
+	private static final int BATCH_SIZE = 32;
+
+	@Param("10040")
+	public int registryPort;
+
+	private Registry fRegistry;
+
+	/* A stub for the registry, through which lookups are remote calls. */
+	private Registry fRegistryStub;
+
+	private BankServant fServant;
+
+	private Bank fBank;
+
+	private BankAccount fAccount;
+
+	private String fNumber;
+
+	private OperationBatch fBatch;
+
+	/* Source of client ids for the tagged operations of each thread. */
+	private final AtomicLong fClients = new AtomicLong();
+
+	/* A client id and the sequence numbers of one thread's operations. */
+	@State(Scope.Thread)
+	public static class Client {
+		long fClientId;
+
+		long fSequence;
+
+		@Setup
+		public void assignId(RmiRoundTripBenchmark benchmark) {
+			fClientId = benchmark.fClients.incrementAndGet();
+		}
+	}
+
+	@Setup
+	public void bind() throws RemoteException, NotBoundException,
+			NoSuchAccountException {
+		AccountTable table = new AccountTable();
+		for (int i = 0; i < ACCOUNTS; i++) {
+			String number = BankCommandParser.formatAccountNumber(10000000 + i);
+			table.add(new Account(new Money(), "Account " + i, number, Money
+					.fromCents(Long.MAX_VALUE)));
+		}
+		fNumber = BankCommandParser.formatAccountNumber(10000000);
+
+		fRegistry = LocateRegistry.createRegistry(registryPort);
+		fServant = new BankServant(table);
+		fRegistry.rebind(Bank.NAME, fServant);
+
+		fRegistryStub = LocateRegistry.getRegistry("127.0.0.1", registryPort);
+		fBank = (Bank) fRegistryStub.lookup(Bank.NAME);
+		fAccount = fBank.getAccount(fNumber);
+
+		fBatch = new OperationBatch(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			if (i % 2 == 0) {
+				fBatch.addDeposit(100);
+			} else {
+				fBatch.addWithdrawal(100);
+			}
+		}
+	}
+
+	@TearDown
+	public void unbind() throws RemoteException {
+		UnicastRemoteObject.unexportObject(fServant, true);
+		UnicastRemoteObject.unexportObject(fRegistry, true);
+	}
+
+	@Benchmark
+	public Object lookup() throws RemoteException, NotBoundException {
+		return fRegistryStub.lookup(Bank.NAME);
+	}
+
+	@Benchmark
+	public long bankGetBalanceCents() throws RemoteException,
+			NoSuchAccountException {
+		return fBank.getBalanceCents(fNumber);
+	}
+
+	@Benchmark
+	public Money bankGetBalance() throws RemoteException,
+			NoSuchAccountException {
+		return fBank.getBalance(fNumber);
+	}
+
+	@Benchmark
+	public void bankDepositCents() throws RemoteException,
+			NoSuchAccountException, NegativeAmountException {
+		fBank.depositCents(fNumber, 100);
+	}
+
+	@Benchmark
+	public byte bankDepositCentsOnce(Client client) throws RemoteException,
+			NoSuchAccountException {
+		return fBank.depositCentsOnce(fNumber, client.fClientId,
+				client.fSequence++, 100);
+	}
+
+	@Benchmark
+	public byte[] bankApplyBatch() throws RemoteException,
+			NoSuchAccountException {
+		return fBank.applyBatch(fNumber, fBatch);
+	}
+
+	@Benchmark
+	public void accountDepositCents() throws RemoteException,
+			NegativeAmountException {
+		fAccount.depositCents(100);
+	}
+}
@@ -0,0 +1,546 @@
+package bench;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import client.BankCommandParser;
+import client.Command;
+import client.CommandSink;
+import client.ExportedBankAccount;
+import client.IllegalSyntaxException;
+import client.Opcode;
+import common.Bank;
+import common.BankAccount;
+import common.ExcessiveAmountException;
+import common.LatencyHistogram;
+import common.Money;
+import common.NegativeAmountException;
+import common.NoSuchAccountException;
+import server.Account;
+import server.AccountTable;
+import server.BankServant;
+
+/**
+ * Open-loop load driver. Unlike Client, which sends each command as soon as
+ * a worker is free and so measures only the throughput of a saturated
+ * server, the driver sends commands on a fixed schedule: the i-th command of
+ * a phase is due at i/rate seconds after the phase starts, whether or not
+ * earlier commands have completed. A run is a sequence of phases at
+ * increasing or otherwise chosen rates, optionally preceded by an unreported
+ * warm-up phase at the first rate.
+ *
+ * Each command's response time is measured from the time it was due to be
+ * sent, not from the time it was sent. A server that stalls therefore
+ * cannot hide the queueing delay of the commands that were due during the
+ * stall by delaying their sending, as it can when latency is measured from
+ * the send (coordinated omission). The time from the send, the service
+ * time, is reported alongside for comparison. Both are reported for each
+ * phase and kind of command as a ladder of percentiles, and can be written
+ * to a CSV file. The response time includes the time a sender thread takes
+ * to wake up when a command falls due, which bounds the smallest response
+ * time the driver can measure.
+ *
+ * The commands are read from a data file in the BankCommandParser grammar,
+ * such as one written by WorkloadGenerator, and repeated if the run needs
+ * more commands than the file holds. Name, balance, deposit and withdraw
+ * commands are sent to BankAccount stubs obtained from the Bank, through
+ * ExportedBankAccounts so that stubs the server has since unexported are
+ * replaced; transfers are sent to the Bank. Commands are sent by a pool of sender threads, each
+ * taking the next due command; the pool must be large enough that a free
+ * thread is available when each command falls due, and the number of
+ * commands sent more than a millisecond late is reported so that a driver
+ * that cannot keep up is not mistaken for a slow server.
+ *
+ * With "-server local", a registry and a BankServant holding every account
+ * named in the data file are created in the driver's own JVM, so the driver
+ * runs without a separately started server; otherwise the Bank is looked up
+ * in the registry at registry-host and registry-port.
+ *
+ * Usage: LoadDriver [-server local|remote] [-rates rate,...] [-duration
+ * seconds] [-warmup seconds] [-threads n] [-maxCommands n] [-limit dollars]
+ * [-output csv-file] data-file [registry-host registry-port]
+ */
+public class LoadDriver {
+
+	/* Percentiles reported for each kind of command. */
+	private static final double[] PERCENTILES = { 50, 75, 90, 95, 99, 99.9,
+			99.99, 100 };
+
+	/* Delay after which a command counts as sent late. */
+	private static final long LATE_NANOS = 1000000;
+
+	private static final Opcode[] OPCODES = Opcode.values();
+
+	/*
+	 * A phase of the schedule: fOperations commands due at fRate per second,
+	 * starting fOffsetNanos after the start of the run.
+	 */
+	private static class Phase {
+		final String fName;
+
+		final double fRate;
+
+		final long fFirst;
+
+		final long fOperations;
+
+		final long fOffsetNanos;
+
+		final double fIntervalNanos;
+
+		final boolean fReported;
+
+		final LatencyHistogram[] fResponse = new LatencyHistogram[OPCODES.length];
+
+		final LatencyHistogram[] fService = new LatencyHistogram[OPCODES.length];
+
+		final LongAdder fRejected = new LongAdder();
+
+		final LongAdder fFailed = new LongAdder();
+
+		final LongAdder fLate = new LongAdder();
+
+		/* Latest completion of a command of this phase, as a nanoTime. */
+		final AtomicLong fLastEnd = new AtomicLong(Long.MIN_VALUE);
+
+		Phase(String name, double rate, double seconds, long first,
+				long offsetNanos, boolean reported) {
+			fName = name;
+			fRate = rate;
+			fFirst = first;
+			fOperations = Math.max(1, Math.round(rate * seconds));
+			fOffsetNanos = offsetNanos;
+			fIntervalNanos = 1e9 / rate;
+			fReported = reported;
+			for (int i = 0; i < OPCODES.length; i++) {
+				fResponse[i] = new LatencyHistogram();
+				fService[i] = new LatencyHistogram();
+			}
+		}
+
+		long getDurationNanos() {
+			return Math.round(fOperations * fIntervalNanos);
+		}
+	}
+
+	private final Bank fBank;
+
+	private final Map<Integer, BankAccount> fAccounts;
+
+	private final Command[] fCommands;
+
+	private final List<Phase> fPhases = new ArrayList<Phase>();
+
+	private long fTotalOperations;
+
+	private long fScheduleNanos;
+
+	/* Index of the next command to be sent. */
+	private final AtomicLong fNext = new AtomicLong();
+
+	private long fStart;
+
+	/**
+	 * Creates a LoadDriver that sends the specified commands, in order and
+	 * repeating them as necessary, to a Bank and the stubs of its accounts.
+	 */
+	public LoadDriver(Bank bank, Map<Integer, BankAccount> accounts,
+			Command[] commands) {
+		fBank = bank;
+		fAccounts = accounts;
+		fCommands = commands;
+	}
+
+	/**
+	 * Appends a phase to the schedule.
+	 *
+	 * @param rate
+	 *            the number of commands due per second.
+	 * @param seconds
+	 *            the duration of the phase.
+	 * @param reported
+	 *            false for a warm-up phase, whose latencies are not reported.
+	 */
+	public void addPhase(String name, double rate, double seconds,
+			boolean reported) {
+		if (!(rate > 0) || !(seconds > 0)) {
+			throw new IllegalArgumentException(
+					"Rate and duration must be positive: " + rate + "/s for "
+							+ seconds + "s");
+		}
+		Phase phase = new Phase(name, rate, seconds, fTotalOperations,
+				fScheduleNanos, reported);
+		fPhases.add(phase);
+		fTotalOperations += phase.fOperations;
+		fScheduleNanos += phase.getDurationNanos();
+	}
+
+	/**
+	 * Runs the schedule on the specified number of sender threads, returning
+	 * when every command has completed.
+	 */
+	public void run(int threads) throws InterruptedException {
+		fNext.set(0);
+		List<Thread> senders = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					send();
+				}
+			}, "sender-" + i);
+			thread.setDaemon(true);
+			senders.add(thread);
+		}
+		fStart = System.nanoTime();
+		for (Thread thread : senders) {
+			thread.start();
+		}
+		for (Thread thread : senders) {
+			thread.join();
+		}
+	}
+
+	/*
+	 * Sends due commands until the schedule is exhausted.
+	 */
+	private void send() {
+		int phaseIndex = 0;
+		while (true) {
+			long operation = fNext.getAndIncrement();
+			if (operation >= fTotalOperations) {
+				return;
+			}
+			Phase phase = fPhases.get(phaseIndex);
+			while (operation >= phase.fFirst + phase.fOperations) {
+				phase = fPhases.get(++phaseIndex);
+			}
+
+			long due = fStart + phase.fOffsetNanos
+					+ Math.round((operation - phase.fFirst)
+							* phase.fIntervalNanos);
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+
+			Command command = fCommands[(int) (operation % fCommands.length)];
+			long sent = System.nanoTime();
+			if (sent - due > LATE_NANOS) {
+				phase.fLate.increment();
+			}
+			try {
+				issue(command);
+			} catch (NegativeAmountException e) {
+				phase.fRejected.increment();
+			} catch (ExcessiveAmountException e) {
+				phase.fRejected.increment();
+			} catch (Exception e) {
+				phase.fFailed.increment();
+			}
+			long end = System.nanoTime();
+
+			int opcode = command.getOpcode().ordinal();
+			phase.fResponse[opcode].recordAtomic(end - due);
+			phase.fService[opcode].recordAtomic(end - sent);
+			long last = phase.fLastEnd.get();
+			while (end > last && !phase.fLastEnd.compareAndSet(last, end)) {
+				last = phase.fLastEnd.get();
+			}
+		}
+	}
+
+	private void issue(Command command) throws RemoteException,
+			NoSuchAccountException, NegativeAmountException,
+			ExcessiveAmountException {
+		BankAccount account = fAccounts.get(command.getAccount());
+		switch (command.getOpcode()) {
+		case NAME:
+			account.getName();
+			break;
+		case BALANCE:
+			account.getBalanceCents();
+			break;
+		case DEPOSIT:
+			account.depositCents(command.getCents());
+			break;
+		case WITHDRAW:
+			account.withdrawCents(command.getCents());
+			break;
+		case TRANSFER:
+			fBank.transferCents(BankCommandParser.formatAccountNumber(command
+					.getAccount()), BankCommandParser
+					.formatAccountNumber(command.getTarget()), command
+					.getCents());
+			break;
+		}
+	}
+
+	/**
+	 * Returns a report of each reported phase: its target and achieved
+	 * rates, the number of commands rejected, failed and sent late, and the
+	 * response and service time percentiles of each kind of command.
+	 */
+	public String getReport() {
+		StringBuffer report = new StringBuffer();
+
+		for (Phase phase : fPhases) {
+			if (!phase.fReported) {
+				continue;
+			}
+			long elapsed = phase.fLastEnd.get() - (fStart + phase.fOffsetNanos);
+			report.append(String.format(
+					"%s: target %.0f/s, achieved %.0f/s, %d commands, "
+							+ "%d rejected, %d failed, %d sent late%n",
+					phase.fName, phase.fRate, phase.fOperations
+							/ (elapsed / 1e9), phase.fOperations, phase.fRejected
+							.sum(), phase.fFailed.sum(), phase.fLate.sum()));
+			report.append(String.format("  %-18s %8s", "latency (us)",
+					"count"));
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				report.append(String.format(" %9s", PERCENTILES[i] == 100 ? "max"
+						: "p" + format(PERCENTILES[i])));
+			}
+			report.append(String.format("%n"));
+			for (int i = 0; i < OPCODES.length; i++) {
+				if (phase.fResponse[i].getCount() == 0) {
+					continue;
+				}
+				String name = OPCODES[i].name().toLowerCase();
+				appendLadder(report, name + " response", phase.fResponse[i]);
+				appendLadder(report, name + " service", phase.fService[i]);
+			}
+		}
+		return report.toString();
+	}
+
+	private static void appendLadder(StringBuffer report, String label,
+			LatencyHistogram histogram) {
+		report.append(String.format("  %-18s %8d", label, histogram
+				.getCount()));
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			report.append(String.format(" %9.1f", histogram
+					.getValueAtPercentile(PERCENTILES[i]) / 1000.0));
+		}
+		report.append(String.format("%n"));
+	}
+
+	/**
+	 * Writes the percentiles of every reported phase and kind of command as
+	 * CSV, one line per phase, command, measure and percentile.
+	 */
+	public void writeCsv(String filename) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(filename));
+		try {
+			out.println("phase,target_rate,operation,measure,count,percentile,micros");
+			for (Phase phase : fPhases) {
+				if (!phase.fReported) {
+					continue;
+				}
+				for (int i = 0; i < OPCODES.length; i++) {
+					String name = OPCODES[i].name().toLowerCase();
+					writeCsv(out, phase, name, "response", phase.fResponse[i]);
+					writeCsv(out, phase, name, "service", phase.fService[i]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeCsv(PrintWriter out, Phase phase, String name,
+			String measure, LatencyHistogram histogram) {
+		if (histogram.getCount() == 0) {
+			return;
+		}
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			out.println(phase.fName + "," + format(phase.fRate) + "," + name
+					+ "," + measure + "," + histogram.getCount() + ","
+					+ format(PERCENTILES[i]) + ","
+					+ String.format("%.1f", histogram
+							.getValueAtPercentile(PERCENTILES[i]) / 1000.0));
+		}
+	}
+
+	private static String format(double value) {
+		return value == Math.rint(value) ? Long.toString((long) value)
+				: Double.toString(value);
+	}
+
+	/*
+	 * Reads up to maxCommands commands from a data file.
+	 */
+	private static Command[] readCommands(String filename, int maxCommands)
+			throws IOException, IllegalSyntaxException, InterruptedException {
+		final List<Command> commands = new ArrayList<Command>();
+		new BankCommandParser().parseCommands(filename, maxCommands,
+				new CommandSink() {
+					public void put(Command command) {
+						commands.add(command);
+					}
+				}, true);
+		return commands.toArray(new Command[commands.size()]);
+	}
+
+	public static void main(String[] args) {
+		boolean local = true;
+		String rates = "1000";
+		double duration = 10;
+		double warmup = 0;
+		int threads = 64;
+		int maxCommands = 1000000;
+		long limit = 1500 * 100;
+		String output = null;
+
+		int arg = 0;
+		try {
+			while (arg + 1 < args.length && args[arg].startsWith("-")) {
+				String option = args[arg];
+				String value = args[arg + 1];
+				if ("-server".equals(option)) {
+					local = "local".equals(value);
+				} else if ("-rates".equals(option)) {
+					rates = value;
+				} else if ("-duration".equals(option)) {
+					duration = Double.parseDouble(value);
+				} else if ("-warmup".equals(option)) {
+					warmup = Double.parseDouble(value);
+				} else if ("-threads".equals(option)) {
+					threads = Integer.parseInt(value);
+				} else if ("-maxCommands".equals(option)) {
+					maxCommands = Integer.parseInt(value);
+				} else if ("-limit".equals(option)) {
+					limit = Math.round(Double.parseDouble(value) * 100);
+				} else if ("-output".equals(option)) {
+					output = value;
+				} else {
+					break;
+				}
+				arg += 2;
+			}
+		} catch (NumberFormatException e) {
+			arg = args.length;
+		}
+		if (args.length - arg != 1 && args.length - arg != 3) {
+			System.err
+					.println("Usage: LoadDriver [-server local|remote] [-rates rate,...] [-duration seconds] [-warmup seconds] [-threads n] [-maxCommands n] [-limit dollars] [-output csv-file] <data-filename> [<registry-host> <registry-port>]");
+			System.exit(1);
+		}
+		String dataFile = args[arg];
+		String registryHost = args.length - arg == 3 ? args[arg + 1]
+				: "127.0.0.1";
+		int registryPort = args.length - arg == 3 ? Integer
+				.parseInt(args[arg + 2]) : 10000;
+
+		Registry registry = null;
+		BankServant servant = null;
+		try {
+			Command[] commands = readCommands(dataFile, maxCommands);
+			if (commands.length == 0) {
+				System.err.println("No commands in " + dataFile);
+				System.exit(1);
+			}
+
+			if (local) {
+				AccountTable table = new AccountTable();
+				for (int i = 0; i < commands.length; i++) {
+					addAccount(table, commands[i].getAccount(), limit);
+					if (commands[i].getOpcode() == Opcode.TRANSFER) {
+						addAccount(table, commands[i].getTarget(), limit);
+					}
+				}
+				registry = LocateRegistry.createRegistry(registryPort);
+				servant = new BankServant(table);
+				registry.rebind(Bank.NAME, servant);
+				System.out.println("Serving " + table.size()
+						+ " accounts from a registry on port " + registryPort
+						+ " in this JVM.");
+			}
+
+			Bank bank = (Bank) LocateRegistry.getRegistry(registryHost,
+					registryPort).lookup(Bank.NAME);
+			Map<Integer, BankAccount> accounts = new HashMap<Integer, BankAccount>();
+			for (int i = 0; i < commands.length; i++) {
+				int number = commands[i].getAccount();
+				if (!accounts.containsKey(number)) {
+					accounts.put(number, new ExportedBankAccount(bank,
+							BankCommandParser.formatAccountNumber(number)));
+				}
+			}
+
+			LoadDriver driver = new LoadDriver(bank, accounts, commands);
+			String[] phaseRates = rates.split(",");
+			if (warmup > 0) {
+				driver.addPhase("warmup", Double.parseDouble(phaseRates[0]),
+						warmup, false);
+			}
+			for (int i = 0; i < phaseRates.length; i++) {
+				driver.addPhase("phase " + (i + 1), Double
+						.parseDouble(phaseRates[i]), duration, true);
+			}
+
+			System.out.println("Sending " + driver.fTotalOperations
+					+ " commands over " + driver.fScheduleNanos / 1e9
+					+ "s on " + threads + " threads.");
+			driver.run(threads);
+			System.out.print(driver.getReport());
+			if (output != null) {
+				driver.writeCsv(output);
+				System.out.println("Wrote percentiles to " + output);
+			}
+		} catch (IllegalSyntaxException e) {
+			System.err.println("Input file contains errors ...");
+			String[] syntaxErrors = e.getErrors();
+			for (int i = 0; i < syntaxErrors.length; i++) {
+				System.err.println(syntaxErrors[i]);
+			}
+			System.exit(1);
+		} catch (NoSuchAccountException e) {
+			System.err.println("Account named in " + dataFile
+					+ " is not held by the bank: " + e);
+			System.exit(1);
+		} catch (NotBoundException e) {
+			System.err.println("No " + Bank.NAME + " bound in the registry");
+			System.exit(1);
+		} catch (Exception e) {
+			System.err.println("Load driver failed: " + e);
+			System.exit(1);
+		} finally {
+			try {
+				if (servant != null) {
+					UnicastRemoteObject.unexportObject(servant, true);
+				}
+				if (registry != null) {
+					UnicastRemoteObject.unexportObject(registry, true);
+				}
+			} catch (RemoteException e) {
+			}
+		}
+
+		/*
+		 * The Bank exports a BankAccountServant for each account looked up,
+		 * which would otherwise keep the JVM running.
+		 */
+		System.exit(0);
+	}
+
+	private static void addAccount(AccountTable table, int number, long limit) {
+		String accountNumber = BankCommandParser.formatAccountNumber(number);
+		if (table.get(accountNumber) == null) {
+			table.add(new Account(new Money(), "Account " + accountNumber,
+					accountNumber, Money.fromCents(limit)));
+		}
+	}
+}
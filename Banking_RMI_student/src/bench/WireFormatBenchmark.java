@@ -0,0 +1,272 @@
+package bench;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.Money;
+import common.OperationBatch;
+
+/**
+ * Measures the cost on the wire of the Money and OperationBatch encodings.
+ * Each payload is sent through a remote echo service bound in a registry
+ * created in this JVM, once in its compact Externalizable form (for Money,
+ * that of its serialization proxy) and once in an equivalent class that uses
+ * default Java serialization (the encoding used before the compact formats
+ * were introduced). The service is
+ * exported with a server socket factory that counts the bytes read and
+ * written, so both bytes per call and calls per second are reported.
+ *
+ * Usage: WireFormatBenchmark [registry-port] [calls]
+ */
+public class WireFormatBenchmark {
+
+	private static final int BATCH_SIZE = 32;
+
+	/**
+	 * Remote interface used by the benchmark. Each method returns its
+	 * argument (or, for batches, an outcome vector) so that the payload
+	 * crosses the wire in the request and the result.
+	 */
+	public interface WireService extends Remote {
+		Money echo(Money amount) throws RemoteException;
+
+		SerializableMoney echo(SerializableMoney amount) throws RemoteException;
+
+		byte[] apply(OperationBatch batch) throws RemoteException;
+
+		byte[] apply(SerializableBatch batch) throws RemoteException;
+	}
+
+	/* Money as it was sent before it had a compact format. */
+	public static class SerializableMoney implements Serializable {
+		private long fCents;
+
+		public SerializableMoney(long cents) {
+			fCents = cents;
+		}
+	}
+
+	/* OperationBatch as it was sent before it became Externalizable. */
+	public static class SerializableBatch implements Serializable {
+		private transient byte[] fOperations;
+
+		private transient long[] fAmounts;
+
+		public SerializableBatch(byte[] operations, long[] amounts) {
+			fOperations = operations;
+			fAmounts = amounts;
+		}
+
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			out.defaultWriteObject();
+			out.writeInt(fOperations.length);
+			for (int i = 0; i < fOperations.length; i++) {
+				out.writeByte(fOperations[i]);
+				out.writeLong(fAmounts[i]);
+			}
+		}
+
+		private void readObject(ObjectInputStream in) throws IOException,
+				ClassNotFoundException {
+			in.defaultReadObject();
+			int size = in.readInt();
+			fOperations = new byte[size];
+			fAmounts = new long[size];
+			for (int i = 0; i < size; i++) {
+				fOperations[i] = in.readByte();
+				fAmounts[i] = in.readLong();
+			}
+		}
+	}
+
+	private static class WireServant implements WireService {
+		public Money echo(Money amount) {
+			return amount;
+		}
+
+		public SerializableMoney echo(SerializableMoney amount) {
+			return amount;
+		}
+
+		public byte[] apply(OperationBatch batch) {
+			return new byte[batch.size()];
+		}
+
+		public byte[] apply(SerializableBatch batch) {
+			return new byte[batch.fOperations.length];
+		}
+	}
+
+	/* Bytes read and written by sockets accepted by the service. */
+	private static final AtomicLong bytesTransferred = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 10099;
+		int calls = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		Registry registry = LocateRegistry.createRegistry(port);
+		WireServant servant = new WireServant();
+		registry.rebind("wire", UnicastRemoteObject.exportObject(servant, 0,
+				null, new CountingServerSocketFactory()));
+		final WireService service = (WireService) registry.lookup("wire");
+
+		final Money money = new Money(1234, 56);
+		final SerializableMoney legacyMoney = new SerializableMoney(
+				money.getTotalCents());
+
+		final OperationBatch batch = new OperationBatch(BATCH_SIZE);
+		byte[] operations = new byte[BATCH_SIZE];
+		long[] amounts = new long[BATCH_SIZE];
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			operations[i] = (i % 2 == 0) ? OperationBatch.DEPOSIT
+					: OperationBatch.WITHDRAW;
+			amounts[i] = 100L * (i * 37 % 1500) + i % 100;
+			if (operations[i] == OperationBatch.DEPOSIT) {
+				batch.addDeposit(amounts[i]);
+			} else {
+				batch.addWithdrawal(amounts[i]);
+			}
+		}
+		final SerializableBatch legacyBatch = new SerializableBatch(operations,
+				amounts);
+
+		System.out.println("payload,encoding,bytes_per_call,calls_per_sec");
+		run("money", "serializable", calls, new Call() {
+			public void invoke() throws RemoteException {
+				service.echo(legacyMoney);
+			}
+		});
+		run("money", "externalizable", calls, new Call() {
+			public void invoke() throws RemoteException {
+				service.echo(money);
+			}
+		});
+		run("batch" + BATCH_SIZE, "serializable", calls, new Call() {
+			public void invoke() throws RemoteException {
+				service.apply(legacyBatch);
+			}
+		});
+		run("batch" + BATCH_SIZE, "externalizable", calls, new Call() {
+			public void invoke() throws RemoteException {
+				service.apply(batch);
+			}
+		});
+
+		UnicastRemoteObject.unexportObject(servant, true);
+		UnicastRemoteObject.unexportObject(registry, true);
+	}
+
+	private interface Call {
+		void invoke() throws RemoteException;
+	}
+
+	/*
+	 * Runs a warm-up phase and then a measured phase of the specified number
+	 * of calls, printing one CSV line of results.
+	 */
+	private static void run(String payload, String encoding, int calls,
+			Call call) throws RemoteException {
+		for (int i = 0; i < calls / 4; i++) {
+			call.invoke();
+		}
+
+		long bytesBefore = bytesTransferred.get();
+		long start = System.nanoTime();
+		for (int i = 0; i < calls; i++) {
+			call.invoke();
+		}
+		long elapsed = System.nanoTime() - start;
+		long bytes = bytesTransferred.get() - bytesBefore;
+
+		System.out.printf("%s,%s,%.1f,%.0f%n", payload, encoding,
+				(double) bytes / calls, calls / (elapsed / 1e9));
+	}
+
+	/*
+	 * Server socket factory whose sockets count every byte read from and
+	 * written to the connection.
+	 */
+	private static class CountingServerSocketFactory implements
+			RMIServerSocketFactory {
+		public ServerSocket createServerSocket(int port) throws IOException {
+			return new ServerSocket(port) {
+				public Socket accept() throws IOException {
+					Socket socket = new CountingSocket();
+					implAccept(socket);
+					return socket;
+				}
+			};
+		}
+
+		public boolean equals(Object object) {
+			return object instanceof CountingServerSocketFactory;
+		}
+
+		public int hashCode() {
+			return CountingServerSocketFactory.class.hashCode();
+		}
+	}
+
+	private static class CountingSocket extends Socket {
+		private InputStream fIn;
+
+		private OutputStream fOut;
+
+		public synchronized InputStream getInputStream() throws IOException {
+			if (fIn == null) {
+				fIn = new FilterInputStream(super.getInputStream()) {
+					public int read() throws IOException {
+						int b = super.read();
+						if (b >= 0) {
+							bytesTransferred.incrementAndGet();
+						}
+						return b;
+					}
+
+					public int read(byte[] b, int off, int len)
+							throws IOException {
+						int n = super.read(b, off, len);
+						if (n > 0) {
+							bytesTransferred.addAndGet(n);
+						}
+						return n;
+					}
+				};
+			}
+			return fIn;
+		}
+
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (fOut == null) {
+				fOut = new FilterOutputStream(super.getOutputStream()) {
+					public void write(int b) throws IOException {
+						out.write(b);
+						bytesTransferred.incrementAndGet();
+					}
+
+					public void write(byte[] b, int off, int len)
+							throws IOException {
+						out.write(b, off, len);
+						bytesTransferred.addAndGet(len);
+					}
+				};
+			}
+			return fOut;
+		}
+	}
+}
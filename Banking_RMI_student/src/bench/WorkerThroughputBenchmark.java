@@ -0,0 +1,137 @@
+package bench;
+
+import java.rmi.RemoteException;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import client.AccountDirectory;
+import client.BankCommandParser;
+import client.Command;
+import client.Dispatcher;
+import client.InFlightLimiter;
+import client.Opcode;
+import client.Worker;
+import client.WorkerThreads;
+import common.Bank;
+import common.Money;
+import common.NegativeAmountException;
+import common.NoSuchAccountException;
+import server.Account;
+import server.AccountTable;
+import server.BankServant;
+
+/**
+ * Measures client throughput, in remote calls per second, against the number
+ * of workers and the number of calls allowed in flight. A Bank is exported
+ * in this JVM with a fixed delay added to every deposit, standing in for the
+ * network and server latency that the client's threads spend blocked on;
+ * the same stream of deposits over many accounts is then pushed through a
+ * Dispatcher and its Workers in each configuration.
+ *
+ * Usage: WorkerThroughputBenchmark [calls] [accounts] [delay-millis]
+ */
+public class WorkerThroughputBenchmark {
+
+	/* Bank whose deposits take at least fDelayMillis to complete. */
+	private static class DelayedBank extends BankServant {
+		private final long fDelayMillis;
+
+		DelayedBank(AccountTable accounts, long delayMillis)
+				throws RemoteException {
+			super(accounts);
+			fDelayMillis = delayMillis;
+		}
+
+		public void depositCents(String number, long cents)
+				throws NoSuchAccountException, NegativeAmountException {
+			try {
+				Thread.sleep(fDelayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			super.depositCents(number, cents);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int accountCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		long delay = args.length > 2 ? Long.parseLong(args[2]) : 2;
+
+		AccountTable table = new AccountTable();
+		for (int i = 0; i < accountCount; i++) {
+			String number = BankCommandParser.formatAccountNumber(10000000 + i);
+			table.add(new Account(new Money(), "Account " + i, number,
+					new Money(1500, 0)));
+		}
+		DelayedBank servant = new DelayedBank(table, delay);
+		Bank bank = (Bank) RemoteObject.toStub(servant);
+
+		Random random = new Random(42);
+		Command[] commands = new Command[calls];
+		for (int i = 0; i < calls; i++) {
+			commands[i] = new Command(Opcode.DEPOSIT, 10000000 + random
+					.nextInt(accountCount), 1 + random.nextInt(100000));
+		}
+
+		System.out.println("virtual threads available: "
+				+ WorkerThreads.isVirtualSupported());
+		System.out.println("threads,workers,max_in_flight,"
+				+ "max_in_flight_per_account,peak_in_flight,calls_per_sec");
+
+		int[] workerCounts = { 1, 5, 20, 100, 400 };
+		for (int i = 0; i < workerCounts.length; i++) {
+			run(bank, commands, "platform", workerCounts[i], 0, 1);
+		}
+		int[] inFlight = { 5, 20, 100, 400, 1000 };
+		for (int i = 0; i < inFlight.length; i++) {
+			run(bank, commands, "virtual", 5, inFlight[i], 8);
+		}
+
+		UnicastRemoteObject.unexportObject(servant, true);
+	}
+
+	/*
+	 * Pushes the commands through a Dispatcher with the specified number of
+	 * workers and limits, and prints one CSV line of results.
+	 */
+	private static void run(Bank bank, Command[] commands, String threads,
+			int workerCount, int maxInFlight, int maxPerAccount)
+			throws InterruptedException {
+		boolean virtual = "virtual".equals(threads);
+		AccountDirectory accounts = new AccountDirectory(bank);
+		Dispatcher dispatcher = new Dispatcher(workerCount, 128);
+		InFlightLimiter limiter = new InFlightLimiter(maxInFlight,
+				maxPerAccount);
+		Executor callExecutor = virtual ? WorkerThreads.newPerTaskExecutor()
+				: null;
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < workerCount; i++) {
+			Thread thread = WorkerThreads.newThread(new Worker(dispatcher
+					.getPartition(i), accounts, 1, 0, limiter, callExecutor),
+					virtual);
+			thread.start();
+			workers.add(thread);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < commands.length; i++) {
+			dispatcher.put(commands[i]);
+		}
+		dispatcher.close();
+		for (Thread t : workers) {
+			t.join();
+		}
+		limiter.awaitIdle();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.printf("%s,%d,%d,%d,%d,%.0f%n", threads, workerCount,
+				maxInFlight, maxPerAccount, limiter.getPeakInFlight(),
+				commands.length / (elapsed / 1e9));
+	}
+}
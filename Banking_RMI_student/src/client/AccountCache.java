@@ -0,0 +1,436 @@
+package client;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+
+import common.BankAccount;
+
+/**
+ * Class that caches the names and balances of remote accounts so that name
+ * and balance commands need not each make an RMI call. The cache holds at most
+ * a fixed number of accounts and evicts the least recently used account when
+ * full.
+ *
+ * An account's name never changes, so it is kept until the account is
+ * evicted. A balance is only served for the length of its lease, after which
+ * it is fetched again; this bounds how long the changes made by other clients
+ * can go unseen. The client's own deposits and withdrawals are written through
+ * to the server as usual. Each call that changes an account is announced with
+ * sending() before it is made and reported with applied() once it returns,
+ * which adjusts the cached balance, or with failed() if whether it was applied
+ * is unknown, which drops it. A balance fetched while a change to the account
+ * was in flight, or was reported, is not cached, since it may or may not
+ * include the change; the change is then counted at most once.
+ *
+ * The accounts are split between SEGMENTS segments by a hash of their
+ * numbers, each with its own lock, share of the capacity and order of use,
+ * so that threads working on different accounts rarely wait for each other.
+ * A segment finds its entries in an open-addressing table keyed by the int
+ * account number, and an entry holds its own count of calls in flight; an
+ * entry with calls in flight is never evicted, so the count is not lost.
+ */
+public class AccountCache {
+
+	/* Largest number of segments; a small cache has fewer. */
+	private static final int SEGMENTS = 16;
+
+	/* Cached state of one account; guarded by its segment. */
+	private static class Entry {
+		final int account;
+
+		String name;
+
+		boolean hasBalance;
+
+		long balanceCents;
+
+		/* System.nanoTime() value at which the balance expires. */
+		long balanceExpiry;
+
+		/* Number of changes reported for the account. */
+		long version;
+
+		/* Number of changes sent to the account and not yet reported. */
+		int inFlight;
+
+		/* Neighbours in the segment's order of use. */
+		Entry newer;
+
+		Entry older;
+
+		Entry(int account) {
+			this.account = account;
+		}
+	}
+
+	/*
+	 * A share of the cache, guarded by its own lock. The entries are linked
+	 * in order of use between two sentinels, with the most recently used
+	 * first.
+	 */
+	private static class Segment {
+		final int capacity;
+
+		int[] keys;
+
+		Entry[] entries;
+
+		int size;
+
+		final Entry newest = new Entry(0);
+
+		final Entry oldest = new Entry(0);
+
+		/* Statistics. */
+		long hits;
+
+		long misses;
+
+		long evictions;
+
+		Segment(int capacity) {
+			this.capacity = capacity;
+			int tableSize = Integer
+					.highestOneBit(Math.max(8, capacity) * 2 - 1) << 1;
+			keys = new int[tableSize];
+			entries = new Entry[tableSize];
+			newest.older = oldest;
+			oldest.newer = newest;
+		}
+
+		/* Returns the entry for an account, or null, without using it. */
+		Entry get(int account) {
+			int mask = entries.length - 1;
+			for (int i = slot(account) & mask; entries[i] != null; i = (i + 1)
+					& mask) {
+				if (keys[i] == account) {
+					return entries[i];
+				}
+			}
+			return null;
+		}
+
+		/*
+		 * Returns the entry for an account, creating it if necessary, and
+		 * marks it as the most recently used.
+		 */
+		Entry use(int account) {
+			Entry entry = get(account);
+			if (entry == null) {
+				while (size >= capacity && evict()) {
+				}
+				entry = new Entry(account);
+				put(entry);
+			} else {
+				unlink(entry);
+			}
+			entry.older = newest.older;
+			entry.newer = newest;
+			newest.older.newer = entry;
+			newest.older = entry;
+			return entry;
+		}
+
+		/*
+		 * Removes the least recently used entry that has no calls in flight,
+		 * returning false if there is none. The segment then holds more than
+		 * its capacity until the calls are reported.
+		 */
+		boolean evict() {
+			for (Entry entry = oldest.newer; entry != newest; entry = entry.newer) {
+				if (entry.inFlight == 0) {
+					unlink(entry);
+					remove(entry.account);
+					evictions++;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void put(Entry entry) {
+			if ((size + 1) * 2 > entries.length) {
+				int[] keys = this.keys;
+				Entry[] entries = this.entries;
+				this.keys = new int[keys.length * 2];
+				this.entries = new Entry[entries.length * 2];
+				for (int i = 0; i < entries.length; i++) {
+					if (entries[i] != null) {
+						insert(entries[i]);
+					}
+				}
+			}
+			insert(entry);
+			size++;
+		}
+
+		private void insert(Entry entry) {
+			int mask = entries.length - 1;
+			int i = slot(entry.account) & mask;
+			while (entries[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = entry.account;
+			entries[i] = entry;
+		}
+
+		/*
+		 * Removes an account from the table, moving back any later entries
+		 * of its probe sequence so that lookups need no markers for removed
+		 * entries.
+		 */
+		private void remove(int account) {
+			int mask = entries.length - 1;
+			int i = slot(account) & mask;
+			while (entries[i].account != account) {
+				i = (i + 1) & mask;
+			}
+			for (int j = (i + 1) & mask; entries[j] != null; j = (j + 1) & mask) {
+				int home = slot(keys[j]) & mask;
+				/* Move the entry at j to i unless its home lies in (i, j]. */
+				if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+					keys[i] = keys[j];
+					entries[i] = entries[j];
+					i = j;
+				}
+			}
+			entries[i] = null;
+			size--;
+		}
+
+		private static void unlink(Entry entry) {
+			entry.older.newer = entry.newer;
+			entry.newer.older = entry.older;
+		}
+	}
+
+	private final Segment[] fSegments;
+
+	private final int fCapacity;
+
+	private final long fLeaseNanos;
+
+	/**
+	 * Creates an AccountCache.
+	 *
+	 * @param capacity
+	 *            the maximum number of accounts held.
+	 * @param balanceLeaseMillis
+	 *            the time for which a fetched balance is served. A value of
+	 *            zero disables the caching of balances.
+	 */
+	public AccountCache(int capacity, long balanceLeaseMillis) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive: "
+					+ capacity);
+		}
+		if (balanceLeaseMillis < 0) {
+			throw new IllegalArgumentException(
+					"Balance lease must not be negative: " + balanceLeaseMillis);
+		}
+		fCapacity = capacity;
+		fLeaseNanos = TimeUnit.MILLISECONDS.toNanos(balanceLeaseMillis);
+		/* Give every segment room for at least one account. */
+		fSegments = new Segment[Math.min(SEGMENTS, Integer
+				.highestOneBit(capacity))];
+		for (int i = 0; i < fSegments.length; i++) {
+			fSegments[i] = new Segment(capacity / fSegments.length
+					+ (i < capacity % fSegments.length ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Returns the name of an account, calling the remote account only if the
+	 * name is not cached.
+	 *
+	 * @throws RemoteException
+	 *             if the name has to be fetched and the call fails.
+	 */
+	public String getName(int account, BankAccount remote)
+			throws RemoteException {
+		Segment segment = segment(account);
+		synchronized (segment) {
+			Entry entry = segment.use(account);
+			if (entry.name != null) {
+				segment.hits++;
+				return entry.name;
+			}
+			segment.misses++;
+		}
+
+		String name = remote.getName();
+		synchronized (segment) {
+			segment.use(account).name = name;
+		}
+		return name;
+	}
+
+	/**
+	 * Returns the balance of an account in cents, calling the remote account
+	 * only if no balance is cached or its lease has expired.
+	 *
+	 * @throws RemoteException
+	 *             if the balance has to be fetched and the call fails.
+	 */
+	public long getBalanceCents(int account, BankAccount remote)
+			throws RemoteException {
+		Segment segment = segment(account);
+		Entry entry;
+		long version;
+		synchronized (segment) {
+			entry = segment.use(account);
+			if (entry.hasBalance && entry.balanceExpiry - System.nanoTime() > 0) {
+				segment.hits++;
+				return entry.balanceCents;
+			}
+			segment.misses++;
+			version = entry.version;
+		}
+
+		long cents = remote.getBalanceCents();
+		synchronized (segment) {
+			if (entry.version == version && entry.inFlight == 0
+					&& fLeaseNanos > 0) {
+				entry.hasBalance = true;
+				entry.balanceCents = cents;
+				entry.balanceExpiry = System.nanoTime() + fLeaseNanos;
+			}
+		}
+		return cents;
+	}
+
+	/**
+	 * Announces that a call that may change an account is about to be made.
+	 * Until the call is reported with applied() or failed(), no balance
+	 * fetched for the account is cached.
+	 */
+	public void sending(int account) {
+		Segment segment = segment(account);
+		synchronized (segment) {
+			segment.use(account).inFlight++;
+		}
+	}
+
+	/**
+	 * Reports that a call announced with sending() has returned, having
+	 * applied deposits (positive amount) and withdrawals (negative amount)
+	 * with the specified net change, which is zero if they were all
+	 * rejected. A cached balance is adjusted accordingly, keeping its current
+	 * lease.
+	 */
+	public void applied(int account, long deltaCents) {
+		Segment segment = segment(account);
+		synchronized (segment) {
+			Entry entry = completed(segment, account);
+			entry.version++;
+			entry.balanceCents += deltaCents;
+		}
+	}
+
+	/**
+	 * Reports that a call announced with sending() has failed, or returned
+	 * without showing whether its changes were applied. The cached balance,
+	 * if any, is dropped.
+	 */
+	public void failed(int account) {
+		Segment segment = segment(account);
+		synchronized (segment) {
+			Entry entry = completed(segment, account);
+			entry.version++;
+			entry.hasBalance = false;
+		}
+	}
+
+	/*
+	 * Counts a call to an account as no longer in flight, returning its
+	 * entry. Must be called while holding the lock of the segment.
+	 */
+	private static Entry completed(Segment segment, int account) {
+		Entry entry = segment.get(account);
+		if (entry == null || entry.inFlight == 0) {
+			throw new IllegalStateException("No call in flight to account "
+					+ account);
+		}
+		entry.inFlight--;
+		if (segment.size > segment.capacity) {
+			segment.evict();
+		}
+		return entry;
+	}
+
+	public long getHits() {
+		long hits = 0;
+		for (Segment segment : fSegments) {
+			synchronized (segment) {
+				hits += segment.hits;
+			}
+		}
+		return hits;
+	}
+
+	public long getMisses() {
+		long misses = 0;
+		for (Segment segment : fSegments) {
+			synchronized (segment) {
+				misses += segment.misses;
+			}
+		}
+		return misses;
+	}
+
+	public long getEvictions() {
+		long evictions = 0;
+		for (Segment segment : fSegments) {
+			synchronized (segment) {
+				evictions += segment.evictions;
+			}
+		}
+		return evictions;
+	}
+
+	/**
+	 * Returns the number of accounts held.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : fSegments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns a string representation of this AccountCache's statistics.
+	 */
+	public String toString() {
+		StringBuffer description = new StringBuffer();
+
+		description.append(getHits());
+		description.append(" hits, ");
+		description.append(getMisses());
+		description.append(" misses, ");
+		description.append(getEvictions());
+		description.append(" evictions, ");
+		description.append(size());
+		description.append(" of ");
+		description.append(fCapacity);
+		description.append(" accounts cached");
+
+		return description.toString();
+	}
+
+	private Segment segment(int account) {
+		return fSegments[(slot(account) >>> 28) & (fSegments.length - 1)];
+	}
+
+	/*
+	 * Spreads an account number over an int. The segment is chosen from the
+	 * high bits and the table entry from the low ones.
+	 */
+	private static int slot(int account) {
+		int h = account * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
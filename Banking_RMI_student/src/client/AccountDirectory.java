@@ -0,0 +1,188 @@
+package client;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Hashtable;
+
+import common.Bank;
+import common.BankAccount;
+
+/**
+ * Class that maps account numbers, held as ints, to BankAccount objects. A
+ * directory either holds a fixed set of BankAccount proxies looked up
+ * individually from the RMI Registry, or is backed by a single remote Bank, in
+ * which case a BankAccountProxy is created the first time each account number
+ * is used.
+ *
+ * The accounts are held in an open-addressing table keyed by the int account
+ * number, so a lookup boxes nothing and takes no lock. An entry's number is
+ * written before its account is published. A lookup in a Bank-backed
+ * directory that finds no account, perhaps because the table was being
+ * replaced, looks again while holding the lock before creating a proxy, so
+ * each account has one proxy even if its first uses race.
+ */
+public class AccountDirectory {
+
+	private static final VarHandle ACCOUNTS = MethodHandles
+			.arrayElementVarHandle(BankAccount[].class);
+
+	/* An open-addressing table, kept at most half full. */
+	private static class Table {
+		final int[] numbers;
+
+		/* Null for an empty entry. */
+		final BankAccount[] accounts;
+
+		/* Number of accounts; guarded by the directory. */
+		int size;
+
+		Table(int capacity) {
+			numbers = new int[capacity];
+			accounts = new BankAccount[capacity];
+		}
+	}
+
+	/* Replaced, when it fills up, while holding the lock of this directory. */
+	private volatile Table fTable;
+
+	/* The Bank used to resolve unknown account numbers, or null. */
+	private Bank fBank;
+
+	/**
+	 * Creates a directory holding a fixed set of BankAccount proxies.
+	 *
+	 * @param accounts
+	 *            a hashtable of <account-number, BankAccount proxy> pairs.
+	 * @throws NumberFormatException
+	 *             if an account number is not numeric.
+	 */
+	public AccountDirectory(Hashtable<String, BankAccount> accounts) {
+		this.fTable = new Table(16);
+		synchronized (this) {
+			for (String number : accounts.keySet()) {
+				int account = Integer.parseInt(number);
+				if (find(fTable, account) == null) {
+					put(account, accounts.get(number));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a directory whose accounts are all served by a remote Bank.
+	 */
+	public AccountDirectory(Bank bank) {
+		this.fTable = new Table(16);
+		this.fBank = bank;
+	}
+
+	/**
+	 * Returns the BankAccount for the specified account number, or null if
+	 * the number is unknown to a directory that is not backed by a Bank.
+	 */
+	public BankAccount get(int number) {
+		BankAccount account = find(fTable, number);
+		if (account == null && fBank != null) {
+			account = create(number);
+		}
+		return account;
+	}
+
+	/**
+	 * Returns the Bank backing this directory, or null if it holds a fixed
+	 * set of BankAccount proxies. Operations that involve two accounts, such
+	 * as transfers, can only be made through a Bank.
+	 */
+	public Bank getBank() {
+		return fBank;
+	}
+
+	/**
+	 * Returns the account numbers currently held by this directory. For a
+	 * Bank-backed directory these are the accounts used so far.
+	 */
+	public synchronized int[] numbers() {
+		Table table = fTable;
+		int[] numbers = new int[table.size];
+		int n = 0;
+		for (int i = 0; i < table.accounts.length; i++) {
+			if (table.accounts[i] != null) {
+				numbers[n++] = table.numbers[i];
+			}
+		}
+		return numbers;
+	}
+
+	/**
+	 * Returns true if this directory can resolve no accounts at all.
+	 */
+	public boolean isEmpty() {
+		return fBank == null && size() == 0;
+	}
+
+	private synchronized int size() {
+		return fTable.size;
+	}
+
+	/*
+	 * Returns the proxy for an account of the Bank, creating it if no other
+	 * thread has.
+	 */
+	private synchronized BankAccount create(int number) {
+		BankAccount account = find(fTable, number);
+		if (account == null) {
+			account = new BankAccountProxy(fBank, BankCommandParser
+					.formatAccountNumber(number));
+			put(number, account);
+		}
+		return account;
+	}
+
+	/*
+	 * Adds an account that is not yet held, first replacing the table with
+	 * one twice the size if it would become more than half full. Must be
+	 * called while holding the lock of this directory.
+	 */
+	private void put(int number, BankAccount account) {
+		Table table = fTable;
+		if ((table.size + 1) * 2 > table.accounts.length) {
+			Table larger = new Table(table.accounts.length * 2);
+			for (int i = 0; i < table.accounts.length; i++) {
+				if (table.accounts[i] != null) {
+					insert(larger, table.numbers[i], table.accounts[i]);
+				}
+			}
+			larger.size = table.size;
+			fTable = larger;
+			table = larger;
+		}
+		insert(table, number, account);
+		table.size++;
+	}
+
+	private static void insert(Table table, int number, BankAccount account) {
+		int mask = table.accounts.length - 1;
+		int i = slot(number) & mask;
+		while (table.accounts[i] != null) {
+			i = (i + 1) & mask;
+		}
+		table.numbers[i] = number;
+		ACCOUNTS.setRelease(table.accounts, i, account);
+	}
+
+	private static BankAccount find(Table table, int number) {
+		int mask = table.accounts.length - 1;
+		for (int i = slot(number) & mask;; i = (i + 1) & mask) {
+			BankAccount account = (BankAccount) ACCOUNTS.getAcquire(
+					table.accounts, i);
+			if (account == null || table.numbers[i] == number) {
+				return account;
+			}
+		}
+	}
+
+	private static int slot(int number) {
+		int h = number * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
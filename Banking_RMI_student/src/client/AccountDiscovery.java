@@ -0,0 +1,270 @@
+package client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import common.BankAccount;
+
+/**
+ * Class that discovers the BankAccount objects registered with an RMI
+ * Registry. The names bound in the registry are listed with a single call;
+ * accounts registered under BankAccount.NAME_PREFIX followed by their number
+ * are identified from their names alone, and their stubs are looked up
+ * concurrently on a pool of threads, so discovery takes a few round trips
+ * rather than several per account. Stubs registered under other names, as
+ * older servers did, are asked for their number once they are looked up.
+ *
+ * The stubs found can be saved to a cache file, from which later
+ * discoveries against the same registry start. A cached set of stubs is used
+ * only if the names bound in the registry are still those it was built from,
+ * which takes one call to list the registry, and a call on one of the stubs
+ * succeeds. Otherwise, for instance because accounts have been bound or
+ * unbound, or the server has been restarted and its objects have new
+ * identities, the cache is discarded in favour of a fresh discovery.
+ */
+public class AccountDiscovery {
+
+	/* Format of the cache file, written before its contents. */
+	private static final int CACHE_VERSION = 2;
+
+	private final String fRegistryHost;
+
+	private final int fRegistryPort;
+
+	private final int fThreads;
+
+	/* The cache file, or null. */
+	private final File fCacheFile;
+
+	private boolean fFromCache;
+
+	/**
+	 * Creates an AccountDiscovery for the registry at the specified host and
+	 * port.
+	 *
+	 * @param threads
+	 *            the number of lookups made at once.
+	 * @param cacheFile
+	 *            the file in which discovered stubs are cached, or null for
+	 *            no cache.
+	 */
+	public AccountDiscovery(String registryHost, int registryPort,
+			int threads, String cacheFile) {
+		if (threads < 1) {
+			throw new IllegalArgumentException(
+					"Number of threads must be positive: " + threads);
+		}
+		fRegistryHost = registryHost;
+		fRegistryPort = registryPort;
+		fThreads = threads;
+		fCacheFile = cacheFile == null || cacheFile.length() == 0 ? null
+				: new File(cacheFile);
+	}
+
+	/**
+	 * Returns a hashtable of <account-number, BankAccount proxy> pairs, with
+	 * one entry for each BankAccount registered with the registry, taken
+	 * from the cache file if it holds valid stubs for this registry.
+	 *
+	 * @throws RemoteException
+	 *             if the registry or an account cannot be reached.
+	 */
+	public Hashtable<String, BankAccount> lookupAccounts()
+			throws RemoteException, InterruptedException {
+		Registry registry = LocateRegistry.getRegistry(fRegistryHost,
+				fRegistryPort);
+		String[] names = registry.list();
+		Hashtable<String, BankAccount> accounts = readCache(names);
+		fFromCache = accounts != null;
+		if (accounts == null) {
+			accounts = discover(registry, names);
+			writeCache(names, accounts);
+		}
+		return accounts;
+	}
+
+	/**
+	 * Returns true if the accounts returned by the last call to
+	 * lookupAccounts() were taken from the cache file.
+	 */
+	public boolean isFromCache() {
+		return fFromCache;
+	}
+
+	/*
+	 * Looks up every BankAccount bound in the registry under the names
+	 * listed.
+	 */
+	private Hashtable<String, BankAccount> discover(final Registry registry,
+			String[] names) throws RemoteException, InterruptedException {
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(
+				fThreads, Math.max(names.length, 1)));
+		try {
+			List<Future<Map.Entry<String, BankAccount>>> lookups = new ArrayList<Future<Map.Entry<String, BankAccount>>>();
+			for (int i = 0; i < names.length; i++) {
+				final String name = names[i];
+				lookups.add(pool
+						.submit(new Callable<Map.Entry<String, BankAccount>>() {
+							public Map.Entry<String, BankAccount> call()
+									throws RemoteException {
+								return lookup(registry, name);
+							}
+						}));
+			}
+
+			Hashtable<String, BankAccount> accounts = new Hashtable<String, BankAccount>();
+			for (Future<Map.Entry<String, BankAccount>> lookup : lookups) {
+				Map.Entry<String, BankAccount> account = join(lookup);
+				if (account != null) {
+					accounts.put(account.getKey(), account.getValue());
+				}
+			}
+			return accounts;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/*
+	 * Looks up one name, returning its account number and BankAccount stub,
+	 * or null if the name is not bound to a BankAccount.
+	 */
+	private static Map.Entry<String, BankAccount> lookup(Registry registry,
+			String name) throws RemoteException {
+		Remote stub;
+		try {
+			stub = registry.lookup(name);
+		} catch (NotBoundException e) {
+			/* Unbound since the registry was listed. */
+			return null;
+		}
+		if (!(stub instanceof BankAccount)) {
+			return null;
+		}
+		BankAccount account = (BankAccount) stub;
+		String number;
+		if (name.startsWith(BankAccount.NAME_PREFIX)) {
+			number = name.substring(BankAccount.NAME_PREFIX.length());
+		} else {
+			number = account.getNumber();
+		}
+		return new AbstractMap.SimpleImmutableEntry<String, BankAccount>(
+				number, account);
+	}
+
+	private static <T> T join(Future<T> lookup) throws RemoteException,
+			InterruptedException {
+		try {
+			return lookup.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RemoteException) {
+				throw (RemoteException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RemoteException("Lookup failed", cause);
+		}
+	}
+
+	/*
+	 * Returns the accounts held in the cache file, or null if there is no
+	 * usable cache for this registry and the names now bound in it.
+	 */
+	@SuppressWarnings("unchecked")
+	private Hashtable<String, BankAccount> readCache(String[] names) {
+		if (fCacheFile == null || !fCacheFile.exists()) {
+			return null;
+		}
+		Hashtable<String, BankAccount> accounts;
+		try {
+			ObjectInputStream in = new ObjectInputStream(new FileInputStream(
+					fCacheFile));
+			try {
+				if (in.readInt() != CACHE_VERSION
+						|| !fRegistryHost.equals(in.readUTF())
+						|| in.readInt() != fRegistryPort
+						|| !new HashSet<String>(Arrays.asList(names)).equals(in
+								.readObject())) {
+					return null;
+				}
+				accounts = new Hashtable<String, BankAccount>(
+						(Map<String, BankAccount>) in.readObject());
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (ClassCastException e) {
+			return null;
+		}
+		if (accounts.isEmpty()) {
+			return null;
+		}
+
+		/* Check that the stubs still refer to exported objects. */
+		String number = accounts.keys().nextElement();
+		try {
+			if (!number.equals(accounts.get(number).getNumber())) {
+				return null;
+			}
+		} catch (RemoteException e) {
+			return null;
+		}
+		return accounts;
+	}
+
+	/*
+	 * Saves the accounts to the cache file. A failure to write the cache
+	 * only costs a later discovery, so it is reported and otherwise ignored.
+	 */
+	private void writeCache(String[] names,
+			Hashtable<String, BankAccount> accounts) {
+		if (fCacheFile == null) {
+			return;
+		}
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(
+					new FileOutputStream(fCacheFile));
+			try {
+				out.writeInt(CACHE_VERSION);
+				out.writeUTF(fRegistryHost);
+				out.writeInt(fRegistryPort);
+				out.writeObject(new HashSet<String>(Arrays.asList(names)));
+				out.writeObject(new HashMap<String, BankAccount>(accounts));
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to write stub cache " + fCacheFile
+					+ ": " + e);
+		}
+	}
+}
@@ -0,0 +1,388 @@
+package client;
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import common.Bank;
+import common.BankAccount;
+import common.ExcessiveAmountException;
+import common.NegativeAmountException;
+import common.NoSuchAccountException;
+import common.OperationBatch;
+
+/**
+ * Class that presents a remote BankAccount through non-blocking methods, each
+ * of which returns a CompletableFuture for the outcome of the operation.
+ * AsyncBankAccounts are obtained from an AsyncBankClient, which supplies the
+ * executor on which remote calls are made and bounds the number of
+ * operations outstanding.
+ *
+ * Any number of operations may be outstanding on an account, and they are
+ * applied in the order in which they were submitted. Operations are queued
+ * per account and the queue is drained by one task at a time, so at most one
+ * remote call is in progress on the account; a run of deposits and
+ * withdrawals that accumulates while a call is in progress is sent in a
+ * single applyBatch call. Deposits, withdrawals and batches are made through
+ * the client's IdempotentCaller, so a failed call is retried without the risk
+ * of applying it twice. A rejected deposit or withdrawal completes its future
+ * with a NegativeAmountException or ExcessiveAmountException, and a call that
+ * still fails after its retries completes it with a RemoteException.
+ *
+ * A transfer is queued on its source account, and is ordered with that
+ * account's operations only; it is made through the client's Bank.
+ */
+public class AsyncBankAccount {
+
+	/* An operation awaiting its remote call. */
+	private static class Operation {
+		final Opcode opcode;
+
+		final int target;
+
+		final long cents;
+
+		final CompletableFuture<?> future;
+
+		Operation(Opcode opcode, int target, long cents,
+				CompletableFuture<?> future) {
+			this.opcode = opcode;
+			this.target = target;
+			this.cents = cents;
+			this.future = future;
+		}
+
+		@SuppressWarnings("unchecked")
+		void complete(Object value) {
+			((CompletableFuture<Object>) future).complete(value);
+		}
+
+		void fail(Throwable cause) {
+			future.completeExceptionally(cause);
+		}
+	}
+
+	private final AsyncBankClient fClient;
+
+	private final int fAccount;
+
+	private final BankAccount fRemote;
+
+	/* Operations not yet sent; guarded by this. */
+	private final ArrayDeque<Operation> fQueue;
+
+	/* True while a drain task is scheduled or running; guarded by this. */
+	private boolean fDraining;
+
+	private final Runnable fDrain = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	AsyncBankAccount(AsyncBankClient client, int account, BankAccount remote) {
+		this.fClient = client;
+		this.fAccount = account;
+		this.fRemote = remote;
+		this.fQueue = new ArrayDeque<Operation>();
+	}
+
+	/**
+	 * Returns the number of the account.
+	 */
+	public int getAccount() {
+		return fAccount;
+	}
+
+	/**
+	 * Deposits an amount of cents, waiting first if the client's limit on
+	 * outstanding operations has been reached.
+	 */
+	public CompletableFuture<Void> depositCents(long cents) {
+		return submit(Opcode.DEPOSIT, 0, cents, new CompletableFuture<Void>());
+	}
+
+	/**
+	 * Withdraws an amount of cents, waiting first if the client's limit on
+	 * outstanding operations has been reached.
+	 */
+	public CompletableFuture<Void> withdrawCents(long cents) {
+		return submit(Opcode.WITHDRAW, 0, cents, new CompletableFuture<Void>());
+	}
+
+	/**
+	 * Transfers an amount of cents from this account to another, waiting
+	 * first if the client's limit on outstanding operations has been
+	 * reached. The future fails with an UnsupportedOperationException if the
+	 * client's directory is not backed by a Bank, and with a
+	 * NoSuchAccountException if the Bank has no such account.
+	 */
+	public CompletableFuture<Void> transferCents(int to, long cents) {
+		return submit(Opcode.TRANSFER, to, cents, new CompletableFuture<Void>());
+	}
+
+	/**
+	 * Returns the balance in cents once every operation submitted before has
+	 * been applied. The balance is taken from the client's AccountCache, if
+	 * it has one.
+	 */
+	public CompletableFuture<Long> getBalanceCents() {
+		return submit(Opcode.BALANCE, 0, 0, new CompletableFuture<Long>());
+	}
+
+	/**
+	 * Returns the name of the account, taken from the client's AccountCache
+	 * if it has one.
+	 */
+	public CompletableFuture<String> getName() {
+		return submit(Opcode.NAME, 0, 0, new CompletableFuture<String>());
+	}
+
+	/*
+	 * Queues an operation, scheduling a drain task unless one is already
+	 * scheduled.
+	 */
+	private <T> CompletableFuture<T> submit(Opcode opcode, int target,
+			long cents, CompletableFuture<T> future) {
+		fClient.getLimiter().acquire(fAccount);
+		boolean schedule;
+		synchronized (this) {
+			fQueue.add(new Operation(opcode, target, cents, future));
+			schedule = !fDraining;
+			fDraining = true;
+		}
+		if (schedule) {
+			fClient.getExecutor().execute(fDrain);
+		}
+		return future;
+	}
+
+	/*
+	 * Sends queued operations in order until the queue is empty.
+	 */
+	private void drain() {
+		while (true) {
+			List<Operation> group = new ArrayList<Operation>();
+			synchronized (this) {
+				Operation first = fQueue.poll();
+				if (first == null) {
+					fDraining = false;
+					return;
+				}
+				group.add(first);
+				if (isUpdate(first.opcode)) {
+					while (group.size() < fClient.getMaxBatchSize()
+							&& !fQueue.isEmpty()
+							&& isUpdate(fQueue.peek().opcode)) {
+						group.add(fQueue.poll());
+					}
+				}
+			}
+
+			try {
+				send(group);
+			} catch (RemoteException e) {
+				fail(group, e);
+			} catch (RuntimeException e) {
+				fail(group, e);
+			} finally {
+				for (int i = 0; i < group.size(); i++) {
+					fClient.getLimiter().release(fAccount);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Makes the remote call for a group of operations, which is either a
+	 * single query or transfer or a run of deposits and withdrawals, and
+	 * completes their futures.
+	 */
+	private void send(List<Operation> group) throws RemoteException {
+		AccountCache cache = fClient.getCache();
+		PipelineMetrics metrics = fClient.getMetrics();
+		Operation first = group.get(0);
+		long start = System.nanoTime();
+		switch (first.opcode) {
+		case NAME:
+			String name = cache != null ? cache.getName(fAccount, fRemote)
+					: fRemote.getName();
+			if (metrics != null) {
+				metrics.recordCall(Opcode.NAME, start);
+			}
+			first.complete(name);
+			return;
+		case BALANCE:
+			long balance = cache != null ? cache.getBalanceCents(fAccount,
+					fRemote) : fRemote.getBalanceCents();
+			if (metrics != null) {
+				metrics.recordCall(Opcode.BALANCE, start);
+			}
+			first.complete(balance);
+			return;
+		case TRANSFER:
+			transfer(first);
+			return;
+		default:
+			break;
+		}
+
+		IdempotentCaller caller = fClient.getCaller();
+		if (cache != null) {
+			cache.sending(fAccount);
+		}
+		/* Null until the call returns. */
+		byte[] outcomes = null;
+		try {
+			if (group.size() == 1) {
+				byte outcome;
+				if (first.opcode == Opcode.DEPOSIT) {
+					outcome = caller.depositCents(fRemote, first.cents);
+				} else {
+					outcome = caller.withdrawCents(fRemote, first.cents);
+				}
+				if (metrics != null) {
+					metrics.recordCall(first.opcode, start);
+				}
+				outcomes = new byte[] { outcome };
+			} else {
+				OperationBatch batch = new OperationBatch(group.size());
+				for (Operation operation : group) {
+					if (operation.opcode == Opcode.DEPOSIT) {
+						batch.addDeposit(operation.cents);
+					} else {
+						batch.addWithdrawal(operation.cents);
+					}
+				}
+				outcomes = caller.applyBatch(fRemote, batch);
+				if (metrics != null) {
+					metrics.recordBatch(batch, start);
+				}
+			}
+		} finally {
+			if (cache != null) {
+				report(cache, group, outcomes);
+			}
+		}
+
+		for (int i = 0; i < group.size(); i++) {
+			complete(group.get(i), outcomes[i]);
+		}
+	}
+
+	/*
+	 * Reports to the cache the outcome of a run of deposits and withdrawals
+	 * announced with sending(). A null outcome array means that the call
+	 * failed.
+	 */
+	private void report(AccountCache cache, List<Operation> group,
+			byte[] outcomes) {
+		if (outcomes == null) {
+			cache.failed(fAccount);
+			return;
+		}
+		long cents = 0;
+		for (int i = 0; i < outcomes.length; i++) {
+			if (outcomes[i] == OperationBatch.EXPIRED) {
+				cache.failed(fAccount);
+				return;
+			}
+			if (outcomes[i] == OperationBatch.APPLIED) {
+				Operation operation = group.get(i);
+				cents += operation.opcode == Opcode.DEPOSIT ? operation.cents
+						: -operation.cents;
+			}
+		}
+		cache.applied(fAccount, cents);
+	}
+
+	/*
+	 * Makes the remote call for a transfer and completes its future.
+	 */
+	private void transfer(Operation operation) throws RemoteException {
+		Bank bank = fClient.getBank();
+		if (bank == null) {
+			operation.fail(new UnsupportedOperationException(
+					"Transfers require a Bank"));
+			return;
+		}
+		AccountCache cache = fClient.getCache();
+		if (cache != null) {
+			cache.sending(fAccount);
+			cache.sending(operation.target);
+		}
+		byte outcome;
+		long start = System.nanoTime();
+		try {
+			outcome = fClient.getCaller().transferCents(bank,
+					BankCommandParser.formatAccountNumber(fAccount),
+					BankCommandParser.formatAccountNumber(operation.target),
+					operation.cents);
+		} catch (NoSuchAccountException e) {
+			/* Neither account was changed. */
+			if (cache != null) {
+				cache.applied(fAccount, 0);
+				cache.applied(operation.target, 0);
+			}
+			operation.fail(e);
+			return;
+		} catch (RemoteException e) {
+			if (cache != null) {
+				cache.failed(fAccount);
+				cache.failed(operation.target);
+			}
+			throw e;
+		}
+		PipelineMetrics metrics = fClient.getMetrics();
+		if (metrics != null) {
+			metrics.recordCall(Opcode.TRANSFER, start);
+		}
+		if (cache != null) {
+			if (outcome == OperationBatch.EXPIRED) {
+				cache.failed(fAccount);
+				cache.failed(operation.target);
+			} else if (outcome == OperationBatch.APPLIED) {
+				cache.applied(fAccount, -operation.cents);
+				cache.applied(operation.target, operation.cents);
+			} else {
+				cache.applied(fAccount, 0);
+				cache.applied(operation.target, 0);
+			}
+		}
+		complete(operation, outcome);
+	}
+
+	/*
+	 * Completes the future of a deposit, withdrawal or transfer according to
+	 * its outcome code.
+	 */
+	private static void complete(Operation operation, byte outcome) {
+		switch (outcome) {
+		case OperationBatch.APPLIED:
+			operation.complete(null);
+			break;
+		case OperationBatch.NEGATIVE:
+			operation.fail(new NegativeAmountException());
+			break;
+		case OperationBatch.EXCESSIVE:
+			operation.fail(new ExcessiveAmountException());
+			break;
+		default:
+			operation.fail(new RemoteException(
+					"Outcome of operation no longer known to the server"));
+			break;
+		}
+	}
+
+	private static void fail(List<Operation> group, Throwable cause) {
+		for (Operation operation : group) {
+			operation.fail(cause);
+		}
+	}
+
+	private static boolean isUpdate(Opcode opcode) {
+		return opcode == Opcode.DEPOSIT || opcode == Opcode.WITHDRAW;
+	}
+}
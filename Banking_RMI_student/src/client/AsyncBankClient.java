@@ -0,0 +1,141 @@
+package client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import common.Bank;
+import common.BankAccount;
+import common.OperationBatch;
+
+/**
+ * Class that provides AsyncBankAccounts for the accounts of an
+ * AccountDirectory. All of a client's AsyncBankAccounts share its executor,
+ * on which their remote calls are made, its optional AccountCache, its
+ * IdempotentCaller, its optional PipelineMetrics and its InFlightLimiter.
+ * The limiter here bounds the operations outstanding rather than the remote
+ * calls in progress: submitting an operation waits while the limit for its
+ * account, or the overall limit, has been reached, so a producer that
+ * outpaces the server is held back.
+ */
+public class AsyncBankClient {
+
+	private final AccountDirectory fDirectory;
+
+	private final Executor fExecutor;
+
+	private final InFlightLimiter fLimiter;
+
+	private final int fMaxBatchSize;
+
+	private final AccountCache fCache;
+
+	private final IdempotentCaller fCaller;
+
+	private final PipelineMetrics fMetrics;
+
+	private final ConcurrentHashMap<Integer, AsyncBankAccount> fAccounts;
+
+	/**
+	 * Creates an AsyncBankClient.
+	 *
+	 * @param directory
+	 *            the directory resolving account numbers to BankAccounts.
+	 * @param executor
+	 *            the executor on which remote calls are made.
+	 * @param limiter
+	 *            the limiter bounding the operations outstanding, in total
+	 *            and per account.
+	 * @param maxBatchSize
+	 *            the maximum number of deposits and withdrawals on an account
+	 *            sent in one applyBatch call, at most OperationBatch.MAX_SIZE.
+	 * @param cache
+	 *            the cache serving names and balances, or null.
+	 * @param caller
+	 *            the caller through which deposits, withdrawals and batches
+	 *            are made.
+	 */
+	public AsyncBankClient(AccountDirectory directory, Executor executor,
+			InFlightLimiter limiter, int maxBatchSize, AccountCache cache,
+			IdempotentCaller caller) {
+		this(directory, executor, limiter, maxBatchSize, cache, caller, null);
+	}
+
+	/**
+	 * Creates an AsyncBankClient that records the latency of each operation
+	 * and batch it completes.
+	 *
+	 * @param metrics
+	 *            the metrics, or null.
+	 */
+	public AsyncBankClient(AccountDirectory directory, Executor executor,
+			InFlightLimiter limiter, int maxBatchSize, AccountCache cache,
+			IdempotentCaller caller, PipelineMetrics metrics) {
+		if (maxBatchSize < 1 || maxBatchSize > OperationBatch.MAX_SIZE) {
+			throw new IllegalArgumentException("Batch size must be between 1 and "
+					+ OperationBatch.MAX_SIZE + ": " + maxBatchSize);
+		}
+		this.fDirectory = directory;
+		this.fExecutor = executor;
+		this.fLimiter = limiter;
+		this.fMaxBatchSize = maxBatchSize;
+		this.fCache = cache;
+		this.fCaller = caller;
+		this.fMetrics = metrics;
+		this.fAccounts = new ConcurrentHashMap<Integer, AsyncBankAccount>();
+	}
+
+	/**
+	 * Returns the AsyncBankAccount for the specified account number, or null
+	 * if the number is unknown to the directory.
+	 */
+	public AsyncBankAccount get(int number) {
+		AsyncBankAccount account = fAccounts.get(number);
+		if (account == null) {
+			BankAccount remote = fDirectory.get(number);
+			if (remote == null) {
+				return null;
+			}
+			account = fAccounts.computeIfAbsent(number,
+					n -> new AsyncBankAccount(this, n, remote));
+		}
+		return account;
+	}
+
+	/**
+	 * Waits until every operation submitted has completed.
+	 *
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting.
+	 */
+	public void awaitIdle() throws InterruptedException {
+		fLimiter.awaitIdle();
+	}
+
+	Executor getExecutor() {
+		return fExecutor;
+	}
+
+	InFlightLimiter getLimiter() {
+		return fLimiter;
+	}
+
+	int getMaxBatchSize() {
+		return fMaxBatchSize;
+	}
+
+	AccountCache getCache() {
+		return fCache;
+	}
+
+	IdempotentCaller getCaller() {
+		return fCaller;
+	}
+
+	PipelineMetrics getMetrics() {
+		return fMetrics;
+	}
+
+	Bank getBank() {
+		return fDirectory.getBank();
+	}
+}
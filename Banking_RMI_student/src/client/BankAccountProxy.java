@@ -0,0 +1,135 @@
+package client;
+
+import java.rmi.RemoteException;
+
+import common.Bank;
+import common.BankAccount;
+import common.ExcessiveAmountException;
+import common.Money;
+import common.NegativeAmountException;
+import common.NoSuchAccountException;
+import common.OperationBatch;
+
+/**
+ * Class that presents one account of a remote Bank as a BankAccount. A
+ * BankAccountProxy is a local object: each call is forwarded to the Bank
+ * together with the account number, so no remote object needs to be exported
+ * or looked up per account.
+ *
+ * Because the BankAccount interface has no way to report an unknown account,
+ * a NoSuchAccountException raised by the Bank is rethrown as the cause of a
+ * RemoteException.
+ */
+public class BankAccountProxy implements BankAccount {
+
+	private Bank fBank;
+
+	private String fNumber;
+
+	public BankAccountProxy(Bank bank, String number) {
+		this.fBank = bank;
+		this.fNumber = number;
+	}
+
+	public Money getBalance() throws RemoteException {
+		try {
+			return fBank.getBalance(fNumber);
+		} catch (NoSuchAccountException e) {
+			throw new RemoteException("No such account: " + fNumber, e);
+		}
+	}
+
+	public String getName() throws RemoteException {
+		try {
+			return fBank.getName(fNumber);
+		} catch (NoSuchAccountException e) {
+			throw new RemoteException("No such account: " + fNumber, e);
+		}
+	}
+
+	/**
+	 * Returns the account number without making a remote call.
+	 */
+	public String getNumber() {
+		return fNumber;
+	}
+
+	public void deposit(Money amount) throws RemoteException,
+			NegativeAmountException {
+		try {
+			fBank.deposit(fNumber, amount);
+		} catch (NoSuchAccountException e) {
+			throw new RemoteException("No such account: " + fNumber, e);
+		}
+	}
+
+	public void withdraw(Money amount) throws RemoteException,
+			NegativeAmountException, ExcessiveAmountException {
+		try {
+			fBank.withdraw(fNumber, amount);
+		} catch (NoSuchAccountException e) {
+			throw new RemoteException("No such account: " + fNumber, e);
+		}
+	}
+
+	public long getBalanceCents() throws RemoteException {
+		try {
+			return fBank.getBalanceCents(fNumber);
+		} catch (NoSuchAccountException e) {
+			throw new RemoteException("No such account: " + fNumber, e);
+		}
+	}
+
+	public void depositCents(long cents) throws RemoteException,
+			NegativeAmountException {
+		try {
+			fBank.depositCents(fNumber, cents);
+		} catch (NoSuchAccountException e) {
+			throw new RemoteException("No such account: " + fNumber, e);
+		}
+	}
+
+	public void withdrawCents(long cents) throws RemoteException,
+			NegativeAmountException, ExcessiveAmountException {
+		try {
+			fBank.withdrawCents(fNumber, cents);
+		} catch (NoSuchAccountException e) {
+			throw new RemoteException("No such account: " + fNumber, e);
+		}
+	}
+
+	public byte[] applyBatch(OperationBatch batch) throws RemoteException {
+		try {
+			return fBank.applyBatch(fNumber, batch);
+		} catch (NoSuchAccountException e) {
+			throw new RemoteException("No such account: " + fNumber, e);
+		}
+	}
+
+	public byte depositCentsOnce(long clientId, long sequence, long cents)
+			throws RemoteException {
+		try {
+			return fBank.depositCentsOnce(fNumber, clientId, sequence, cents);
+		} catch (NoSuchAccountException e) {
+			throw new RemoteException("No such account: " + fNumber, e);
+		}
+	}
+
+	public byte withdrawCentsOnce(long clientId, long sequence, long cents)
+			throws RemoteException {
+		try {
+			return fBank.withdrawCentsOnce(fNumber, clientId, sequence, cents);
+		} catch (NoSuchAccountException e) {
+			throw new RemoteException("No such account: " + fNumber, e);
+		}
+	}
+
+	public byte[] applyBatchOnce(long clientId, long sequence,
+			OperationBatch batch) throws RemoteException {
+		try {
+			return fBank.applyBatchOnce(fNumber, clientId, sequence, batch);
+		} catch (NoSuchAccountException e) {
+			throw new RemoteException("No such account: " + fNumber, e);
+		}
+	}
+}
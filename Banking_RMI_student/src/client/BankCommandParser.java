@@ -1,7 +1,12 @@
 package client;
 
+import common.IllegalMoneyException;
+import common.Money;
+
 /**
  * A class which defines a grammar for commands that operate on bank accounts.
+ * Commands that match the grammar are converted directly from their bytes
+ * into typed Command objects by toCommand().
  */
 public class BankCommandParser extends CommandParser {
 
@@ -14,7 +19,10 @@ public class BankCommandParser extends CommandParser {
 	private static final char TOKEN_DELIMITER = ',';
 
 	/* Account numbers are 8 digit strings. */
-	private static final String ACCOUNT_NUMBER = "\\d{8}";
+	public static final int ACCOUNT_NUMBER_DIGITS = 8;
+
+	private static final String ACCOUNT_NUMBER = "\\d{" + ACCOUNT_NUMBER_DIGITS
+			+ "}";
 
 	/*
 	 * Amounts of money are specified as: an optional - sign, one or more
@@ -23,11 +31,13 @@ public class BankCommandParser extends CommandParser {
 	private static final String MONEY = "-?\\d+" + TOKEN_DELIMITER + "\\d{1,2}";
 
 	/*
-	 * 4 commands are defined, each structured using tokens. All commands have a
+	 * 5 commands are defined, each structured using tokens. All commands have a
 	 * name (e.g. balance) indicated by the first token of each command. The
 	 * "name" and "balance" commands each take one additional token which is the
 	 * account number to query. The "deposit" and "withdraw" commands each have
-	 * an account number token plus an amount of money.
+	 * an account number token plus an amount of money. The "transfer" command
+	 * has the number of the account to withdraw from, the number of the
+	 * account to deposit into, and an amount of money.
 	 */
 	private static final String[] NAME_CMD = { "name", ACCOUNT_NUMBER };
 
@@ -39,8 +49,28 @@ public class BankCommandParser extends CommandParser {
 	private static final String[] WITHDRAW_CMD = { "withdraw", ACCOUNT_NUMBER,
 			MONEY };
 
+	private static final String[] TRANSFER_CMD = { "transfer", ACCOUNT_NUMBER,
+			ACCOUNT_NUMBER, MONEY };
+
 	private static final String[][] allCommands = { NAME_CMD, BALANCE_CMD,
-			DEPOSIT_CMD, WITHDRAW_CMD };
+			DEPOSIT_CMD, WITHDRAW_CMD, TRANSFER_CMD };
+
+	/* The operation of each entry in allCommands. */
+	private static final Opcode[] OPCODES = { Opcode.NAME, Opcode.BALANCE,
+			Opcode.DEPOSIT, Opcode.WITHDRAW, Opcode.TRANSFER };
+
+	/**
+	 * Returns the account number string, padded with leading zeros to
+	 * ACCOUNT_NUMBER_DIGITS digits, for an account number held as an int.
+	 */
+	public static String formatAccountNumber(int account) {
+		char[] digits = new char[ACCOUNT_NUMBER_DIGITS];
+		for (int i = digits.length - 1; i >= 0; i--) {
+			digits[i] = (char) ('0' + account % 10);
+			account /= 10;
+		}
+		return new String(digits);
+	}
 
 	/**
 	 * Returns a two-dimensional structure representing the command definitions
@@ -72,5 +102,68 @@ public class BankCommandParser extends CommandParser {
 	protected char getCommandDelimiter() {
 		return COMMAND_DELIMITER;
 	}
-}
 
+	/**
+	 * Converts a command that matches the grammar into a Command. The
+	 * command's tokens are read directly from the bytes of the command: each
+	 * account number is accumulated as an int and any amount is converted to
+	 * cents as Money.toCents() would, without creating Strings.
+	 * 
+	 * @return the Command, or null if the amount cannot be represented in
+	 *         cents.
+	 * @see CommandParser
+	 */
+	protected Command toCommand(int commandIndex, byte[] command, int length) {
+		Opcode opcode = OPCODES[commandIndex];
+
+		/* Skip the command name and its delimiter. */
+		int pos = 0;
+		while (command[pos] != TOKEN_DELIMITER) {
+			pos++;
+		}
+		pos++;
+
+		int account = 0;
+		for (int i = 0; i < ACCOUNT_NUMBER_DIGITS; i++) {
+			account = account * 10 + (command[pos++] - '0');
+		}
+
+		int target = 0;
+		if (opcode == Opcode.TRANSFER) {
+			/* Skip the delimiter that follows the source account number. */
+			pos++;
+			for (int i = 0; i < ACCOUNT_NUMBER_DIGITS; i++) {
+				target = target * 10 + (command[pos++] - '0');
+			}
+		}
+
+		long cents = 0;
+		if (opcode != Opcode.NAME && opcode != Opcode.BALANCE) {
+			/* Skip the delimiter that follows the account number. */
+			pos++;
+			boolean negative = command[pos] == '-';
+			if (negative) {
+				pos++;
+			}
+			long dollars = 0;
+			try {
+				while (command[pos] != TOKEN_DELIMITER) {
+					dollars = Math.addExact(Math.multiplyExact(dollars, 10),
+							command[pos++] - '0');
+				}
+				pos++;
+				int centsPart = 0;
+				while (command[pos] != COMMAND_DELIMITER) {
+					centsPart = centsPart * 10 + (command[pos++] - '0');
+				}
+				cents = Money.toCents(negative ? -dollars : dollars, centsPart);
+			} catch (ArithmeticException e) {
+				return null;
+			} catch (IllegalMoneyException e) {
+				return null;
+			}
+		}
+
+		return new Command(opcode, account, target, cents);
+	}
+}
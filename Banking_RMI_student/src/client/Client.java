@@ -5,18 +5,14 @@ import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Semaphore;
-
 import java.util.regex.PatternSyntaxException;
 
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.List;
 import java.util.Hashtable;
-import java.util.Set;
+import java.util.concurrent.Executor;
 
+import common.Bank;
 import common.BankAccount;
 import common.Money;
 
@@ -29,7 +25,103 @@ public class Client {
 
 	public static void main(String[] args) {
 
-		final int THREAD_POOL_SIZE = 5;
+		/*
+		 * Number of workers, each draining one dispatcher partition, e.g.
+		 * -Dclient.workers=64.
+		 */
+		final int THREAD_POOL_SIZE = Integer.getInteger("client.workers", 5);
+
+		/*
+		 * With -Dclient.threads=virtual, workers run on virtual threads and
+		 * each remote call is made on a virtual thread of its own, so a
+		 * worker can have several calls in progress. The number of calls in
+		 * progress is bounded by client.maxInFlight in total (0, the default,
+		 * for no limit) and by client.maxInFlightPerAccount for each account
+		 * (default 1, which keeps the calls on an account in file order).
+		 * The same bounds apply to platform-thread workers, which make their
+		 * calls synchronously.
+		 */
+		final boolean VIRTUAL_THREADS = "virtual".equals(System.getProperty(
+				"client.threads", "platform"));
+		final int MAX_IN_FLIGHT = Integer.getInteger("client.maxInFlight", 0);
+		final int MAX_IN_FLIGHT_PER_ACCOUNT = Integer.getInteger(
+				"client.maxInFlightPerAccount", 1);
+
+		/*
+		 * With -Dclient.calls=async, workers submit commands to an
+		 * AsyncBankClient and do not wait for their outcomes. Up to
+		 * client.maxOutstanding operations (client.maxOutstandingPerAccount
+		 * per account) may then be outstanding, and the deposits and
+		 * withdrawals queued on an account are sent in applyBatch calls of
+		 * up to client.asyncBatch operations. client.maxInFlight and
+		 * client.maxInFlightPerAccount do not apply in this mode.
+		 */
+		final boolean ASYNC_CALLS = "async".equals(System.getProperty(
+				"client.calls", "sync"));
+		final int MAX_OUTSTANDING = Integer.getInteger("client.maxOutstanding",
+				1024);
+		final int MAX_OUTSTANDING_PER_ACCOUNT = Integer.getInteger(
+				"client.maxOutstandingPerAccount", 256);
+		final int ASYNC_BATCH = Integer.getInteger("client.asyncBatch", 64);
+
+		/*
+		 * Name and balance commands are served from a cache holding up to
+		 * client.cacheSize accounts, e.g. -Dclient.cacheSize=100000. A
+		 * balance is served for client.balanceLease milliseconds after it
+		 * has been fetched, adjusted by this client's own deposits and
+		 * withdrawals; a lease of 0 fetches every balance.
+		 */
+		final int CACHE_SIZE = Integer.getInteger("client.cacheSize", 10000);
+		final long BALANCE_LEASE = Long.getLong("client.balanceLease", 100);
+
+		/*
+		 * Deposits, withdrawals and batches carry an operation id, so a call
+		 * that fails with a RemoteException can be repeated safely; it is
+		 * repeated up to client.retries times.
+		 */
+		final int RETRIES = Integer.getInteger("client.retries", 2);
+
+		/* Number of commands each Dispatcher partition can hold. */
+		final int PARTITION_CAPACITY = 128;
+
+		/*
+		 * Optional batching of deposits and withdrawals, e.g.
+		 * -Dclient.batchSize=32 -Dclient.batchDelay=5 (milliseconds). The
+		 * default batch size of 1 sends one RMI call per command.
+		 */
+		final int BATCH_SIZE = Integer.getInteger("client.batchSize", 1);
+		final long BATCH_DELAY = Long.getLong("client.batchDelay", 10);
+
+		/*
+		 * How the data file is read: "stream" (default), "mapped" for a
+		 * memory-mapped scan, or "parallel" for a memory-mapped scan split
+		 * across client.parseThreads threads (one per processor by default),
+		 * e.g. -Dclient.parser=parallel -Dclient.parseThreads=4. With
+		 * "binary" the data file is an operation log written by
+		 * OperationLogConverter and is replayed without parsing.
+		 */
+		final Producer.Mode PARSE_MODE = Producer.Mode.valueOf(System
+				.getProperty("client.parser", "stream").toUpperCase());
+		final int PARSE_THREADS = Integer.getInteger("client.parseThreads",
+				Runtime.getRuntime().availableProcessors());
+
+		/*
+		 * The pipeline's rates are printed every client.reportInterval
+		 * milliseconds while commands are processed (0 for none), and a
+		 * summary of every stage is printed at the end of the run.
+		 */
+		final long REPORT_INTERVAL = Long.getLong("client.reportInterval",
+				1000);
+
+		/*
+		 * With -Dclient.lookup=accounts, the accounts registered with the
+		 * registry are looked up client.lookupThreads at a time, and the
+		 * stubs found are saved to the file named by client.stubCache, if
+		 * any, from which later runs start.
+		 */
+		final int LOOKUP_THREADS = Integer.getInteger("client.lookupThreads",
+				16);
+		final String STUB_CACHE = System.getProperty("client.stubCache");
 
 		try {
 			/* Check command line arguments. */
@@ -39,94 +131,135 @@ public class Client {
 				System.exit(1);
 			}
 
-			long start = System.currentTimeMillis();
+			PipelineMetrics metrics = new PipelineMetrics(REPORT_INTERVAL,
+					System.out);
 
-			/* Lookup remote BankAccount objects. */
-			Hashtable<String, BankAccount> accounts;
+			/*
+			 * Lookup remote accounts, either through the Bank object
+			 * (default) or, with -Dclient.lookup=accounts, as individually
+			 * registered BankAccount objects.
+			 */
+			AccountDirectory accounts;
 
-			accounts = lookupRemoteAccounts(args[1], args[2]);
+			if ("accounts".equals(System.getProperty("client.lookup"))) {
+				accounts = new AccountDirectory(lookupRemoteAccounts(args[1],
+						args[2], LOOKUP_THREADS, STUB_CACHE));
+			} else {
+				accounts = new AccountDirectory(lookupRemoteBank(args[1],
+						args[2]));
+			}
 			if (accounts.isEmpty()) {
 				System.err
 						.println("Unable to acquire proxy objects, program terminating.");
 				System.exit(1);
 			}
 
-			long acquiredProxies = System.currentTimeMillis();
-			System.out.println("Time taken to acquire proxies: "
-					+ (acquiredProxies - start) / 1000.0 + "sec.");
+			metrics.endStage("lookup");
 
 			/*
-			 * Create a parser and queue to store commands read from the data
-			 * file.
+			 * Create a parser, and a dispatcher that routes the commands read
+			 * from the data file to one partition per worker by account
+			 * number.
 			 */
 			BankCommandParser parser = new BankCommandParser();
-			BlockingQueue<String[]> queue = new ArrayBlockingQueue<String[]>(
-					100);
+			Dispatcher dispatcher = new Dispatcher(THREAD_POOL_SIZE,
+					PARTITION_CAPACITY);
 
-			/* Create a pool of worker (consumer) threads to process the queue. */
-			List<Thread> workers = new ArrayList<Thread>();
-			
-			Hashtable<String, Semaphore> semaphoreHash = new Hashtable<>();
-			
-			
-			for (String i:accounts.keySet())
-			{
-				Semaphore s = new Semaphore(1);
-				semaphoreHash.put(i, s);
+			/*
+			 * Create a pool of worker (consumer) threads, each processing one
+			 * partition, the limiter that bounds their remote calls and the
+			 * cache they share.
+			 */
+			InFlightLimiter limiter;
+			Executor callExecutor = null;
+			if (VIRTUAL_THREADS || ASYNC_CALLS) {
+				if (!WorkerThreads.isVirtualSupported()) {
+					System.err
+							.println("Virtual threads are not available in this JVM, using platform threads.");
+				}
+				callExecutor = WorkerThreads.newPerTaskExecutor();
 			}
-			
-			
-			
-			Semaphore s = new Semaphore(1);
+
+			AccountCache cache = new AccountCache(CACHE_SIZE, BALANCE_LEASE);
+			IdempotentCaller caller = new IdempotentCaller(RETRIES);
+
+			AsyncBankClient asyncClient = null;
+			if (ASYNC_CALLS) {
+				limiter = new InFlightLimiter(MAX_OUTSTANDING,
+						MAX_OUTSTANDING_PER_ACCOUNT);
+				asyncClient = new AsyncBankClient(accounts, callExecutor,
+						limiter, ASYNC_BATCH, cache, caller, metrics);
+			} else {
+				limiter = new InFlightLimiter(MAX_IN_FLIGHT,
+						MAX_IN_FLIGHT_PER_ACCOUNT);
+			}
+
+			List<Thread> workers = new ArrayList<Thread>();
+
 			for (int i = 0; i < THREAD_POOL_SIZE; i++) {
-				Thread thread = new Thread(new Worker(queue, accounts, semaphoreHash));
+				CommandRing partition = dispatcher.getPartition(i);
+				Worker worker;
+				if (ASYNC_CALLS) {
+					worker = new Worker(partition, asyncClient);
+				} else {
+					worker = new Worker(partition, accounts, BATCH_SIZE,
+							BATCH_DELAY, limiter, callExecutor, cache, caller,
+							metrics);
+				}
+				Thread thread = WorkerThreads.newThread(worker, VIRTUAL_THREADS);
 				thread.start();
 				workers.add(thread);
 			}
 
-			/* Start a producer thread that deposits commands into the queue. */
+			/*
+			 * Start a producer thread that deposits commands into the
+			 * dispatcher.
+			 */
+			metrics.start(dispatcher, limiter);
 			Thread producerThread = new Thread(new Producer(args[0], parser,
-					queue));
+					dispatcher, PARSE_MODE, PARSE_THREADS));
 			producerThread.start();
 
-			/* Wait for the producer thread to finish. */
-			producerThread.join();
-			System.out.println("Producer thread finished ...");
-
 			/*
-			 * Start a thread to monitor the queue and wait for it to become
-			 * empty.
+			 * Wait for the producer thread to finish, then end the stream of
+			 * every partition. Each worker terminates as soon as it has taken
+			 * the last command of its partition, and the limiter reports when
+			 * the last remote call has completed.
 			 */
-			Thread queueMonitorThread = new Thread(new QueueMonitor<String[]>(
-					queue));
-			queueMonitorThread.start();
-			queueMonitorThread.join();
-			System.out.println("Buffer is now empty ...");
-
-			/* Ask the workers to terminate gracefully. */
-			for (Thread t : workers) {
-				t.interrupt();
-			}
+			producerThread.join();
+			dispatcher.close();
+			metrics.producerFinished();
+			metrics.endStage("produce");
+			System.out.println("Producer thread finished ...");
 
 			/* Wait for the workers to terminate. */
 			for (Thread t : workers) {
 				t.join();
 			}
-			System.out.println("Worker threads finished ...");
+
+			/*
+			 * Wait for calls still in progress on other threads, or for the
+			 * operations still outstanding in asynchronous mode.
+			 */
+			limiter.awaitIdle();
+			metrics.endStage("drain");
+			metrics.stop();
+			System.out.println("Worker threads finished ("
+					+ limiter.getPeakInFlight()
+					+ (ASYNC_CALLS ? " operations outstanding" : " calls in flight")
+					+ " at peak) ...");
+			System.out.println("Account cache: " + cache);
 
 			/* Request final balances. */
-			Enumeration<String> e = accounts.keys();
-			BankAccount account = null;
-			while (e.hasMoreElements()) {
-				String accountNumber = e.nextElement();
-				account = accounts.get(accountNumber);
+			for (int accountNumber : accounts.numbers()) {
+				BankAccount account = accounts.get(accountNumber);
 				Money balance = account.getBalance();
-				System.out.println(accountNumber + ": " + balance);
+				System.out.println(BankCommandParser
+						.formatAccountNumber(accountNumber) + ": " + balance);
 			}
 
-			long stop = System.currentTimeMillis();
-			System.out.println("Total elapsed time: " + (stop - start) / 1000.0
-					+ "sec.");
+			metrics.endStage("balances");
+			System.out.println(metrics.getSummary());
 		} catch (PatternSyntaxException e) {
 			System.err.println("Grammar is invalid ...");
 			System.err.println(e);
@@ -156,24 +289,43 @@ public class Client {
 	 * @param registryPort
 	 *            the port the RMI Registry is using to listen for incoming
 	 *            invocations.
-	 * @throws NotBoundException
+	 * @param threads
+	 *            the number of lookups made at once.
+	 * @param stubCache
+	 *            the file in which the stubs found are cached, or null.
 	 * @throws RemoteException
-	 * @throws MalformedURLException
+	 * @throws InterruptedException
+	 * @see AccountDiscovery
 	 */
 	private static Hashtable<String, BankAccount> lookupRemoteAccounts(
-			String registryHost, String registryPort)
-			throws MalformedURLException, RemoteException, NotBoundException {
-		Hashtable<String, BankAccount> accounts = new Hashtable<String, BankAccount>();
-
-		BankAccount acc = (BankAccount) Naming.lookup("//" + registryHost + ":"
-				+ registryPort + "/" + "1");
-		accounts.put(acc.getNumber(), acc);
-		acc = (BankAccount) Naming.lookup("//" + registryHost + ":"
-				+ registryPort + "/" + "2");
-		accounts.put(acc.getNumber(), acc);
-		acc = (BankAccount) Naming.lookup("//" + registryHost + ":"
-				+ registryPort + "/" + "3");
-		accounts.put(acc.getNumber(), acc);
+			String registryHost, String registryPort, int threads,
+			String stubCache) throws RemoteException, InterruptedException {
+		AccountDiscovery discovery = new AccountDiscovery(registryHost,
+				Integer.parseInt(registryPort), threads, stubCache);
+		Hashtable<String, BankAccount> accounts = discovery.lookupAccounts();
+		System.out.println("Found " + accounts.size() + " accounts"
+				+ (discovery.isFromCache() ? " in the stub cache." : "."));
 		return accounts;
 	}
+
+	/**
+	 * Returns a proxy for the remote Bank object registered with the RMI
+	 * Registry.
+	 * 
+	 * @param registryHost
+	 *            the name of the host machine on which the RMI Registry is
+	 *            expected to be running.
+	 * @param registryPort
+	 *            the port the RMI Registry is using to listen for incoming
+	 *            invocations.
+	 * @throws NotBoundException
+	 * @throws RemoteException
+	 * @throws MalformedURLException
+	 */
+	private static Bank lookupRemoteBank(String registryHost,
+			String registryPort) throws MalformedURLException,
+			RemoteException, NotBoundException {
+		return (Bank) Naming.lookup("//" + registryHost + ":" + registryPort
+				+ "/" + Bank.NAME);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+package client;
+
+/**
+ * Class to represent a parsed banking command. A Command holds its operation,
+ * the account number it applies to, the account a transfer is made to, and,
+ * for deposits, withdrawals and transfers, the amount in cents, all as
+ * primitive values so that a Worker can act on it
+ * without further parsing.
+ * 
+ * @see BankCommandParser
+ */
+public final class Command {
+
+	private final Opcode fOpcode;
+
+	private final int fAccount;
+
+	private final int fTarget;
+
+	private final long fCents;
+
+	/**
+	 * Creates a Command.
+	 * 
+	 * @param opcode
+	 *            the operation requested.
+	 * @param account
+	 *            the number of the account the operation applies to.
+	 * @param cents
+	 *            the amount of the operation in cents, or zero for operations
+	 *            that take no amount.
+	 */
+	public Command(Opcode opcode, int account, long cents) {
+		this(opcode, account, 0, cents);
+	}
+
+	/**
+	 * Creates a Command that may name a second account.
+	 * 
+	 * @param target
+	 *            the number of the account a transfer is made to, or zero
+	 *            for other operations.
+	 */
+	public Command(Opcode opcode, int account, int target, long cents) {
+		this.fOpcode = opcode;
+		this.fAccount = account;
+		this.fTarget = target;
+		this.fCents = cents;
+	}
+
+	public Opcode getOpcode() {
+		return fOpcode;
+	}
+
+	public int getAccount() {
+		return fAccount;
+	}
+
+	public int getTarget() {
+		return fTarget;
+	}
+
+	public long getCents() {
+		return fCents;
+	}
+
+	/**
+	 * Returns a string representation of this Command.
+	 */
+	public String toString() {
+		StringBuffer description = new StringBuffer();
+
+		description.append(fOpcode.name().toLowerCase());
+		description.append(", ");
+		description.append(BankCommandParser.formatAccountNumber(fAccount));
+		if (fOpcode == Opcode.TRANSFER) {
+			description.append(", ");
+			description.append(BankCommandParser.formatAccountNumber(fTarget));
+		}
+		if (fOpcode == Opcode.DEPOSIT || fOpcode == Opcode.WITHDRAW
+				|| fOpcode == Opcode.TRANSFER) {
+			description.append(", ");
+			description.append(fCents / 100);
+			description.append(", ");
+			description.append(Math.abs(fCents % 100));
+		}
+		description.append(';');
+
+		return description.toString();
+	}
+}
@@ -0,0 +1,582 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class implementing a deterministic finite automaton that recognises the
+ * commands of a CommandParser grammar. The automaton is compiled once from
+ * the regular expressions returned by getCommands() and then classifies a
+ * command, held as single-byte characters in a byte array, with one table
+ * lookup per byte; it reports which command definition the input matches.
+ *
+ * Only the commonly used subset of java.util.regex syntax can be compiled:
+ * literals and escaped characters, '.', character classes (including ranges,
+ * negation and the \d \s \w escapes and their negations), grouping,
+ * alternation and the ? * + {n} {n,} {n,m} quantifiers. compile() throws
+ * UnsupportedOperationException for any other construct (for example anchors,
+ * look-around or back references) so that the caller can fall back to
+ * java.util.regex.
+ */
+public final class CommandLexer {
+
+	/* Limits that keep compilation time and table size bounded. */
+	private static final int MAX_DFA_STATES = 4096;
+
+	private static final int MAX_REPETITION = 256;
+
+	/* DFA transition table: next state for (state, byte), or -1. */
+	private final int[] fTransitions;
+
+	/* Index of the command accepted in each state, or -1. */
+	private final int[] fAccepts;
+
+	private CommandLexer(int[] transitions, int[] accepts) {
+		this.fTransitions = transitions;
+		this.fAccepts = accepts;
+	}
+
+	/**
+	 * Returns the index, in the command definitions the lexer was compiled
+	 * from, of the command matched by the first length bytes of command, or
+	 * -1 if they do not match any command. If more than one definition
+	 * matches, the lowest index is returned.
+	 */
+	public int match(byte[] command, int length) {
+		int state = 0;
+		for (int i = 0; i < length; i++) {
+			state = fTransitions[(state << 8) | (command[i] & 0xFF)];
+			if (state < 0) {
+				return -1;
+			}
+		}
+		return fAccepts[state];
+	}
+
+	/**
+	 * Compiles a grammar. Each command is the concatenation of its token
+	 * expressions separated by the token delimiter and terminated by the
+	 * command delimiter, as in CommandParser.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if a token expression uses syntax that this class cannot
+	 *             compile, or the automaton would be too large.
+	 * @throws java.util.regex.PatternSyntaxException
+	 *             if a token expression is malformed.
+	 */
+	public static CommandLexer compile(String[][] commands,
+			char tokenDelimiter, char commandDelimiter) {
+		Nfa nfa = new Nfa();
+		int start = nfa.newState();
+
+		for (int i = 0; i < commands.length; i++) {
+			Fragment command = null;
+			for (int j = 0; j < commands[i].length; j++) {
+				if (j > 0) {
+					command = nfa.concat(command, nfa.literal(tokenDelimiter));
+				}
+				Node token = new RegexReader(commands[i][j]).parse();
+				command = nfa.concat(command, nfa.build(token));
+			}
+			command = nfa.concat(command, nfa.literal(commandDelimiter));
+
+			nfa.epsilon(start, command.start);
+			int accept = nfa.newState();
+			nfa.epsilon(command.end, accept);
+			nfa.accepts.put(accept, i);
+		}
+
+		return nfa.toDfa(start);
+	}
+
+	/*
+	 * ---------------------------------------------------------------------
+	 * Regular expression syntax tree and reader.
+	 * ---------------------------------------------------------------------
+	 */
+
+	private static abstract class Node {
+	}
+
+	/* Matches one byte from a set. */
+	private static class CharNode extends Node {
+		final BitSet chars;
+
+		CharNode(BitSet chars) {
+			this.chars = chars;
+		}
+	}
+
+	private static class ConcatNode extends Node {
+		final List<Node> parts;
+
+		ConcatNode(List<Node> parts) {
+			this.parts = parts;
+		}
+	}
+
+	private static class AltNode extends Node {
+		final List<Node> options;
+
+		AltNode(List<Node> options) {
+			this.options = options;
+		}
+	}
+
+	/* Repeats a node between min and max times; max of -1 is unbounded. */
+	private static class RepeatNode extends Node {
+		final Node node;
+
+		final int min;
+
+		final int max;
+
+		RepeatNode(Node node, int min, int max) {
+			this.node = node;
+			this.min = min;
+			this.max = max;
+		}
+	}
+
+	/*
+	 * Recursive descent reader for the supported regular expression subset.
+	 */
+	private static class RegexReader {
+		private final String fPattern;
+
+		private int fPos;
+
+		RegexReader(String pattern) {
+			this.fPattern = pattern;
+		}
+
+		Node parse() {
+			Node node = alternation();
+			if (fPos < fPattern.length()) {
+				throw unsupported();
+			}
+			return node;
+		}
+
+		private Node alternation() {
+			List<Node> options = new ArrayList<Node>();
+			options.add(concatenation());
+			while (peek() == '|') {
+				fPos++;
+				options.add(concatenation());
+			}
+			return options.size() == 1 ? options.get(0) : new AltNode(options);
+		}
+
+		private Node concatenation() {
+			List<Node> parts = new ArrayList<Node>();
+			while (fPos < fPattern.length() && peek() != '|' && peek() != ')') {
+				parts.add(repetition());
+			}
+			return new ConcatNode(parts);
+		}
+
+		private Node repetition() {
+			Node node = atom();
+			while (fPos < fPattern.length()) {
+				char ch = peek();
+				int min;
+				int max;
+				if (ch == '?') {
+					min = 0;
+					max = 1;
+				} else if (ch == '*') {
+					min = 0;
+					max = -1;
+				} else if (ch == '+') {
+					min = 1;
+					max = -1;
+				} else if (ch == '{') {
+					int close = fPattern.indexOf('}', fPos);
+					if (close < 0) {
+						throw unsupported();
+					}
+					String bounds = fPattern.substring(fPos + 1, close);
+					int comma = bounds.indexOf(',');
+					try {
+						if (comma < 0) {
+							min = max = Integer.parseInt(bounds);
+						} else {
+							min = Integer.parseInt(bounds.substring(0, comma));
+							String upper = bounds.substring(comma + 1);
+							max = upper.isEmpty() ? -1 : Integer.parseInt(upper);
+						}
+					} catch (NumberFormatException e) {
+						throw unsupported();
+					}
+					if (min > MAX_REPETITION || max > MAX_REPETITION
+							|| (max >= 0 && max < min)) {
+						throw unsupported();
+					}
+					fPos = close;
+				} else {
+					break;
+				}
+				fPos++;
+
+				/* Lazy quantifiers match the same strings; possessive do not. */
+				if (peek() == '?') {
+					fPos++;
+				} else if (peek() == '+') {
+					throw unsupported();
+				}
+				node = new RepeatNode(node, min, max);
+			}
+			return node;
+		}
+
+		private Node atom() {
+			char ch = fPattern.charAt(fPos++);
+			switch (ch) {
+			case '(':
+				if (fPattern.startsWith("?:", fPos)) {
+					fPos += 2;
+				} else if (peek() == '?') {
+					throw unsupported();
+				}
+				Node group = alternation();
+				if (peek() != ')') {
+					throw unsupported();
+				}
+				fPos++;
+				return group;
+			case '[':
+				return new CharNode(characterClass());
+			case '.':
+				BitSet any = new BitSet(256);
+				any.set(0, 256);
+				any.clear('\n');
+				any.clear('\r');
+				any.clear(0x85);
+				return new CharNode(any);
+			case '\\':
+				return new CharNode(escape());
+			case '^':
+			case '$':
+			case ')':
+			case '*':
+			case '+':
+			case '?':
+			case '{':
+				throw unsupported();
+			default:
+				return new CharNode(single(ch));
+			}
+		}
+
+		private BitSet characterClass() {
+			boolean negated = false;
+			if (peek() == '^') {
+				negated = true;
+				fPos++;
+			}
+			BitSet chars = new BitSet(256);
+			boolean first = true;
+			while (true) {
+				if (fPos >= fPattern.length()) {
+					throw unsupported();
+				}
+				char ch = fPattern.charAt(fPos++);
+				if (ch == ']' && !first) {
+					break;
+				}
+				first = false;
+				if (ch == '[' || (ch == '&' && peek() == '&')) {
+					throw unsupported();
+				}
+				if (ch == '\\') {
+					BitSet escaped = escape();
+					if (escaped.cardinality() != 1 || peek() != '-') {
+						chars.or(escaped);
+						continue;
+					}
+					ch = (char) escaped.nextSetBit(0);
+				}
+				if (peek() == '-' && fPos + 1 < fPattern.length()
+						&& fPattern.charAt(fPos + 1) != ']') {
+					fPos++;
+					char end = fPattern.charAt(fPos++);
+					if (end == '\\') {
+						BitSet escaped = escape();
+						if (escaped.cardinality() != 1) {
+							throw unsupported();
+						}
+						end = (char) escaped.nextSetBit(0);
+					}
+					if (end < ch) {
+						throw unsupported();
+					}
+					chars.set(Math.min(ch, 256), Math.min(end + 1, 256));
+				} else if (ch < 256) {
+					chars.set(ch);
+				}
+			}
+			if (negated) {
+				chars.flip(0, 256);
+			}
+			return chars;
+		}
+
+		private BitSet escape() {
+			if (fPos >= fPattern.length()) {
+				throw unsupported();
+			}
+			char ch = fPattern.charAt(fPos++);
+			BitSet chars = new BitSet(256);
+			switch (ch) {
+			case 'd':
+			case 'D':
+				chars.set('0', '9' + 1);
+				break;
+			case 's':
+			case 'S':
+				chars.set(' ');
+				chars.set('\t', '\r' + 1);
+				break;
+			case 'w':
+			case 'W':
+				chars.set('a', 'z' + 1);
+				chars.set('A', 'Z' + 1);
+				chars.set('0', '9' + 1);
+				chars.set('_');
+				break;
+			case 't':
+				return single('\t');
+			case 'n':
+				return single('\n');
+			case 'r':
+				return single('\r');
+			case 'f':
+				return single('\f');
+			default:
+				if (Character.isLetterOrDigit(ch)) {
+					/* Back references, word boundaries, properties, hex escapes. */
+					throw unsupported();
+				}
+				return single(ch);
+			}
+			if (Character.isUpperCase(ch)) {
+				chars.flip(0, 256);
+			}
+			return chars;
+		}
+
+		private static BitSet single(char ch) {
+			BitSet chars = new BitSet(256);
+			if (ch < 256) {
+				chars.set(ch);
+			}
+			return chars;
+		}
+
+		private char peek() {
+			return fPos < fPattern.length() ? fPattern.charAt(fPos) : '\0';
+		}
+
+		private UnsupportedOperationException unsupported() {
+			return new UnsupportedOperationException(
+					"Cannot compile expression: " + fPattern);
+		}
+	}
+
+	/*
+	 * ---------------------------------------------------------------------
+	 * Thompson NFA construction and subset construction.
+	 * ---------------------------------------------------------------------
+	 */
+
+	private static class Fragment {
+		final int start;
+
+		final int end;
+
+		Fragment(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	private static class Nfa {
+		/* Per state: byte-set transitions and epsilon transitions. */
+		final List<List<BitSet>> charSets = new ArrayList<List<BitSet>>();
+
+		final List<List<Integer>> charTargets = new ArrayList<List<Integer>>();
+
+		final List<List<Integer>> epsilons = new ArrayList<List<Integer>>();
+
+		/* Accepting states and the command each accepts. */
+		final Map<Integer, Integer> accepts = new HashMap<Integer, Integer>();
+
+		int newState() {
+			charSets.add(new ArrayList<BitSet>());
+			charTargets.add(new ArrayList<Integer>());
+			epsilons.add(new ArrayList<Integer>());
+			if (charSets.size() > MAX_DFA_STATES * 16) {
+				throw new UnsupportedOperationException("Grammar too large");
+			}
+			return charSets.size() - 1;
+		}
+
+		void epsilon(int from, int to) {
+			epsilons.get(from).add(to);
+		}
+
+		Fragment literal(char ch) {
+			return chars(RegexReader.single(ch));
+		}
+
+		Fragment chars(BitSet set) {
+			int start = newState();
+			int end = newState();
+			charSets.get(start).add(set);
+			charTargets.get(start).add(end);
+			return new Fragment(start, end);
+		}
+
+		Fragment empty() {
+			int state = newState();
+			return new Fragment(state, state);
+		}
+
+		Fragment concat(Fragment first, Fragment second) {
+			if (first == null) {
+				return second;
+			}
+			epsilon(first.end, second.start);
+			return new Fragment(first.start, second.end);
+		}
+
+		Fragment build(Node node) {
+			if (node instanceof CharNode) {
+				return chars(((CharNode) node).chars);
+			} else if (node instanceof ConcatNode) {
+				Fragment result = null;
+				for (Node part : ((ConcatNode) node).parts) {
+					result = concat(result, build(part));
+				}
+				return result == null ? empty() : result;
+			} else if (node instanceof AltNode) {
+				int start = newState();
+				int end = newState();
+				for (Node option : ((AltNode) node).options) {
+					Fragment f = build(option);
+					epsilon(start, f.start);
+					epsilon(f.end, end);
+				}
+				return new Fragment(start, end);
+			} else {
+				RepeatNode repeat = (RepeatNode) node;
+				Fragment result = null;
+				for (int i = 0; i < repeat.min; i++) {
+					result = concat(result, build(repeat.node));
+				}
+				if (repeat.max < 0) {
+					/* Kleene star of the node. */
+					Fragment body = build(repeat.node);
+					int state = newState();
+					epsilon(state, body.start);
+					epsilon(body.end, state);
+					result = concat(result, new Fragment(state, state));
+				} else {
+					for (int i = repeat.min; i < repeat.max; i++) {
+						Fragment body = build(repeat.node);
+						int start = newState();
+						int end = newState();
+						epsilon(start, body.start);
+						epsilon(start, end);
+						epsilon(body.end, end);
+						result = concat(result, new Fragment(start, end));
+					}
+				}
+				return result == null ? empty() : result;
+			}
+		}
+
+		CommandLexer toDfa(int start) {
+			Map<BitSet, Integer> ids = new HashMap<BitSet, Integer>();
+			List<BitSet> states = new ArrayList<BitSet>();
+			List<int[]> rows = new ArrayList<int[]>();
+
+			BitSet initial = new BitSet();
+			initial.set(start);
+			closure(initial);
+			ids.put(initial, 0);
+			states.add(initial);
+
+			for (int s = 0; s < states.size(); s++) {
+				BitSet current = states.get(s);
+				int[] row = new int[256];
+				Arrays.fill(row, -1);
+				for (int b = 0; b < 256; b++) {
+					BitSet next = new BitSet();
+					for (int n = current.nextSetBit(0); n >= 0; n = current
+							.nextSetBit(n + 1)) {
+						List<BitSet> sets = charSets.get(n);
+						for (int k = 0; k < sets.size(); k++) {
+							if (sets.get(k).get(b)) {
+								next.set(charTargets.get(n).get(k));
+							}
+						}
+					}
+					if (next.isEmpty()) {
+						continue;
+					}
+					closure(next);
+					Integer id = ids.get(next);
+					if (id == null) {
+						if (states.size() == MAX_DFA_STATES) {
+							throw new UnsupportedOperationException(
+									"Grammar too large");
+						}
+						id = states.size();
+						ids.put(next, id);
+						states.add(next);
+					}
+					row[b] = id;
+				}
+				rows.add(row);
+			}
+
+			int[] transitions = new int[states.size() * 256];
+			int[] acceptsByState = new int[states.size()];
+			for (int s = 0; s < states.size(); s++) {
+				System.arraycopy(rows.get(s), 0, transitions, s * 256, 256);
+				int accept = -1;
+				BitSet set = states.get(s);
+				for (Map.Entry<Integer, Integer> e : accepts.entrySet()) {
+					if (set.get(e.getKey())
+							&& (accept < 0 || e.getValue() < accept)) {
+						accept = e.getValue();
+					}
+				}
+				acceptsByState[s] = accept;
+			}
+			return new CommandLexer(transitions, acceptsByState);
+		}
+
+		private void closure(BitSet set) {
+			List<Integer> pending = new ArrayList<Integer>();
+			for (int n = set.nextSetBit(0); n >= 0; n = set.nextSetBit(n + 1)) {
+				pending.add(n);
+			}
+			while (!pending.isEmpty()) {
+				int n = pending.remove(pending.size() - 1);
+				for (int target : epsilons.get(n)) {
+					if (!set.get(target)) {
+						set.set(target);
+						pending.add(target);
+					}
+				}
+			}
+		}
+	}
+}
@@ -1,10 +1,12 @@
 package client;
 
-import java.text.DateFormat;
-import java.util.Calendar;
-import java.util.Date;
-
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.regex.PatternSyntaxException;
@@ -12,6 +14,10 @@ import java.util.regex.PatternSyntaxException;
 import java.io.FileReader;
 import java.io.LineNumberReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Class implementing a simple parser to process textual commands. This class
@@ -20,6 +26,12 @@ import java.io.IOException;
  * language and specify comment and delimiting characters. The parse() method
  * uses these subclass-defined properties to parse an input file whose content
  * should be zero or more commands that conform to the grammar.
+ * 
+ * In addition to the token arrays produced by parse(), a parser can produce
+ * typed Command objects through parseCommands(). For this, the grammar is
+ * compiled into a CommandLexer state machine that identifies which command
+ * definition each input command matches, and the subclass converts the
+ * command's bytes into a Command by implementing toCommand().
  */
 public abstract class CommandParser {
 
@@ -33,6 +45,22 @@ public abstract class CommandParser {
 
 	private char commandDelimiter;
 
+	/*
+	 * State machine compiled from the grammar, or null if the grammar uses
+	 * syntax that CommandLexer cannot compile, in which case each command
+	 * definition is matched with its own entry in commandPatterns.
+	 */
+	private CommandLexer lexer;
+
+	private Pattern[] commandPatterns;
+
+	/*
+	 * Size, in bytes, of the chunks handed to a thread by
+	 * parseCommandsInParallel(). Fixed, so that the chunks in progress, and
+	 * the memory they use, depend only on the parallelism.
+	 */
+	private static final long CHUNK_SIZE = 256 * 1024;
+
 	/**
 	 * Returns the set of command definitions which comprise the command
 	 * language. Each command definition is represented as a regular expression.
@@ -81,6 +109,49 @@ public abstract class CommandParser {
 		/* Attempt to compile the grammar. */
 		String grammar = buildGrammar();
 		compiledGrammar = Pattern.compile(grammar);
+
+		String[][] commands = getCommands();
+		try {
+			lexer = CommandLexer.compile(commands, tokenDelimiter,
+					commandDelimiter);
+		} catch (UnsupportedOperationException e) {
+			commandPatterns = new Pattern[commands.length];
+			for (int i = 0; i < commands.length; i++) {
+				StringBuffer command = new StringBuffer();
+				for (int j = 0; j < commands[i].length; j++) {
+					if (j > 0) {
+						command.append(Pattern.quote(String
+								.valueOf(tokenDelimiter)));
+					}
+					command.append("(?:").append(commands[i][j]).append(')');
+				}
+				command.append(Pattern.quote(String.valueOf(commandDelimiter)));
+				commandPatterns[i] = Pattern.compile(command.toString());
+			}
+		}
+	}
+
+	/**
+	 * Converts a command that matches the grammar into a typed Command. The
+	 * command is presented as single-byte characters with whitespace removed
+	 * and includes its terminating command delimiter. Subclasses that support
+	 * parseCommands() must override this method; the default implementation
+	 * throws UnsupportedOperationException.
+	 * 
+	 * @param commandIndex
+	 *            the index, in getCommands(), of the command definition that
+	 *            the command matches.
+	 * @param command
+	 *            a buffer holding the command.
+	 * @param length
+	 *            the number of bytes of the command in the buffer.
+	 * @return the Command, or null if the command is well formed but cannot
+	 *         be represented (for example, an amount that overflows) and
+	 *         should be skipped.
+	 */
+	protected Command toCommand(int commandIndex, byte[] command, int length) {
+		throw new UnsupportedOperationException(getClass().getName()
+				+ " does not produce typed commands");
 	}
 
 	/**
@@ -185,14 +256,7 @@ public abstract class CommandParser {
 					 * so far.
 					 */
 					numberOfCommandsRead++;
-					
-					if(numberOfCommandsRead % 100 == 0) {
-						Date d = Calendar.getInstance().getTime();
-					    DateFormat df = DateFormat.getTimeInstance(DateFormat.MEDIUM);
-					    String toPrint = df.format(d);
-						//System.out.println(toPrint + ": " + numberOfCommandsRead);
-					}
-					
+
 					String[] tokens = command.split(tokenDelimiter + "|"
 							+ commandDelimiter);
 					queue.put(tokens);
@@ -229,6 +293,390 @@ public abstract class CommandParser {
 		}
 	}
 
+	/**
+	 * Parses an input file in the same way as parse(), but reads the file
+	 * through a memory-mapped MappedCommandReader rather than a character
+	 * stream. Each command is matched against the grammar directly from the
+	 * reader's byte buffer; Strings are only created for the tokens of valid
+	 * commands and for the text of commands reported in syntax errors. Line
+	 * numbers in syntax errors are the same as those reported by parse().
+	 * 
+	 * @see #parse(String, int, BlockingQueue)
+	 */
+	public void parseMapped(String filename, int numberOfCommandsToRead,
+			BlockingQueue<String[]> queue) throws IOException,
+			IllegalSyntaxException, InterruptedException {
+		IllegalSyntaxException illegalSyntaxException = null;
+		MappedCommandReader in = null;
+
+		try {
+			in = new MappedCommandReader(filename, lineComment,
+					commandDelimiter);
+			ByteSequence command = new ByteSequence();
+			Matcher matcher = compiledGrammar.matcher("");
+			int numberOfCommandsRead = 0;
+
+			while (in.next()) {
+				command.set(in.buffer(), in.length());
+				matcher.reset(command);
+				if (!matcher.matches()) {
+					/* The command is syntactically incorrect. */
+					if (illegalSyntaxException == null) {
+						illegalSyntaxException = new IllegalSyntaxException();
+					}
+					illegalSyntaxException.add(filename + ": "
+							+ in.lineNumber() + ": " + command);
+				} else if (illegalSyntaxException == null) {
+					/*
+					 * Store the command if no syntax errors have been detected
+					 * so far.
+					 */
+					numberOfCommandsRead++;
+					queue.put(tokenize(in.buffer(), in.length()));
+
+					if (numberOfCommandsRead == numberOfCommandsToRead) {
+						/* A sufficient number of commands have been read. */
+						break;
+					}
+				}
+			}
+
+			if (illegalSyntaxException != null) {
+				throw illegalSyntaxException;
+			}
+		} finally {
+			try {
+				if (in != null) {
+					in.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Parses an input file into typed Command objects. The file is read
+	 * either through a memory-mapped MappedCommandReader or a character
+	 * StreamCommandReader; in both cases comments, whitespace and line numbers
+	 * are handled as by parse(). Each command is classified by the lexer
+	 * compiled from the grammar and converted by toCommand(), so neither a
+	 * regular expression match nor a String is needed per command.
+	 *
+	 * @param sink
+	 *            the object to which commands are passed, in file order.
+	 * @param mapped
+	 *            true to read the file through a memory mapping, false to
+	 *            read it as a character stream.
+	 * @see #parse(String, int, BlockingQueue)
+	 */
+	public void parseCommands(String filename, int numberOfCommandsToRead,
+			CommandSink sink, boolean mapped) throws IOException,
+			IllegalSyntaxException, InterruptedException {
+		IllegalSyntaxException illegalSyntaxException = null;
+		CommandReader in = null;
+
+		try {
+			if (mapped) {
+				in = new MappedCommandReader(filename, lineComment,
+						commandDelimiter);
+			} else {
+				in = new StreamCommandReader(filename, lineComment,
+						commandDelimiter);
+			}
+			int numberOfCommandsRead = 0;
+
+			while (in.next()) {
+				int commandIndex = matchCommand(in.buffer(), in.length());
+				if (commandIndex < 0) {
+					/* The command is syntactically incorrect. */
+					if (illegalSyntaxException == null) {
+						illegalSyntaxException = new IllegalSyntaxException();
+					}
+					illegalSyntaxException.add(filename + ": "
+							+ in.lineNumber() + ": "
+							+ new String(in.buffer(), 0, in.length(),
+									StandardCharsets.ISO_8859_1));
+				} else if (illegalSyntaxException == null) {
+					numberOfCommandsRead++;
+					Command command = toCommand(commandIndex, in.buffer(),
+							in.length());
+					if (command != null) {
+						sink.put(command);
+					}
+
+					if (numberOfCommandsRead == numberOfCommandsToRead) {
+						break;
+					}
+				}
+			}
+
+			if (illegalSyntaxException != null) {
+				throw illegalSyntaxException;
+			}
+		} finally {
+			try {
+				if (in != null) {
+					in.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Parses an input file into typed Command objects using several threads.
+	 * The file is split into chunks that each begin at the start of a
+	 * command, the chunks are scanned concurrently on a ForkJoinPool of the
+	 * specified parallelism, and their results are passed to the sink in
+	 * chunk order. Commands therefore reach the sink in the same order as
+	 * with parseCommands(), and in particular all commands for an account
+	 * keep their order in the file. Syntax errors are reported with the same
+	 * line numbers as by parse().
+	 * 
+	 * Chunks are of a fixed size and at most two per thread are parsed ahead
+	 * of the chunk being passed to the sink, so memory use does not grow with
+	 * the file size.
+	 * 
+	 * @param parallelism
+	 *            the number of threads used to parse chunks.
+	 * @see #parseCommands(String, int, CommandSink, boolean)
+	 */
+	public void parseCommandsInParallel(String filename,
+			int numberOfCommandsToRead, CommandSink sink,
+			int parallelism) throws IOException, IllegalSyntaxException,
+			InterruptedException {
+		IllegalSyntaxException illegalSyntaxException = null;
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+		try {
+			FileChannel channel = file.getChannel();
+			long[] boundaries = MappedCommandReader.findChunkBoundaries(
+					channel, CHUNK_SIZE, lineComment, commandDelimiter);
+			int numberOfChunks = boundaries.length - 1;
+
+			List<ForkJoinTask<Chunk>> tasks = new ArrayList<ForkJoinTask<Chunk>>();
+			int numberOfCommandsRead = 0;
+			int firstLine = 0;
+
+			for (int i = 0; i < numberOfChunks; i++) {
+				/* Keep up to two chunks per thread in progress. */
+				while (tasks.size() < numberOfChunks
+						&& tasks.size() <= i + 2 * parallelism) {
+					int next = tasks.size();
+					tasks.add(pool.submit(new ChunkTask(channel,
+							boundaries[next], boundaries[next + 1])));
+				}
+				Chunk chunk = join(tasks.get(i));
+				tasks.set(i, null);
+
+				if (illegalSyntaxException == null) {
+					int end = chunk.commandsBeforeError >= 0 ? chunk.commandsBeforeError
+							: chunk.commands.size();
+					for (int j = 0; j < end; j++) {
+						numberOfCommandsRead++;
+						Command command = chunk.commands.get(j);
+						if (command != null) {
+							sink.put(command);
+						}
+
+						if (numberOfCommandsRead == numberOfCommandsToRead) {
+							return;
+						}
+					}
+				}
+
+				for (int j = 0; j < chunk.errorLines.size(); j++) {
+					if (illegalSyntaxException == null) {
+						illegalSyntaxException = new IllegalSyntaxException();
+					}
+					illegalSyntaxException.add(filename + ": "
+							+ (firstLine + chunk.errorLines.get(j)) + ": "
+							+ chunk.errors.get(j));
+				}
+				firstLine += chunk.lines;
+			}
+
+			if (illegalSyntaxException != null) {
+				throw illegalSyntaxException;
+			}
+		} finally {
+			pool.shutdownNow();
+			try {
+				file.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/*
+	 * Waits for a chunk to be parsed, rethrowing any exception raised while
+	 * parsing it.
+	 */
+	private static Chunk join(ForkJoinTask<Chunk> task) throws IOException,
+			InterruptedException {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) cause).getCause();
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/*
+	 * The result of parsing one chunk. Line numbers are relative to the start
+	 * of the chunk; commands that toCommand() could not represent are held
+	 * as null.
+	 */
+	private static class Chunk {
+		List<Command> commands = new ArrayList<Command>();
+
+		/* Number of commands before the first syntax error, or -1. */
+		int commandsBeforeError = -1;
+
+		List<Integer> errorLines = new ArrayList<Integer>();
+
+		List<String> errors = new ArrayList<String>();
+
+		/* Number of lines in the chunk. */
+		int lines;
+	}
+
+	/*
+	 * Parses the range [start, end) of a file. Once a syntax error has been
+	 * found, the rest of the chunk is only checked for further errors.
+	 */
+	private class ChunkTask extends RecursiveTask<Chunk> {
+		private final FileChannel fChannel;
+
+		private final long fStart;
+
+		private final long fEnd;
+
+		ChunkTask(FileChannel channel, long start, long end) {
+			fChannel = channel;
+			fStart = start;
+			fEnd = end;
+		}
+
+		protected Chunk compute() {
+			Chunk chunk = new Chunk();
+			try {
+				MappedCommandReader in = new MappedCommandReader(fChannel,
+						fStart, fEnd, lineComment, commandDelimiter);
+				try {
+					while (in.next()) {
+						int commandIndex = matchCommand(in.buffer(),
+								in.length());
+						if (commandIndex < 0) {
+							if (chunk.commandsBeforeError < 0) {
+								chunk.commandsBeforeError = chunk.commands
+										.size();
+							}
+							chunk.errorLines.add(in.lineNumber());
+							chunk.errors.add(new String(in.buffer(), 0, in
+									.length(), StandardCharsets.ISO_8859_1));
+						} else if (chunk.commandsBeforeError < 0) {
+							chunk.commands.add(toCommand(commandIndex, in
+									.buffer(), in.length()));
+						}
+					}
+					chunk.lines = in.lineNumber();
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return chunk;
+		}
+	}
+
+	/*
+	 * Returns the index of the command definition matched by a command, or
+	 * -1 if the command does not conform to the grammar.
+	 */
+	private int matchCommand(byte[] command, int length) {
+		if (lexer != null) {
+			return lexer.match(command, length);
+		}
+
+		ByteSequence sequence = new ByteSequence();
+		sequence.set(command, length);
+		for (int i = 0; i < commandPatterns.length; i++) {
+			if (commandPatterns[i].matcher(sequence).matches()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Splits a command at its token and command delimiters. Equivalent to the
+	 * String.split() call used by parse() for commands that match the grammar.
+	 */
+	private String[] tokenize(byte[] command, int length) {
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			if (command[i] == tokenDelimiter || command[i] == commandDelimiter) {
+				count++;
+			}
+		}
+
+		String[] tokens = new String[count];
+		int start = 0;
+		int index = 0;
+		for (int i = 0; i < length; i++) {
+			if (command[i] == tokenDelimiter || command[i] == commandDelimiter) {
+				tokens[index++] = new String(command, start, i - start,
+						StandardCharsets.ISO_8859_1);
+				start = i + 1;
+			}
+		}
+		return tokens;
+	}
+
+	/*
+	 * A reusable CharSequence view of single-byte characters held in a byte
+	 * array, allowing a command to be matched without creating a String.
+	 */
+	private static class ByteSequence implements CharSequence {
+		private byte[] fBytes;
+
+		private int fLength;
+
+		void set(byte[] bytes, int length) {
+			fBytes = bytes;
+			fLength = length;
+		}
+
+		public int length() {
+			return fLength;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || index >= fLength) {
+				throw new IndexOutOfBoundsException(Integer.toString(index));
+			}
+			return (char) (fBytes[index] & 0xFF);
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			return toString().substring(start, end);
+		}
+
+		public String toString() {
+			return new String(fBytes, 0, fLength, StandardCharsets.ISO_8859_1);
+		}
+	}
+
 	/*
 	 * Creates a regular expression which describes all permitted commands, i.e.
 	 * the complete grammar.
@@ -0,0 +1,42 @@
+package client;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Interface for reading the commands held in an input file, one at a time,
+ * with comments and whitespace removed. Each command is presented as the
+ * single-byte characters of the command up to and including its command
+ * delimiter.
+ * 
+ * @see MappedCommandReader
+ * @see StreamCommandReader
+ */
+public interface CommandReader extends Closeable {
+
+	/**
+	 * Advances to the next command. Input after the last command delimiter
+	 * in the file is ignored.
+	 * 
+	 * @return true if a command was read, false at the end of the input.
+	 */
+	public boolean next() throws IOException;
+
+	/**
+	 * Returns the buffer holding the bytes of the current command. Only the
+	 * first length() bytes are valid, and the buffer may be reused by the
+	 * next call to next().
+	 */
+	public byte[] buffer();
+
+	/**
+	 * Returns the number of bytes in the current command.
+	 */
+	public int length();
+
+	/**
+	 * Returns the line number at which the current command's delimiter was
+	 * read, counted as java.io.LineNumberReader counts lines.
+	 */
+	public int lineNumber();
+}
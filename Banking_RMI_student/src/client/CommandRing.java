@@ -0,0 +1,282 @@
+package client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded FIFO buffer of Commands for exactly one producer thread and one
+ * consumer thread. Commands are held in a circular array indexed by two
+ * ever-increasing counters, so neither put() nor take() acquires a lock: the
+ * producer is the only writer of the tail and the consumer the only writer of
+ * the head. A thread that finds the ring full (producer) or empty (consumer)
+ * spins briefly and then parks until the other thread wakes it; parking is
+ * limited to PARK_NANOS at a time so that a wake-up can never be missed for
+ * longer than that.
+ *
+ * The time each thread spends blocked is accumulated for PipelineMetrics. It
+ * is measured only once a thread finds the ring full or empty, so a put() or
+ * take() that does not wait reads no clock.
+ *
+ * When the producer has no more commands it closes the ring, which appends
+ * the END_OF_STREAM marker after the last command. The consumer therefore
+ * learns that the stream is complete only once it has taken every command
+ * put before it, and no thread needs to be interrupted or to poll the ring.
+ */
+public class CommandRing {
+
+	/**
+	 * Marker taken by the consumer after the last command of a closed ring.
+	 * It is compared by identity and is never passed to a Worker's command
+	 * processing.
+	 */
+	public static final Command END_OF_STREAM = new Command(null, 0, 0);
+
+	/*
+	 * Number of times a blocked thread re-checks the ring before parking.
+	 * Spinning is pointless on a single processor, where the other thread
+	 * cannot make progress while this one spins.
+	 */
+	private static final int SPINS = Runtime.getRuntime()
+			.availableProcessors() < 2 ? 0 : 100;
+
+	/* Longest time a blocked thread parks before re-checking the ring. */
+	private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final Command[] fCommands;
+
+	private final int fMask;
+
+	/* Number of commands taken; written only by the consumer. */
+	private final AtomicLong fHead = new AtomicLong();
+
+	/* Number of commands put; written only by the producer. */
+	private final AtomicLong fTail = new AtomicLong();
+
+	/* Threads parked waiting for the ring to change, or null. */
+	private volatile Thread fParkedProducer;
+
+	private volatile Thread fParkedConsumer;
+
+	/*
+	 * Time the producer has waited for space and the consumer for commands,
+	 * and the start of the wait in progress, or 0; each written only by its
+	 * own thread.
+	 */
+	private volatile long fProducerWaitNanos;
+
+	private volatile long fProducerWaitStart;
+
+	private volatile long fConsumerWaitNanos;
+
+	private volatile long fConsumerWaitStart;
+
+	/**
+	 * Creates a ring holding at least the specified number of commands; the
+	 * capacity is rounded up to a power of two.
+	 */
+	public CommandRing(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive: "
+					+ capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		fCommands = new Command[size];
+		fMask = size - 1;
+	}
+
+	/**
+	 * Adds a command, waiting if the ring is full. Must only be called by the
+	 * ring's producer thread.
+	 *
+	 * @throws InterruptedException
+	 *             if the producer is interrupted while waiting.
+	 */
+	public void put(Command command) throws InterruptedException {
+		long tail = fTail.get();
+		if (tail - fHead.get() == fCommands.length) {
+			long start = System.nanoTime();
+			fProducerWaitStart = start;
+			try {
+				awaitSpace(tail);
+			} finally {
+				fProducerWaitStart = 0;
+				fProducerWaitNanos += System.nanoTime() - start;
+			}
+		}
+		fCommands[(int) tail & fMask] = command;
+		fTail.set(tail + 1);
+
+		Thread consumer = fParkedConsumer;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/*
+	 * Waits until the ring has space for the command at tail.
+	 */
+	private void awaitSpace(long tail) throws InterruptedException {
+		int spins = 0;
+		while (tail - fHead.get() == fCommands.length) {
+			if (spins++ < SPINS) {
+				Thread.onSpinWait();
+				continue;
+			}
+			fParkedProducer = Thread.currentThread();
+			if (tail - fHead.get() == fCommands.length) {
+				LockSupport.parkNanos(this, PARK_NANOS);
+			}
+			fParkedProducer = null;
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Marks the end of the commands put into the ring, waiting if the ring is
+	 * full. No command may be put after the ring has been closed. Must only
+	 * be called by the ring's producer thread, or by a thread that has joined
+	 * it.
+	 *
+	 * @throws InterruptedException
+	 *             if the producer is interrupted while waiting.
+	 */
+	public void close() throws InterruptedException {
+		put(END_OF_STREAM);
+	}
+
+	/**
+	 * Removes and returns the oldest command, waiting if the ring is empty.
+	 * Returns END_OF_STREAM once every command put before close() has been
+	 * taken. Must only be called by the ring's consumer thread.
+	 *
+	 * @throws InterruptedException
+	 *             if the consumer is interrupted while waiting.
+	 */
+	public Command take() throws InterruptedException {
+		return poll(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Removes and returns the oldest command, waiting up to the specified
+	 * time if the ring is empty. Must only be called by the ring's consumer
+	 * thread.
+	 *
+	 * @return the command, or null if the time elapsed first.
+	 * @throws InterruptedException
+	 *             if the consumer is interrupted while waiting.
+	 */
+	public Command poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return poll(unit.toNanos(timeout));
+	}
+
+	/**
+	 * Returns true if the ring holds no commands.
+	 */
+	public boolean isEmpty() {
+		return fTail.get() == fHead.get();
+	}
+
+	/**
+	 * Returns the number of commands in the ring.
+	 */
+	public int size() {
+		return (int) (fTail.get() - fHead.get());
+	}
+
+	/**
+	 * Returns the number of commands the ring can hold.
+	 */
+	public int capacity() {
+		return fCommands.length;
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, the producer has waited for
+	 * the ring to have space, including any wait in progress.
+	 */
+	public long getProducerWaitNanos() {
+		return waitNanos(fProducerWaitNanos, fProducerWaitStart);
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, the consumer has waited for
+	 * commands, including any wait in progress and time spent in poll()
+	 * until a timeout.
+	 */
+	public long getConsumerWaitNanos() {
+		return waitNanos(fConsumerWaitNanos, fConsumerWaitStart);
+	}
+
+	private static long waitNanos(long completed, long inProgressSince) {
+		return inProgressSince == 0 ? completed : completed
+				+ System.nanoTime() - inProgressSince;
+	}
+
+	/*
+	 * Removes the oldest command, waiting up to timeoutNanos, or without limit
+	 * if timeoutNanos is Long.MAX_VALUE.
+	 */
+	private Command poll(long timeoutNanos) throws InterruptedException {
+		long head = fHead.get();
+		if (fTail.get() == head) {
+			long start = System.nanoTime();
+			fConsumerWaitStart = start;
+			try {
+				if (!awaitCommand(head, start, timeoutNanos)) {
+					return null;
+				}
+			} finally {
+				fConsumerWaitStart = 0;
+				fConsumerWaitNanos += System.nanoTime() - start;
+			}
+		}
+
+		int index = (int) head & fMask;
+		Command command = fCommands[index];
+		fCommands[index] = null;
+		fHead.set(head + 1);
+
+		Thread producer = fParkedProducer;
+		if (producer != null) {
+			LockSupport.unpark(producer);
+		}
+		return command;
+	}
+
+	/*
+	 * Waits until the command at head has been put, or until timeoutNanos
+	 * after start. Returns false if the time elapsed first.
+	 */
+	private boolean awaitCommand(long head, long start, long timeoutNanos)
+			throws InterruptedException {
+		long deadline = start + timeoutNanos;
+		int spins = 0;
+		while (fTail.get() == head) {
+			if (spins++ < SPINS) {
+				Thread.onSpinWait();
+				continue;
+			}
+			long remaining = deadline - System.nanoTime();
+			if (timeoutNanos != Long.MAX_VALUE && remaining <= 0) {
+				return false;
+			}
+			fParkedConsumer = Thread.currentThread();
+			if (fTail.get() == head) {
+				LockSupport.parkNanos(this, timeoutNanos == Long.MAX_VALUE
+						? PARK_NANOS : Math.min(remaining, PARK_NANOS));
+			}
+			fParkedConsumer = null;
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		return true;
+	}
+}
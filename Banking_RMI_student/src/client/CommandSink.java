@@ -0,0 +1,20 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * Interface for objects that accept the Commands produced by a CommandParser
+ * or replayed from an operation log.
+ */
+public interface CommandSink {
+
+	/**
+	 * Accepts a command, waiting if necessary until the sink has room for it.
+	 *
+	 * @throws IOException
+	 *             if the sink writes the command and the write fails.
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting.
+	 */
+	void put(Command command) throws IOException, InterruptedException;
+}
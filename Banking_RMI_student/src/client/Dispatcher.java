@@ -0,0 +1,119 @@
+package client;
+
+/**
+ * Class that routes Commands to partitions by account number. Each partition
+ * is a CommandRing intended to be drained by exactly one Worker, and every
+ * command for a given account is routed to the same partition. Commands for
+ * an account are therefore processed in the order in which they were put,
+ * by a single thread, without the Workers having to lock accounts; commands
+ * for accounts in different partitions are processed independently.
+ * 
+ * A Dispatcher has a single producer: put() must always be called from the
+ * same thread. Once the producer has put its last command the Dispatcher is
+ * closed, which ends the stream of every partition; each Worker then
+ * terminates after processing the commands that preceded the end of its
+ * partition's stream.
+ */
+public class Dispatcher implements CommandSink {
+
+	private final CommandRing[] fPartitions;
+
+	/* True once close() has been called; accessed only by the producer. */
+	private boolean fClosed;
+
+	/* Number of commands put; written only by the producer. */
+	private volatile long fCommandCount;
+
+	/**
+	 * Creates a Dispatcher.
+	 * 
+	 * @param partitions
+	 *            the number of partitions, normally the number of Workers.
+	 * @param capacity
+	 *            the number of commands each partition can hold.
+	 */
+	public Dispatcher(int partitions, int capacity) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException(
+					"Number of partitions must be positive: " + partitions);
+		}
+		fPartitions = new CommandRing[partitions];
+		for (int i = 0; i < partitions; i++) {
+			fPartitions[i] = new CommandRing(capacity);
+		}
+	}
+
+	/**
+	 * Places a command in the partition of its account, waiting if that
+	 * partition is full.
+	 *
+	 * @throws IllegalStateException
+	 *             if the Dispatcher has been closed.
+	 */
+	public void put(Command command) throws InterruptedException {
+		if (fClosed) {
+			throw new IllegalStateException("Dispatcher is closed");
+		}
+		fPartitions[partitionOf(command.getAccount())].put(command);
+		fCommandCount++;
+	}
+
+	/**
+	 * Returns the number of commands put.
+	 */
+	public long getCommandCount() {
+		return fCommandCount;
+	}
+
+	/**
+	 * Ends the stream of commands of every partition, waiting for space in
+	 * any partition that is full. Must be called by the producer thread, or
+	 * by a thread that has joined it, after the last call to put(). Closing
+	 * a Dispatcher more than once has no further effect.
+	 */
+	public void close() throws InterruptedException {
+		if (fClosed) {
+			return;
+		}
+		fClosed = true;
+		for (int i = 0; i < fPartitions.length; i++) {
+			fPartitions[i].close();
+		}
+	}
+
+	/**
+	 * Returns the number of partitions.
+	 */
+	public int getPartitionCount() {
+		return fPartitions.length;
+	}
+
+	/**
+	 * Returns the ring holding the commands of a partition.
+	 */
+	public CommandRing getPartition(int partition) {
+		return fPartitions[partition];
+	}
+
+	/**
+	 * Returns the partition to which commands for an account are routed.
+	 * Account numbers are mixed before being reduced so that numbers sharing
+	 * a common stride still spread over all partitions.
+	 */
+	public int partitionOf(int account) {
+		int hash = account * 0x9E3779B9;
+		return (hash >>> 1) % fPartitions.length;
+	}
+
+	/**
+	 * Returns true if no partition holds a command.
+	 */
+	public boolean isEmpty() {
+		for (int i = 0; i < fPartitions.length; i++) {
+			if (!fPartitions[i].isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,176 @@
+package client;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+
+import common.Bank;
+import common.BankAccount;
+import common.ExcessiveAmountException;
+import common.Money;
+import common.NegativeAmountException;
+import common.NoSuchAccountException;
+import common.OperationBatch;
+
+/**
+ * Class that presents a BankAccount exported by a remote Bank through a stub
+ * obtained from Bank.getAccount(). A server may unexport an account's
+ * BankAccount once it has been idle for a while, after which calls on the
+ * stub fail with a NoSuchObjectException. An ExportedBankAccount then asks
+ * the Bank for a new stub, replaces the one it holds and repeats the call
+ * once. The repeat cannot apply an operation twice, since a call on an
+ * object that is not exported is never dispatched.
+ *
+ * An ExportedBankAccount may be shared by any number of threads.
+ */
+public class ExportedBankAccount implements BankAccount {
+
+	private final Bank fBank;
+
+	private final String fNumber;
+
+	private volatile BankAccount fStub;
+
+	/**
+	 * Creates an ExportedBankAccount for the specified account, requesting
+	 * its stub from the Bank.
+	 *
+	 * @throws NoSuchAccountException
+	 *             if the Bank does not hold the account.
+	 */
+	public ExportedBankAccount(Bank bank, String number)
+			throws RemoteException, NoSuchAccountException {
+		this.fBank = bank;
+		this.fNumber = number;
+		this.fStub = bank.getAccount(number);
+	}
+
+	public Money getBalance() throws RemoteException {
+		BankAccount stub = fStub;
+		try {
+			return stub.getBalance();
+		} catch (NoSuchObjectException e) {
+			return refresh(stub).getBalance();
+		}
+	}
+
+	public String getName() throws RemoteException {
+		BankAccount stub = fStub;
+		try {
+			return stub.getName();
+		} catch (NoSuchObjectException e) {
+			return refresh(stub).getName();
+		}
+	}
+
+	/**
+	 * Returns the account number without making a remote call.
+	 */
+	public String getNumber() {
+		return fNumber;
+	}
+
+	public void deposit(Money amount) throws RemoteException,
+			NegativeAmountException {
+		BankAccount stub = fStub;
+		try {
+			stub.deposit(amount);
+		} catch (NoSuchObjectException e) {
+			refresh(stub).deposit(amount);
+		}
+	}
+
+	public void withdraw(Money amount) throws RemoteException,
+			NegativeAmountException, ExcessiveAmountException {
+		BankAccount stub = fStub;
+		try {
+			stub.withdraw(amount);
+		} catch (NoSuchObjectException e) {
+			refresh(stub).withdraw(amount);
+		}
+	}
+
+	public long getBalanceCents() throws RemoteException {
+		BankAccount stub = fStub;
+		try {
+			return stub.getBalanceCents();
+		} catch (NoSuchObjectException e) {
+			return refresh(stub).getBalanceCents();
+		}
+	}
+
+	public void depositCents(long cents) throws RemoteException,
+			NegativeAmountException {
+		BankAccount stub = fStub;
+		try {
+			stub.depositCents(cents);
+		} catch (NoSuchObjectException e) {
+			refresh(stub).depositCents(cents);
+		}
+	}
+
+	public void withdrawCents(long cents) throws RemoteException,
+			NegativeAmountException, ExcessiveAmountException {
+		BankAccount stub = fStub;
+		try {
+			stub.withdrawCents(cents);
+		} catch (NoSuchObjectException e) {
+			refresh(stub).withdrawCents(cents);
+		}
+	}
+
+	public byte[] applyBatch(OperationBatch batch) throws RemoteException {
+		BankAccount stub = fStub;
+		try {
+			return stub.applyBatch(batch);
+		} catch (NoSuchObjectException e) {
+			return refresh(stub).applyBatch(batch);
+		}
+	}
+
+	public byte depositCentsOnce(long clientId, long sequence, long cents)
+			throws RemoteException {
+		BankAccount stub = fStub;
+		try {
+			return stub.depositCentsOnce(clientId, sequence, cents);
+		} catch (NoSuchObjectException e) {
+			return refresh(stub).depositCentsOnce(clientId, sequence, cents);
+		}
+	}
+
+	public byte withdrawCentsOnce(long clientId, long sequence, long cents)
+			throws RemoteException {
+		BankAccount stub = fStub;
+		try {
+			return stub.withdrawCentsOnce(clientId, sequence, cents);
+		} catch (NoSuchObjectException e) {
+			return refresh(stub).withdrawCentsOnce(clientId, sequence, cents);
+		}
+	}
+
+	public byte[] applyBatchOnce(long clientId, long sequence,
+			OperationBatch batch) throws RemoteException {
+		BankAccount stub = fStub;
+		try {
+			return stub.applyBatchOnce(clientId, sequence, batch);
+		} catch (NoSuchObjectException e) {
+			return refresh(stub).applyBatchOnce(clientId, sequence, batch);
+		}
+	}
+
+	/*
+	 * Returns a stub for the account that replaces a stale one. Only the
+	 * first of several threads that find the same stub stale requests a new
+	 * one; the others use it.
+	 */
+	private synchronized BankAccount refresh(BankAccount stale)
+			throws RemoteException {
+		if (fStub == stale) {
+			try {
+				fStub = fBank.getAccount(fNumber);
+			} catch (NoSuchAccountException e) {
+				throw new RemoteException("No such account: " + fNumber, e);
+			}
+		}
+		return fStub;
+	}
+}
@@ -0,0 +1,161 @@
+package client;
+
+import java.rmi.RemoteException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.Bank;
+import common.BankAccount;
+import common.NoSuchAccountException;
+import common.OperationBatch;
+
+/**
+ * Class that makes deposits, withdrawals and batches through the *Once
+ * methods of BankAccount, and transfers through those of Bank, tagging each
+ * with this caller's client id and a new sequence number. Because the server
+ * applies an operation at most once per id, a call that fails with a
+ * RemoteException is simply repeated with the same id, up to a fixed number
+ * of retries; the repeat either applies the operation or returns the outcome
+ * of the earlier attempt that did.
+ *
+ * An IdempotentCaller may be shared by any number of threads. The server
+ * remembers a bounded number of each client's recent operations, so the
+ * number of operations a caller has outstanding at once should stay well
+ * below that bound.
+ */
+public class IdempotentCaller {
+
+	private final long fClientId;
+
+	private final AtomicLong fNextSequence = new AtomicLong();
+
+	private final int fRetries;
+
+	/**
+	 * Creates an IdempotentCaller with a random client id.
+	 *
+	 * @param retries
+	 *            the number of times a call that failed with a
+	 *            RemoteException is repeated.
+	 */
+	public IdempotentCaller(int retries) {
+		this(UUID.randomUUID().getMostSignificantBits(), retries);
+	}
+
+	/**
+	 * Creates an IdempotentCaller with the specified client id, which must
+	 * not be used by any other client of the same server.
+	 */
+	public IdempotentCaller(long clientId, int retries) {
+		if (retries < 0) {
+			throw new IllegalArgumentException(
+					"Number of retries must not be negative: " + retries);
+		}
+		fClientId = clientId;
+		fRetries = retries;
+	}
+
+	public long getClientId() {
+		return fClientId;
+	}
+
+	/**
+	 * Deposits a number of cents into an account.
+	 *
+	 * @return the outcome code of the operation.
+	 * @throws RemoteException
+	 *             if the last attempt failed, in which case the deposit may
+	 *             or may not have been applied.
+	 */
+	public byte depositCents(BankAccount account, long cents)
+			throws RemoteException {
+		long sequence = fNextSequence.getAndIncrement();
+		for (int attempt = 0;; attempt++) {
+			try {
+				return account.depositCentsOnce(fClientId, sequence, cents);
+			} catch (RemoteException e) {
+				if (!shouldRetry(e, attempt)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Withdraws a number of cents from an account.
+	 *
+	 * @return the outcome code of the operation.
+	 * @throws RemoteException
+	 *             if the last attempt failed, in which case the withdrawal
+	 *             may or may not have been applied.
+	 */
+	public byte withdrawCents(BankAccount account, long cents)
+			throws RemoteException {
+		long sequence = fNextSequence.getAndIncrement();
+		for (int attempt = 0;; attempt++) {
+			try {
+				return account.withdrawCentsOnce(fClientId, sequence, cents);
+			} catch (RemoteException e) {
+				if (!shouldRetry(e, attempt)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies a batch to an account.
+	 *
+	 * @return one outcome code per operation in the batch.
+	 * @throws RemoteException
+	 *             if the last attempt failed, in which case the batch may or
+	 *             may not have been applied.
+	 */
+	public byte[] applyBatch(BankAccount account, OperationBatch batch)
+			throws RemoteException {
+		long sequence = fNextSequence.getAndIncrement();
+		for (int attempt = 0;; attempt++) {
+			try {
+				return account.applyBatchOnce(fClientId, sequence, batch);
+			} catch (RemoteException e) {
+				if (!shouldRetry(e, attempt)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Transfers a number of cents from one account of a Bank to another.
+	 *
+	 * @return the outcome code of the operation.
+	 * @throws NoSuchAccountException
+	 *             if the Bank has no such account.
+	 * @throws RemoteException
+	 *             if the last attempt failed, in which case the transfer may
+	 *             or may not have been applied.
+	 */
+	public byte transferCents(Bank bank, String from, String to, long cents)
+			throws RemoteException, NoSuchAccountException {
+		long sequence = fNextSequence.getAndIncrement();
+		for (int attempt = 0;; attempt++) {
+			try {
+				return bank.transferCentsOnce(from, to, fClientId, sequence,
+						cents);
+			} catch (RemoteException e) {
+				if (!shouldRetry(e, attempt)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Returns true if a call that failed on the specified attempt should be
+	 * repeated. A call on an account unknown to the server is not.
+	 */
+	private boolean shouldRetry(RemoteException e, int attempt) {
+		return attempt < fRetries
+				&& !(e.getCause() instanceof NoSuchAccountException);
+	}
+}
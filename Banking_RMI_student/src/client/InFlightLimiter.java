@@ -0,0 +1,178 @@
+package client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Class that bounds the number of remote calls in progress, both in total and
+ * for each account. A permit is acquired before a call is started, possibly
+ * on another thread, and released when the call completes. The limiter also
+ * tracks the number of calls in progress so that the client can wait for all
+ * outstanding calls to complete. An AsyncBankClient uses a limiter in the same
+ * way to bound the operations it has outstanding. The time spent waiting for
+ * account permits and for global permits is accumulated separately; it is
+ * measured only when a permit is not immediately available.
+ *
+ * An account's permits are only held while some thread is acquiring or
+ * holding one of them, so the limiter does not grow with the number of
+ * accounts a client touches over its lifetime.
+ */
+public class InFlightLimiter {
+
+	/* Permits for all calls, or null if the total is not limited. */
+	private final Semaphore fGlobal;
+
+	private final int fMaxPerAccount;
+
+	/* Permits of the accounts that are in use, created and removed on demand. */
+	private final ConcurrentHashMap<Integer, AccountPermits> fAccounts;
+
+	private final BiFunction<Integer, AccountPermits, AccountPermits> fEnter;
+
+	private final BiFunction<Integer, AccountPermits, AccountPermits> fLeave;
+
+	/* Time spent waiting for account and global permits. */
+	private final LongAdder fAccountWaitNanos = new LongAdder();
+
+	private final LongAdder fGlobalWaitNanos = new LongAdder();
+
+	/* Calls in progress and the most in progress at once; guarded by this. */
+	private int fInFlight;
+
+	private int fPeakInFlight;
+
+	/**
+	 * Creates a limiter.
+	 *
+	 * @param maxInFlight
+	 *            the maximum number of calls in progress in total, or zero
+	 *            for no limit.
+	 * @param maxPerAccount
+	 *            the maximum number of calls in progress on any one account.
+	 *            With a value of 1, calls on an account never overlap.
+	 */
+	public InFlightLimiter(int maxInFlight, int maxPerAccount) {
+		if (maxInFlight < 0) {
+			throw new IllegalArgumentException(
+					"Maximum calls in flight must not be negative: "
+							+ maxInFlight);
+		}
+		if (maxPerAccount < 1) {
+			throw new IllegalArgumentException(
+					"Maximum calls in flight per account must be positive: "
+							+ maxPerAccount);
+		}
+		fGlobal = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+		fMaxPerAccount = maxPerAccount;
+		fAccounts = new ConcurrentHashMap<Integer, AccountPermits>();
+		fEnter = new BiFunction<Integer, AccountPermits, AccountPermits>() {
+			public AccountPermits apply(Integer account, AccountPermits permits) {
+				if (permits == null) {
+					permits = new AccountPermits(fMaxPerAccount);
+				}
+				permits.fUsers++;
+				return permits;
+			}
+		};
+		fLeave = new BiFunction<Integer, AccountPermits, AccountPermits>() {
+			public AccountPermits apply(Integer account, AccountPermits permits) {
+				return --permits.fUsers == 0 ? null : permits;
+			}
+		};
+	}
+
+	/**
+	 * Waits until a call on the specified account may start. The account's
+	 * permit is taken before the global one, so a thread waiting on a busy
+	 * account does not hold back calls on other accounts. Interrupts are
+	 * deferred until the permits have been acquired.
+	 */
+	public void acquire(int account) {
+		Semaphore semaphore = fAccounts.compute(account, fEnter).fSemaphore;
+		if (!semaphore.tryAcquire()) {
+			long start = System.nanoTime();
+			semaphore.acquireUninterruptibly();
+			fAccountWaitNanos.add(System.nanoTime() - start);
+		}
+		if (fGlobal != null && !fGlobal.tryAcquire()) {
+			long start = System.nanoTime();
+			fGlobal.acquireUninterruptibly();
+			fGlobalWaitNanos.add(System.nanoTime() - start);
+		}
+		synchronized (this) {
+			fInFlight++;
+			if (fInFlight > fPeakInFlight) {
+				fPeakInFlight = fInFlight;
+			}
+		}
+	}
+
+	/**
+	 * Releases the permits taken by acquire() once a call on the specified
+	 * account has completed.
+	 */
+	public void release(int account) {
+		synchronized (this) {
+			fInFlight--;
+			if (fInFlight == 0) {
+				notifyAll();
+			}
+		}
+		if (fGlobal != null) {
+			fGlobal.release();
+		}
+		fAccounts.get(account).fSemaphore.release();
+		fAccounts.computeIfPresent(account, fLeave);
+	}
+
+	/**
+	 * Waits until no call is in progress.
+	 *
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting.
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (fInFlight > 0) {
+			wait();
+		}
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, that callers of acquire() have
+	 * waited for account permits.
+	 */
+	public long getAccountWaitNanos() {
+		return fAccountWaitNanos.sum();
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, that callers of acquire() have
+	 * waited for the global limit.
+	 */
+	public long getGlobalWaitNanos() {
+		return fGlobalWaitNanos.sum();
+	}
+
+	/**
+	 * Returns the largest number of calls that have been in progress at once.
+	 */
+	public synchronized int getPeakInFlight() {
+		return fPeakInFlight;
+	}
+
+	/*
+	 * The permits for one account, and the number of threads holding or
+	 * waiting for them, which is guarded by the map entry.
+	 */
+	private static class AccountPermits {
+		final Semaphore fSemaphore;
+
+		int fUsers;
+
+		AccountPermits(int permits) {
+			fSemaphore = new Semaphore(permits);
+		}
+	}
+}
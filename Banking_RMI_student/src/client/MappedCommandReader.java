@@ -0,0 +1,316 @@
+package client;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class that reads commands from a file by scanning the bytes of a
+ * memory-mapped view of the file. The file is mapped in windows of at most
+ * WINDOW_SIZE bytes so that files of any length can be read. Comments and
+ * whitespace are discarded as they are scanned and the remaining bytes of
+ * each command, up to and including the command delimiter, are collected in
+ * a reusable buffer. No object is created per character or per command.
+ *
+ * Line numbers are counted the way java.io.LineNumberReader counts them
+ * ('\n', '\r' or "\r\n" each end a line), so lineNumber() reports the same
+ * value as CommandParser's stream-based parse() for the same command.
+ *
+ * The file content is treated as single-byte characters; any byte outside
+ * the ASCII range is kept as part of a command and will therefore not match
+ * an ASCII grammar.
+ *
+ * A reader can also be restricted to a range of a file, so that separate
+ * parts of one file can be scanned concurrently. findChunkBoundaries() splits
+ * a file into ranges that each start at the beginning of a command; line
+ * numbers reported by a range reader are relative to the start of its range.
+ */
+public class MappedCommandReader implements CommandReader {
+
+	/* Maximum number of bytes mapped at once. */
+	private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+	/* Number of bytes read at a time when searching for a chunk boundary. */
+	private static final int BOUNDARY_SCAN_SIZE = 8192;
+
+	/* The file opened by this reader, or null if the channel is shared. */
+	private final RandomAccessFile fFile;
+
+	private final FileChannel fChannel;
+
+	/* The file offset at which scanning stops. */
+	private final long fEnd;
+
+	private final byte fLineComment;
+
+	private final byte fCommandDelimiter;
+
+	/* The current window and the file offset at which it starts. */
+	private MappedByteBuffer fWindow;
+
+	private long fWindowStart;
+
+	/* Bytes of the command most recently read. */
+	private byte[] fCommand;
+
+	private int fLength;
+
+	private int fLineNumber;
+
+	/* True if the previous byte was '\r', so a following '\n' is ignored. */
+	private boolean fPendingCarriageReturn;
+
+	/**
+	 * Opens a file for reading.
+	 *
+	 * @param filename
+	 *            the name of the file to read.
+	 * @param lineComment
+	 *            the comment character; it and the rest of its line are
+	 *            skipped.
+	 * @param commandDelimiter
+	 *            the character that terminates each command.
+	 * @throws IOException
+	 *             if the file cannot be opened or mapped.
+	 */
+	public MappedCommandReader(String filename, char lineComment,
+			char commandDelimiter) throws IOException {
+		this(new RandomAccessFile(filename, "r"), lineComment,
+				commandDelimiter);
+	}
+
+	private MappedCommandReader(RandomAccessFile file, char lineComment,
+			char commandDelimiter) throws IOException {
+		this(file, file.getChannel(), 0, file.getChannel().size(),
+				lineComment, commandDelimiter);
+	}
+
+	/**
+	 * Creates a reader for the range [start, end) of a file that is already
+	 * open. The range should start at the beginning of a command, as do the
+	 * ranges returned by findChunkBoundaries(). Closing the reader does not
+	 * close the channel.
+	 *
+	 * @throws IOException
+	 *             if the range cannot be mapped.
+	 */
+	public MappedCommandReader(FileChannel channel, long start, long end,
+			char lineComment, char commandDelimiter) throws IOException {
+		this(null, channel, start, end, lineComment, commandDelimiter);
+	}
+
+	private MappedCommandReader(RandomAccessFile file, FileChannel channel,
+			long start, long end, char lineComment, char commandDelimiter)
+			throws IOException {
+		fFile = file;
+		fChannel = channel;
+		fEnd = end;
+		fLineComment = (byte) lineComment;
+		fCommandDelimiter = (byte) commandDelimiter;
+		fCommand = new byte[128];
+		fWindowStart = start;
+		fWindow = map(start);
+	}
+
+	/**
+	 * Advances to the next command. Input after the last command delimiter
+	 * in the file is ignored.
+	 *
+	 * @return true if a command was read, false at the end of the file.
+	 */
+	public boolean next() throws IOException {
+		fLength = 0;
+		while (true) {
+			if (!fWindow.hasRemaining()) {
+				long nextStart = fWindowStart + fWindow.limit();
+				if (nextStart >= fEnd) {
+					return false;
+				}
+				fWindowStart = nextStart;
+				fWindow = map(nextStart);
+			}
+
+			byte b = fWindow.get();
+			if (b == fLineComment) {
+				fPendingCarriageReturn = false;
+				if (!skipLine()) {
+					return false;
+				}
+			} else if (isLineTerminator(b)) {
+				countLine(b);
+			} else {
+				fPendingCarriageReturn = false;
+				if (!isWhitespace(b)) {
+					append(b);
+					if (b == fCommandDelimiter) {
+						return true;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the buffer holding the bytes of the current command, including
+	 * the command delimiter. Only the first length() bytes are valid, and the
+	 * buffer is reused by the next call to next().
+	 */
+	public byte[] buffer() {
+		return fCommand;
+	}
+
+	/**
+	 * Returns the number of bytes in the current command.
+	 */
+	public int length() {
+		return fLength;
+	}
+
+	/**
+	 * Returns the line number at which the current command's delimiter was
+	 * read. Once next() has returned false, this is the number of lines in
+	 * the range.
+	 */
+	public int lineNumber() {
+		return fLineNumber;
+	}
+
+	/**
+	 * Closes the file, unless the reader was created for a range of a shared
+	 * channel.
+	 */
+	public void close() throws IOException {
+		if (fFile != null) {
+			fFile.close();
+		}
+	}
+
+	/**
+	 * Splits the file open on a channel into ranges of roughly chunkSize
+	 * bytes. Each boundary is placed immediately after a command delimiter
+	 * that is not inside a comment, so every range starts at the beginning of
+	 * a command and no command, comment or "\r\n" pair spans two ranges.
+	 *
+	 * @return the offsets of the ranges: range i is [boundaries[i],
+	 *         boundaries[i + 1]). The first offset is 0 and the last is the
+	 *         size of the file.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	public static long[] findChunkBoundaries(FileChannel channel,
+			long chunkSize, char lineComment, char commandDelimiter)
+			throws IOException {
+		long fileSize = channel.size();
+		List<Long> boundaries = new ArrayList<Long>();
+		boundaries.add(0L);
+
+		ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+		long position = chunkSize;
+		while (position < fileSize) {
+			/*
+			 * Start scanning at the next line start, where no comment can be
+			 * in progress, then stop after the first delimiter that is not
+			 * in a comment.
+			 */
+			boolean atLineStart = false;
+			boolean inComment = false;
+			long boundary = -1;
+			long offset = position - 1;
+			while (boundary < 0 && offset < fileSize) {
+				buffer.clear();
+				int n = channel.read(buffer, offset);
+				if (n <= 0) {
+					break;
+				}
+				for (int i = 0; i < n; i++) {
+					byte b = buffer.get(i);
+					if (isLineTerminator(b)) {
+						atLineStart = true;
+						inComment = false;
+					} else if (atLineStart) {
+						if (b == lineComment) {
+							inComment = true;
+						} else if (b == commandDelimiter && !inComment) {
+							boundary = offset + i + 1;
+							break;
+						}
+					}
+				}
+				offset += n;
+			}
+			if (boundary < 0 || boundary >= fileSize) {
+				break;
+			}
+			boundaries.add(boundary);
+			position = boundary + chunkSize;
+		}
+		boundaries.add(fileSize);
+
+		long[] result = new long[boundaries.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = boundaries.get(i);
+		}
+		return result;
+	}
+
+	/*
+	 * Skips the remainder of a comment line, including its terminator.
+	 * Returns false if the end of the file is reached first.
+	 */
+	private boolean skipLine() throws IOException {
+		while (true) {
+			if (!fWindow.hasRemaining()) {
+				long nextStart = fWindowStart + fWindow.limit();
+				if (nextStart >= fEnd) {
+					return false;
+				}
+				fWindowStart = nextStart;
+				fWindow = map(nextStart);
+			}
+			byte b = fWindow.get();
+			if (isLineTerminator(b)) {
+				countLine(b);
+				return true;
+			}
+		}
+	}
+
+	private void countLine(byte b) {
+		if (b == '\n' && fPendingCarriageReturn) {
+			/* Second half of "\r\n"; the line has already been counted. */
+			fPendingCarriageReturn = false;
+			return;
+		}
+		fLineNumber++;
+		fPendingCarriageReturn = (b == '\r');
+	}
+
+	private void append(byte b) {
+		if (fLength == fCommand.length) {
+			byte[] command = new byte[fLength * 2];
+			System.arraycopy(fCommand, 0, command, 0, fLength);
+			fCommand = command;
+		}
+		fCommand[fLength++] = b;
+	}
+
+	private MappedByteBuffer map(long start) throws IOException {
+		long size = Math.min(WINDOW_SIZE, fEnd - start);
+		return fChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+	}
+
+	private static boolean isLineTerminator(byte b) {
+		return b == '\n' || b == '\r';
+	}
+
+	/*
+	 * Equivalent to Character.isWhitespace for single-byte characters.
+	 */
+	static boolean isWhitespace(byte b) {
+		return b == ' ' || (b >= 0x09 && b <= 0x0D) || (b >= 0x1C && b <= 0x1F);
+	}
+}
@@ -0,0 +1,8 @@
+package client;
+
+/**
+ * The operations that a banking Command can request.
+ */
+public enum Opcode {
+	NAME, BALANCE, DEPOSIT, WITHDRAW, TRANSFER
+}
@@ -0,0 +1,119 @@
+package client;
+
+/**
+ * Constants describing the binary operation log format written by
+ * OperationLogWriter and read by OperationLogReader. An operation log holds
+ * commands that have already been validated against the BankCommandParser
+ * grammar, so replaying it requires no text parsing.
+ *
+ * A log consists of a header, a sequence of blocks and, optionally, a block
+ * index. All values are big-endian.
+ *
+ * <pre>
+ * header (HEADER_SIZE bytes)
+ *   int   MAGIC
+ *   byte  VERSION
+ *   byte  flags (FLAG_COMPRESSED, FLAG_INDEXED)
+ *   short reserved, 0
+ *   int   records per block
+ *   int   number of blocks
+ *   long  number of records
+ *   long  file offset of the block index, or 0 if there is none
+ *
+ * record (RECORD_SIZE bytes)
+ *   byte  opcode (OPCODE_NAME .. OPCODE_TRANSFER)
+ *   byte[3] reserved, 0
+ *   int   account number
+ *   int   target account number of a transfer, 0 for other operations
+ *   long  amount in cents, 0 for name and balance
+ * </pre>
+ *
+ * Logs of VERSION_1, which has no transfers, can still be read. Their records
+ * are RECORD_SIZE_1 bytes long and have no target account number field.
+ *
+ * Each block holds "records per block" records, except that the last block
+ * may hold fewer. In an uncompressed log the blocks are simply the records
+ * laid end to end, so the log can be scanned through a memory mapping. In a
+ * compressed log each block is preceded by an int record count and an int
+ * compressed length, and its records are compressed with java.util.zip's
+ * Deflater. The block index is an array of "number of blocks" longs giving
+ * the file offset of each block; it allows a reader to seek to a record
+ * without decompressing the blocks before it.
+ */
+public final class OperationLog {
+
+	/* The bytes "OPLG". */
+	public static final int MAGIC = 0x4F504C47;
+
+	public static final byte VERSION = 2;
+
+	public static final byte VERSION_1 = 1;
+
+	public static final int HEADER_SIZE = 32;
+
+	public static final int RECORD_SIZE = 20;
+
+	public static final int RECORD_SIZE_1 = 16;
+
+	/* Header flags. */
+	public static final byte FLAG_COMPRESSED = 1;
+
+	public static final byte FLAG_INDEXED = 2;
+
+	/* Size of the header that precedes each block of a compressed log. */
+	public static final int BLOCK_HEADER_SIZE = 8;
+
+	/* Records per block if none is specified: 64K bytes of records. */
+	public static final int DEFAULT_RECORDS_PER_BLOCK = 4096;
+
+	/* Opcodes as stored in records. */
+	public static final byte OPCODE_NAME = 0;
+
+	public static final byte OPCODE_BALANCE = 1;
+
+	public static final byte OPCODE_DEPOSIT = 2;
+
+	public static final byte OPCODE_WITHDRAW = 3;
+
+	public static final byte OPCODE_TRANSFER = 4;
+
+	private static final Opcode[] OPCODES = { Opcode.NAME, Opcode.BALANCE,
+			Opcode.DEPOSIT, Opcode.WITHDRAW, Opcode.TRANSFER };
+
+	private OperationLog() {
+	}
+
+	/**
+	 * Returns the stored form of an Opcode.
+	 */
+	static byte encode(Opcode opcode) {
+		switch (opcode) {
+		case NAME:
+			return OPCODE_NAME;
+		case BALANCE:
+			return OPCODE_BALANCE;
+		case DEPOSIT:
+			return OPCODE_DEPOSIT;
+		case WITHDRAW:
+			return OPCODE_WITHDRAW;
+		default:
+			return OPCODE_TRANSFER;
+		}
+	}
+
+	/**
+	 * Returns the Opcode for an opcode stored in a log of the specified
+	 * version, or null if the value is not a valid opcode for that version.
+	 */
+	static Opcode decode(byte opcode, byte version) {
+		int opcodes = version == VERSION_1 ? OPCODE_TRANSFER : OPCODES.length;
+		return (opcode >= 0 && opcode < opcodes) ? OPCODES[opcode] : null;
+	}
+
+	/**
+	 * Returns the size of a record in a log of the specified version.
+	 */
+	static int recordSize(byte version) {
+		return version == VERSION_1 ? RECORD_SIZE_1 : RECORD_SIZE;
+	}
+}
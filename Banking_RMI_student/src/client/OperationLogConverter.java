@@ -0,0 +1,104 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Program that converts a text data file into a binary operation log. The
+ * text file is parsed and validated with BankCommandParser; if it contains
+ * any syntax errors they are reported and no log is written. The resulting
+ * log can be replayed by the client with -Dclient.parser=binary.
+ *
+ * Usage: OperationLogConverter [-compress] [-index] [-blockSize records]
+ * input-file output-file
+ *
+ * @see OperationLog
+ */
+public class OperationLogConverter {
+
+	public static void main(String[] args) {
+		boolean compressed = false;
+		boolean indexed = false;
+		int recordsPerBlock = OperationLog.DEFAULT_RECORDS_PER_BLOCK;
+
+		int arg = 0;
+		try {
+			while (arg < args.length && args[arg].startsWith("-")) {
+				if ("-compress".equals(args[arg])) {
+					compressed = true;
+				} else if ("-index".equals(args[arg])) {
+					indexed = true;
+				} else if ("-blockSize".equals(args[arg])
+						&& arg + 1 < args.length) {
+					recordsPerBlock = Integer.parseInt(args[++arg]);
+				} else {
+					break;
+				}
+				arg++;
+			}
+		} catch (NumberFormatException e) {
+			arg = args.length;
+		}
+		if (args.length - arg != 2) {
+			System.err
+					.println("Usage: OperationLogConverter [-compress] [-index] [-blockSize records] <input-filename> <output-filename>");
+			System.exit(1);
+		}
+		String input = args[arg];
+		String output = args[arg + 1];
+
+		try {
+			long start = System.currentTimeMillis();
+			long records = convert(input, output, recordsPerBlock, compressed,
+					indexed);
+			System.out.println("Wrote " + records + " records to " + output
+					+ " (" + new File(output).length() + " bytes) in "
+					+ (System.currentTimeMillis() - start) / 1000.0 + "sec.");
+		} catch (IllegalSyntaxException e) {
+			System.err.println("Input file contains errors ...");
+			String[] syntaxErrors = e.getErrors();
+			for (int i = 0; i < syntaxErrors.length; i++) {
+				System.err.println(syntaxErrors[i]);
+			}
+			System.exit(1);
+		} catch (Exception e) {
+			System.err.println("Unable to convert " + input + ": " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Parses a text data file and writes its commands to an operation log.
+	 * If the input contains syntax errors, the partially written log is
+	 * deleted.
+	 *
+	 * @return the number of records written.
+	 * @throws IllegalSyntaxException
+	 *             if the input does not conform to the BankCommandParser
+	 *             grammar.
+	 * @throws IOException
+	 *             if the input cannot be read or the log cannot be written.
+	 */
+	public static long convert(String input, String output,
+			int recordsPerBlock, boolean compressed, boolean indexed)
+			throws IllegalSyntaxException, IOException, InterruptedException {
+		BankCommandParser parser = new BankCommandParser();
+		final OperationLogWriter writer = new OperationLogWriter(output,
+				recordsPerBlock, compressed, indexed);
+		boolean complete = false;
+		try {
+			parser.parseCommands(input, 0, new CommandSink() {
+				public void put(Command command) throws IOException {
+					writer.write(command);
+				}
+			}, true);
+			complete = true;
+		} finally {
+			writer.close();
+			if (!complete) {
+				new File(output).delete();
+			}
+		}
+		return writer.getRecordCount();
+	}
+}
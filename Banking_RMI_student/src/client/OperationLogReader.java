@@ -0,0 +1,323 @@
+package client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Class that reads the records of a binary operation log in order. An
+ * uncompressed log is scanned through memory-mapped windows of the file; a
+ * compressed log is read and decompressed one block at a time into a reusable
+ * buffer. In either case no object is created per record.
+ *
+ * @see OperationLog
+ */
+public class OperationLogReader implements Closeable {
+
+	/* Maximum number of records mapped at once from an uncompressed log. */
+	private static final long WINDOW_RECORDS = 4L * 1024 * 1024;
+
+	private final RandomAccessFile fFile;
+
+	private final FileChannel fChannel;
+
+	private final boolean fCompressed;
+
+	private final byte fVersion;
+
+	private final int fRecordSize;
+
+	private final int fRecordsPerBlock;
+
+	private final int fBlockCount;
+
+	private final long fRecordCount;
+
+	/* File offset of each block, or null if the log has no block index. */
+	private final long[] fBlockOffsets;
+
+	/* Records of the current window or block, positioned at the next record. */
+	private ByteBuffer fRecords;
+
+	/* Number of the record that fRecords is positioned at. */
+	private long fNextRecord;
+
+	/* File offset of the next compressed block to read. */
+	private long fNextBlockOffset;
+
+	private Inflater fInflater;
+
+	private byte[] fDeflated;
+
+	private byte[] fInflated;
+
+	private Opcode fOpcode;
+
+	private int fAccount;
+
+	private int fTarget;
+
+	private long fCents;
+
+	/**
+	 * Opens an operation log for reading.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read or is not a complete operation
+	 *             log of a supported version.
+	 */
+	public OperationLogReader(String filename) throws IOException {
+		fFile = new RandomAccessFile(filename, "r");
+		try {
+			fChannel = fFile.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(OperationLog.HEADER_SIZE);
+			readFully(header, 0);
+			header.flip();
+			if (header.getInt() != OperationLog.MAGIC) {
+				throw new IOException(filename
+						+ " is not a complete operation log");
+			}
+			fVersion = header.get();
+			if (fVersion != OperationLog.VERSION
+					&& fVersion != OperationLog.VERSION_1) {
+				throw new IOException("Unsupported operation log version "
+						+ fVersion + " in " + filename);
+			}
+			fRecordSize = OperationLog.recordSize(fVersion);
+			byte flags = header.get();
+			header.getShort();
+			fCompressed = (flags & OperationLog.FLAG_COMPRESSED) != 0;
+			fRecordsPerBlock = header.getInt();
+			fBlockCount = header.getInt();
+			fRecordCount = header.getLong();
+			long indexOffset = header.getLong();
+
+			if ((flags & OperationLog.FLAG_INDEXED) != 0) {
+				ByteBuffer index = ByteBuffer.allocate(fBlockCount * 8);
+				readFully(index, indexOffset);
+				index.flip();
+				fBlockOffsets = new long[fBlockCount];
+				for (int i = 0; i < fBlockCount; i++) {
+					fBlockOffsets[i] = index.getLong();
+				}
+			} else {
+				fBlockOffsets = null;
+			}
+
+			if (fCompressed) {
+				fInflater = new Inflater();
+				fInflated = new byte[fRecordsPerBlock * fRecordSize];
+				fDeflated = new byte[fInflated.length + 64];
+			}
+			seek(0);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the number of records in the log.
+	 */
+	public long getRecordCount() {
+		return fRecordCount;
+	}
+
+	/**
+	 * Returns true if the log has a block index, so that seek() can be used
+	 * on a compressed log.
+	 */
+	public boolean isIndexed() {
+		return fBlockOffsets != null;
+	}
+
+	/**
+	 * Positions the reader so that the next call to next() reads the
+	 * specified record. Seeking in a compressed log requires a block index;
+	 * without one only seek(0) is possible.
+	 *
+	 * @throws IOException
+	 *             if the record cannot be reached.
+	 */
+	public void seek(long record) throws IOException {
+		if (record < 0 || record > fRecordCount) {
+			throw new IllegalArgumentException("No record " + record
+					+ " in a log of " + fRecordCount + " records");
+		}
+
+		if (!fCompressed) {
+			mapWindow(record);
+			return;
+		}
+
+		int block = (int) (record / fRecordsPerBlock);
+		long blockOffset;
+		if (block == 0) {
+			blockOffset = OperationLog.HEADER_SIZE;
+		} else if (fBlockOffsets != null) {
+			blockOffset = block < fBlockCount ? fBlockOffsets[block]
+					: fChannel.size();
+		} else {
+			throw new IOException(
+					"Cannot seek in a compressed log without a block index");
+		}
+		fNextBlockOffset = blockOffset;
+		fNextRecord = (long) block * fRecordsPerBlock;
+		fRecords = ByteBuffer.allocate(0);
+		if (record > fNextRecord) {
+			readBlock();
+			int skip = (int) (record - fNextRecord);
+			fRecords.position(fRecords.position() + skip * fRecordSize);
+			fNextRecord = record;
+		}
+	}
+
+	/**
+	 * Advances to the next record.
+	 *
+	 * @return true if a record was read, false at the end of the log.
+	 * @throws IOException
+	 *             if the log cannot be read or a record is invalid.
+	 */
+	public boolean next() throws IOException {
+		if (fNextRecord == fRecordCount) {
+			return false;
+		}
+		if (!fRecords.hasRemaining()) {
+			if (fCompressed) {
+				readBlock();
+			} else {
+				mapWindow(fNextRecord);
+			}
+		}
+
+		byte opcode = fRecords.get();
+		fRecords.get();
+		fRecords.getShort();
+		fAccount = fRecords.getInt();
+		fTarget = fVersion != OperationLog.VERSION_1 ? fRecords.getInt() : 0;
+		fCents = fRecords.getLong();
+		fOpcode = OperationLog.decode(opcode, fVersion);
+		if (fOpcode == null) {
+			throw new IOException("Invalid opcode " + opcode + " in record "
+					+ fNextRecord);
+		}
+		fNextRecord++;
+		return true;
+	}
+
+	/**
+	 * Returns the operation of the current record.
+	 */
+	public Opcode getOpcode() {
+		return fOpcode;
+	}
+
+	/**
+	 * Returns the account number of the current record.
+	 */
+	public int getAccount() {
+		return fAccount;
+	}
+
+	/**
+	 * Returns the target account number of the current record, if it is a
+	 * transfer, or 0.
+	 */
+	public int getTarget() {
+		return fTarget;
+	}
+
+	/**
+	 * Returns the amount, in cents, of the current record.
+	 */
+	public long getCents() {
+		return fCents;
+	}
+
+	/**
+	 * Returns the current record as a Command.
+	 */
+	public Command getCommand() {
+		if (fOpcode == Opcode.TRANSFER) {
+			return new Command(fOpcode, fAccount, fTarget, fCents);
+		}
+		return new Command(fOpcode, fAccount, fCents);
+	}
+
+	/**
+	 * Closes the file.
+	 */
+	public void close() throws IOException {
+		if (fInflater != null) {
+			fInflater.end();
+		}
+		fFile.close();
+	}
+
+	private void mapWindow(long record) throws IOException {
+		long records = Math.min(WINDOW_RECORDS, fRecordCount - record);
+		fRecords = fChannel.map(FileChannel.MapMode.READ_ONLY,
+				OperationLog.HEADER_SIZE + record * fRecordSize,
+				records * fRecordSize);
+		fNextRecord = record;
+	}
+
+	/* Reads and decompresses the block at fNextBlockOffset. */
+	private void readBlock() throws IOException {
+		ByteBuffer blockHeader = ByteBuffer
+				.allocate(OperationLog.BLOCK_HEADER_SIZE);
+		readFully(blockHeader, fNextBlockOffset);
+		blockHeader.flip();
+		int records = blockHeader.getInt();
+		int length = blockHeader.getInt();
+		if (records < 1 || records > fRecordsPerBlock || length < 0) {
+			throw new IOException("Corrupt block at offset "
+					+ fNextBlockOffset);
+		}
+		if (length > fDeflated.length) {
+			fDeflated = new byte[length];
+		}
+		readFully(ByteBuffer.wrap(fDeflated, 0, length), fNextBlockOffset
+				+ OperationLog.BLOCK_HEADER_SIZE);
+
+		int size = records * fRecordSize;
+		fInflater.reset();
+		fInflater.setInput(fDeflated, 0, length);
+		try {
+			int inflated = 0;
+			while (inflated < size && !fInflater.finished()) {
+				int n = fInflater.inflate(fInflated, inflated, size - inflated);
+				if (n == 0 && fInflater.needsInput()) {
+					break;
+				}
+				inflated += n;
+			}
+			if (inflated != size) {
+				throw new IOException("Truncated block at offset "
+						+ fNextBlockOffset);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt block at offset "
+					+ fNextBlockOffset, e);
+		}
+
+		fRecords = ByteBuffer.wrap(fInflated, 0, size);
+		fNextBlockOffset += OperationLog.BLOCK_HEADER_SIZE + length;
+	}
+
+	private void readFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = fChannel.read(buffer, position);
+			if (n < 0) {
+				throw new IOException("Unexpected end of operation log");
+			}
+			position += n;
+		}
+	}
+}
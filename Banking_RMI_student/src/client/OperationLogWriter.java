@@ -0,0 +1,230 @@
+package client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Class that writes commands to a binary operation log. Records are collected
+ * into blocks which are written, compressed if requested, as they fill; the
+ * header and the optional block index are written by close().
+ *
+ * @see OperationLog
+ */
+public class OperationLogWriter implements Closeable {
+
+	private final RandomAccessFile fFile;
+
+	private final FileChannel fChannel;
+
+	private final boolean fCompressed;
+
+	private final boolean fIndexed;
+
+	private final int fRecordsPerBlock;
+
+	/* Records of the block being filled. */
+	private final ByteBuffer fBlock;
+
+	private int fRecordsInBlock;
+
+	private long fRecordCount;
+
+	/* File offset at which the next block is written. */
+	private long fPosition;
+
+	/* File offset of each block written so far. */
+	private long[] fBlockOffsets;
+
+	private int fBlockCount;
+
+	private Deflater fDeflater;
+
+	private byte[] fDeflated;
+
+	/**
+	 * Creates a log file, replacing any existing file of the same name.
+	 *
+	 * @param recordsPerBlock
+	 *            the number of records in each block.
+	 * @param compressed
+	 *            true to compress each block.
+	 * @param indexed
+	 *            true to write a block index.
+	 * @throws IOException
+	 *             if the file cannot be created.
+	 */
+	public OperationLogWriter(String filename, int recordsPerBlock,
+			boolean compressed, boolean indexed) throws IOException {
+		if (recordsPerBlock < 1) {
+			throw new IllegalArgumentException(
+					"Records per block must be positive: " + recordsPerBlock);
+		}
+		fFile = new RandomAccessFile(filename, "rw");
+		fFile.setLength(0);
+		fChannel = fFile.getChannel();
+		fCompressed = compressed;
+		fIndexed = indexed;
+		fRecordsPerBlock = recordsPerBlock;
+		fBlock = ByteBuffer.allocate(recordsPerBlock * OperationLog.RECORD_SIZE);
+		fPosition = OperationLog.HEADER_SIZE;
+		fBlockOffsets = new long[16];
+		if (compressed) {
+			fDeflater = new Deflater(Deflater.BEST_SPEED);
+			fDeflated = new byte[fBlock.capacity() + 64];
+		}
+	}
+
+	/**
+	 * Appends a command to the log.
+	 *
+	 * @throws IOException
+	 *             if a block cannot be written.
+	 */
+	public void write(Command command) throws IOException {
+		write(command.getOpcode(), command.getAccount(), command.getTarget(),
+				command.getCents());
+	}
+
+	/**
+	 * Appends a command, given as its parts, to the log.
+	 *
+	 * @throws IOException
+	 *             if a block cannot be written.
+	 */
+	public void write(Opcode opcode, int account, long cents)
+			throws IOException {
+		write(opcode, account, 0, cents);
+	}
+
+	/**
+	 * Appends a command, given as its parts, to the log.
+	 *
+	 * @param target
+	 *            the target account of a transfer, or 0.
+	 * @throws IOException
+	 *             if a block cannot be written.
+	 */
+	public void write(Opcode opcode, int account, int target, long cents)
+			throws IOException {
+		fBlock.put(OperationLog.encode(opcode));
+		fBlock.put((byte) 0);
+		fBlock.putShort((short) 0);
+		fBlock.putInt(account);
+		fBlock.putInt(target);
+		fBlock.putLong(cents);
+		fRecordsInBlock++;
+		fRecordCount++;
+		if (fRecordsInBlock == fRecordsPerBlock) {
+			writeBlock();
+		}
+	}
+
+	/**
+	 * Returns the number of records written so far.
+	 */
+	public long getRecordCount() {
+		return fRecordCount;
+	}
+
+	/**
+	 * Writes any partially filled block, the block index and the header, and
+	 * closes the file.
+	 *
+	 * @throws IOException
+	 *             if the log cannot be completed.
+	 */
+	public void close() throws IOException {
+		try {
+			if (fRecordsInBlock > 0) {
+				writeBlock();
+			}
+
+			long indexOffset = 0;
+			if (fIndexed) {
+				indexOffset = fPosition;
+				ByteBuffer index = ByteBuffer.allocate(fBlockCount * 8);
+				for (int i = 0; i < fBlockCount; i++) {
+					index.putLong(fBlockOffsets[i]);
+				}
+				index.flip();
+				writeFully(index, fPosition);
+			}
+
+			byte flags = 0;
+			if (fCompressed) {
+				flags |= OperationLog.FLAG_COMPRESSED;
+			}
+			if (fIndexed) {
+				flags |= OperationLog.FLAG_INDEXED;
+			}
+			ByteBuffer header = ByteBuffer.allocate(OperationLog.HEADER_SIZE);
+			header.putInt(OperationLog.MAGIC);
+			header.put(OperationLog.VERSION);
+			header.put(flags);
+			header.putShort((short) 0);
+			header.putInt(fRecordsPerBlock);
+			header.putInt(fBlockCount);
+			header.putLong(fRecordCount);
+			header.putLong(indexOffset);
+			header.flip();
+			writeFully(header, 0);
+		} finally {
+			if (fDeflater != null) {
+				fDeflater.end();
+			}
+			fFile.close();
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		if (fBlockCount == fBlockOffsets.length) {
+			long[] offsets = new long[fBlockCount * 2];
+			System.arraycopy(fBlockOffsets, 0, offsets, 0, fBlockCount);
+			fBlockOffsets = offsets;
+		}
+		fBlockOffsets[fBlockCount++] = fPosition;
+
+		fBlock.flip();
+		if (fCompressed) {
+			fDeflater.reset();
+			fDeflater.setInput(fBlock.array(), 0, fBlock.limit());
+			fDeflater.finish();
+			int length = 0;
+			while (!fDeflater.finished()) {
+				if (length == fDeflated.length) {
+					byte[] deflated = new byte[length * 2];
+					System.arraycopy(fDeflated, 0, deflated, 0, length);
+					fDeflated = deflated;
+				}
+				length += fDeflater.deflate(fDeflated, length,
+						fDeflated.length - length);
+			}
+			ByteBuffer blockHeader = ByteBuffer
+					.allocate(OperationLog.BLOCK_HEADER_SIZE);
+			blockHeader.putInt(fRecordsInBlock);
+			blockHeader.putInt(length);
+			blockHeader.flip();
+			writeFully(blockHeader, fPosition);
+			writeFully(ByteBuffer.wrap(fDeflated, 0, length), fPosition);
+		} else {
+			writeFully(fBlock, fPosition);
+		}
+		fBlock.clear();
+		fRecordsInBlock = 0;
+	}
+
+	/* Writes the remaining bytes of a buffer and advances fPosition past them. */
+	private void writeFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			position += fChannel.write(buffer, position);
+		}
+		if (position > fPosition) {
+			fPosition = position;
+		}
+	}
+}
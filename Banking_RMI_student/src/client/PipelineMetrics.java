@@ -0,0 +1,427 @@
+package client;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import common.LatencyHistogram;
+import common.OperationBatch;
+
+/**
+ * Class that measures each stage of the client's pipeline, so that a run
+ * shows which stage limits it: the rate at which the producer delivers
+ * commands, how full the Dispatcher's partitions are, how long the producer
+ * waits for space in them and the Workers wait for commands, how long calls
+ * wait for the InFlightLimiter's per-account and global permits, and the
+ * latency and throughput of each type of command.
+ *
+ * Command latencies are recorded by the threads completing the commands into
+ * LatencyHistograms striped by thread, so that concurrent threads rarely
+ * update the same histogram; the other figures are accumulated by the
+ * Dispatcher, its CommandRings and the InFlightLimiter themselves, and are
+ * only read here. Once started, a daemon thread samples the partitions'
+ * occupancy every SAMPLE_MILLIS milliseconds and, if a report interval was
+ * given, prints the rates of the last interval.
+ *
+ * The latency of a name or balance command served by an AccountCache is that
+ * of the cache lookup; a batch is recorded once, under "batch", and each of
+ * its operations counts towards the throughput of its command type.
+ */
+public class PipelineMetrics {
+
+	/* Period at which partition occupancy is sampled. */
+	private static final long SAMPLE_MILLIS = 100;
+
+	/* Number of stripes of each latency histogram; a power of two. */
+	private static final int STRIPES = Integer.highestOneBit(Math.max(1,
+			Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+
+	private static final Opcode[] OPCODES = Opcode.values();
+
+	/* Index of the batch latencies, after those of each Opcode. */
+	private static final int BATCH = OPCODES.length;
+
+	/* Indexes into a snapshot, which ends with the commands completed. */
+	private static final int COMMANDS = 0;
+
+	private static final int PRODUCER_WAIT = 1;
+
+	private static final int CONSUMER_WAIT = 2;
+
+	private static final int ACCOUNT_WAIT = 3;
+
+	private static final int GLOBAL_WAIT = 4;
+
+	private static final int COMPLETED = 5;
+
+	private final long fReportNanos;
+
+	private final PrintStream fOut;
+
+	/* Latencies by command type (or BATCH) and stripe. */
+	private final LatencyHistogram[][] fLatencies;
+
+	/* Commands completed by type. */
+	private final LongAdder[] fCompleted;
+
+	/* Named stages and their durations; guarded by this. */
+	private final List<String> fStages = new ArrayList<String>();
+
+	private final List<Long> fStageNanos = new ArrayList<Long>();
+
+	private final long fCreated;
+
+	/* Guarded by this. */
+	private long fStageStart;
+
+	private Dispatcher fDispatcher;
+
+	private InFlightLimiter fLimiter;
+
+	private Thread fSampler;
+
+	private long fStarted;
+
+	private long fProduced;
+
+	private long fStopped;
+
+	private long fSamples;
+
+	private double fOccupancySum;
+
+	private double fPeakOccupancy;
+
+	/**
+	 * Creates a PipelineMetrics. The time from its creation to the first
+	 * call to endStage() forms the first stage.
+	 *
+	 * @param reportMillis
+	 *            the interval at which the rates of the last interval are
+	 *            printed, or zero to print only the summary.
+	 * @param out
+	 *            the stream to which reports are printed.
+	 */
+	public PipelineMetrics(long reportMillis, PrintStream out) {
+		if (reportMillis < 0) {
+			throw new IllegalArgumentException(
+					"Report interval must not be negative: " + reportMillis);
+		}
+		fReportNanos = TimeUnit.MILLISECONDS.toNanos(reportMillis);
+		fOut = out;
+		fLatencies = new LatencyHistogram[OPCODES.length + 1][STRIPES];
+		for (int i = 0; i < fLatencies.length; i++) {
+			for (int j = 0; j < STRIPES; j++) {
+				fLatencies[i][j] = new LatencyHistogram();
+			}
+		}
+		fCompleted = new LongAdder[OPCODES.length];
+		for (int i = 0; i < fCompleted.length; i++) {
+			fCompleted[i] = new LongAdder();
+		}
+		fCreated = System.nanoTime();
+		fStageStart = fCreated;
+	}
+
+	/**
+	 * Records the completion of a command whose call, or cache lookup,
+	 * started at startNanos (a System.nanoTime() value).
+	 */
+	public void recordCall(Opcode opcode, long startNanos) {
+		fLatencies[opcode.ordinal()][stripe()].recordAtomic(System.nanoTime()
+				- startNanos);
+		fCompleted[opcode.ordinal()].increment();
+	}
+
+	/**
+	 * Records the completion of a batch whose call started at startNanos.
+	 */
+	public void recordBatch(OperationBatch batch, long startNanos) {
+		fLatencies[BATCH][stripe()].recordAtomic(System.nanoTime()
+				- startNanos);
+		int deposits = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			if (batch.getOperation(i) == OperationBatch.DEPOSIT) {
+				deposits++;
+			}
+		}
+		fCompleted[Opcode.DEPOSIT.ordinal()].add(deposits);
+		fCompleted[Opcode.WITHDRAW.ordinal()].add(batch.size() - deposits);
+	}
+
+	private static int stripe() {
+		long id = Thread.currentThread().getId();
+		return (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+	}
+
+	/**
+	 * Ends the current stage of the run, recording its duration under the
+	 * specified name, and starts the next.
+	 */
+	public synchronized void endStage(String name) {
+		long now = System.nanoTime();
+		fStages.add(name);
+		fStageNanos.add(now - fStageStart);
+		fStageStart = now;
+	}
+
+	/**
+	 * Starts measuring the pipeline formed by a Dispatcher and the limiter of
+	 * its Workers' calls, and starts the sampling thread.
+	 */
+	public synchronized void start(Dispatcher dispatcher,
+			InFlightLimiter limiter) {
+		if (fSampler != null) {
+			throw new IllegalStateException("Already started");
+		}
+		fDispatcher = dispatcher;
+		fLimiter = limiter;
+		fStarted = System.nanoTime();
+		fSampler = new Thread(new Runnable() {
+			public void run() {
+				sample();
+			}
+		}, "PipelineMetrics");
+		fSampler.setDaemon(true);
+		fSampler.start();
+	}
+
+	/**
+	 * Records that the producer has put its last command.
+	 */
+	public synchronized void producerFinished() {
+		fProduced = System.nanoTime();
+	}
+
+	/**
+	 * Stops the sampling thread once the last command has completed.
+	 */
+	public void stop() throws InterruptedException {
+		Thread sampler;
+		synchronized (this) {
+			fStopped = System.nanoTime();
+			sampler = fSampler;
+		}
+		if (sampler != null) {
+			sampler.interrupt();
+			sampler.join();
+		}
+	}
+
+	/*
+	 * Body of the sampling thread.
+	 */
+	private void sample() {
+		long sampleNanos = TimeUnit.MILLISECONDS.toNanos(SAMPLE_MILLIS);
+		long[] previous = snapshot();
+		long previousNanos = System.nanoTime();
+		long nextReport = previousNanos + fReportNanos;
+		try {
+			while (true) {
+				TimeUnit.NANOSECONDS.sleep(sampleNanos);
+				double occupancy = occupancy();
+				synchronized (this) {
+					fSamples++;
+					fOccupancySum += occupancy;
+					fPeakOccupancy = Math.max(fPeakOccupancy, occupancy);
+				}
+
+				long now = System.nanoTime();
+				if (fReportNanos > 0 && now - nextReport >= 0) {
+					long[] current = snapshot();
+					fOut.println(interval(previous, current, now
+							- previousNanos, occupancy));
+					previous = current;
+					previousNanos = now;
+					nextReport = now + fReportNanos;
+				}
+			}
+		} catch (InterruptedException e) {
+			/* Stopped. */
+		}
+	}
+
+	/*
+	 * Returns the cumulative figures of the pipeline.
+	 */
+	private long[] snapshot() {
+		long[] snapshot = new long[COMPLETED + OPCODES.length];
+		snapshot[COMMANDS] = fDispatcher.getCommandCount();
+		for (int i = 0; i < fDispatcher.getPartitionCount(); i++) {
+			CommandRing ring = fDispatcher.getPartition(i);
+			snapshot[PRODUCER_WAIT] += ring.getProducerWaitNanos();
+			snapshot[CONSUMER_WAIT] += ring.getConsumerWaitNanos();
+		}
+		snapshot[ACCOUNT_WAIT] = fLimiter.getAccountWaitNanos();
+		snapshot[GLOBAL_WAIT] = fLimiter.getGlobalWaitNanos();
+		for (int i = 0; i < OPCODES.length; i++) {
+			snapshot[COMPLETED + i] = fCompleted[i].sum();
+		}
+		return snapshot;
+	}
+
+	/*
+	 * Returns the fraction of the partitions' capacity currently in use.
+	 */
+	private double occupancy() {
+		long used = 0;
+		long capacity = 0;
+		for (int i = 0; i < fDispatcher.getPartitionCount(); i++) {
+			CommandRing ring = fDispatcher.getPartition(i);
+			used += ring.size();
+			capacity += ring.capacity();
+		}
+		return (double) used / capacity;
+	}
+
+	/*
+	 * Returns the report line for an interval.
+	 */
+	private String interval(long[] previous, long[] current, long nanos,
+			double occupancy) {
+		StringBuffer line = new StringBuffer();
+		double seconds = nanos / 1e9;
+		int partitions = fDispatcher.getPartitionCount();
+
+		line.append('[');
+		line.append(String.format("%.1f",
+				(System.nanoTime() - fStarted) / 1e9));
+		line.append("s] parsed ");
+		line.append(rate(current[COMMANDS] - previous[COMMANDS], seconds));
+		line.append("/s, queues ");
+		line.append(percent(occupancy));
+		line.append(" full, producer blocked ");
+		line.append(percent((current[PRODUCER_WAIT] - previous[PRODUCER_WAIT])
+				/ (double) nanos));
+		line.append(", workers idle ");
+		line.append(percent((current[CONSUMER_WAIT] - previous[CONSUMER_WAIT])
+				/ ((double) nanos * partitions)));
+		line.append(", permit wait ");
+		line.append(String.format("%.2f", (current[ACCOUNT_WAIT]
+				- previous[ACCOUNT_WAIT] + current[GLOBAL_WAIT]
+				- previous[GLOBAL_WAIT]) / 1e9));
+		line.append("s, completed");
+		for (int i = 0; i < OPCODES.length; i++) {
+			long completed = current[COMPLETED + i] - previous[COMPLETED + i];
+			if (completed > 0) {
+				line.append(' ');
+				line.append(OPCODES[i].name().toLowerCase());
+				line.append(' ');
+				line.append(rate(completed, seconds));
+				line.append("/s");
+			}
+		}
+
+		return line.toString();
+	}
+
+	/**
+	 * Returns a summary of the run: the duration of each stage, then the
+	 * figures of each stage of the pipeline over the whole run.
+	 */
+	public synchronized String getSummary() {
+		StringBuffer summary = new StringBuffer();
+		long now = System.nanoTime();
+
+		summary.append("Pipeline summary:");
+		summary.append("\n  stages:   ");
+		for (int i = 0; i < fStages.size(); i++) {
+			summary.append(fStages.get(i));
+			summary.append(' ');
+			summary.append(seconds(fStageNanos.get(i)));
+			summary.append(", ");
+		}
+		summary.append("total ");
+		summary.append(seconds(now - fCreated));
+
+		if (fDispatcher != null) {
+			long[] totals = snapshot();
+			long stopped = fStopped != 0 ? fStopped : now;
+			long produced = fProduced != 0 ? fProduced : stopped;
+			long producing = produced - fStarted;
+			long running = stopped - fStarted;
+			int partitions = fDispatcher.getPartitionCount();
+
+			summary.append("\n  parse:    ");
+			summary.append(totals[COMMANDS]);
+			summary.append(" commands in ");
+			summary.append(seconds(producing));
+			summary.append(", ");
+			summary.append(rate(totals[COMMANDS],
+					(producing - totals[PRODUCER_WAIT]) / 1e9));
+			summary.append("/s excluding ");
+			summary.append(seconds(totals[PRODUCER_WAIT]));
+			summary.append(" blocked on full partitions");
+
+			summary.append("\n  queues:   ");
+			summary.append(partitions);
+			summary.append(" x ");
+			summary.append(fDispatcher.getPartition(0).capacity());
+			summary.append(" commands, ");
+			summary.append(percent(fSamples == 0 ? 0 : fOccupancySum
+					/ fSamples));
+			summary.append(" full on average, ");
+			summary.append(percent(fPeakOccupancy));
+			summary.append(" at peak");
+
+			summary.append("\n  workers:  waited ");
+			summary.append(seconds(totals[CONSUMER_WAIT]));
+			summary.append(" for commands (");
+			summary.append(percent(running == 0 ? 0 : totals[CONSUMER_WAIT]
+					/ ((double) running * partitions)));
+			summary.append(" of their time)");
+
+			summary.append("\n  limiter:  waited ");
+			summary.append(seconds(totals[ACCOUNT_WAIT]));
+			summary.append(" for account permits and ");
+			summary.append(seconds(totals[GLOBAL_WAIT]));
+			summary.append(" for the global limit");
+
+			for (int i = 0; i < fLatencies.length; i++) {
+				LatencyHistogram latencies = merge(i);
+				long completed = i < OPCODES.length ? totals[COMPLETED + i]
+						: latencies.getCount();
+				if (completed == 0) {
+					continue;
+				}
+				String name = i < OPCODES.length ? OPCODES[i].name()
+						.toLowerCase() : "batch";
+				summary.append("\n  ");
+				summary.append(name);
+				summary.append(':');
+				for (int pad = name.length(); pad < 9; pad++) {
+					summary.append(' ');
+				}
+				summary.append(completed);
+				summary.append(i < OPCODES.length ? " commands, " : " calls, ");
+				summary.append(rate(completed, running / 1e9));
+				summary.append("/s, latency ");
+				summary.append(latencies);
+			}
+		}
+
+		return summary.toString();
+	}
+
+	private LatencyHistogram merge(int type) {
+		LatencyHistogram merged = new LatencyHistogram();
+		for (int j = 0; j < STRIPES; j++) {
+			merged.add(fLatencies[type][j]);
+		}
+		return merged;
+	}
+
+	private static String rate(long count, double seconds) {
+		return seconds <= 0 ? "-" : String.valueOf(Math.round(count / seconds));
+	}
+
+	private static String percent(double fraction) {
+		return Math.round(fraction * 100) + "%";
+	}
+
+	private static String seconds(long nanos) {
+		return String.format("%.3fs", nanos / 1e9);
+	}
+}
@@ -1,30 +1,70 @@
 package client;
 
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
 
 /** 
  * Class that implements a Producer. A Producer instance is intended to be run
  * in a thread. The producer uses a parser to read commands from a data file;
- * the commands are used to populate a buffer (in this case a BlockingQueue
- * implementation). The thread that runs the producer terminates after all
- * commands have been placed in the buffer.
+ * the commands are used to populate a buffer (in this case a CommandSink
+ * such as a Dispatcher). The thread that runs the producer terminates after
+ * all commands have been placed in the buffer.
  */
 public class Producer implements Runnable {
+
+	/**
+	 * The ways in which a Producer can read its data file.
+	 */
+	public enum Mode {
+		/* Read the file as a character stream. */
+		STREAM,
+		/* Scan a memory-mapped view of the file. */
+		MAPPED,
+		/* Scan chunks of a memory-mapped view of the file on several threads. */
+		PARALLEL,
+		/* Replay a binary operation log written by OperationLogConverter. */
+		BINARY
+	}
 	
 	private String fCommandFileName;
 	private CommandParser fParser;
-	private BlockingQueue<String[]> fQueue;
+	private CommandSink fSink;
+	private Mode fMode;
+	private int fParseThreads;
+
+	public Producer(String commandFileName, CommandParser parser, CommandSink sink) {
+		this(commandFileName, parser, sink, Mode.STREAM);
+	}
+
+	public Producer(String commandFileName, CommandParser parser,
+			CommandSink sink, Mode mode) {
+		this(commandFileName, parser, sink, mode, Runtime.getRuntime()
+				.availableProcessors());
+	}
 
-	public Producer(String commandFileName, CommandParser parser, BlockingQueue<String[]> queue) {
+	/**
+	 * Creates a Producer that reads its data file in the specified mode,
+	 * using parseThreads threads when the mode is PARALLEL.
+	 */
+	public Producer(String commandFileName, CommandParser parser,
+			CommandSink sink, Mode mode, int parseThreads) {
 		this.fCommandFileName = commandFileName;
 		this.fParser = parser;
-		this.fQueue = queue;
+		this.fSink = sink;
+		this.fMode = mode;
+		this.fParseThreads = parseThreads;
 	}
 	
 	public void run() {
 		try {
-			fParser.parse(fCommandFileName, 0, fQueue);
+			if (fMode == Mode.BINARY) {
+				replay();
+			} else if (fMode == Mode.PARALLEL) {
+				fParser.parseCommandsInParallel(fCommandFileName, 0, fSink,
+						fParseThreads);
+			} else {
+				fParser.parseCommands(fCommandFileName, 0, fSink,
+						fMode == Mode.MAPPED);
+			}
 		} catch(InterruptedException e) {
 			System.err.println("Producer thread interrupted while reading data file.");
 		} catch(IOException e) {
@@ -39,5 +79,20 @@ public class Producer implements Runnable {
 			}
 		}
 	}
+
+	/*
+	 * Passes the records of a binary operation log to the sink. The log was
+	 * validated when it was written, so no parsing is needed.
+	 */
+	private void replay() throws IOException, InterruptedException {
+		OperationLogReader in = new OperationLogReader(fCommandFileName);
+		try {
+			while (in.next()) {
+				fSink.put(in.getCommand());
+			}
+		} finally {
+			in.close();
+		}
+	}
 	
 }
@@ -0,0 +1,86 @@
+package client;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.LineNumberReader;
+
+/**
+ * Class that reads commands from a file through a character stream, following
+ * the same rules as CommandParser.parse(): a comment symbol causes the rest of
+ * its line to be skipped, whitespace is discarded, and each command ends with
+ * the command delimiter. Characters outside the single-byte range are stored
+ * as '?' and so never match a grammar.
+ */
+public class StreamCommandReader implements CommandReader {
+
+	private final LineNumberReader fIn;
+
+	private final char fLineComment;
+
+	private final char fCommandDelimiter;
+
+	private byte[] fCommand;
+
+	private int fLength;
+
+	private int fLineNumber;
+
+	/**
+	 * Opens a file for reading.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be opened.
+	 */
+	public StreamCommandReader(String filename, char lineComment,
+			char commandDelimiter) throws IOException {
+		fIn = new LineNumberReader(new FileReader(filename));
+		fLineComment = lineComment;
+		fCommandDelimiter = commandDelimiter;
+		fCommand = new byte[128];
+	}
+
+	public boolean next() throws IOException {
+		fLength = 0;
+		int input;
+		while ((input = fIn.read()) != -1) {
+			char ch = (char) input;
+
+			if (ch == fLineComment) {
+				/* Skip over any input between a comment and end-of-line. */
+				fIn.readLine();
+			} else if (!Character.isWhitespace(ch)) {
+				append(ch < 256 ? (byte) ch : (byte) '?');
+				if (ch == fCommandDelimiter) {
+					fLineNumber = fIn.getLineNumber();
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public byte[] buffer() {
+		return fCommand;
+	}
+
+	public int length() {
+		return fLength;
+	}
+
+	public int lineNumber() {
+		return fLineNumber;
+	}
+
+	public void close() throws IOException {
+		fIn.close();
+	}
+
+	private void append(byte b) {
+		if (fLength == fCommand.length) {
+			byte[] command = new byte[fLength * 2];
+			System.arraycopy(fCommand, 0, command, 0, fLength);
+			fCommand = command;
+		}
+		fCommand[fLength++] = b;
+	}
+}
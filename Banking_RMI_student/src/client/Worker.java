@@ -1,116 +1,669 @@
 package client;
 
 import java.rmi.RemoteException;
-import java.util.Hashtable;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
+import common.Bank;
 import common.BankAccount;
-import common.ExcessiveAmountException;
-import common.IllegalMoneyException;
-import common.Money;
-import common.NegativeAmountException;
+import common.NoSuchAccountException;
+import common.OperationBatch;
 
 /**
  * Class whose instances are intended to be run in separate threads. A Worker is
- * responsible for retrieving commands from a BlockingQueue object and for
- * making appropriate RMI calls on remote BankAccount objects.
+ * responsible for retrieving commands from one partition of a Dispatcher and
+ * for making appropriate RMI calls on remote BankAccount objects. As the
+ * Worker is the only consumer of its partition, and every command for an
+ * account is routed to the same partition, commands for an account are sent
+ * in file order and no two Workers ever call the same account; no lock is
+ * held across an RMI call.
+ * 
+ * A Worker can optionally run in batching mode. In this mode deposits and
+ * withdrawals are accumulated per account and sent in a single applyBatch call
+ * once a batch reaches its maximum size or has been pending for longer than
+ * the maximum delay.
+ *
+ * Name and balance commands are served through an optional AccountCache, to
+ * which the Worker announces every deposit, withdrawal and transfer before
+ * sending it and reports its outcome afterwards. A transfer is routed by its
+ * source account and made through the directory's Bank; it is skipped if the
+ * directory has no Bank. Each command or batch that completes is recorded in
+ * an optional PipelineMetrics.
+ * Deposits, withdrawals and batches are made through an IdempotentCaller, so
+ * a call that fails with a RemoteException is retried without the risk of
+ * applying it twice.
+ *
+ * Alternatively, a Worker can submit its commands to an AsyncBankClient
+ * instead of making remote calls itself. It then never waits for a round trip,
+ * only for the client's limit on outstanding operations, and the client
+ * pipelines the operations of each account.
  */
 public class Worker implements Runnable {
 
-	/* BlockingQueue object from where commands are retrieved. */
-	private BlockingQueue<String[]> fQueue;
-	private Hashtable<String, Semaphore> fs;
+	/* Retries made by the IdempotentCaller a Worker creates for itself. */
+	private static final int DEFAULT_RETRIES = 2;
+
+	/* Dispatcher partition from where commands are retrieved. */
+	private CommandRing fRing;
+
+	/* Directory used to resolve BankAccount proxy objects by account number. */
+	private AccountDirectory fAccounts;
+
+	/*
+	 * Batching parameters. A batch size of 1 disables batching, in which case
+	 * every command is sent as its own RMI call.
+	 */
+	private int fBatchSize;
+
+	private long fMaxBatchDelayNanos;
+
+	/* Pending batches, keyed by account number, used in batching mode. */
+	private Map<Integer, PendingBatch> fPending;
+
+	/*
+	 * The pending batches linked in order of deadline, oldest first. Every
+	 * batch waits for the same delay, so this is the order in which they were
+	 * started, and only the oldest need be checked for expiry.
+	 */
+	private PendingBatch fOldest;
+
+	private PendingBatch fNewest;
 
 	/*
-	 * Hashtable used to store BankAccount proxy objects. The key is the account
-	 * number.
+	 * Limiter through which every remote call obtains permits, or null, and
+	 * the executor on which calls are made, or null to make each call on the
+	 * Worker's own thread.
+	 */
+	private InFlightLimiter fLimiter;
+
+	private Executor fCallExecutor;
+
+	/* Cache serving name and balance commands, or null. */
+	private AccountCache fCache;
+
+	/* Caller making deposits, withdrawals and batches at most once. */
+	private IdempotentCaller fCaller;
+
+	/* Metrics recording completed commands, or null. */
+	private PipelineMetrics fMetrics;
+
+	/* Client to which commands are submitted in asynchronous mode, or null. */
+	private AsyncBankClient fAsync;
+
+	/**
+	 * Creates a Worker instance that sends one RMI call per command.
+	 */
+	public Worker(CommandRing ring, AccountDirectory accounts) {
+		this(ring, accounts, 1, 0);
+	}
+
+	/**
+	 * Creates a Worker instance that batches deposits and withdrawals.
+	 * 
+	 * @param batchSize
+	 *            the maximum number of operations sent to an account in one
+	 *            applyBatch call, at most OperationBatch.MAX_SIZE. A value of
+	 *            1 disables batching.
+	 * @param maxBatchDelayMillis
+	 *            the maximum time an operation may wait in a partially filled
+	 *            batch before the batch is sent.
+	 */
+	public Worker(CommandRing ring, AccountDirectory accounts,
+			int batchSize, long maxBatchDelayMillis) {
+		this(ring, accounts, batchSize, maxBatchDelayMillis, null, null);
+	}
+
+	/**
+	 * Creates a Worker instance whose remote calls are bounded by a limiter
+	 * and, optionally, made asynchronously. When a call executor is given,
+	 * the Worker takes the limiter's permits for each call and hands the call
+	 * to the executor, so it can have as many calls in progress as the
+	 * limiter allows; with at most one call per account, calls on an account
+	 * are still made in the order of the partition.
+	 * 
+	 * @param limiter
+	 *            the limiter bounding calls in progress, or null.
+	 * @param callExecutor
+	 *            the executor on which calls are made, or null to make calls
+	 *            on the Worker's thread. Requires a limiter.
 	 */
-	private Hashtable<String, BankAccount> fAccounts;
+	public Worker(CommandRing ring, AccountDirectory accounts,
+			int batchSize, long maxBatchDelayMillis, InFlightLimiter limiter,
+			Executor callExecutor) {
+		this(ring, accounts, batchSize, maxBatchDelayMillis, limiter,
+				callExecutor, null);
+	}
+
+	/**
+	 * Creates a Worker instance whose name and balance commands are served
+	 * through a cache. The cache may be shared by several Workers.
+	 * 
+	 * @param cache
+	 *            the cache of names and balances, or null to make a remote
+	 *            call for every name and balance command.
+	 */
+	public Worker(CommandRing ring, AccountDirectory accounts,
+			int batchSize, long maxBatchDelayMillis, InFlightLimiter limiter,
+			Executor callExecutor, AccountCache cache) {
+		this(ring, accounts, batchSize, maxBatchDelayMillis, limiter,
+				callExecutor, cache, new IdempotentCaller(DEFAULT_RETRIES));
+	}
 
 	/**
-	 * Creates a Worker instance.
+	 * Creates a Worker instance whose deposits, withdrawals and batches are
+	 * made through the specified IdempotentCaller, which may be shared by
+	 * several Workers.
 	 */
-	public Worker(BlockingQueue<String[]> queue,
-			Hashtable<String, BankAccount> accounts, Hashtable<String, Semaphore> s) {
-		this.fQueue = queue;
+	public Worker(CommandRing ring, AccountDirectory accounts,
+			int batchSize, long maxBatchDelayMillis, InFlightLimiter limiter,
+			Executor callExecutor, AccountCache cache, IdempotentCaller caller) {
+		this(ring, accounts, batchSize, maxBatchDelayMillis, limiter,
+				callExecutor, cache, caller, null);
+	}
+
+	/**
+	 * Creates a Worker instance that records the latency of each command and
+	 * batch it completes.
+	 * 
+	 * @param metrics
+	 *            the metrics, which may be shared by several Workers, or
+	 *            null.
+	 */
+	public Worker(CommandRing ring, AccountDirectory accounts,
+			int batchSize, long maxBatchDelayMillis, InFlightLimiter limiter,
+			Executor callExecutor, AccountCache cache, IdempotentCaller caller,
+			PipelineMetrics metrics) {
+		if (callExecutor != null && limiter == null) {
+			throw new IllegalArgumentException(
+					"Asynchronous calls require an InFlightLimiter");
+		}
+		if (batchSize < 1 || batchSize > OperationBatch.MAX_SIZE) {
+			throw new IllegalArgumentException("Batch size must be between 1 and "
+					+ OperationBatch.MAX_SIZE + ": " + batchSize);
+		}
+		this.fRing = ring;
 		this.fAccounts = accounts;
-		this.fs = s;
+		this.fBatchSize = batchSize;
+		this.fMaxBatchDelayNanos = TimeUnit.MILLISECONDS
+				.toNanos(maxBatchDelayMillis);
+		this.fPending = new HashMap<Integer, PendingBatch>();
+		this.fLimiter = limiter;
+		this.fCallExecutor = callExecutor;
+		this.fCache = cache;
+		this.fCaller = caller;
+		this.fMetrics = metrics;
+	}
+
+	/**
+	 * Creates a Worker instance that submits every command to an
+	 * AsyncBankClient without waiting for its outcome.
+	 */
+	public Worker(CommandRing ring, AsyncBankClient async) {
+		this(ring, null, 1, 0);
+		this.fAsync = async;
 	}
 
 	/**
-	 * Until interrupted, iteratively processes commands held in the
-	 * BlockingQueue. The Worker can be blocked when the queue is empty.
-	 * Processing each command involves a RMI call to the remote BankAccount
-	 * object to which the command applies.
+	 * Iteratively processes the commands held in the Worker's partition until
+	 * the end of the partition's stream is reached. The Worker can be blocked
+	 * when the partition is empty. Processing each command involves a RMI call
+	 * to the remote BankAccount object to which the command applies; when
+	 * calls are made through an executor, some may still be in progress when
+	 * run() returns, and are tracked by the InFlightLimiter. An interrupt
+	 * abandons any commands not yet taken from the partition.
 	 */
 	public void run() {
+		if (fAsync != null) {
+			runAsync();
+			return;
+		}
+		if (fBatchSize > 1) {
+			runBatched();
+			return;
+		}
+
+		try {
+			Command command;
+			while ((command = fRing.take()) != CommandRing.END_OF_STREAM) {
+				processCommand(command);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Asynchronous variant of run(). Outcomes are not waited for; the
+	 * AsyncBankClient tracks the operations still outstanding.
+	 */
+	private void runAsync() {
+		try {
+			Command command;
+			while ((command = fRing.take()) != CommandRing.END_OF_STREAM) {
+				submitCommand(command);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void submitCommand(Command command) {
+		AsyncBankAccount account = fAsync.get(command.getAccount());
+		if (account == null) {
+			/* The account is unknown to the directory. */
+			return;
+		}
+		switch (command.getOpcode()) {
+		case BALANCE:
+			account.getBalanceCents();
+			break;
+		case NAME:
+			account.getName();
+			break;
+		case DEPOSIT:
+			account.depositCents(command.getCents());
+			break;
+		case WITHDRAW:
+			account.withdrawCents(command.getCents());
+			break;
+		case TRANSFER:
+			account.transferCents(command.getTarget(), command.getCents());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/*
+	 * Batching variant of run(). The partition is polled with a timeout so
+	 * that a partially filled batch is flushed once its delay has expired even
+	 * when no further commands arrive. Pending batches are flushed before the
+	 * Worker terminates.
+	 */
+	private void runBatched() {
 		boolean finished = false;
 		while (!finished) {
 			try {
-				// Retrieve command to process.
-				String[] command = fQueue.take();
+				Command command;
+				long deadline = earliestDeadline();
+				if (deadline == Long.MAX_VALUE) {
+					command = fRing.take();
+				} else {
+					command = fRing.poll(deadline - System.nanoTime(),
+							TimeUnit.NANOSECONDS);
+				}
 
-				// Process command.
-				processCommand(command);
+				if (command == CommandRing.END_OF_STREAM) {
+					finished = true;
+				} else if (command != null) {
+					enqueueCommand(command);
+				}
+				flushExpired(System.nanoTime());
 			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 				finished = true;
 			}
 		}
+
+		/* Send whatever is still pending before terminating. */
+		while (fOldest != null) {
+			PendingBatch pending = fOldest;
+			remove(pending);
+			flush(pending.account, pending);
+		}
+	}
+
+	/*
+	 * Adds a deposit or withdraw command to its account's pending batch,
+	 * flushing the batch when it is full. Any other command first flushes the
+	 * account's pending batch so that commands for an account are still sent
+	 * in the order in which this Worker received them.
+	 */
+	private void enqueueCommand(Command command) {
+		int account = command.getAccount();
+		PendingBatch pending = fPending.get(account);
+
+		Opcode opcode = command.getOpcode();
+		if (opcode != Opcode.DEPOSIT && opcode != Opcode.WITHDRAW) {
+			if (pending != null) {
+				remove(pending);
+				flush(account, pending);
+			}
+			processCommand(command);
+			return;
+		}
+
+		if (pending == null) {
+			pending = new PendingBatch(account, fBatchSize, System.nanoTime()
+					+ fMaxBatchDelayNanos);
+			fPending.put(account, pending);
+			if (fNewest == null) {
+				fOldest = pending;
+			} else {
+				fNewest.newer = pending;
+				pending.older = fNewest;
+			}
+			fNewest = pending;
+		}
+		if (opcode == Opcode.DEPOSIT) {
+			pending.batch.addDeposit(command.getCents());
+		} else {
+			pending.batch.addWithdrawal(command.getCents());
+		}
+
+		if (pending.batch.size() >= fBatchSize) {
+			remove(pending);
+			flush(account, pending);
+		}
+	}
+
+	/*
+	 * Removes a batch from the pending batches, before it is sent.
+	 */
+	private void remove(PendingBatch pending) {
+		fPending.remove(pending.account);
+		if (pending.older == null) {
+			fOldest = pending.newer;
+		} else {
+			pending.older.newer = pending.newer;
+		}
+		if (pending.newer == null) {
+			fNewest = pending.older;
+		} else {
+			pending.newer.older = pending.older;
+		}
+	}
+
+	/*
+	 * Returns the time, as a System.nanoTime() value, at which the oldest
+	 * pending batch must be sent, or Long.MAX_VALUE if nothing is pending.
+	 */
+	private long earliestDeadline() {
+		return fOldest == null ? Long.MAX_VALUE : fOldest.deadline;
+	}
+
+	private void flushExpired(long now) {
+		while (fOldest != null && fOldest.deadline - now <= 0) {
+			PendingBatch pending = fOldest;
+			remove(pending);
+			flush(pending.account, pending);
+		}
+	}
+
+	/*
+	 * Sends a batch to its account with a single RMI call.
+	 */
+	private void flush(final int account, final PendingBatch pending) {
+		final BankAccount bAccount = fAccounts.get(account);
+		if (bAccount == null) {
+			return;
+		}
+		call(account, new Runnable() {
+			public void run() {
+				if (fCache != null) {
+					fCache.sending(account);
+				}
+				byte[] outcomes = null;
+				try {
+					long start = System.nanoTime();
+					outcomes = fCaller.applyBatch(bAccount, pending.batch);
+					if (fMetrics != null) {
+						fMetrics.recordBatch(pending.batch, start);
+					}
+				} catch (RemoteException e) {
+					// As for single commands, communication errors are dropped.
+				} finally {
+					if (fCache != null) {
+						report(account, pending.batch, outcomes);
+					}
+				}
+			}
+		});
+	}
+
+	/*
+	 * Reports to the cache the outcome of a batch announced with sending().
+	 * A null outcome array means that the call failed.
+	 */
+	private void report(int account, OperationBatch batch, byte[] outcomes) {
+		if (outcomes == null) {
+			fCache.failed(account);
+			return;
+		}
+		for (int i = 0; i < outcomes.length; i++) {
+			if (outcomes[i] == OperationBatch.EXPIRED) {
+				fCache.failed(account);
+				return;
+			}
+		}
+		fCache.applied(account, appliedCents(batch, outcomes));
+	}
+
+	/*
+	 * Reports to the cache the outcome of a deposit (positive amount) or
+	 * withdrawal (negative amount) announced with sending().
+	 */
+	private void report(int account, byte outcome, long cents) {
+		if (outcome == OperationBatch.EXPIRED) {
+			fCache.failed(account);
+		} else {
+			fCache.applied(account, outcome == OperationBatch.APPLIED ? cents
+					: 0);
+		}
+	}
+
+	/*
+	 * Returns the net change in cents made by the operations of a batch that
+	 * were applied.
+	 */
+	private static long appliedCents(OperationBatch batch, byte[] outcomes) {
+		long cents = 0;
+		for (int i = 0; i < outcomes.length; i++) {
+			if (outcomes[i] == OperationBatch.APPLIED) {
+				if (batch.getOperation(i) == OperationBatch.DEPOSIT) {
+					cents += batch.getAmountCents(i);
+				} else {
+					cents -= batch.getAmountCents(i);
+				}
+			}
+		}
+		return cents;
+	}
+
+	/*
+	 * Makes a remote call on an account, subject to the limiter, either on
+	 * this thread or through the call executor.
+	 */
+	private void call(final int account, final Runnable remoteCall) {
+		if (fLimiter == null) {
+			remoteCall.run();
+			return;
+		}
+
+		fLimiter.acquire(account);
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					remoteCall.run();
+				} finally {
+					fLimiter.release(account);
+				}
+			}
+		};
+		if (fCallExecutor == null) {
+			task.run();
+		} else {
+			fCallExecutor.execute(task);
+		}
+	}
+
+	/*
+	 * A batch of operations awaiting transmission to an account, together
+	 * with the time by which it must be sent and its neighbours in order of
+	 * deadline.
+	 */
+	private static class PendingBatch {
+		final int account;
+
+		final OperationBatch batch;
+
+		final long deadline;
+
+		PendingBatch older;
+
+		PendingBatch newer;
+
+		PendingBatch(int account, int capacity, long deadline) {
+			this.account = account;
+			this.batch = new OperationBatch(capacity);
+			this.deadline = deadline;
+		}
 	}
 
 	/*
 	 * Implementation method that interprets a command and which makes the
 	 * necessary RMI call.
 	 */
-	private void processCommand(String[] commandTokens) {
+	private void processCommand(final Command command) {
 
-		BankAccount bAccount = fAccounts.get(commandTokens[1]);
-		try {
-			fs.get(commandTokens[1]).acquire();
-		} catch (InterruptedException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+		if (command.getOpcode() == Opcode.TRANSFER) {
+			final Bank bank = fAccounts.getBank();
+			if (bank == null) {
+				/* Transfers can only be made through a Bank. */
+				return;
+			}
+			call(command.getAccount(), new Runnable() {
+				public void run() {
+					transfer(bank, command);
+				}
+			});
+			return;
 		}
+
+		int account = command.getAccount();
+		final BankAccount bAccount = fAccounts.get(account);
+		if (bAccount == null) {
+			/* The account is unknown to the directory. */
+			return;
+		}
+		call(account, new Runnable() {
+			public void run() {
+				send(bAccount, command);
+			}
+		});
+	}
+
+	/*
+	 * Makes the RMI call for a command, or serves it from the cache.
+	 */
+	private void send(BankAccount bAccount, Command command) {
+		int account = command.getAccount();
+		long start = System.nanoTime();
 		try {
-			switch (commandTokens[0]) {
-//			case "balance":
-//				break;
-//			case "name":
-//				break;
-			case "deposit":
-				bAccount.deposit(new Money(commandTokens[2], commandTokens[3]));
+			switch (command.getOpcode()) {
+			case BALANCE:
+				if (fCache != null) {
+					fCache.getBalanceCents(account, bAccount);
+				} else {
+					bAccount.getBalanceCents();
+				}
+				break;
+			case NAME:
+				if (fCache != null) {
+					fCache.getName(account, bAccount);
+				} else {
+					bAccount.getName();
+				}
 				break;
-			case "withdraw":
-				bAccount.withdraw(new Money(commandTokens[2], commandTokens[3]));
+			case DEPOSIT:
+			case WITHDRAW:
+				update(bAccount, command);
 				break;
 			default:
 				break;
 			}
+			if (fMetrics != null) {
+				fMetrics.recordCall(command.getOpcode(), start);
+			}
 
-		} catch (NumberFormatException e) {
-			// TODO Auto-generated catch block
-//			e.printStackTrace();
-		} catch (IllegalMoneyException e) {
-			// TODO Auto-generated catch block
-//			e.printStackTrace();
 		} catch (RemoteException e) {
-			// TODO Auto-generated catch block
-//			e.printStackTrace();
-		} catch (NegativeAmountException e) {
-			// TODO Auto-generated catch block
-//			e.printStackTrace();
-		} catch (ExcessiveAmountException e) {
-			// TODO Auto-generated catch block
-//			e.printStackTrace();
-		}
-		finally{
-			
-		
-		fs.get(commandTokens[1]).release();}
-		return;
-
-		// === YOUR CODE HERE ===
+			/*
+			 * The call failed even after being retried; whether a deposit
+			 * or withdrawal was applied is unknown.
+			 */
+		}
+	}
+
+	/*
+	 * Makes the RMI call for a deposit or withdrawal command, announcing it
+	 * to the cache first so that no balance fetched meanwhile is cached.
+	 */
+	private void update(BankAccount bAccount, Command command)
+			throws RemoteException {
+		int account = command.getAccount();
+		boolean deposit = command.getOpcode() == Opcode.DEPOSIT;
+		if (fCache != null) {
+			fCache.sending(account);
+		}
+		/* Unknown until the call returns. */
+		byte outcome = OperationBatch.EXPIRED;
+		try {
+			if (deposit) {
+				outcome = fCaller.depositCents(bAccount, command.getCents());
+			} else {
+				outcome = fCaller.withdrawCents(bAccount, command.getCents());
+			}
+		} finally {
+			if (fCache != null) {
+				report(account, outcome, deposit ? command.getCents()
+						: -command.getCents());
+			}
+		}
+	}
 
+	/*
+	 * Makes the RMI call for a transfer command.
+	 */
+	private void transfer(Bank bank, Command command) {
+		int from = command.getAccount();
+		int to = command.getTarget();
+		long cents = command.getCents();
+		long start = System.nanoTime();
+		if (fCache != null) {
+			fCache.sending(from);
+			fCache.sending(to);
+		}
+		byte outcome;
+		try {
+			outcome = fCaller.transferCents(bank,
+					BankCommandParser.formatAccountNumber(from),
+					BankCommandParser.formatAccountNumber(to), cents);
+			if (fMetrics != null) {
+				fMetrics.recordCall(Opcode.TRANSFER, start);
+			}
+		} catch (NoSuchAccountException e) {
+			/* One of the accounts is unknown to the Bank; neither changed. */
+			if (fCache != null) {
+				fCache.applied(from, 0);
+				fCache.applied(to, 0);
+			}
+			return;
+		} catch (RemoteException e) {
+			/*
+			 * The call failed even after being retried; whether the transfer
+			 * was applied is unknown.
+			 */
+			if (fCache != null) {
+				fCache.failed(from);
+				fCache.failed(to);
+			}
+			return;
+		}
+		if (fCache != null) {
+			report(from, outcome, -cents);
+			report(to, outcome, cents);
+		}
 	}
 }
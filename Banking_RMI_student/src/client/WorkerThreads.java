@@ -0,0 +1,81 @@
+package client;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Class that creates the threads used by the client to run Workers and
+ * remote calls, either as platform threads or as virtual threads. Virtual
+ * threads are only available from Java 21, so they are looked up
+ * reflectively; on an earlier JVM, requests for virtual threads fall back to
+ * platform threads and isVirtualSupported() returns false.
+ */
+public final class WorkerThreads {
+
+	/* Factory for virtual threads, or null if the JVM has none. */
+	private static final ThreadFactory VIRTUAL_FACTORY = lookupVirtualFactory();
+
+	private WorkerThreads() {
+	}
+
+	/**
+	 * Returns true if this JVM supports virtual threads.
+	 */
+	public static boolean isVirtualSupported() {
+		return VIRTUAL_FACTORY != null;
+	}
+
+	/**
+	 * Returns a new, unstarted thread that will run the specified task.
+	 *
+	 * @param virtual
+	 *            true for a virtual thread if the JVM supports them.
+	 */
+	public static Thread newThread(Runnable task, boolean virtual) {
+		if (virtual && VIRTUAL_FACTORY != null) {
+			return VIRTUAL_FACTORY.newThread(task);
+		}
+		return new Thread(task);
+	}
+
+	/**
+	 * Returns an executor that runs each task on its own thread. The threads
+	 * are virtual if the JVM supports them; otherwise a cached pool of daemon
+	 * platform threads is used, whose size grows with the number of tasks in
+	 * progress.
+	 */
+	public static Executor newPerTaskExecutor() {
+		if (VIRTUAL_FACTORY != null) {
+			return new Executor() {
+				public void execute(Runnable task) {
+					VIRTUAL_FACTORY.newThread(task).start();
+				}
+			};
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*
+	 * Returns Thread.ofVirtual().factory(), or null if the method does not
+	 * exist in this JVM.
+	 */
+	private static ThreadFactory lookupVirtualFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
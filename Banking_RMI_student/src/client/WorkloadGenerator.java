@@ -0,0 +1,739 @@
+package client;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Program that writes synthetic data files in the BankCommandParser grammar,
+ * at any scale. The accounts addressed are a contiguous range of account
+ * numbers whose popularity follows a Zipf distribution: the account of rank
+ * k is chosen with probability proportional to 1/k^skew, so a skew of zero
+ * addresses every account equally and larger skews concentrate the commands
+ * on fewer accounts. Ranks are scattered over the range, so the most popular
+ * accounts are not simply the lowest numbered ones.
+ *
+ * Amounts are spread evenly on a logarithmic scale between one cent and the
+ * maximum amount, so small amounts are more common than large ones. Set
+ * fractions of the amounts can instead be negative, or, for withdrawals and
+ * transfers, above the withdrawal limit, so that the rejections of invalid
+ * operations can be exercised. A set fraction of the commands can be
+ * preceded by a comment line.
+ *
+ * The file is generated in blocks of COMMANDS_PER_BLOCK commands on a
+ * ForkJoinPool and written in block order as the blocks complete, with at
+ * most two blocks per thread held in memory. Each block draws from a random
+ * generator seeded from the seed and the block's index alone, so the same
+ * seed produces the same file whatever the number of threads.
+ *
+ * With -catalog, an AccountCatalog file holding the accounts addressed, each
+ * with a zero balance and the withdrawal limit, is written as well, so that
+ * a server can be loaded with them.
+ *
+ * Usage: WorkloadGenerator [-accounts n] [-firstAccount number]
+ * [-mix name:balance:deposit:withdraw:transfer] [-skew s]
+ * [-maxAmount dollars] [-limit dollars] [-negative fraction]
+ * [-overLimit fraction] [-comments fraction] [-seed n] [-threads n]
+ * [-catalog catalog-file] commands output-file
+ */
+public class WorkloadGenerator {
+
+	/* Number of commands generated as one unit of work. */
+	public static final int COMMANDS_PER_BLOCK = 65536;
+
+	/* Default bounds of the generated workload. */
+	public static final int DEFAULT_ACCOUNTS = 1000;
+
+	public static final int DEFAULT_FIRST_ACCOUNT = 10000000;
+
+	public static final double DEFAULT_SKEW = 1.0;
+
+	public static final long DEFAULT_MAX_AMOUNT_CENTS = 1000 * 100;
+
+	public static final long DEFAULT_LIMIT_CENTS = 1500 * 100;
+
+	/* The commands generated, in the order of their weights in the mix. */
+	private static final Opcode[] OPCODES = { Opcode.NAME, Opcode.BALANCE,
+			Opcode.DEPOSIT, Opcode.WITHDRAW, Opcode.TRANSFER };
+
+	private static final byte[][] COMMAND_NAMES = { bytes("name, "),
+			bytes("balance, "), bytes("deposit, "), bytes("withdraw, "),
+			bytes("transfer, ") };
+
+	private static final byte[] COMMENT = bytes("! generated comment\n");
+
+	private final long fCommands;
+
+	private final int fAccounts;
+
+	private final long fSeed;
+
+	private int fFirstAccount = DEFAULT_FIRST_ACCOUNT;
+
+	/* Cumulative weights of the opcodes in OPCODES. */
+	private long[] fMix = { 1, 2, 3, 4, 4 };
+
+	private double fSkew = DEFAULT_SKEW;
+
+	private long fMaxAmountCents = DEFAULT_MAX_AMOUNT_CENTS;
+
+	private long fLimitCents = DEFAULT_LIMIT_CENTS;
+
+	private double fNegativeRate;
+
+	private double fOverLimitRate;
+
+	private double fCommentRate;
+
+	/* Number of commands of each opcode written by the last write(). */
+	private long[] fCounts = new long[OPCODES.length];
+
+	/**
+	 * Creates a WorkloadGenerator with an equal mix of name, balance, deposit
+	 * and withdraw commands, no transfers, a Zipf skew of DEFAULT_SKEW and no
+	 * invalid amounts or comments.
+	 *
+	 * @param commands
+	 *            the number of commands to generate.
+	 * @param accounts
+	 *            the number of accounts addressed.
+	 * @param seed
+	 *            the seed from which the workload is generated.
+	 */
+	public WorkloadGenerator(long commands, int accounts, long seed) {
+		if (commands < 0) {
+			throw new IllegalArgumentException(
+					"Number of commands must not be negative: " + commands);
+		}
+		if (accounts < 1) {
+			throw new IllegalArgumentException(
+					"Number of accounts must be positive: " + accounts);
+		}
+		fCommands = commands;
+		fAccounts = accounts;
+		fSeed = seed;
+		checkAccountRange();
+	}
+
+	/**
+	 * Sets the number of the first account addressed. The accounts are
+	 * numbered consecutively from it.
+	 */
+	public void setFirstAccount(int number) {
+		fFirstAccount = number;
+		checkAccountRange();
+	}
+
+	/**
+	 * Sets the relative frequencies of name, balance, deposit, withdraw and
+	 * transfer commands, in that order.
+	 */
+	public void setMix(long[] weights) {
+		if (weights.length != OPCODES.length) {
+			throw new IllegalArgumentException("Mix must have "
+					+ OPCODES.length + " weights");
+		}
+		long[] mix = new long[weights.length];
+		long total = 0;
+		for (int i = 0; i < weights.length; i++) {
+			if (weights[i] < 0) {
+				throw new IllegalArgumentException(
+						"Weights must not be negative: " + weights[i]);
+			}
+			total += weights[i];
+			mix[i] = total;
+		}
+		if (total == 0) {
+			throw new IllegalArgumentException(
+					"At least one weight must be positive");
+		}
+		if (weights[4] > 0 && fAccounts < 2) {
+			throw new IllegalArgumentException(
+					"Transfers need at least two accounts");
+		}
+		fMix = mix;
+	}
+
+	/**
+	 * Sets the exponent of the Zipf distribution of account popularity. Zero
+	 * addresses every account equally.
+	 */
+	public void setSkew(double skew) {
+		if (skew < 0 || Double.isNaN(skew)) {
+			throw new IllegalArgumentException(
+					"Skew must not be negative: " + skew);
+		}
+		fSkew = skew;
+	}
+
+	/**
+	 * Sets the largest amount, in cents, of a valid deposit, withdrawal or
+	 * transfer.
+	 */
+	public void setMaxAmountCents(long cents) {
+		if (cents < 1) {
+			throw new IllegalArgumentException(
+					"Maximum amount must be positive: " + cents);
+		}
+		fMaxAmountCents = cents;
+	}
+
+	/**
+	 * Sets the withdrawal limit, in cents, above which over-limit amounts are
+	 * generated. Valid withdrawals and transfers do not exceed it.
+	 */
+	public void setLimitCents(long cents) {
+		if (cents < 1 || cents > Long.MAX_VALUE / 10) {
+			throw new IllegalArgumentException("Invalid limit: " + cents);
+		}
+		fLimitCents = cents;
+	}
+
+	/**
+	 * Sets the fraction of amounts that are negative.
+	 */
+	public void setNegativeRate(double fraction) {
+		fNegativeRate = checkFraction(fraction);
+	}
+
+	/**
+	 * Sets the fraction of withdrawal and transfer amounts that exceed the
+	 * withdrawal limit.
+	 */
+	public void setOverLimitRate(double fraction) {
+		fOverLimitRate = checkFraction(fraction);
+	}
+
+	/**
+	 * Sets the fraction of commands that are preceded by a comment line.
+	 */
+	public void setCommentRate(double fraction) {
+		fCommentRate = checkFraction(fraction);
+	}
+
+	/**
+	 * Returns the number of commands of the specified kind written by the
+	 * last call to write().
+	 */
+	public long getCount(Opcode opcode) {
+		for (int i = 0; i < OPCODES.length; i++) {
+			if (OPCODES[i] == opcode) {
+				return fCounts[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Writes the workload to a file, generating it on the specified number of
+	 * threads.
+	 *
+	 * @return the number of bytes written.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting for a
+	 *             block.
+	 */
+	public long write(String filename, int threads) throws IOException,
+			InterruptedException {
+		FileOutputStream out = new FileOutputStream(filename);
+		try {
+			return write(out, threads);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes an AccountCatalog file holding every account addressed by the
+	 * workload, named after its number, with a zero balance and the
+	 * withdrawal limit as its maximum withdrawal.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void writeCatalog(String filename) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(filename), StandardCharsets.US_ASCII),
+				1 << 16);
+		try {
+			String limit = fLimitCents / 100 + "."
+					+ String.format("%02d", fLimitCents % 100);
+			out.write("! Catalog of the " + fAccounts
+					+ " accounts generated by WorkloadGenerator\n");
+			for (int i = 0; i < fAccounts; i++) {
+				String number = Long.toString((long) fFirstAccount + i);
+				out.write(number + "\tAccount " + number + "\t0.00\t" + limit
+						+ "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the workload to a stream, generating it on the specified number
+	 * of threads. The stream is not closed.
+	 *
+	 * @return the number of bytes written.
+	 */
+	public long write(OutputStream out, int threads) throws IOException,
+			InterruptedException {
+		ZipfDistribution accounts = new ZipfDistribution(fAccounts, fSkew,
+				fSeed);
+		long blocks = (fCommands + COMMANDS_PER_BLOCK - 1) / COMMANDS_PER_BLOCK;
+		long[] counts = new long[OPCODES.length];
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try {
+			byte[] header = bytes("! " + fCommands + " commands on "
+					+ fAccounts + " accounts generated by WorkloadGenerator"
+					+ " with seed " + fSeed + "\n");
+			out.write(header);
+			long written = header.length;
+
+			List<ForkJoinTask<Block>> tasks = new ArrayList<ForkJoinTask<Block>>();
+			long submitted = 0;
+			for (long i = 0; i < blocks; i++) {
+				/* Keep up to two blocks per thread in progress. */
+				while (submitted < blocks && tasks.size() <= 2 * threads) {
+					long first = submitted * COMMANDS_PER_BLOCK;
+					int size = (int) Math.min(COMMANDS_PER_BLOCK, fCommands
+							- first);
+					tasks.add(pool.submit(new BlockTask(submitted, size,
+							accounts)));
+					submitted++;
+				}
+				Block block = join(tasks.remove(0));
+				out.write(block.fBytes, 0, block.fLength);
+				written += block.fLength;
+				for (int j = 0; j < counts.length; j++) {
+					counts[j] += block.fCounts[j];
+				}
+			}
+			fCounts = counts;
+			return written;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/*
+	 * Waits for a block to be generated, rethrowing any exception raised
+	 * while generating it.
+	 */
+	private static Block join(ForkJoinTask<Block> task)
+			throws InterruptedException {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/*
+	 * The text of a block of commands and the number of commands of each
+	 * opcode it holds.
+	 */
+	private static class Block {
+		byte[] fBytes;
+
+		int fLength;
+
+		long[] fCounts = new long[OPCODES.length];
+
+		Block(int capacity) {
+			fBytes = new byte[capacity];
+		}
+
+		void append(byte[] bytes) {
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, fBytes, fLength, bytes.length);
+			fLength += bytes.length;
+		}
+
+		void append(char ch) {
+			ensureCapacity(1);
+			fBytes[fLength++] = (byte) ch;
+		}
+
+		/* Appends a non-negative value in decimal. */
+		void append(long value) {
+			ensureCapacity(20);
+			int digits = 1;
+			for (long rest = value / 10; rest > 0; rest /= 10) {
+				digits++;
+			}
+			for (int i = fLength + digits - 1; i >= fLength; i--) {
+				fBytes[i] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			fLength += digits;
+		}
+
+		void appendAccountNumber(int number) {
+			ensureCapacity(BankCommandParser.ACCOUNT_NUMBER_DIGITS);
+			for (int i = BankCommandParser.ACCOUNT_NUMBER_DIGITS - 1; i >= 0; i--) {
+				fBytes[fLength + i] = (byte) ('0' + number % 10);
+				number /= 10;
+			}
+			fLength += BankCommandParser.ACCOUNT_NUMBER_DIGITS;
+		}
+
+		private void ensureCapacity(int extra) {
+			if (fLength + extra > fBytes.length) {
+				byte[] bytes = new byte[Math.max(fBytes.length * 2, fLength
+						+ extra)];
+				System.arraycopy(fBytes, 0, bytes, 0, fLength);
+				fBytes = bytes;
+			}
+		}
+	}
+
+	/*
+	 * Generates one block of commands.
+	 */
+	private class BlockTask extends RecursiveTask<Block> {
+		private final long fIndex;
+
+		private final int fSize;
+
+		private final ZipfDistribution fAccountDistribution;
+
+		BlockTask(long index, int size, ZipfDistribution accounts) {
+			fIndex = index;
+			fSize = size;
+			fAccountDistribution = accounts;
+		}
+
+		protected Block compute() {
+			SplittableRandom random = new SplittableRandom(fSeed
+					^ (fIndex * 0x9E3779B97F4A7C15L));
+			Block block = new Block(fSize * 36);
+			long total = fMix[fMix.length - 1];
+
+			for (int i = 0; i < fSize; i++) {
+				if (fCommentRate > 0 && random.nextDouble() < fCommentRate) {
+					block.append(COMMENT);
+				}
+
+				long weight = random.nextLong(total);
+				int opcode = 0;
+				while (weight >= fMix[opcode]) {
+					opcode++;
+				}
+				block.fCounts[opcode]++;
+
+				int account = fAccountDistribution.sample(random);
+				block.append(COMMAND_NAMES[opcode]);
+				block.appendAccountNumber(fFirstAccount + account);
+
+				Opcode op = OPCODES[opcode];
+				if (op == Opcode.TRANSFER) {
+					int target = fAccountDistribution.sample(random);
+					while (target == account) {
+						target = fAccountDistribution.sample(random);
+					}
+					block.append(',');
+					block.append(' ');
+					block.appendAccountNumber(fFirstAccount + target);
+				}
+				if (op != Opcode.NAME && op != Opcode.BALANCE) {
+					appendAmount(block, random, op != Opcode.DEPOSIT);
+				}
+				block.append(';');
+				block.append('\n');
+			}
+			return block;
+		}
+
+		/*
+		 * Appends the delimited dollars and cents of an amount. A negative
+		 * amount always has at least one dollar, since the grammar has no
+		 * way to write a negative amount of less than one dollar.
+		 */
+		private void appendAmount(Block block, SplittableRandom random,
+				boolean limited) {
+			long cents;
+			boolean negative = false;
+			if (limited && fOverLimitRate > 0
+					&& random.nextDouble() < fOverLimitRate) {
+				cents = fLimitCents + 1 + random.nextLong(9 * fLimitCents);
+			} else {
+				long max = limited ? Math.min(fMaxAmountCents, fLimitCents)
+						: fMaxAmountCents;
+				cents = Math.min(max, (long) Math.exp(random.nextDouble()
+						* Math.log(max + 1)));
+				cents = Math.max(cents, 1);
+				if (fNegativeRate > 0 && random.nextDouble() < fNegativeRate) {
+					negative = true;
+					cents = Math.max(cents, 100);
+				}
+			}
+
+			block.append(',');
+			block.append(' ');
+			if (negative) {
+				block.append('-');
+			}
+			block.append(cents / 100);
+			block.append(',');
+			block.append(' ');
+			block.append(cents % 100);
+		}
+	}
+
+	/*
+	 * Zipf distribution over the indexes 0 to n - 1, sampled in constant
+	 * time by rejection-inversion (Hormann and Derflinger, "Rejection-
+	 * inversion to generate variates from monotone discrete distributions",
+	 * 1996). The rank drawn is mapped to an index by multiplying it by a
+	 * stride coprime with n and adding an offset chosen by the seed, which
+	 * scatters the popular indexes over the range while keeping the mapping
+	 * a permutation.
+	 */
+	private static class ZipfDistribution {
+		private final int fN;
+
+		private final double fExponent;
+
+		private final double fHIntegralX1;
+
+		private final double fHIntegralN;
+
+		private final double fS;
+
+		private final long fStride;
+
+		private final long fOffset;
+
+		ZipfDistribution(int n, double exponent, long seed) {
+			fN = n;
+			fExponent = exponent;
+			fHIntegralX1 = hIntegral(1.5) - 1.0;
+			fHIntegralN = hIntegral(n + 0.5);
+			fS = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2));
+
+			long stride = (long) (n * 0.6180339887498949) | 1;
+			while (gcd(stride, n) != 1) {
+				stride += 2;
+			}
+			fStride = stride % n;
+			fOffset = new SplittableRandom(seed).nextInt(n);
+		}
+
+		int sample(SplittableRandom random) {
+			long rank;
+			if (fExponent == 0) {
+				rank = random.nextInt(fN);
+			} else {
+				rank = sampleRank(random) - 1;
+			}
+			return (int) ((rank * fStride + fOffset) % fN);
+		}
+
+		private int sampleRank(SplittableRandom random) {
+			while (true) {
+				double u = fHIntegralN + random.nextDouble()
+						* (fHIntegralX1 - fHIntegralN);
+				double x = hIntegralInverse(u);
+				int k = (int) (x + 0.5);
+				if (k < 1) {
+					k = 1;
+				} else if (k > fN) {
+					k = fN;
+				}
+				if (k - x <= fS || u >= hIntegral(k + 0.5) - h(k)) {
+					return k;
+				}
+			}
+		}
+
+		/* The density, 1/x^exponent. */
+		private double h(double x) {
+			return Math.exp(-fExponent * Math.log(x));
+		}
+
+		/* An integral of h, (x^(1-exponent) - 1)/(1 - exponent). */
+		private double hIntegral(double x) {
+			double logX = Math.log(x);
+			return expm1OverX((1.0 - fExponent) * logX) * logX;
+		}
+
+		private double hIntegralInverse(double x) {
+			double t = x * (1.0 - fExponent);
+			if (t < -1.0) {
+				t = -1.0;
+			}
+			return Math.exp(log1pOverX(t) * x);
+		}
+
+		/* log(1 + x)/x, accurate near zero. */
+		private static double log1pOverX(double x) {
+			if (Math.abs(x) > 1e-8) {
+				return Math.log1p(x) / x;
+			}
+			return 1.0 - x * (0.5 - x * (1.0 / 3.0 - 0.25 * x));
+		}
+
+		/* (exp(x) - 1)/x, accurate near zero. */
+		private static double expm1OverX(double x) {
+			if (Math.abs(x) > 1e-8) {
+				return Math.expm1(x) / x;
+			}
+			return 1.0 + x * 0.5 * (1.0 + x / 3.0 * (1.0 + 0.25 * x));
+		}
+
+		private static long gcd(long a, long b) {
+			while (b != 0) {
+				long t = a % b;
+				a = b;
+				b = t;
+			}
+			return a;
+		}
+	}
+
+	private void checkAccountRange() {
+		if (fFirstAccount < 0
+				|| (long) fFirstAccount + fAccounts - 1 > 99999999L) {
+			throw new IllegalArgumentException("Accounts " + fFirstAccount
+					+ " to " + ((long) fFirstAccount + fAccounts - 1)
+					+ " do not have " + BankCommandParser.ACCOUNT_NUMBER_DIGITS
+					+ " digit numbers");
+		}
+	}
+
+	private static double checkFraction(double fraction) {
+		if (!(fraction >= 0 && fraction <= 1)) {
+			throw new IllegalArgumentException(
+					"Fraction must be between 0 and 1: " + fraction);
+		}
+		return fraction;
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	public static void main(String[] args) {
+		int accounts = DEFAULT_ACCOUNTS;
+		int firstAccount = DEFAULT_FIRST_ACCOUNT;
+		long[] mix = null;
+		double skew = DEFAULT_SKEW;
+		long maxAmount = DEFAULT_MAX_AMOUNT_CENTS;
+		long limit = DEFAULT_LIMIT_CENTS;
+		double negative = 0;
+		double overLimit = 0;
+		double comments = 0;
+		long seed = 42;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String catalog = null;
+
+		int arg = 0;
+		try {
+			while (arg + 1 < args.length && args[arg].startsWith("-")) {
+				String option = args[arg];
+				String value = args[arg + 1];
+				if ("-accounts".equals(option)) {
+					accounts = Integer.parseInt(value);
+				} else if ("-firstAccount".equals(option)) {
+					firstAccount = Integer.parseInt(value);
+				} else if ("-mix".equals(option)) {
+					String[] weights = value.split(":");
+					mix = new long[weights.length];
+					for (int i = 0; i < weights.length; i++) {
+						mix[i] = Long.parseLong(weights[i]);
+					}
+				} else if ("-skew".equals(option)) {
+					skew = Double.parseDouble(value);
+				} else if ("-maxAmount".equals(option)) {
+					maxAmount = Math.round(Double.parseDouble(value) * 100);
+				} else if ("-limit".equals(option)) {
+					limit = Math.round(Double.parseDouble(value) * 100);
+				} else if ("-negative".equals(option)) {
+					negative = Double.parseDouble(value);
+				} else if ("-overLimit".equals(option)) {
+					overLimit = Double.parseDouble(value);
+				} else if ("-comments".equals(option)) {
+					comments = Double.parseDouble(value);
+				} else if ("-seed".equals(option)) {
+					seed = Long.parseLong(value);
+				} else if ("-threads".equals(option)) {
+					threads = Integer.parseInt(value);
+				} else if ("-catalog".equals(option)) {
+					catalog = value;
+				} else {
+					break;
+				}
+				arg += 2;
+			}
+		} catch (NumberFormatException e) {
+			arg = args.length;
+		}
+		if (args.length - arg != 2) {
+			System.err
+					.println("Usage: WorkloadGenerator [-accounts n] [-firstAccount number] [-mix name:balance:deposit:withdraw:transfer] [-skew s] [-maxAmount dollars] [-limit dollars] [-negative fraction] [-overLimit fraction] [-comments fraction] [-seed n] [-threads n] [-catalog catalog-filename] <commands> <output-filename>");
+			System.exit(1);
+		}
+		String output = args[arg + 1];
+
+		try {
+			WorkloadGenerator generator = new WorkloadGenerator(Long
+					.parseLong(args[arg]), accounts, seed);
+			generator.setFirstAccount(firstAccount);
+			if (mix != null) {
+				generator.setMix(mix);
+			}
+			generator.setSkew(skew);
+			generator.setMaxAmountCents(maxAmount);
+			generator.setLimitCents(limit);
+			generator.setNegativeRate(negative);
+			generator.setOverLimitRate(overLimit);
+			generator.setCommentRate(comments);
+
+			long start = System.currentTimeMillis();
+			long bytes = generator.write(output, threads);
+			System.out.println("Wrote " + generator.fCommands + " commands ("
+					+ generator.getCount(Opcode.NAME) + " name, "
+					+ generator.getCount(Opcode.BALANCE) + " balance, "
+					+ generator.getCount(Opcode.DEPOSIT) + " deposit, "
+					+ generator.getCount(Opcode.WITHDRAW) + " withdraw, "
+					+ generator.getCount(Opcode.TRANSFER) + " transfer) to "
+					+ output + " (" + bytes + " bytes) in "
+					+ (System.currentTimeMillis() - start) / 1000.0 + "sec.");
+			if (catalog != null) {
+				generator.writeCatalog(catalog);
+				System.out.println("Wrote a catalog of " + accounts
+						+ " accounts to " + catalog + ".");
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid number of commands: " + args[arg]);
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (Exception e) {
+			System.err.println("Unable to write " + output + ": " + e);
+			System.exit(1);
+		}
+	}
+}
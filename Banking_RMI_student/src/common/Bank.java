@@ -0,0 +1,175 @@
+package common;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Interface representing a remotely accessible Bank. A Bank holds any number
+ * of accounts and provides the BankAccount operations addressed by account
+ * number, so that a single remote object can serve every account.
+ */
+public interface Bank extends Remote {
+
+	/** Name under which a Bank is registered with the lookup service. */
+	public static final String NAME = "Bank";
+
+	/**
+	 * Returns the balance of the specified account.
+	 * @throws NoSuchAccountException if the Bank has no such account.
+	 */
+	public Money getBalance(String number) throws RemoteException,
+			NoSuchAccountException;
+
+	/**
+	 * Returns the owner's name for the specified account.
+	 * @throws NoSuchAccountException if the Bank has no such account.
+	 */
+	public String getName(String number) throws RemoteException,
+			NoSuchAccountException;
+
+	/**
+	 * Attempts to deposit a sum of Money into the specified account.
+	 * @param number the number of the account.
+	 * @param amount the amount of money to deposit.
+	 * @throws NoSuchAccountException if the Bank has no such account.
+	 * @throws NegativeAmountException if the amount of money to deposit is
+	 * negative.
+	 */
+	public void deposit(String number, Money amount) throws RemoteException,
+			NoSuchAccountException, NegativeAmountException;
+
+	/**
+	 * Attempts to withdraw a sum of money from the specified account.
+	 * @param number the number of the account.
+	 * @param amount the amount of money to withdraw.
+	 * @throws NoSuchAccountException if the Bank has no such account.
+	 * @throws NegativeAmountException if the amount of money to withdraw is
+	 * negative.
+	 * @throws ExcessiveAmountException if the amount of money to withdraw 
+	 * exceeds the account's withdrawal limit.
+	 */
+	public void withdraw(String number, Money amount) throws RemoteException,
+			NoSuchAccountException, NegativeAmountException,
+			ExcessiveAmountException;
+
+	/**
+	 * Returns the balance of the specified account as a number of cents.
+	 * @throws NoSuchAccountException if the Bank has no such account.
+	 */
+	public long getBalanceCents(String number) throws RemoteException,
+			NoSuchAccountException;
+
+	/**
+	 * Equivalent to deposit(String, Money) for an amount given as a number of
+	 * cents.
+	 */
+	public void depositCents(String number, long cents)
+			throws RemoteException, NoSuchAccountException,
+			NegativeAmountException;
+
+	/**
+	 * Equivalent to withdraw(String, Money) for an amount given as a number of
+	 * cents.
+	 */
+	public void withdrawCents(String number, long cents)
+			throws RemoteException, NoSuchAccountException,
+			NegativeAmountException, ExcessiveAmountException;
+
+	/**
+	 * Applies a sequence of deposits and withdrawals to the specified account
+	 * in a single remote call.
+	 * @throws NoSuchAccountException if the Bank has no such account.
+	 * @see BankAccount#applyBatch(OperationBatch)
+	 */
+	public byte[] applyBatch(String number, OperationBatch batch)
+			throws RemoteException, NoSuchAccountException;
+
+	/**
+	 * Deposits a number of cents into the specified account at most once for
+	 * a given operation id. The id is the client's id and a sequence number
+	 * that the client never reuses for another operation; if the Bank has
+	 * already applied an operation with the same id, it returns that
+	 * operation's outcome without applying it again, so the call can safely
+	 * be retried after a RemoteException.
+	 * @param clientId a number identifying the client.
+	 * @param sequence the client's sequence number for the operation.
+	 * @return the outcome code of the operation (OperationBatch.APPLIED,
+	 * NEGATIVE or EXPIRED).
+	 * @throws NoSuchAccountException if the Bank has no such account.
+	 */
+	public byte depositCentsOnce(String number, long clientId, long sequence,
+			long cents) throws RemoteException, NoSuchAccountException;
+
+	/**
+	 * Withdraws a number of cents from the specified account at most once
+	 * for a given operation id.
+	 * @return the outcome code of the operation (OperationBatch.APPLIED,
+	 * NEGATIVE, EXCESSIVE or EXPIRED).
+	 * @throws NoSuchAccountException if the Bank has no such account.
+	 * @see #depositCentsOnce(String, long, long, long)
+	 */
+	public byte withdrawCentsOnce(String number, long clientId, long sequence,
+			long cents) throws RemoteException, NoSuchAccountException;
+
+	/**
+	 * Applies a batch to the specified account at most once for a given
+	 * operation id, which identifies the batch as a whole.
+	 * @return one outcome code per operation in the batch.
+	 * @throws NoSuchAccountException if the Bank has no such account.
+	 * @see #depositCentsOnce(String, long, long, long)
+	 */
+	public byte[] applyBatchOnce(String number, long clientId, long sequence,
+			OperationBatch batch) throws RemoteException,
+			NoSuchAccountException;
+
+	/**
+	 * Attempts to transfer a sum of Money from one account to another. The
+	 * withdrawal from the source account and the deposit into the target
+	 * account are applied atomically: either both or neither take effect.
+	 * @param from the number of the account to withdraw from.
+	 * @param to the number of the account to deposit into.
+	 * @param amount the amount of money to transfer.
+	 * @throws NoSuchAccountException if the Bank has no such account.
+	 * @throws NegativeAmountException if the amount of money to transfer is
+	 * negative.
+	 * @throws ExcessiveAmountException if the amount of money to transfer
+	 * exceeds the source account's withdrawal limit.
+	 */
+	public void transfer(String from, String to, Money amount)
+			throws RemoteException, NoSuchAccountException,
+			NegativeAmountException, ExcessiveAmountException;
+
+	/**
+	 * Equivalent to transfer(String, String, Money) for an amount given as a
+	 * number of cents.
+	 */
+	public void transferCents(String from, String to, long cents)
+			throws RemoteException, NoSuchAccountException,
+			NegativeAmountException, ExcessiveAmountException;
+
+	/**
+	 * Transfers a number of cents from one account to another at most once
+	 * for a given operation id.
+	 * @return the outcome code of the operation (OperationBatch.APPLIED,
+	 * NEGATIVE, EXCESSIVE or EXPIRED).
+	 * @throws NoSuchAccountException if the Bank has no such account.
+	 * @see #depositCentsOnce(String, long, long, long)
+	 */
+	public byte transferCentsOnce(String from, String to, long clientId,
+			long sequence, long cents) throws RemoteException,
+			NoSuchAccountException;
+
+	/**
+	 * Returns a remote BankAccount object for the specified account. This
+	 * is a compatibility path for clients written against BankAccount; the
+	 * BankAccount and this Bank operate on the same account state.
+	 * @throws NoSuchAccountException if the Bank has no such account.
+	 */
+	public BankAccount getAccount(String number) throws RemoteException,
+			NoSuchAccountException;
+
+	/**
+	 * Returns the number of accounts held by the Bank.
+	 */
+	public int getAccountCount() throws RemoteException;
+}
@@ -8,6 +8,13 @@ import java.rmi.RemoteException;
  */
 public interface BankAccount extends Remote {
 
+	/**
+	 * Prefix of the names under which BankAccounts are registered with the
+	 * lookup service; the name of each is the prefix followed by its account
+	 * number, so a client can learn the numbers from a list of the names.
+	 */
+	public static final String NAME_PREFIX = "BankAccount.";
+
 	/**
 	 * Returns the balance of a BankAccount instance.
 	 */
@@ -43,5 +50,67 @@ public interface BankAccount extends Remote {
 	 */
 	public void withdraw(Money amount) throws RemoteException,
 			NegativeAmountException, ExcessiveAmountException;
-	
+
+	/**
+	 * Returns the balance of a BankAccount instance as a number of cents.
+	 */
+	public long getBalanceCents() throws RemoteException;
+
+	/**
+	 * Equivalent to deposit(Money) for an amount given as a number of cents.
+	 * @throws NegativeAmountException if the amount is negative.
+	 */
+	public void depositCents(long cents) throws RemoteException,
+			NegativeAmountException;
+
+	/**
+	 * Equivalent to withdraw(Money) for an amount given as a number of cents.
+	 * @throws NegativeAmountException if the amount is negative.
+	 * @throws ExcessiveAmountException if the amount exceeds some threshold
+	 * associated with the account.
+	 */
+	public void withdrawCents(long cents) throws RemoteException,
+			NegativeAmountException, ExcessiveAmountException;
+
+	/**
+	 * Applies a sequence of deposits and withdrawals to a BankAccount object
+	 * in a single remote call. Operations are applied in batch order and each
+	 * is validated exactly as the equivalent deposit or withdraw call would
+	 * be; an operation that is rejected leaves the balance unchanged and does
+	 * not prevent later operations from being applied.
+	 * @param batch the operations to apply.
+	 * @return an array holding one outcome code (OperationBatch.APPLIED,
+	 * NEGATIVE or EXCESSIVE) for each operation in the batch.
+	 */
+	public byte[] applyBatch(OperationBatch batch) throws RemoteException;
+
+	/**
+	 * Deposits a number of cents at most once for a given operation id, made
+	 * up of the client's id and a sequence number that the client never
+	 * reuses. A repeated call returns the original outcome without applying
+	 * the deposit again, so the call can safely be retried after a
+	 * RemoteException.
+	 * @return the outcome code of the operation (OperationBatch.APPLIED,
+	 * NEGATIVE or EXPIRED).
+	 */
+	public byte depositCentsOnce(long clientId, long sequence, long cents)
+			throws RemoteException;
+
+	/**
+	 * Withdraws a number of cents at most once for a given operation id.
+	 * @return the outcome code of the operation (OperationBatch.APPLIED,
+	 * NEGATIVE, EXCESSIVE or EXPIRED).
+	 * @see #depositCentsOnce(long, long, long)
+	 */
+	public byte withdrawCentsOnce(long clientId, long sequence, long cents)
+			throws RemoteException;
+
+	/**
+	 * Applies a batch at most once for a given operation id, which identifies
+	 * the batch as a whole.
+	 * @return one outcome code per operation in the batch.
+	 * @see #depositCentsOnce(long, long, long)
+	 */
+	public byte[] applyBatchOnce(long clientId, long sequence,
+			OperationBatch batch) throws RemoteException;
 }
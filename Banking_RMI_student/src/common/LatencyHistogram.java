@@ -0,0 +1,231 @@
+package common;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Class to represent a histogram of latencies, in nanoseconds, held in
+ * logarithmic buckets. Values below SUB_BUCKETS each have a bucket of their
+ * own; above that, every power of two is divided into SUB_BUCKETS equal
+ * buckets, so a value is known to within 1/SUB_BUCKETS (12.5%) of itself
+ * whatever its magnitude. Recording a value increments one array element and
+ * allocates nothing.
+ *
+ * A LatencyHistogram is intended to be written by a single thread and read by
+ * any number of others: record() publishes each count with an opaque write,
+ * and the reading methods use opaque reads, so a reader sees every count
+ * whole, though not necessarily counts recorded just before it read. A
+ * histogram that is written by more than one thread must be written with
+ * recordAtomic() instead, which costs an atomic add per count.
+ */
+public class LatencyHistogram {
+
+	/* Buckets per power of two. */
+	public static final int SUB_BUCKETS = 8;
+
+	private static final int SUB_BUCKET_BITS = 3;
+
+	/* Enough buckets for every non-negative long. */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private static final VarHandle LONGS = MethodHandles
+			.arrayElementVarHandle(long[].class);
+
+	private final long[] fCounts;
+
+	/* The total count, the sum of the values and the maximum value. */
+	private final long[] fTotals;
+
+	private static final int COUNT = 0;
+
+	private static final int SUM = 1;
+
+	private static final int MAX = 2;
+
+	/**
+	 * Creates an empty LatencyHistogram.
+	 */
+	public LatencyHistogram() {
+		fCounts = new long[BUCKETS];
+		fTotals = new long[3];
+	}
+
+	/**
+	 * Records a latency. Negative values are recorded as zero. Must only be
+	 * called by the histogram's writer.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		int bucket = bucketOf(nanos);
+		LONGS.setOpaque(fCounts, bucket,
+				(long) LONGS.getOpaque(fCounts, bucket) + 1);
+		LONGS.setOpaque(fTotals, COUNT,
+				(long) LONGS.getOpaque(fTotals, COUNT) + 1);
+		LONGS.setOpaque(fTotals, SUM,
+				(long) LONGS.getOpaque(fTotals, SUM) + nanos);
+		if (nanos > (long) LONGS.getOpaque(fTotals, MAX)) {
+			LONGS.setOpaque(fTotals, MAX, nanos);
+		}
+	}
+
+	/**
+	 * Records a latency. May be called by any number of threads at once.
+	 */
+	public void recordAtomic(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		LONGS.getAndAdd(fCounts, bucketOf(nanos), 1L);
+		LONGS.getAndAdd(fTotals, COUNT, 1L);
+		LONGS.getAndAdd(fTotals, SUM, nanos);
+		long max = (long) LONGS.getOpaque(fTotals, MAX);
+		while (nanos > max
+				&& !LONGS.weakCompareAndSet(fTotals, MAX, max, nanos)) {
+			max = (long) LONGS.getOpaque(fTotals, MAX);
+		}
+	}
+
+	/**
+	 * Adds the counts of another histogram, which may be being written
+	 * concurrently, to this one. Must only be called by this histogram's
+	 * writer.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			fCounts[i] += (long) LONGS.getOpaque(other.fCounts, i);
+		}
+		fTotals[COUNT] += (long) LONGS.getOpaque(other.fTotals, COUNT);
+		fTotals[SUM] += (long) LONGS.getOpaque(other.fTotals, SUM);
+		fTotals[MAX] = Math.max(fTotals[MAX],
+				(long) LONGS.getOpaque(other.fTotals, MAX));
+	}
+
+	/**
+	 * Subtracts the counts of an earlier copy of this histogram, leaving the
+	 * values recorded since the copy was made. The maximum is then known only
+	 * to within its bucket, and is reduced to the highest value of the
+	 * highest bucket still holding a value. Must only be called by this
+	 * histogram's writer.
+	 */
+	public void subtract(LatencyHistogram earlier) {
+		int highest = -1;
+		for (int i = 0; i < BUCKETS; i++) {
+			fCounts[i] -= earlier.fCounts[i];
+			if (fCounts[i] > 0) {
+				highest = i;
+			}
+		}
+		fTotals[COUNT] -= earlier.fTotals[COUNT];
+		fTotals[SUM] -= earlier.fTotals[SUM];
+		fTotals[MAX] = highest < 0 ? 0 : Math.min(fTotals[MAX],
+				highestValueOf(highest));
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 */
+	public long getCount() {
+		return (long) LONGS.getOpaque(fTotals, COUNT);
+	}
+
+	/**
+	 * Returns the largest value recorded, or zero if there are none.
+	 */
+	public long getMax() {
+		return (long) LONGS.getOpaque(fTotals, MAX);
+	}
+
+	/**
+	 * Returns the mean of the values recorded, or zero if there are none.
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) (long) LONGS.getOpaque(fTotals, SUM)
+				/ count;
+	}
+
+	/**
+	 * Returns the value below which the specified percentage of the recorded
+	 * values fall, as the highest value of the bucket holding that
+	 * percentile, or zero if there are no values.
+	 *
+	 * @param percentile
+	 *            a percentage between 0 and 100.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += (long) LONGS.getOpaque(fCounts, i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(Math.min(Math.max(percentile, 0), 100)
+				/ 100 * total);
+		rank = Math.max(rank, 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += (long) LONGS.getOpaque(fCounts, i);
+			if (seen >= rank) {
+				return Math.min(highestValueOf(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Returns a summary of the histogram in microseconds.
+	 */
+	public String toString() {
+		StringBuffer description = new StringBuffer();
+
+		description.append("count=");
+		description.append(getCount());
+		description.append(" mean=");
+		description.append(micros(Math.round(getMean())));
+		description.append("us p50=");
+		description.append(micros(getValueAtPercentile(50)));
+		description.append("us p99=");
+		description.append(micros(getValueAtPercentile(99)));
+		description.append("us p99.9=");
+		description.append(micros(getValueAtPercentile(99.9)));
+		description.append("us max=");
+		description.append(micros(getMax()));
+		description.append("us");
+
+		return description.toString();
+	}
+
+	private static String micros(long nanos) {
+		return String.format("%.1f", nanos / 1000.0);
+	}
+
+	/*
+	 * Returns the bucket of a non-negative value. The top bit of the value
+	 * selects a group of SUB_BUCKETS buckets, and the next SUB_BUCKET_BITS
+	 * bits select the bucket within it.
+	 */
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS)
+				+ (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/*
+	 * Returns the highest value held by a bucket.
+	 */
+	private static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+		long lowest = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -1,15 +1,34 @@
 package common;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
 import java.io.Serializable;
 
 /**
  * Class to represent a currency based on dollars and cents. The value of a
  * Money object comprises a value for dollars and a value for cents.
+ *
+ * Money objects are immutable. The value is held as a long number of cents;
+ * arithmetic that would overflow that range throws an ArithmeticException
+ * rather than wrapping around. The static cents methods allow amounts to be
+ * parsed and checked without creating Money objects at all.
+ *
+ * Money is serialized through a private proxy: on the wire it is a format
+ * version byte followed by the cents value as a zig-zag variable length
+ * integer (see WireFormat), rather than the field metadata written by default
+ * serialization. The proxy is replaced by a Money object when read, so the
+ * value of a Money object is still fixed by its constructor.
  */
 public class Money implements Comparable<Money>, Serializable {
 
+	private static final long serialVersionUID = 1L;
+
 	/* Amount of money, represented as cents, in a Money instance. */
-	private int fCents;
+	private final long fCents;
 
 	/**
 	 * Creates a Money object whose value is zero. In other words, the Money
@@ -23,7 +42,7 @@ public class Money implements Comparable<Money>, Serializable {
 	 * Creates a Money object whose value is specified by the arguments: dollars
 	 * and cents. Using this constructor, a Money object with a negative value
 	 * can be created be specifying a negative amount for the dollars argument.
-	 * 
+	 *
 	 * @param dollars
 	 *            the value in dollars for the Money object.
 	 * @param cents
@@ -35,27 +54,70 @@ public class Money implements Comparable<Money>, Serializable {
 	 */
 	public Money(String dollars, String cents) throws IllegalMoneyException,
 			NumberFormatException {
-		this(Integer.parseInt(dollars), Integer.parseInt(cents));
+		this.fCents = parseCents(dollars, cents);
+	}
+
+	public Money(long dollars, int cents) throws IllegalMoneyException {
+		this.fCents = toCents(dollars, cents);
+	}
+
+	/**
+	 * A copy-constructor that creates a new copy of the Money object passed in
+	 * as the argument to this method.
+	 */
+	public Money(Money money) {
+		this.fCents = money.fCents;
+	}
+
+	private Money(long cents) {
+		this.fCents = cents;
+	}
+
+	/**
+	 * Returns a Money object whose value is the specified number of cents.
+	 * Negative values represent negative amounts of money.
+	 */
+	public static Money fromCents(long cents) {
+		return new Money(cents);
 	}
 
-	public Money(int dollars, int cents) throws IllegalMoneyException {
+	/**
+	 * Returns the number of cents represented by a dollars and cents pair,
+	 * following the same rules as the Money(long, int) constructor.
+	 *
+	 * @throws IllegalMoneyException
+	 *             if the value for cents is < 0 or > 99.
+	 * @throws ArithmeticException
+	 *             if the amount cannot be represented as a long number of
+	 *             cents.
+	 */
+	public static long toCents(long dollars, int cents)
+			throws IllegalMoneyException {
 		if (cents < 0 || cents > 99) {
 			throw new IllegalMoneyException();
 		}
 
+		long result = Math.multiplyExact(dollars, 100L);
 		if (dollars < 0) {
-			this.fCents = dollars * 100 - cents;
+			return Math.subtractExact(result, cents);
 		} else {
-			this.fCents = dollars * 100 + cents;
+			return Math.addExact(result, cents);
 		}
 	}
 
 	/**
-	 * A copy-constructor that creates a new copy of the Money object passed in
-	 * as the argument to this method.
+	 * Returns the number of cents represented by dollars and cents strings,
+	 * following the same rules as the Money(String, String) constructor. No
+	 * objects are allocated for valid input.
+	 *
+	 * @throws IllegalMoneyException
+	 *             if the value for cents evaluates < 0 or > 99.
+	 * @throws NumberFormatException
+	 *             if either argument evaluates to a non-integer.
 	 */
-	public Money(Money money) {
-		this.fCents = money.fCents;
+	public static long parseCents(String dollars, String cents)
+			throws IllegalMoneyException, NumberFormatException {
+		return toCents(Long.parseLong(dollars), Integer.parseInt(cents));
 	}
 
 	/**
@@ -63,13 +125,8 @@ public class Money implements Comparable<Money>, Serializable {
 	 * represents a negative amount of money, the value returned from this
 	 * method will be negative.
 	 */
-	public int getDollars() {
-		int result = fCents / 100;
-
-		if (result == -0) {
-			result = 0;
-		}
-		return result;
+	public long getDollars() {
+		return fCents / 100;
 	}
 
 	/**
@@ -78,7 +135,16 @@ public class Money implements Comparable<Money>, Serializable {
 	 * method will be negative.
 	 */
 	public int getCents() {
-		return fCents % 100;
+		return (int) (fCents % 100);
+	}
+
+	/**
+	 * Returns the value of this Money object expressed entirely in cents. If
+	 * the Money object represents a negative amount of money, the value
+	 * returned from this method will be negative.
+	 */
+	public long getTotalCents() {
+		return fCents;
 	}
 
 	/**
@@ -90,19 +156,25 @@ public class Money implements Comparable<Money>, Serializable {
 	}
 
 	/**
-	 * Adds the amount of money represented by the otherMoney argument to this
-	 * Money object.
+	 * Returns a new Money object whose value is the sum of this Money object
+	 * and the other argument.
+	 *
+	 * @throws ArithmeticException
+	 *             if the result overflows.
 	 */
-	public void add(Money other) {
-		this.fCents += other.fCents;
+	public Money add(Money other) {
+		return new Money(Math.addExact(this.fCents, other.fCents));
 	}
 
 	/**
-	 * Subtracts the amount of money represented by the otherMoney argument from
-	 * this Money object.
+	 * Returns a new Money object whose value is this Money object less the
+	 * other argument.
+	 *
+	 * @throws ArithmeticException
+	 *             if the result overflows.
 	 */
-	public void subtract(Money other) {
-		this.fCents -= other.fCents;
+	public Money subtract(Money other) {
+		return new Money(Math.subtractExact(this.fCents, other.fCents));
 	}
 
 	/**
@@ -118,7 +190,7 @@ public class Money implements Comparable<Money>, Serializable {
 			description.append('-');
 		}
 
-		description.append(Integer.toString(Math.abs(this.getDollars())));
+		description.append(Long.toString(Math.abs(this.getDollars())));
 		description.append('.');
 
 		/* Append leading zero to the cents part of the string if necessary. */
@@ -143,11 +215,34 @@ public class Money implements Comparable<Money>, Serializable {
 		boolean result = false;
 
 		if (object instanceof Money) {
-			result = this.fCents == ((Money) object).getCents();
+			result = this.fCents == ((Money) object).fCents;
 		}
 		return result;
 	}
 
+	/*
+	 * Serializes a Proxy in place of this Money object.
+	 */
+	private Object writeReplace() {
+		return new Proxy(fCents);
+	}
+
+	/*
+	 * Rejects a stream that holds a Money object itself, which writeReplace
+	 * never writes.
+	 */
+	private void readObject(ObjectInputStream in)
+			throws InvalidObjectException {
+		throw new InvalidObjectException("Money must be read through its proxy");
+	}
+
+	/**
+	 * Returns a hash code consistent with equals().
+	 */
+	public int hashCode() {
+		return Long.hashCode(fCents);
+	}
+
 	/**
 	 * Returns a separate copy of this Money object.
 	 */
@@ -159,12 +254,41 @@ public class Money implements Comparable<Money>, Serializable {
 	 * Implements the Comparable interface.
 	 */
 	public int compareTo(Money other) {
-		if (this.fCents < other.fCents) {
-			return -1;
-		} else if (this.fCents > other.fCents) {
-			return 1;
-		} else {
-			return 0;
+		return Long.compare(this.fCents, other.fCents);
+	}
+
+	/*
+	 * Serialized form of a Money object, written in its compact external
+	 * format and resolved to a Money object when read.
+	 */
+	private static class Proxy implements Externalizable {
+		private static final long serialVersionUID = 1L;
+
+		/* Version of the external format written by writeExternal. */
+		private static final int FORMAT_VERSION = 1;
+
+		private long fCents;
+
+		/* For deserialization. */
+		public Proxy() {
+		}
+
+		Proxy(long cents) {
+			fCents = cents;
+		}
+
+		public void writeExternal(ObjectOutput out) throws IOException {
+			out.writeByte(FORMAT_VERSION);
+			WireFormat.writeVarLong(out, fCents);
+		}
+
+		public void readExternal(ObjectInput in) throws IOException {
+			WireFormat.readVersion(in, FORMAT_VERSION);
+			fCents = WireFormat.readVarLong(in);
+		}
+
+		private Object readResolve() {
+			return new Money(fCents);
 		}
 	}
 }
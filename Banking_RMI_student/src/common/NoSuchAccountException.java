@@ -0,0 +1,19 @@
+package common;
+
+
+/**
+ * Exception class to represent a reference to an account number that is not
+ * held by a Bank. A NoSuchAccountException is thrown by Bank objects.
+ * 
+ * @see Bank
+ */
+public class NoSuchAccountException extends Exception {
+
+	public NoSuchAccountException() {
+		super();
+	}
+
+	public NoSuchAccountException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,235 @@
+package common;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Class to represent an ordered sequence of deposit and withdraw operations
+ * that are to be applied to a single BankAccount in one remote call. The
+ * outcome of applying a batch is reported as an array of bytes, one element
+ * per operation, holding one of the APPLIED, NEGATIVE or EXCESSIVE codes, or,
+ * for an operation submitted with an operation id, EXPIRED.
+ *
+ * On the wire a batch is a format version byte, the operation count as a
+ * variable length integer, the operation codes packed one bit per operation,
+ * and then each amount as a zig-zag variable length integer (see
+ * WireFormat). A batch holds at most MAX_SIZE operations; a larger count read
+ * from the wire is rejected before any storage is allocated for it.
+ *
+ * @see BankAccount#applyBatch(OperationBatch)
+ */
+public class OperationBatch implements Externalizable {
+
+	private static final long serialVersionUID = 1L;
+
+	/* Version of the external format written by writeExternal. */
+	private static final int FORMAT_VERSION = 1;
+
+	/* Operation codes. */
+	public static final byte DEPOSIT = 0;
+
+	public static final byte WITHDRAW = 1;
+
+	/* Outcome codes. */
+	public static final byte APPLIED = 0;
+
+	public static final byte NEGATIVE = 1;
+
+	public static final byte EXCESSIVE = 2;
+
+	/*
+	 * The operation id was older than the server's record of the client's
+	 * recent operations, so the operation was not applied and its original
+	 * outcome is unknown.
+	 */
+	public static final byte EXPIRED = 3;
+
+	/** Largest number of operations a batch may hold. */
+	public static final int MAX_SIZE = 65536;
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/*
+	 * Operation codes and amounts, stored in parallel arrays. Only the first
+	 * fSize elements of each array are in use.
+	 */
+	private byte[] fOperations;
+
+	private long[] fAmounts;
+
+	private int fSize;
+
+	/**
+	 * Creates an empty OperationBatch.
+	 */
+	public OperationBatch() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty OperationBatch with room for the specified number of
+	 * operations, up to MAX_SIZE, before its storage needs to grow.
+	 */
+	public OperationBatch(int capacity) {
+		fOperations = new byte[Math.max(Math.min(capacity, MAX_SIZE), 1)];
+		fAmounts = new long[fOperations.length];
+		fSize = 0;
+	}
+
+	/**
+	 * Appends a deposit of the specified amount to this batch.
+	 */
+	public void addDeposit(Money amount) {
+		add(DEPOSIT, amount.getTotalCents());
+	}
+
+	/**
+	 * Appends a deposit of the specified number of cents to this batch.
+	 */
+	public void addDeposit(long cents) {
+		add(DEPOSIT, cents);
+	}
+
+	/**
+	 * Appends a withdrawal of the specified amount to this batch.
+	 */
+	public void addWithdrawal(Money amount) {
+		add(WITHDRAW, amount.getTotalCents());
+	}
+
+	/**
+	 * Appends a withdrawal of the specified number of cents to this batch.
+	 */
+	public void addWithdrawal(long cents) {
+		add(WITHDRAW, cents);
+	}
+
+	/**
+	 * Returns the number of operations held in this batch.
+	 */
+	public int size() {
+		return fSize;
+	}
+
+	/**
+	 * Returns true if this batch holds no operations, false otherwise.
+	 */
+	public boolean isEmpty() {
+		return fSize == 0;
+	}
+
+	/**
+	 * Returns the operation code (DEPOSIT or WITHDRAW) at the specified
+	 * position in this batch.
+	 */
+	public byte getOperation(int index) {
+		checkIndex(index);
+		return fOperations[index];
+	}
+
+	/**
+	 * Returns the amount of the operation at the specified position in this
+	 * batch.
+	 */
+	public Money getAmount(int index) {
+		return Money.fromCents(getAmountCents(index));
+	}
+
+	/**
+	 * Returns the amount, in cents, of the operation at the specified
+	 * position in this batch.
+	 */
+	public long getAmountCents(int index) {
+		checkIndex(index);
+		return fAmounts[index];
+	}
+
+	/**
+	 * Removes all operations from this batch.
+	 */
+	public void clear() {
+		fSize = 0;
+	}
+
+	/*
+	 * Appends an operation, throwing IllegalStateException if the batch
+	 * already holds MAX_SIZE operations.
+	 */
+	private void add(byte operation, long amount) {
+		if (fSize == MAX_SIZE) {
+			throw new IllegalStateException("Batch is full (" + MAX_SIZE
+					+ " operations)");
+		}
+		if (fSize == fOperations.length) {
+			/* Double the storage, copying existing operations across. */
+			int capacity = Math.min(fSize * 2, MAX_SIZE);
+			byte[] operations = new byte[capacity];
+			long[] amounts = new long[capacity];
+			System.arraycopy(fOperations, 0, operations, 0, fSize);
+			System.arraycopy(fAmounts, 0, amounts, 0, fSize);
+			fOperations = operations;
+			fAmounts = amounts;
+		}
+		fOperations[fSize] = operation;
+		fAmounts[fSize] = amount;
+		fSize++;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= fSize) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ fSize);
+		}
+	}
+
+	/**
+	 * Writes the operations in use, in the compact external format described
+	 * above.
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(FORMAT_VERSION);
+		WireFormat.writeUnsignedVarLong(out, fSize);
+
+		/* Operation codes, eight to a byte, lowest bit first. */
+		for (int i = 0; i < fSize; i += 8) {
+			int bits = 0;
+			for (int j = i; j < Math.min(i + 8, fSize); j++) {
+				bits |= fOperations[j] << (j - i);
+			}
+			out.writeByte(bits);
+		}
+
+		for (int i = 0; i < fSize; i++) {
+			WireFormat.writeVarLong(out, fAmounts[i]);
+		}
+	}
+
+	/**
+	 * Restores a batch written by writeExternal. Only for use by
+	 * deserialization.
+	 */
+	public void readExternal(ObjectInput in) throws IOException {
+		WireFormat.readVersion(in, FORMAT_VERSION);
+		long size = WireFormat.readUnsignedVarLong(in);
+		if (size > MAX_SIZE) {
+			throw new InvalidObjectException("Invalid batch size: " + size);
+		}
+		fSize = (int) size;
+		fOperations = new byte[Math.max(fSize, 1)];
+		fAmounts = new long[fOperations.length];
+
+		for (int i = 0; i < fSize; i += 8) {
+			int bits = in.readUnsignedByte();
+			for (int j = i; j < Math.min(i + 8, fSize); j++) {
+				fOperations[j] = (byte) ((bits >>> (j - i)) & 1);
+			}
+		}
+
+		for (int i = 0; i < fSize; i++) {
+			fAmounts[i] = WireFormat.readVarLong(in);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+
+/**
+ * Helper methods for the compact encodings used by Externalizable classes
+ * sent over RMI. Signed values are written as zig-zag encoded variable length
+ * integers: 7 bits per byte, least significant group first, with the high bit
+ * of each byte set when more bytes follow. Small magnitudes, positive or
+ * negative, therefore take one or two bytes instead of eight.
+ */
+public final class WireFormat {
+
+	private WireFormat() {
+	}
+
+	/**
+	 * Writes a signed long as a zig-zag variable length integer (1 to 10
+	 * bytes).
+	 */
+	public static void writeVarLong(DataOutput out, long value)
+			throws IOException {
+		writeUnsignedVarLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	/**
+	 * Reads a value written by writeVarLong.
+	 */
+	public static long readVarLong(DataInput in) throws IOException {
+		long raw = readUnsignedVarLong(in);
+		return (raw >>> 1) ^ -(raw & 1);
+	}
+
+	/**
+	 * Writes a long, treated as unsigned, as a variable length integer.
+	 */
+	public static void writeUnsignedVarLong(DataOutput out, long value)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Reads a value written by writeUnsignedVarLong.
+	 */
+	public static long readUnsignedVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new InvalidObjectException("Malformed variable length integer");
+	}
+
+	/**
+	 * Reads a format version byte and checks that it is one this code can
+	 * decode.
+	 *
+	 * @throws InvalidObjectException
+	 *             if the version is newer than maxVersion.
+	 */
+	public static int readVersion(DataInput in, int maxVersion)
+			throws IOException {
+		int version = in.readUnsignedByte();
+		if (version < 1 || version > maxVersion) {
+			throw new InvalidObjectException("Unsupported format version: "
+					+ version);
+		}
+		return version;
+	}
+}
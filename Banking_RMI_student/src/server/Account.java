@@ -0,0 +1,450 @@
+package server;
+
+import java.util.concurrent.locks.StampedLock;
+
+import common.ExcessiveAmountException;
+import common.Money;
+import common.NegativeAmountException;
+import common.OperationBatch;
+
+/**
+ * Class to represent the state of a bank account held by the server. An
+ * Account comprises a balance, account number, name of account holder, and a
+ * maximum amount that can be withdrawn in one transaction. Unlike
+ * BankAccountServant, an Account is not a remote object, so the server can
+ * hold any number of them without exporting each one.
+ *
+ * An Account is safe for use by concurrent RMI calls without external
+ * locking: the balance is a lock-free Balance, and the remaining fields
+ * never change after construction.
+ *
+ * An Account may be given a WriteAheadLog, in which case every deposit,
+ * withdrawal and transfer it accepts is recorded in the log, and the call
+ * does not return until the record is as durable as the log requires. If the
+ * log fails first, the operation is removed from the balance again before
+ * the call throws, so the balance never holds an operation that its caller
+ * was told had failed.
+ *
+ * @see AccountStore
+ * @see BankAccountServant
+ */
+public class Account {
+
+	/* The balance, or null if a subclass holds it elsewhere. */
+	private final Balance fBalance;
+
+	private final String fName;
+
+	private final String fNumber;
+
+	private final long fMaxWithdrawal;
+
+	/* Log recording accepted operations, or null. */
+	private final WriteAheadLog fLog;
+
+	/**
+	 * Creates an Account instance.
+	 *
+	 * @param initialBalance
+	 *            the starting balance for the Account instance.
+	 * @param name
+	 *            the name of the Account's owner.
+	 * @param number
+	 *            the unique number for the account.
+	 * @param maxWithdrawal
+	 *            the maximum amount that can be withdrawn in one operation.
+	 */
+	public Account(Money initialBalance, String name, String number,
+			Money maxWithdrawal) {
+		this(initialBalance, name, number, maxWithdrawal, null);
+	}
+
+	/**
+	 * Creates an Account instance whose operations are recorded in a
+	 * write-ahead log.
+	 *
+	 * @param log
+	 *            the log recording accepted operations, or null.
+	 */
+	public Account(Money initialBalance, String name, String number,
+			Money maxWithdrawal, WriteAheadLog log) {
+		this.fLog = log;
+		this.fBalance = new Balance(initialBalance.getTotalCents());
+		this.fName = name;
+		this.fNumber = number;
+		this.fMaxWithdrawal = maxWithdrawal.getTotalCents();
+	}
+
+	/**
+	 * Creates an Account whose balance is held outside this object. A
+	 * subclass must override getBalanceCents() and addCents(). The name and
+	 * number may be null if the subclass overrides getName() and
+	 * getNumber(), which the Account itself uses to read them.
+	 *
+	 * @param maxWithdrawalCents
+	 *            the maximum amount, in cents, that can be withdrawn in one
+	 *            operation.
+	 */
+	protected Account(String name, String number, long maxWithdrawalCents,
+			WriteAheadLog log) {
+		this.fLog = log;
+		this.fBalance = null;
+		this.fName = name;
+		this.fNumber = number;
+		this.fMaxWithdrawal = maxWithdrawalCents;
+	}
+
+	/**
+	 * Returns a copy of the balance of this Account.
+	 */
+	public Money getBalance() {
+		return Money.fromCents(getBalanceCents());
+	}
+
+	/**
+	 * Returns the balance of this Account as a number of cents.
+	 */
+	public long getBalanceCents() {
+		return fBalance.get();
+	}
+
+	/**
+	 * Returns the maximum amount, in cents, that can be withdrawn in one
+	 * operation.
+	 */
+	public long getMaxWithdrawalCents() {
+		return fMaxWithdrawal;
+	}
+
+	/**
+	 * Adds the specified number of cents (which may be negative) to the
+	 * balance. Called once an operation has been accepted.
+	 */
+	protected void addCents(long cents) {
+		fBalance.add(cents);
+	}
+
+	/**
+	 * Returns the name of the account holder.
+	 */
+	public String getName() {
+		return fName;
+	}
+
+	/**
+	 * Returns the unique number of this Account.
+	 */
+	public String getNumber() {
+		return fNumber;
+	}
+
+	/**
+	 * Attempts to deposit a sum of money into this Account.
+	 *
+	 * @throws NegativeAmountException
+	 *             if the amount is negative. The balance is unchanged.
+	 */
+	public void deposit(Money amount) throws NegativeAmountException {
+		depositCents(amount.getTotalCents());
+	}
+
+	/**
+	 * Equivalent to deposit(Money) for an amount given in cents.
+	 */
+	public void depositCents(long cents) throws NegativeAmountException {
+		depositCents(cents, null);
+	}
+
+	/**
+	 * Deposits while holding a stripe of a TransferLocks shared, if it is not
+	 * null, so that the deposit is not applied while a transfer on the
+	 * stripe is. The wait for the log is made after releasing the stripe.
+	 */
+	void depositCents(long cents, StampedLock stripe)
+			throws NegativeAmountException {
+		long sequence;
+		long stamp = lockShared(stripe);
+		try {
+			sequence = applyDeposit(cents);
+		} finally {
+			unlockShared(stripe, stamp);
+		}
+		commit(sequence, cents);
+	}
+
+	/**
+	 * Attempts to withdraw a sum of money from this Account.
+	 *
+	 * @throws NegativeAmountException
+	 *             if the amount is negative. The balance is unchanged.
+	 * @throws ExcessiveAmountException
+	 *             if the amount exceeds the account's withdrawal limit. The
+	 *             balance is unchanged.
+	 */
+	public void withdraw(Money amount) throws NegativeAmountException,
+			ExcessiveAmountException {
+		withdrawCents(amount.getTotalCents());
+	}
+
+	/**
+	 * Equivalent to withdraw(Money) for an amount given in cents.
+	 */
+	public void withdrawCents(long cents) throws NegativeAmountException,
+			ExcessiveAmountException {
+		withdrawCents(cents, null);
+	}
+
+	/**
+	 * Withdraws while holding a stripe of a TransferLocks shared, if it is
+	 * not null.
+	 *
+	 * @see #depositCents(long, StampedLock)
+	 */
+	void withdrawCents(long cents, StampedLock stripe)
+			throws NegativeAmountException, ExcessiveAmountException {
+		long sequence;
+		long stamp = lockShared(stripe);
+		try {
+			sequence = applyWithdrawal(cents);
+		} finally {
+			unlockShared(stripe, stamp);
+		}
+		commit(sequence, -cents);
+	}
+
+	private static long lockShared(StampedLock stripe) {
+		return stripe != null ? stripe.readLock() : 0;
+	}
+
+	private static void unlockShared(StampedLock stripe, long stamp) {
+		if (stripe != null) {
+			stripe.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * Validates and applies a deposit, returning the sequence number of its
+	 * log record, or zero if the Account has no log.
+	 */
+	private long applyDeposit(long cents) throws NegativeAmountException {
+		/* Check that the amount to deposit is non-negative. */
+		if (cents < 0) {
+			throw new NegativeAmountException();
+		}
+		return apply(cents);
+	}
+
+	/*
+	 * Validates and applies a withdrawal, returning the sequence number of
+	 * its log record, or zero if the Account has no log.
+	 */
+	private long applyWithdrawal(long cents) throws NegativeAmountException,
+			ExcessiveAmountException {
+		/* Check that the amount to withdraw is non-negative. */
+		if (cents < 0) {
+			throw new NegativeAmountException();
+		}
+
+		/* Check that the amount does not exceed the maximum permitted. */
+		if (cents > fMaxWithdrawal) {
+			throw new ExcessiveAmountException();
+		}
+
+		return apply(-cents);
+	}
+
+	/*
+	 * Adds an accepted operation to the balance and appends it to the log, if
+	 * any. The balance is changed first, so that an operation that would
+	 * overflow it is never logged; if the append fails, because the log has
+	 * failed or been closed, the change is undone.
+	 */
+	private long apply(long cents) {
+		addCents(cents);
+		if (fLog == null) {
+			return 0;
+		}
+		try {
+			return fLog.append(getNumber(), cents);
+		} catch (RuntimeException e) {
+			addCents(-cents);
+			throw e;
+		}
+	}
+
+	/**
+	 * Validates and applies both legs of a transfer of cents from this
+	 * Account to another, returning the sequence number of their log
+	 * records, or zero if the Account has no log. The transfer is checked
+	 * against this Account's withdrawal limit, and both legs are logged in
+	 * one append, so that neither is applied or recovered without the other.
+	 * The other Account must share this Account's log. Called by
+	 * TransferLocks, which excludes the other operations on both accounts;
+	 * the caller must pass the result to commitTransfer().
+	 *
+	 * @throws NegativeAmountException
+	 *             if the amount is negative. Neither balance is changed.
+	 * @throws ExcessiveAmountException
+	 *             if the amount exceeds this account's withdrawal limit.
+	 *             Neither balance is changed.
+	 */
+	long applyTransfer(Account to, long cents) throws NegativeAmountException,
+			ExcessiveAmountException {
+		if (cents < 0) {
+			throw new NegativeAmountException();
+		}
+		if (cents > fMaxWithdrawal) {
+			throw new ExcessiveAmountException();
+		}
+
+		addCents(-cents);
+		try {
+			to.addCents(cents);
+		} catch (ArithmeticException e) {
+			addCents(cents);
+			throw e;
+		}
+		if (fLog == null) {
+			return 0;
+		}
+		try {
+			return fLog.append(getNumber(), -cents, to.getNumber(), cents);
+		} catch (RuntimeException e) {
+			rollBackTransfer(to, cents);
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits until the log records of a transfer applied by applyTransfer()
+	 * are durable. If the log fails first, both legs are removed from the
+	 * balances again before the failure is rethrown.
+	 */
+	void commitTransfer(Account to, long sequence, long cents) {
+		try {
+			await(sequence);
+		} catch (RuntimeException e) {
+			rollBackTransfer(to, cents);
+			throw e;
+		}
+	}
+
+	private void rollBackTransfer(Account to, long cents) {
+		to.addCents(-cents);
+		addCents(cents);
+	}
+
+	/*
+	 * Waits until the log record with the specified sequence number is
+	 * durable. If the log fails first, the cents that the operations being
+	 * committed added to the balance are subtracted again, as their records
+	 * may not be recovered after a restart.
+	 */
+	private void commit(long sequence, long cents) {
+		try {
+			await(sequence);
+		} catch (RuntimeException e) {
+			addCents(-cents);
+			throw e;
+		}
+	}
+
+	private void await(long sequence) {
+		if (sequence > 0) {
+			fLog.await(sequence);
+		}
+	}
+
+	/**
+	 * Adds an amount recovered from a write-ahead log to the balance, without
+	 * validating or logging it again.
+	 */
+	void restore(long cents) {
+		addCents(cents);
+	}
+
+	/**
+	 * Applies each operation in a batch, in order, by calling deposit or
+	 * withdraw. An operation that is rejected is recorded in the returned
+	 * outcome array; it does not prevent later operations being applied.
+	 * Operations from concurrent calls may interleave with those of the batch.
+	 * With a write-ahead log, the call waits once, for the last operation of
+	 * the batch, rather than once per operation; if the log fails, every
+	 * operation of the batch that was applied is rolled back.
+	 *
+	 * @return one OperationBatch outcome code per operation.
+	 */
+	public byte[] applyBatch(OperationBatch batch) {
+		return applyBatch(batch, null);
+	}
+
+	/**
+	 * Applies a batch while holding a stripe of a TransferLocks shared, if it
+	 * is not null.
+	 *
+	 * @see #depositCents(long, StampedLock)
+	 */
+	byte[] applyBatch(OperationBatch batch, StampedLock stripe) {
+		byte[] outcomes = new byte[batch.size()];
+		long sequence = 0;
+
+		/* Sum of the operations applied, to be rolled back on failure. */
+		long applied = 0;
+
+		ArithmeticException overflow = null;
+		long stamp = lockShared(stripe);
+		try {
+			for (int i = 0; i < outcomes.length && overflow == null; i++) {
+				long cents = batch.getAmountCents(i);
+				try {
+					if (batch.getOperation(i) == OperationBatch.DEPOSIT) {
+						sequence = applyDeposit(cents);
+						applied += cents;
+					} else {
+						sequence = applyWithdrawal(cents);
+						applied -= cents;
+					}
+					outcomes[i] = OperationBatch.APPLIED;
+				} catch (NegativeAmountException e) {
+					outcomes[i] = OperationBatch.NEGATIVE;
+				} catch (ExcessiveAmountException e) {
+					outcomes[i] = OperationBatch.EXCESSIVE;
+				} catch (ArithmeticException e) {
+					overflow = e;
+				} catch (RuntimeException e) {
+					/* The log failed, so the earlier operations are rolled back. */
+					addCents(-applied);
+					throw e;
+				}
+			}
+		} finally {
+			unlockShared(stripe, stamp);
+		}
+
+		commit(sequence, applied);
+		if (overflow != null) {
+			/* The earlier operations stand, and have been committed. */
+			throw overflow;
+		}
+		return outcomes;
+	}
+
+	/**
+	 * Returns a string representation of an Account object.
+	 */
+	public String toString() {
+		StringBuffer description = new StringBuffer();
+
+		description.append("[number=");
+		description.append(getNumber());
+		description.append(';');
+		description.append("name=");
+		description.append(getName());
+		description.append(';');
+		description.append("balance=");
+		description.append(getBalance());
+		description.append(";]");
+
+		return description.toString();
+	}
+}
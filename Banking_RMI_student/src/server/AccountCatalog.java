@@ -0,0 +1,383 @@
+package server;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import common.Money;
+
+/**
+ * Class that loads the accounts held by the server from a catalog file. Each
+ * line of the catalog describes one account as four tab-separated fields:
+ * its number, which must be ACCOUNT_NUMBER_DIGITS digits, as clients address
+ * accounts by numbers of that length, the name of its holder, its initial
+ * balance and its maximum withdrawal. Amounts are written in dollars with an
+ * optional sign and up to two decimal places, e.g. "1500", "-12.5" or
+ * "0.99". Blank lines are ignored, as is everything from a '!' to the end
+ * of a line, as in the client's data files; names therefore cannot contain
+ * tabs or '!'.
+ *
+ * The file is split into chunks that each begin at the start of a line, and
+ * the chunks are parsed concurrently on a pool of threads, each chunk through
+ * its own memory mapping; the Accounts are added to the store as they are
+ * parsed, so the store must accept concurrent additions. Errors are
+ * reported with the line numbers of the file.
+ *
+ * Catalog format:
+ *
+ * <pre>
+ * ! number	name	balance	max withdrawal
+ * 67832189	Brent, D.	0	1500
+ * </pre>
+ */
+public class AccountCatalog {
+
+	/* Smallest chunk, in bytes, handed to a thread. */
+	private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+
+	/* Number of chunks per thread that a file is split into, when large enough. */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private static final byte COMMENT = '!';
+
+	private static final byte FIELD_DELIMITER = '\t';
+
+	private static final int FIELDS = 4;
+
+	/* Length of an account number, as formatted by clients. */
+	public static final int ACCOUNT_NUMBER_DIGITS = 8;
+
+	private AccountCatalog() {
+	}
+
+	/**
+	 * Loads the accounts described by a catalog file into a store.
+	 *
+	 * @param log
+	 *            the write-ahead log in which the accounts' operations are
+	 *            to be recorded, or null.
+	 * @param parallelism
+	 *            the number of threads used to parse the catalog.
+	 * @return the number of accounts loaded.
+	 * @throws IOException
+	 *             if the catalog cannot be read.
+	 * @throws IllegalArgumentException
+	 *             if a line of the catalog is malformed or repeats an account
+	 *             number, or the store cannot hold an account, for instance
+	 *             because it is full. Accounts on other lines may have been
+	 *             added to the store.
+	 */
+	public static long load(String filename, AccountStore accounts,
+			WriteAheadLog log, int parallelism) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			long chunkSize = Math.max(MIN_CHUNK_SIZE, size
+					/ (parallelism * CHUNKS_PER_THREAD));
+			chunkSize = Math.min(chunkSize, Integer.MAX_VALUE);
+			long[] boundaries = findLineBoundaries(channel, chunkSize);
+
+			List<Future<Chunk>> tasks = new ArrayList<Future<Chunk>>();
+			for (int i = 0; i < boundaries.length - 1; i++) {
+				tasks.add(pool.submit(new ChunkTask(channel, boundaries[i],
+						boundaries[i + 1], accounts, log)));
+			}
+
+			long loaded = 0;
+			int firstLine = 1;
+			for (Future<Chunk> task : tasks) {
+				Chunk chunk = join(task);
+				if (chunk.fError != null) {
+					throw new IllegalArgumentException(filename + ": "
+							+ (firstLine + chunk.fErrorLine) + ": "
+							+ chunk.fError);
+				}
+				loaded += chunk.fAccounts;
+				firstLine += chunk.fLines;
+			}
+			return loaded;
+		} finally {
+			pool.shutdownNow();
+			try {
+				file.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/*
+	 * Returns the offsets at which chunks of about chunkSize bytes begin,
+	 * each at the start of a line, followed by the size of the file.
+	 */
+	private static long[] findLineBoundaries(FileChannel channel,
+			long chunkSize) throws IOException {
+		long size = channel.size();
+		List<Long> boundaries = new ArrayList<Long>();
+		boundaries.add(0L);
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		long position = chunkSize;
+		while (position < size) {
+			long lineStart = -1;
+			while (lineStart < 0 && position < size) {
+				buffer.clear();
+				int read = channel.read(buffer, position);
+				for (int i = 0; i < read; i++) {
+					if (buffer.get(i) == '\n') {
+						lineStart = position + i + 1;
+						break;
+					}
+				}
+				if (lineStart < 0) {
+					position += Math.max(read, 0);
+				}
+			}
+			if (lineStart < 0 || lineStart >= size) {
+				break;
+			}
+			boundaries.add(lineStart);
+			position = lineStart + chunkSize;
+		}
+		boundaries.add(size);
+
+		long[] result = new long[boundaries.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = boundaries.get(i);
+		}
+		return result;
+	}
+
+	private static Chunk join(Future<Chunk> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading catalog");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/*
+	 * The result of loading one chunk. Line numbers are relative to the start
+	 * of the chunk.
+	 */
+	private static class Chunk {
+		long fAccounts;
+
+		int fLines;
+
+		/* Description of the first malformed line, or null. */
+		String fError;
+
+		int fErrorLine;
+	}
+
+	/*
+	 * Loads the lines in the range [start, end) of a catalog, stopping at
+	 * the first malformed line.
+	 */
+	private static class ChunkTask implements Callable<Chunk> {
+		private final FileChannel fChannel;
+
+		private final long fStart;
+
+		private final long fEnd;
+
+		private final AccountStore fStore;
+
+		private final WriteAheadLog fLog;
+
+		ChunkTask(FileChannel channel, long start, long end,
+				AccountStore store, WriteAheadLog log) {
+			fChannel = channel;
+			fStart = start;
+			fEnd = end;
+			fStore = store;
+			fLog = log;
+		}
+
+		public Chunk call() throws IOException {
+			Chunk chunk = new Chunk();
+			MappedByteBuffer buffer = fChannel.map(
+					FileChannel.MapMode.READ_ONLY, fStart, fEnd - fStart);
+
+			byte[] line = new byte[256];
+			int position = 0;
+			int limit = buffer.limit();
+			while (position < limit) {
+				/* Copy the line, up to any comment, into the line buffer. */
+				int length = 0;
+				boolean comment = false;
+				while (position < limit) {
+					byte b = buffer.get(position++);
+					if (b == '\n') {
+						break;
+					}
+					if (b == COMMENT) {
+						comment = true;
+					}
+					if (!comment && b != '\r') {
+						if (length == line.length) {
+							byte[] longer = new byte[line.length * 2];
+							System.arraycopy(line, 0, longer, 0, length);
+							line = longer;
+						}
+						line[length++] = b;
+					}
+				}
+				chunk.fLines++;
+
+				String error = null;
+				try {
+					Account account = parse(line, length);
+					if (account != null) {
+						fStore.add(account);
+						chunk.fAccounts++;
+					}
+				} catch (IllegalArgumentException e) {
+					error = e.getMessage();
+				} catch (ArithmeticException e) {
+					error = "amount out of range";
+				} catch (IllegalStateException e) {
+					/* The store is full. */
+					error = e.getMessage();
+				}
+				if (error != null) {
+					chunk.fError = error;
+					chunk.fErrorLine = chunk.fLines - 1;
+					break;
+				}
+			}
+			return chunk;
+		}
+
+		/*
+		 * Parses one line with its comment removed, returning null for a
+		 * blank line.
+		 */
+		private Account parse(byte[] line, int length) {
+			int[] starts = new int[FIELDS + 1];
+			int fields = 1;
+			boolean blank = true;
+			for (int i = 0; i < length; i++) {
+				if (line[i] == FIELD_DELIMITER) {
+					if (fields == FIELDS) {
+						throw new IllegalArgumentException("more than "
+								+ FIELDS + " fields");
+					}
+					starts[fields++] = i + 1;
+				} else if (line[i] != ' ') {
+					blank = false;
+				}
+			}
+			if (blank && fields == 1) {
+				return null;
+			}
+			if (fields != FIELDS) {
+				throw new IllegalArgumentException("expected " + FIELDS
+						+ " tab-separated fields");
+			}
+			starts[FIELDS] = length + 1;
+
+			String number = field(line, starts, 0).trim();
+			if (number.length() != ACCOUNT_NUMBER_DIGITS) {
+				throw new IllegalArgumentException("account number must have "
+						+ ACCOUNT_NUMBER_DIGITS + " digits: " + number);
+			}
+			for (int i = 0; i < number.length(); i++) {
+				if (number.charAt(i) < '0' || number.charAt(i) > '9') {
+					throw new IllegalArgumentException(
+							"invalid account number: " + number);
+				}
+			}
+			String name = field(line, starts, 1).trim();
+			long balance = parseCents(line, starts[2], starts[3] - 1);
+			long maxWithdrawal = parseCents(line, starts[3], starts[4] - 1);
+			if (maxWithdrawal < 0) {
+				throw new IllegalArgumentException(
+						"negative maximum withdrawal");
+			}
+			return new Account(Money.fromCents(balance), name, number, Money
+					.fromCents(maxWithdrawal), fLog);
+		}
+
+		private static String field(byte[] line, int[] starts, int field) {
+			return new String(line, starts[field], starts[field + 1] - 1
+					- starts[field], StandardCharsets.UTF_8);
+		}
+
+		/*
+		 * Parses an amount of dollars, with an optional sign and up to two
+		 * decimal places, as a number of cents.
+		 */
+		private static long parseCents(byte[] line, int start, int end) {
+			while (start < end && line[start] == ' ') {
+				start++;
+			}
+			while (end > start && line[end - 1] == ' ') {
+				end--;
+			}
+			int i = start;
+			boolean negative = i < end && line[i] == '-';
+			if (negative) {
+				i++;
+			}
+			long dollars = 0;
+			int digits = 0;
+			while (i < end && line[i] >= '0' && line[i] <= '9') {
+				dollars = Math.addExact(Math.multiplyExact(dollars, 10),
+						line[i++] - '0');
+				digits++;
+			}
+			long cents = 0;
+			if (i < end && line[i] == '.') {
+				i++;
+				int places = 0;
+				while (i < end && places < 2 && line[i] >= '0'
+						&& line[i] <= '9') {
+					cents = cents * 10 + (line[i++] - '0');
+					places++;
+				}
+				if (places == 0) {
+					throw invalidAmount(line, start, end);
+				}
+				if (places == 1) {
+					cents *= 10;
+				}
+			}
+			if (digits == 0 || i != end) {
+				throw invalidAmount(line, start, end);
+			}
+			long total = Math.addExact(Math.multiplyExact(dollars, 100), cents);
+			return negative ? -total : total;
+		}
+
+		private static IllegalArgumentException invalidAmount(byte[] line,
+				int start, int end) {
+			return new IllegalArgumentException("invalid amount: "
+					+ new String(line, start, end - start,
+							StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package server;
+
+import java.util.List;
+
+/**
+ * Interface for the server's store of accounts, keyed by account number. An
+ * AccountTable keeps its Accounts on the heap; a MappedAccountTable keeps
+ * their state in a memory-mapped file and returns Accounts that are views of
+ * that state.
+ */
+public interface AccountStore {
+
+	/**
+	 * Adds an account to the store.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the store already holds an account with the same number.
+	 */
+	public void add(Account account);
+
+	/**
+	 * Returns the account with the specified number, or null if the store
+	 * holds no such account.
+	 */
+	public Account get(String number);
+
+	/**
+	 * Returns the number of accounts held in the store.
+	 */
+	public int size();
+
+	/**
+	 * Returns a snapshot of the accounts held in the store.
+	 */
+	public List<Account> accounts();
+}
@@ -0,0 +1,101 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class to represent the server's in-memory store of accounts, keyed by
+ * account number. The table is split into a fixed number of shards, each an
+ * independent ConcurrentHashMap, so that lookups and insertions for different
+ * accounts rarely touch the same structure and each shard resizes on its own
+ * as the number of accounts grows.
+ */
+public class AccountTable implements AccountStore {
+
+	private static final int DEFAULT_SHARDS = 64;
+
+	private final ConcurrentHashMap<String, Account>[] fShards;
+
+	private final int fShardMask;
+
+	/**
+	 * Creates an empty AccountTable with a default number of shards.
+	 */
+	public AccountTable() {
+		this(DEFAULT_SHARDS);
+	}
+
+	/**
+	 * Creates an empty AccountTable.
+	 *
+	 * @param shards
+	 *            the number of shards, rounded up to a power of two.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public AccountTable(int shards) {
+		if (shards < 1) {
+			throw new IllegalArgumentException("Shard count must be positive: "
+					+ shards);
+		}
+		int count = (shards == 1) ? 1 : Integer.highestOneBit(shards - 1) << 1;
+		fShards = new ConcurrentHashMap[count];
+		for (int i = 0; i < count; i++) {
+			fShards[i] = new ConcurrentHashMap<String, Account>();
+		}
+		fShardMask = count - 1;
+	}
+
+	/**
+	 * Adds an account to the table.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the table already holds an account with the same number.
+	 */
+	public void add(Account account) {
+		String number = account.getNumber();
+		if (shardFor(number).putIfAbsent(number, account) != null) {
+			throw new IllegalArgumentException("Duplicate account number: "
+					+ number);
+		}
+	}
+
+	/**
+	 * Returns the account with the specified number, or null if the table
+	 * holds no such account.
+	 */
+	public Account get(String number) {
+		return shardFor(number).get(number);
+	}
+
+	/**
+	 * Returns the number of accounts held in the table.
+	 */
+	public int size() {
+		int size = 0;
+		for (ConcurrentHashMap<String, Account> shard : fShards) {
+			size += shard.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns a snapshot of the accounts held in the table.
+	 */
+	public List<Account> accounts() {
+		List<Account> accounts = new ArrayList<Account>(size());
+		for (ConcurrentHashMap<String, Account> shard : fShards) {
+			accounts.addAll(shard.values());
+		}
+		return accounts;
+	}
+
+	/*
+	 * Selects a shard using the high bits of the spread hash code; the low
+	 * bits are left for the ConcurrentHashMap within the shard.
+	 */
+	private ConcurrentHashMap<String, Account> shardFor(String number) {
+		int h = number.hashCode() * 0x9E3779B9;
+		return fShards[(h >>> 16) & fShardMask];
+	}
+}
@@ -0,0 +1,205 @@
+package server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class to represent an account balance, in cents, that may be updated by many
+ * threads at once without locking. Updates are applied with compare-and-set on
+ * a single AtomicLong. Once CONTENTION_THRESHOLD compare-and-set attempts fail
+ * within CONTENTION_WINDOW_NANOS, showing that the balance is heavily
+ * contended, later updates are spread over a LongAdder, whose cells let
+ * concurrent updates proceed without retrying. After STRIPE_PERIOD_NANOS the
+ * balance returns to compare-and-set, folding the LongAdder into the base,
+ * and switches again only if it is still contended.
+ *
+ * While updates are not striped every operation is linearizable. While they
+ * are, a read taken while updates are in progress returns a value that
+ * reflects some, but not necessarily all, of those updates; once updates
+ * stop, reads return the exact balance. Because a balance has no floor, no
+ * update ever needs to read the balance first, so this weaker read does not
+ * affect which operations are accepted.
+ *
+ * An update that would take the balance outside the range of a long throws
+ * an ArithmeticException and leaves the balance unchanged. Updates are only
+ * striped while the amount is below STRIPE_AMOUNT_LIMIT, and the balance is
+ * compared with STRIPE_BALANCE_LIMIT when striping starts and on the sampled
+ * checks made while it lasts, rather than on every update, since reading it
+ * sums every cell of the LongAdder. Overflowing the striped sum between two
+ * checks would take 2^38 updates, far more than a period can hold.
+ */
+public class Balance {
+
+	/*
+	 * Failed compare-and-set attempts within a window after which updates are
+	 * striped.
+	 */
+	private static final int CONTENTION_THRESHOLD = 64;
+
+	private static final long CONTENTION_WINDOW_NANOS = 1000000;
+
+	/* Time for which updates stay striped before contention is measured. */
+	private static final long STRIPE_PERIOD_NANOS = 1000000000;
+
+	/*
+	 * One in this many striped updates checks whether the period has ended or
+	 * the balance has grown past STRIPE_BALANCE_LIMIT.
+	 */
+	private static final int STRIPE_CHECK_INTERVAL = 1024;
+
+	/* Largest balance and amount for which updates may be striped. */
+	private static final long STRIPE_BALANCE_LIMIT = 1L << 62;
+
+	private static final long STRIPE_AMOUNT_LIMIT = 1L << 24;
+
+	private final AtomicLong fBase;
+
+	private final AtomicInteger fContention;
+
+	/* Start of the window in which failed attempts are counted. */
+	private volatile long fWindowStart;
+
+	/*
+	 * Non-null once the balance has first switched to striped updates. The
+	 * LongAdder is kept afterwards, so that an update that reached it after
+	 * the balance stopped striping is still counted.
+	 */
+	private volatile LongAdder fStriped;
+
+	/* True while updates are striped; guarded by this for writes. */
+	private volatile boolean fStriping;
+
+	private volatile long fStripeStart;
+
+	/**
+	 * Creates a Balance holding the specified number of cents.
+	 */
+	public Balance(long cents) {
+		fBase = new AtomicLong(cents);
+		fContention = new AtomicInteger();
+		fWindowStart = System.nanoTime();
+	}
+
+	/**
+	 * Adds the specified number of cents (which may be negative) to this
+	 * Balance.
+	 *
+	 * @throws ArithmeticException
+	 *             if the result would overflow. The balance is unchanged.
+	 */
+	public void add(long cents) {
+		if (fStriping && addStriped(cents)) {
+			return;
+		}
+
+		while (true) {
+			long current = fBase.get();
+
+			/* Check the balance, as well as the base, for overflow. */
+			Math.addExact(Math.addExact(current, striped()), cents);
+			if (fBase.compareAndSet(current, Math.addExact(current, cents))) {
+				return;
+			}
+			if (contended() && addStriped(cents)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the value of this Balance in cents.
+	 */
+	public long get() {
+		return fBase.get() + striped();
+	}
+
+	/**
+	 * Returns true if updates to this Balance are currently striped.
+	 */
+	public boolean isStriped() {
+		return fStriping;
+	}
+
+	/* Returns the sum of the striped updates. */
+	private long striped() {
+		LongAdder striped = fStriped;
+		return striped == null ? 0 : striped.sum();
+	}
+
+	/*
+	 * Counts a failed compare-and-set, returning true if the balance has
+	 * become contended enough to stripe its updates.
+	 */
+	private boolean contended() {
+		long now = System.nanoTime();
+		if (now - fWindowStart > CONTENTION_WINDOW_NANOS) {
+			fWindowStart = now;
+			fContention.set(0);
+		}
+		if (fContention.incrementAndGet() < CONTENTION_THRESHOLD) {
+			return false;
+		}
+		inflate();
+		return true;
+	}
+
+	/*
+	 * Adds to the LongAdder if updates are striped and the amount is small
+	 * enough, returning false if it must instead be applied to the base.
+	 */
+	private boolean addStriped(long cents) {
+		LongAdder striped = fStriped;
+		if (!fStriping || striped == null
+				|| Math.abs(cents) >= STRIPE_AMOUNT_LIMIT) {
+			return false;
+		}
+		striped.add(cents);
+		if (ThreadLocalRandom.current().nextInt(STRIPE_CHECK_INTERVAL) == 0
+				&& (System.nanoTime() - fStripeStart > STRIPE_PERIOD_NANOS
+						|| Math.abs(get()) >= STRIPE_BALANCE_LIMIT)) {
+			deflate();
+		}
+		return true;
+	}
+
+	/*
+	 * Switches to striped updates, unless the balance is too large for them.
+	 * Updates that are still racing on the base value remain correct because
+	 * the balance is always read as the base plus the striped sum.
+	 */
+	private synchronized void inflate() {
+		if (fStriped == null) {
+			fStriped = new LongAdder();
+		}
+		if (!fStriping && Math.abs(get()) < STRIPE_BALANCE_LIMIT) {
+			fStripeStart = System.nanoTime();
+			fContention.set(0);
+			fStriping = true;
+		}
+	}
+
+	/*
+	 * Switches back to compare-and-set, moving the striped sum into the base
+	 * so that reads are again a single atomic read while it is not updated.
+	 * Each cell is emptied atomically, so no update is lost, but a read made
+	 * while the sum is moved may miss it.
+	 */
+	private synchronized void deflate() {
+		if (!fStriping) {
+			return;
+		}
+		fStriping = false;
+		fWindowStart = System.nanoTime();
+		fContention.set(0);
+		fBase.addAndGet(fStriped.sumThenReset());
+	}
+
+	/**
+	 * Returns a string representation of this Balance.
+	 */
+	public String toString() {
+		return Long.toString(get());
+	}
+}
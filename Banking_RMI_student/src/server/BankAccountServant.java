@@ -7,6 +7,8 @@ import common.BankAccount;
 import common.ExcessiveAmountException;
 import common.Money;
 import common.NegativeAmountException;
+import common.OperationBatch;
+import server.ServerMetrics.Operation;
 
 
 /**
@@ -14,20 +16,33 @@ import common.NegativeAmountException;
  * comprises a balance, account number, name of account holder, and a maximum
  * amount that can be withdrawn in one transaction. A BankAccount's balance is
  * not constrained - it can be in credit or debit for an arbitrary amount.
+ *
+ * A BankAccountServant is a remote view of an Account. The same Account may
+ * also be reached through a BankServant. Every operation except getNumber is
+ * recorded in a ServerMetrics.
+ *
+ * Each call marks the servant as accessed, so that a BankServant can find the
+ * servants that have not been used since it last looked and unexport them.
  */
 public class BankAccountServant extends UnicastRemoteObject implements BankAccount {
 
-	private Money fBalance;
+	private Account fAccount;
 
-	private String fName;
+	private DedupTable fDedup;
 
-	private String fNumber;
+	private TransferLocks fTransfers;
 
-	private Money fMaxWithdrawal;
+	private ServerMetrics fMetrics;
+
+	/* Set by every call, and cleared by clearAccessed(). */
+	private volatile boolean fAccessed = true;
+
+	/* Set for servants that must stay exported, guarded by the BankServant. */
+	private boolean fPinned;
 
 	/**
 	 * Creates a BankAccount instance.
-	 * 
+	 *
 	 * @param initialBalance
 	 *            the starting balance for the BankAccount instance.
 	 * @param name
@@ -39,10 +54,58 @@ public class BankAccountServant extends UnicastRemoteObject implements BankAccou
 	 */
 	public BankAccountServant(Money initialBalance, String name, String number,
 			Money maxWithdrawal) throws RemoteException {
-		this.fBalance = new Money(initialBalance);
-		this.fName = name;
-		this.fNumber = number;
-		this.fMaxWithdrawal = new Money(maxWithdrawal);
+		this(new Account(initialBalance, name, number, maxWithdrawal));
+	}
+
+	/**
+	 * Creates a BankAccount instance that operates on an existing Account.
+	 *
+	 * @param account
+	 *            the account state to expose remotely.
+	 */
+	public BankAccountServant(Account account) throws RemoteException {
+		this(account, new DedupTable(BankServant.DEFAULT_DEDUP_CLIENTS,
+				BankServant.DEFAULT_DEDUP_WINDOW));
+	}
+
+	/**
+	 * Creates a BankAccount instance that operates on an existing Account and
+	 * applies operations tagged with an operation id through a DedupTable.
+	 *
+	 * @param dedup
+	 *            the table, which may be shared with other servants.
+	 */
+	public BankAccountServant(Account account, DedupTable dedup)
+			throws RemoteException {
+		this(account, dedup, new ServerMetrics());
+	}
+
+	/**
+	 * Creates a BankAccount instance that operates on an existing Account and
+	 * records its operations in a ServerMetrics.
+	 *
+	 * @param metrics
+	 *            the metrics, which may be shared with other servants.
+	 */
+	public BankAccountServant(Account account, DedupTable dedup,
+			ServerMetrics metrics) throws RemoteException {
+		this(account, dedup, metrics, new TransferLocks(1));
+	}
+
+	/**
+	 * Creates a BankAccount instance whose operations are ordered against
+	 * the transfers made through a TransferLocks.
+	 *
+	 * @param transfers
+	 *            the locks through which transfers on the account are made.
+	 */
+	public BankAccountServant(Account account, DedupTable dedup,
+			ServerMetrics metrics, TransferLocks transfers)
+			throws RemoteException {
+		this.fAccount = account;
+		this.fDedup = dedup;
+		this.fMetrics = metrics;
+		this.fTransfers = transfers;
 	}
 
 	/**
@@ -50,28 +113,33 @@ public class BankAccountServant extends UnicastRemoteObject implements BankAccou
 	 */
 	public Money getBalance() throws RemoteException {
 		/*
-		 * Return a separate copy of balance. 
+		 * Return a separate copy of balance.
 		 */
-		return new Money(fBalance);
+		return Money.fromCents(getBalanceCents());
 	}
 
 	/**
 	 * Returns the name of the account holder for this BankAccount instance.
 	 */
 	public String getName() throws RemoteException {
-		return fName;
+		markAccessed();
+		long start = System.nanoTime();
+		String name = fAccount.getName();
+		fMetrics.record(Operation.NAME, fAccount.getNumber(), start);
+		return name;
 	}
 
 	/**
 	 * Returns the unique number of this BankAccount object.
 	 */
 	public String getNumber() throws RemoteException {
-		return fNumber;
+		markAccessed();
+		return fAccount.getNumber();
 	}
 
 	/**
 	 * Attempts to deposit a sum of money into this BankAccount object.
-	 * 
+	 *
 	 * @param amount
 	 *            the sum of money to deposit.
 	 * @throws NegativeAmountException
@@ -79,16 +147,12 @@ public class BankAccountServant extends UnicastRemoteObject implements BankAccou
 	 *             the BankAccount object is unchanged.
 	 */
 	public void deposit(Money amount) throws NegativeAmountException {
-		/* Check that the amount to deposit is non-negative. */
-		if (amount.isNegative()) {
-			throw new NegativeAmountException();
-		}
-		fBalance.add(amount);
+		depositCents(amount.getTotalCents());
 	}
 
 	/**
 	 * Attempts to withdraw a sum of money from this BankAccount object.
-	 * 
+	 *
 	 * @param amount
 	 *            the sum of money to withdraw.
 	 * @throws NegativeAmountException
@@ -99,37 +163,157 @@ public class BankAccountServant extends UnicastRemoteObject implements BankAccou
 	 *             limit. In this case, the BankAccount object's state is
 	 *             unchanged.
 	 */
-	public void withdraw(Money amount) throws 
+	public void withdraw(Money amount) throws
 	NegativeAmountException, ExcessiveAmountException {
-		/* Check that the amount to withdraw is non-negative. */
-		if (amount.isNegative()) {
-			throw new NegativeAmountException();
+		withdrawCents(amount.getTotalCents());
+	}
+
+	/**
+	 * Returns the balance of this BankAccount object as a number of cents.
+	 */
+	public long getBalanceCents() throws RemoteException {
+		markAccessed();
+		long start = System.nanoTime();
+		long cents = fTransfers.getBalanceCents(fAccount);
+		fMetrics.record(Operation.BALANCE, fAccount.getNumber(), start);
+		return cents;
+	}
+
+	/**
+	 * Attempts to deposit a number of cents into this BankAccount object.
+	 *
+	 * @see #deposit(Money)
+	 */
+	public void depositCents(long cents) throws NegativeAmountException {
+		markAccessed();
+		long start = System.nanoTime();
+		Exception failure = null;
+		try {
+			fTransfers.depositCents(fAccount, cents);
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		} finally {
+			fMetrics.record(Operation.DEPOSIT, fAccount.getNumber(), start, failure);
 		}
+	}
 
-		/* Check that the amount does not exceed the maximum permitted. */
-		if (amount.compareTo(fMaxWithdrawal) > 0) {
-			throw new ExcessiveAmountException();
+	/**
+	 * Attempts to withdraw a number of cents from this BankAccount object.
+	 *
+	 * @see #withdraw(Money)
+	 */
+	public void withdrawCents(long cents) throws NegativeAmountException,
+			ExcessiveAmountException {
+		markAccessed();
+		long start = System.nanoTime();
+		Exception failure = null;
+		try {
+			fTransfers.withdrawCents(fAccount, cents);
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		} finally {
+			fMetrics.record(Operation.WITHDRAW, fAccount.getNumber(), start, failure);
 		}
+	}
+
+	/**
+	 * Applies each operation in a batch, in order, by calling deposit or
+	 * withdraw. An operation that is rejected is recorded in the returned
+	 * outcome array; it does not prevent later operations being applied.
+	 *
+	 * @param batch
+	 *            the operations to apply.
+	 * @return one OperationBatch outcome code per operation.
+	 */
+	public byte[] applyBatch(OperationBatch batch) throws RemoteException {
+		markAccessed();
+		long start = System.nanoTime();
+		byte[] outcome = fTransfers.applyBatch(fAccount, batch);
+		fMetrics.record(Operation.BATCH, fAccount.getNumber(), start, outcome);
+		return outcome;
+	}
+
+	/**
+	 * Deposits a number of cents at most once for an operation id.
+	 *
+	 * @see BankAccount#depositCentsOnce(long, long, long)
+	 */
+	public byte depositCentsOnce(long clientId, long sequence, long cents)
+			throws RemoteException {
+		markAccessed();
+		long start = System.nanoTime();
+		byte outcome = fDedup.apply(clientId, sequence, fTransfers,
+				fAccount, OperationBatch.DEPOSIT, cents);
+		fMetrics.record(Operation.DEPOSIT, fAccount.getNumber(), start, outcome);
+		return outcome;
+	}
+
+	/**
+	 * Withdraws a number of cents at most once for an operation id.
+	 *
+	 * @see BankAccount#withdrawCentsOnce(long, long, long)
+	 */
+	public byte withdrawCentsOnce(long clientId, long sequence, long cents)
+			throws RemoteException {
+		markAccessed();
+		long start = System.nanoTime();
+		byte outcome = fDedup.apply(clientId, sequence, fTransfers,
+				fAccount, OperationBatch.WITHDRAW, cents);
+		fMetrics.record(Operation.WITHDRAW, fAccount.getNumber(), start, outcome);
+		return outcome;
+	}
+
+	/**
+	 * Applies a batch at most once for an operation id.
+	 *
+	 * @see BankAccount#applyBatchOnce(long, long, OperationBatch)
+	 */
+	public byte[] applyBatchOnce(long clientId, long sequence,
+			OperationBatch batch) throws RemoteException {
+		markAccessed();
+		long start = System.nanoTime();
+		byte[] outcome = fDedup.apply(clientId, sequence, fTransfers,
+				fAccount, batch);
+		fMetrics.record(Operation.BATCH, fAccount.getNumber(), start, outcome);
+		return outcome;
+	}
+
+	/**
+	 * Clears the accessed mark, returning true if the servant has been called,
+	 * or handed out by getAccount, since the mark was last cleared.
+	 */
+	boolean clearAccessed() {
+		boolean accessed = fAccessed;
+		if (accessed) {
+			fAccessed = false;
+		}
+		return accessed;
+	}
+
+	/**
+	 * Marks the servant as accessed. The flag is only written when clear, so
+	 * that busy servants do not keep invalidating its cache line.
+	 */
+	void markAccessed() {
+		if (!fAccessed) {
+			fAccessed = true;
+		}
+	}
+
+	boolean isPinned() {
+		return fPinned;
+	}
 
-		fBalance.subtract(amount);
+	void pin() {
+		fPinned = true;
 	}
 
 	/**
 	 * Returns a string representation of a BankAccount object.
 	 */
 	public String toString() {
-		StringBuffer description = new StringBuffer();
-
-		description.append("[number=");
-		description.append(fNumber);
-		description.append(';');
-		description.append("name=");
-		description.append(fName);
-		description.append(';');
-		description.append("balance=");
-		description.append(fBalance);
-		description.append(";]");
-
-		return description.toString();
+		return fAccount.toString();
 	}
 }
@@ -0,0 +1,453 @@
+package server;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.Bank;
+import common.BankAccount;
+import common.ExcessiveAmountException;
+import common.Money;
+import common.NegativeAmountException;
+import common.NoSuchAccountException;
+import common.OperationBatch;
+import server.ServerMetrics.Operation;
+
+/**
+ * Class to represent a bank as a single remote object. A BankServant serves
+ * every account held in its AccountStore, addressing each by account number,
+ * so the number of exported objects does not grow with the number of
+ * accounts. Operations tagged with an operation id are applied through a
+ * DedupTable, which is shared with the BankAccountServants the BankServant
+ * exports. Every operation on a balance, including those of the exported
+ * servants, is made through one TransferLocks, so that transfers between
+ * accounts are atomic with respect to the other operations. Every operation
+ * is recorded in a ServerMetrics, which is also shared with those servants.
+ *
+ * A BankAccountServant is only created and exported when its account is first
+ * requested through getAccount(). Servants that are then left unused can be
+ * unexported again by unexportIdleAccounts(), either directly or from the
+ * thread started by startIdleUnexport(), so that a bank holding many accounts
+ * only keeps remote objects for those in use. A call on the stub of an
+ * unexported servant fails with a NoSuchObjectException, so clients that keep
+ * such stubs must ask getAccount() for a new one, as
+ * client.ExportedBankAccount does. Servants that are bound in a registry
+ * should instead be pinned with pinAccount().
+ */
+public class BankServant extends UnicastRemoteObject implements Bank {
+
+	/* Default bounds of the DedupTable. */
+	public static final int DEFAULT_DEDUP_CLIENTS = 1024;
+
+	public static final int DEFAULT_DEDUP_WINDOW = 1024;
+
+	private AccountStore fAccounts;
+
+	/*
+	 * BankAccountServants created for the getAccount() compatibility path.
+	 * Each account has at most one servant in the map at a time. Servants are
+	 * created and exported without the map's lock and added with
+	 * putIfAbsent(); they are handed out and removed while holding it.
+	 */
+	private ConcurrentHashMap<String, BankAccountServant> fServants;
+
+	private DedupTable fDedup;
+
+	private TransferLocks fTransfers;
+
+	private ServerMetrics fMetrics;
+
+	/**
+	 * Creates a BankServant exported on an anonymous port.
+	 *
+	 * @param accounts
+	 *            the accounts served by this bank.
+	 */
+	public BankServant(AccountStore accounts) throws RemoteException {
+		this(accounts, 0);
+	}
+
+	/**
+	 * Creates a BankServant exported on the specified port.
+	 *
+	 * @param accounts
+	 *            the accounts served by this bank.
+	 * @param port
+	 *            the port on which to accept remote calls, or zero for an
+	 *            anonymous port.
+	 */
+	public BankServant(AccountStore accounts, int port) throws RemoteException {
+		this(accounts, port, new DedupTable(DEFAULT_DEDUP_CLIENTS,
+				DEFAULT_DEDUP_WINDOW));
+	}
+
+	/**
+	 * Creates a BankServant exported on the specified port.
+	 *
+	 * @param dedup
+	 *            the table through which operations tagged with an operation
+	 *            id are applied.
+	 */
+	public BankServant(AccountStore accounts, int port, DedupTable dedup)
+			throws RemoteException {
+		this(accounts, port, dedup, new ServerMetrics());
+	}
+
+	/**
+	 * Creates a BankServant exported on the specified port.
+	 *
+	 * @param metrics
+	 *            the metrics in which operations are recorded.
+	 */
+	public BankServant(AccountStore accounts, int port, DedupTable dedup,
+			ServerMetrics metrics) throws RemoteException {
+		super(port);
+		this.fAccounts = accounts;
+		this.fDedup = dedup;
+		this.fMetrics = metrics;
+		this.fTransfers = new TransferLocks(TransferLocks.DEFAULT_STRIPES);
+		this.fServants = new ConcurrentHashMap<String, BankAccountServant>();
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public Money getBalance(String number) throws NoSuchAccountException {
+		return Money.fromCents(getBalanceCents(number));
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public String getName(String number) throws NoSuchAccountException {
+		long start = System.nanoTime();
+		Exception failure = null;
+		try {
+			return lookup(number).getName();
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		} finally {
+			fMetrics.record(Operation.NAME, number, start, failure);
+		}
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public void deposit(String number, Money amount)
+			throws NoSuchAccountException, NegativeAmountException {
+		depositCents(number, amount.getTotalCents());
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public void withdraw(String number, Money amount)
+			throws NoSuchAccountException, NegativeAmountException,
+			ExcessiveAmountException {
+		withdrawCents(number, amount.getTotalCents());
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public long getBalanceCents(String number) throws NoSuchAccountException {
+		long start = System.nanoTime();
+		Exception failure = null;
+		try {
+			return fTransfers.getBalanceCents(lookup(number));
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		} finally {
+			fMetrics.record(Operation.BALANCE, number, start, failure);
+		}
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public void depositCents(String number, long cents)
+			throws NoSuchAccountException, NegativeAmountException {
+		long start = System.nanoTime();
+		Exception failure = null;
+		try {
+			fTransfers.depositCents(lookup(number), cents);
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		} finally {
+			fMetrics.record(Operation.DEPOSIT, number, start, failure);
+		}
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public void withdrawCents(String number, long cents)
+			throws NoSuchAccountException, NegativeAmountException,
+			ExcessiveAmountException {
+		long start = System.nanoTime();
+		Exception failure = null;
+		try {
+			fTransfers.withdrawCents(lookup(number), cents);
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		} finally {
+			fMetrics.record(Operation.WITHDRAW, number, start, failure);
+		}
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public byte[] applyBatch(String number, OperationBatch batch)
+			throws NoSuchAccountException {
+		long start = System.nanoTime();
+		byte[] outcomes;
+		try {
+			outcomes = fTransfers.applyBatch(lookup(number), batch);
+		} catch (NoSuchAccountException e) {
+			fMetrics.record(Operation.BATCH, number, start, e);
+			throw e;
+		}
+		fMetrics.record(Operation.BATCH, number, start, outcomes);
+		return outcomes;
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public byte depositCentsOnce(String number, long clientId, long sequence,
+			long cents) throws NoSuchAccountException {
+		long start = System.nanoTime();
+		byte outcome;
+		try {
+			outcome = fDedup.apply(clientId, sequence, fTransfers,
+					lookup(number), OperationBatch.DEPOSIT, cents);
+		} catch (NoSuchAccountException e) {
+			fMetrics.record(Operation.DEPOSIT, number, start, e);
+			throw e;
+		}
+		fMetrics.record(Operation.DEPOSIT, number, start, outcome);
+		return outcome;
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public byte withdrawCentsOnce(String number, long clientId, long sequence,
+			long cents) throws NoSuchAccountException {
+		long start = System.nanoTime();
+		byte outcome;
+		try {
+			outcome = fDedup.apply(clientId, sequence, fTransfers,
+					lookup(number), OperationBatch.WITHDRAW, cents);
+		} catch (NoSuchAccountException e) {
+			fMetrics.record(Operation.WITHDRAW, number, start, e);
+			throw e;
+		}
+		fMetrics.record(Operation.WITHDRAW, number, start, outcome);
+		return outcome;
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public byte[] applyBatchOnce(String number, long clientId, long sequence,
+			OperationBatch batch) throws NoSuchAccountException {
+		long start = System.nanoTime();
+		byte[] outcomes;
+		try {
+			outcomes = fDedup.apply(clientId, sequence, fTransfers,
+					lookup(number), batch);
+		} catch (NoSuchAccountException e) {
+			fMetrics.record(Operation.BATCH, number, start, e);
+			throw e;
+		}
+		fMetrics.record(Operation.BATCH, number, start, outcomes);
+		return outcomes;
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public void transfer(String from, String to, Money amount)
+			throws NoSuchAccountException, NegativeAmountException,
+			ExcessiveAmountException {
+		transferCents(from, to, amount.getTotalCents());
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public void transferCents(String from, String to, long cents)
+			throws NoSuchAccountException, NegativeAmountException,
+			ExcessiveAmountException {
+		long start = System.nanoTime();
+		Exception failure = null;
+		try {
+			fTransfers.transferCents(lookup(from), lookup(to), cents);
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		} finally {
+			fMetrics.record(Operation.TRANSFER, from, start, failure);
+		}
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public byte transferCentsOnce(String from, String to, long clientId,
+			long sequence, long cents) throws NoSuchAccountException {
+		long start = System.nanoTime();
+		byte outcome;
+		try {
+			outcome = fDedup.apply(clientId, sequence, fTransfers,
+					lookup(from), lookup(to), cents);
+		} catch (NoSuchAccountException e) {
+			fMetrics.record(Operation.TRANSFER, from, start, e);
+			throw e;
+		}
+		fMetrics.record(Operation.TRANSFER, from, start, outcome);
+		return outcome;
+	}
+
+	/**
+	 * Returns a BankAccountServant for the specified account, exporting one
+	 * the first time the account is requested, or the first time since its
+	 * servant was unexported. A servant is exported without holding the lock
+	 * of fServants, so exports do not hold up other accounts; if two threads
+	 * export one for the same account, the servant that loses is unexported.
+	 *
+	 * @see Bank
+	 */
+	public BankAccount getAccount(String number) throws RemoteException,
+			NoSuchAccountException {
+		while (true) {
+			BankAccountServant servant = fServants.get(number);
+			if (servant == null) {
+				/* Starts out accessed, so it outlives the next idle check. */
+				BankAccountServant created = new BankAccountServant(
+						lookup(number), fDedup, fMetrics, fTransfers);
+				servant = fServants.putIfAbsent(number, created);
+				if (servant == null) {
+					return created;
+				}
+				try {
+					UnicastRemoteObject.unexportObject(created, true);
+				} catch (NoSuchObjectException e) {
+				}
+			}
+
+			synchronized (fServants) {
+				/* Retry if the servant was unexported in the meantime. */
+				if (fServants.get(number) == servant) {
+					/* Keep it from being unexported before it is used. */
+					servant.markAccessed();
+					return servant;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Exports the servant for the specified account, if it is not already
+	 * exported, and keeps it exported from then on. It is returned so that it
+	 * can be bound in a registry.
+	 */
+	public BankAccount pinAccount(String number) throws RemoteException,
+			NoSuchAccountException {
+		BankAccountServant servant = (BankAccountServant) getAccount(number);
+		synchronized (fServants) {
+			servant.pin();
+		}
+		return servant;
+	}
+
+	/**
+	 * Unexports the servants that have not been called or handed out by
+	 * getAccount() since the previous call, other than pinned servants. A
+	 * servant that is executing a call is not unexported.
+	 *
+	 * @return the number of servants unexported.
+	 */
+	public int unexportIdleAccounts() {
+		int unexported = 0;
+		for (Map.Entry<String, BankAccountServant> entry : fServants
+				.entrySet()) {
+			BankAccountServant servant = entry.getValue();
+			synchronized (fServants) {
+				if (servant.isPinned() || servant.clearAccessed()
+						|| fServants.get(entry.getKey()) != servant) {
+					continue;
+				}
+				try {
+					if (!UnicastRemoteObject.unexportObject(servant, false)) {
+						/* Calls in progress; try again next time. */
+						continue;
+					}
+				} catch (NoSuchObjectException e) {
+				}
+				fServants.remove(entry.getKey());
+				unexported++;
+			}
+		}
+		return unexported;
+	}
+
+	/**
+	 * Starts a daemon thread that calls unexportIdleAccounts() at a fixed
+	 * interval, so that a servant is unexported between one and two intervals
+	 * after it was last used.
+	 *
+	 * @param idleMillis
+	 *            the interval, in milliseconds.
+	 */
+	public void startIdleUnexport(final long idleMillis) {
+		if (idleMillis < 1) {
+			throw new IllegalArgumentException("Interval must be positive: "
+					+ idleMillis);
+		}
+		Thread reaper = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(idleMillis);
+						unexportIdleAccounts();
+					}
+				} catch (InterruptedException e) {
+				}
+			}
+		}, "BankServant idle unexport");
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	/**
+	 * Returns the number of BankAccountServants currently exported.
+	 */
+	public int getExportedAccountCount() {
+		return fServants.size();
+	}
+
+	/**
+	 * @see Bank
+	 */
+	public int getAccountCount() {
+		return fAccounts.size();
+	}
+
+	private Account lookup(String number) throws NoSuchAccountException {
+		Account account = fAccounts.get(number);
+		if (account == null) {
+			throw new NoSuchAccountException(number);
+		}
+		return account;
+	}
+}
@@ -0,0 +1,280 @@
+package server;
+
+import java.util.Arrays;
+
+import common.ExcessiveAmountException;
+import common.NegativeAmountException;
+import common.OperationBatch;
+
+/**
+ * Class that applies operations tagged with an operation id (a client id and
+ * a sequence number) at most once. For each client the table remembers the
+ * outcomes of the most recent operations in a DedupWindow, which holds them
+ * in fixed-size primitive arrays indexed by sequence number. A repeated
+ * operation returns the outcome recorded for the original; if the original
+ * is still being applied, the repeat waits for it. An operation whose
+ * sequence number has fallen out of its client's window is not applied and
+ * reports OperationBatch.EXPIRED.
+ *
+ * The table holds windows for a bounded number of clients and discards the
+ * window of the least recently active client when full, so a client that has
+ * been idle for long enough loses its protection against duplicates. The
+ * windows are found in an open-addressing table keyed by the long client id,
+ * and linked in order of activity, so finding a client's window allocates
+ * nothing.
+ */
+public class DedupTable {
+
+	/* Shared outcomes of single operations; never modified. */
+	private static final byte[] APPLIED = { OperationBatch.APPLIED };
+
+	private static final byte[] NEGATIVE = { OperationBatch.NEGATIVE };
+
+	private static final byte[] EXCESSIVE = { OperationBatch.EXCESSIVE };
+
+	/* A client's window and its neighbours in order of activity. */
+	private static class Client {
+		final long id;
+
+		final DedupWindow window;
+
+		Client newer;
+
+		Client older;
+
+		Client(long id, DedupWindow window) {
+			this.id = id;
+			this.window = window;
+		}
+	}
+
+	private final int fWindowSize;
+
+	private final int fMaxClients;
+
+	/* Open-addressing table of clients; guarded by this. */
+	private final long[] fIds;
+
+	private final Client[] fClients;
+
+	private int fClientCount;
+
+	/* Sentinels of the order of activity, most recently active first. */
+	private final Client fNewest = new Client(0, null);
+
+	private final Client fOldest = new Client(0, null);
+
+	/**
+	 * Creates a DedupTable.
+	 *
+	 * @param maxClients
+	 *            the number of clients whose windows are held.
+	 * @param windowSize
+	 *            the number of recent operations remembered per client,
+	 *            rounded up to a power of two. A client that keeps more
+	 *            operations than this outstanding may see EXPIRED outcomes.
+	 */
+	public DedupTable(int maxClients, int windowSize) {
+		if (maxClients < 1 || maxClients > 1 << 29) {
+			throw new IllegalArgumentException(
+					"Number of clients must be between 1 and " + (1 << 29)
+							+ ": " + maxClients);
+		}
+		if (windowSize < 1) {
+			throw new IllegalArgumentException(
+					"Window size must be positive: " + windowSize);
+		}
+		fWindowSize = windowSize;
+		fMaxClients = maxClients;
+		/* Keep the table at most half full. */
+		int capacity = Integer.highestOneBit(Math.max(8, maxClients) * 2 - 1) << 1;
+		fIds = new long[capacity];
+		fClients = new Client[capacity];
+		fNewest.older = fOldest;
+		fOldest.newer = fNewest;
+	}
+
+	/**
+	 * Deposits (operation OperationBatch.DEPOSIT) or withdraws (WITHDRAW) an
+	 * amount, through the specified TransferLocks, at most once for the
+	 * operation id.
+	 *
+	 * @return the outcome code of the operation.
+	 */
+	public byte apply(long clientId, long sequence, TransferLocks transfers,
+			Account account, byte operation, long cents) {
+		DedupWindow window = window(clientId);
+		byte[] outcomes = window.begin(sequence);
+		if (outcomes != null) {
+			return outcomes == DedupWindow.EXPIRED ? OperationBatch.EXPIRED
+					: outcomes[0];
+		}
+
+		boolean complete = false;
+		try {
+			try {
+				if (operation == OperationBatch.DEPOSIT) {
+					transfers.depositCents(account, cents);
+				} else {
+					transfers.withdrawCents(account, cents);
+				}
+				outcomes = APPLIED;
+			} catch (NegativeAmountException e) {
+				outcomes = NEGATIVE;
+			} catch (ExcessiveAmountException e) {
+				outcomes = EXCESSIVE;
+			}
+			window.complete(sequence, outcomes);
+			complete = true;
+			return outcomes[0];
+		} finally {
+			if (!complete) {
+				/* Let a retry apply the operation. */
+				window.abandon(sequence);
+			}
+		}
+	}
+
+	/**
+	 * Applies a batch, through the specified TransferLocks, at most once for
+	 * the operation id.
+	 *
+	 * @return one outcome code per operation. The array must not be modified.
+	 */
+	public byte[] apply(long clientId, long sequence, TransferLocks transfers,
+			Account account, OperationBatch batch) {
+		DedupWindow window = window(clientId);
+		byte[] outcomes = window.begin(sequence);
+		if (outcomes == DedupWindow.EXPIRED) {
+			outcomes = new byte[batch.size()];
+			Arrays.fill(outcomes, OperationBatch.EXPIRED);
+			return outcomes;
+		}
+		if (outcomes != null) {
+			return outcomes;
+		}
+
+		boolean complete = false;
+		try {
+			outcomes = transfers.applyBatch(account, batch);
+			window.complete(sequence, outcomes);
+			complete = true;
+			return outcomes;
+		} finally {
+			if (!complete) {
+				window.abandon(sequence);
+			}
+		}
+	}
+
+	/**
+	 * Transfers an amount between two accounts, through the specified
+	 * TransferLocks, at most once for the operation id.
+	 *
+	 * @return the outcome code of the transfer.
+	 */
+	public byte apply(long clientId, long sequence, TransferLocks transfers,
+			Account from, Account to, long cents) {
+		DedupWindow window = window(clientId);
+		byte[] outcomes = window.begin(sequence);
+		if (outcomes != null) {
+			return outcomes == DedupWindow.EXPIRED ? OperationBatch.EXPIRED
+					: outcomes[0];
+		}
+
+		boolean complete = false;
+		try {
+			try {
+				transfers.transferCents(from, to, cents);
+				outcomes = APPLIED;
+			} catch (NegativeAmountException e) {
+				outcomes = NEGATIVE;
+			} catch (ExcessiveAmountException e) {
+				outcomes = EXCESSIVE;
+			}
+			window.complete(sequence, outcomes);
+			complete = true;
+			return outcomes[0];
+		} finally {
+			if (!complete) {
+				window.abandon(sequence);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of clients whose windows are held.
+	 */
+	public synchronized int getClientCount() {
+		return fClientCount;
+	}
+
+	/*
+	 * Returns the window of a client, creating it if necessary, and marks the
+	 * client as the most recently active.
+	 */
+	private synchronized DedupWindow window(long clientId) {
+		int mask = fClients.length - 1;
+		int i = slot(clientId) & mask;
+		Client client;
+		while ((client = fClients[i]) != null && fIds[i] != clientId) {
+			i = (i + 1) & mask;
+		}
+		if (client == null) {
+			if (fClientCount == fMaxClients) {
+				Client eldest = fOldest.newer;
+				unlink(eldest);
+				remove(eldest.id);
+				/* The entry for the new client may have moved. */
+				i = slot(clientId) & mask;
+				while (fClients[i] != null) {
+					i = (i + 1) & mask;
+				}
+			}
+			client = new Client(clientId, new DedupWindow(fWindowSize));
+			fIds[i] = clientId;
+			fClients[i] = client;
+			fClientCount++;
+		} else {
+			unlink(client);
+		}
+		client.older = fNewest.older;
+		client.newer = fNewest;
+		fNewest.older.newer = client;
+		fNewest.older = client;
+		return client.window;
+	}
+
+	/*
+	 * Removes a client from the table, moving back any later entries of its
+	 * probe sequence so that lookups need no markers for removed entries.
+	 */
+	private void remove(long clientId) {
+		int mask = fClients.length - 1;
+		int i = slot(clientId) & mask;
+		while (fIds[i] != clientId) {
+			i = (i + 1) & mask;
+		}
+		for (int j = (i + 1) & mask; fClients[j] != null; j = (j + 1) & mask) {
+			int home = slot(fIds[j]) & mask;
+			/* Move the entry at j to i unless its home lies in (i, j]. */
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				fIds[i] = fIds[j];
+				fClients[i] = fClients[j];
+				i = j;
+			}
+		}
+		fClients[i] = null;
+		fClientCount--;
+	}
+
+	private static void unlink(Client client) {
+		client.older.newer = client.newer;
+		client.newer.older = client.older;
+	}
+
+	private static int slot(long clientId) {
+		long h = clientId * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
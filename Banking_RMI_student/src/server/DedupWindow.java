@@ -0,0 +1,97 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Class that records the outcomes of one client's most recent operations,
+ * for DedupTable. The sequence numbers and outcomes are held in two arrays
+ * used as a ring indexed by the low bits of the sequence number, so recording
+ * an operation allocates nothing; an operation's entry is reused by the
+ * operation whose sequence number is greater by the window size.
+ */
+class DedupWindow {
+
+	/* Returned by begin() for an operation older than the window. */
+	static final byte[] EXPIRED = new byte[0];
+
+	/* Sequence number held by each entry, or -1 for an unused entry. */
+	private final long[] fSequences;
+
+	/* Outcomes for each entry, or null while the operation is in progress. */
+	private final byte[][] fOutcomes;
+
+	private final int fMask;
+
+	/* Highest sequence number begun. */
+	private long fHighest = -1;
+
+	DedupWindow(int size) {
+		int capacity = Integer.highestOneBit(size);
+		if (capacity < size) {
+			capacity <<= 1;
+		}
+		fSequences = new long[capacity];
+		Arrays.fill(fSequences, -1);
+		fOutcomes = new byte[capacity][];
+		fMask = capacity - 1;
+	}
+
+	/**
+	 * Starts an operation. Returns null if the operation is new, in which case
+	 * the caller must apply it and then call complete() or abandon(); the
+	 * recorded outcomes if it has been applied before, waiting for them if it
+	 * is in progress; or EXPIRED if it is older than the window.
+	 */
+	synchronized byte[] begin(long sequence) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				if (sequence < 0 || sequence <= fHighest - fSequences.length) {
+					return EXPIRED;
+				}
+				int index = (int) sequence & fMask;
+				if (fSequences[index] != sequence) {
+					fSequences[index] = sequence;
+					fOutcomes[index] = null;
+					fHighest = Math.max(fHighest, sequence);
+					return null;
+				}
+				if (fOutcomes[index] != null) {
+					return fOutcomes[index];
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Records the outcomes of an operation begun with begin().
+	 */
+	synchronized void complete(long sequence, byte[] outcomes) {
+		int index = (int) sequence & fMask;
+		if (fSequences[index] == sequence) {
+			fOutcomes[index] = outcomes;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Forgets an operation begun with begin() that could not be applied, so
+	 * that a repeat of it is applied afresh.
+	 */
+	synchronized void abandon(long sequence) {
+		int index = (int) sequence & fMask;
+		if (fSequences[index] == sequence && fOutcomes[index] == null) {
+			fSequences[index] = -1;
+		}
+		notifyAll();
+	}
+}
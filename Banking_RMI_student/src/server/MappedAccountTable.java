@@ -0,0 +1,472 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class to represent a store of accounts held in a memory-mapped file instead
+ * of on the heap. Each account occupies a fixed-width slot holding its
+ * balance, withdrawal limit, number and holder's name, and an open-addressing
+ * hash index in the same file maps account numbers to slots. Opening an
+ * existing table only maps the file, so the time taken and the heap used do
+ * not grow with the number of accounts; the Accounts returned by get() are
+ * short-lived views of their slots, which decode the number and name only
+ * if they are asked for, so an operation on a balance allocates nothing but
+ * the view. Numbers are matched against the slots character by character;
+ * only a number with characters outside ASCII is encoded to compare it.
+ *
+ * Balances are updated in place with atomic VarHandle operations on the
+ * mapped memory, so concurrent calls need no locking. Adding an account is
+ * serialized; its slot is filled and counted before its index entry is
+ * published, so lookups never see a partly written account and the count
+ * never misses an account that can be found, even if the process stops
+ * between the two. Updates reach the file when the
+ * operating system writes the mapped pages back, and at the latest when the
+ * table is forced or closed.
+ *
+ * File layout: a HEADER_SIZE header, the index of int entries (slot + 1, or
+ * zero for an empty entry), then the slots. Values are in the byte order of
+ * the machine that created the table.
+ */
+public class MappedAccountTable implements AccountStore, Closeable {
+
+	/** Longest account number, in bytes of UTF-8, that a slot can hold. */
+	public static final int MAX_NUMBER_LENGTH = 15;
+
+	/** Longest holder's name, in bytes of UTF-8, that a slot can hold. */
+	public static final int MAX_NAME_LENGTH = 31;
+
+	/* "BACT" */
+	private static final int MAGIC = 0x42414354;
+
+	private static final int VERSION = 1;
+
+	/* Reads back differently on a machine of the other byte order. */
+	private static final int BYTE_ORDER_MARK = 0x01020304;
+
+	/* Header layout. */
+	private static final int HEADER_SIZE = 64;
+
+	private static final int MAX_ACCOUNTS_OFFSET = 16;
+
+	private static final int INDEX_CAPACITY_OFFSET = 24;
+
+	private static final int COUNT_OFFSET = 32;
+
+	/* Slot layout. */
+	private static final int SLOT_SIZE = 64;
+
+	private static final int BALANCE = 0;
+
+	private static final int MAX_WITHDRAWAL = 8;
+
+	private static final int NUMBER_LENGTH = 16;
+
+	private static final int NUMBER = 17;
+
+	private static final int NAME_LENGTH = 32;
+
+	private static final int NAME = 33;
+
+	/*
+	 * The file is mapped in segments of 1GB. Slots and index entries are
+	 * aligned to their size, so none straddles two segments.
+	 */
+	private static final int SEGMENT_SHIFT = 30;
+
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+	private static final VarHandle LONGS = MethodHandles
+			.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private static final VarHandle INTS = MethodHandles
+			.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private final FileChannel fChannel;
+
+	private final MappedByteBuffer[] fSegments;
+
+	private final int fMaxAccounts;
+
+	private final int fIndexMask;
+
+	private final long fSlotsOffset;
+
+	/* Number of accounts; written only while holding the lock of this table. */
+	private volatile int fCount;
+
+	private MappedAccountTable(FileChannel channel) throws IOException {
+		fChannel = channel;
+		long size = channel.size();
+		fSegments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+		for (int i = 0; i < fSegments.length; i++) {
+			long start = (long) i << SEGMENT_SHIFT;
+			fSegments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+					Math.min(SEGMENT_MASK + 1, size - start));
+			fSegments[i].order(ByteOrder.nativeOrder());
+		}
+
+		ByteBuffer header = fSegments[0];
+		if (header.getInt(0) != MAGIC) {
+			throw new IOException("Not an account table");
+		}
+		if (header.getInt(8) != BYTE_ORDER_MARK) {
+			throw new IOException("Account table has a different byte order");
+		}
+		if (header.getInt(4) != VERSION || header.getInt(12) != SLOT_SIZE) {
+			throw new IOException("Unsupported account table version "
+					+ header.getInt(4));
+		}
+		fMaxAccounts = (int) header.getLong(MAX_ACCOUNTS_OFFSET);
+		int indexCapacity = (int) header.getLong(INDEX_CAPACITY_OFFSET);
+		fIndexMask = indexCapacity - 1;
+		fSlotsOffset = HEADER_SIZE + (long) indexCapacity * 4;
+		fCount = (int) header.getLong(COUNT_OFFSET);
+		if (fSlotsOffset + (long) fMaxAccounts * SLOT_SIZE > size) {
+			throw new IOException("Account table is truncated");
+		}
+	}
+
+	/**
+	 * Creates an empty table in a new file.
+	 *
+	 * @param maxAccounts
+	 *            the number of accounts the table can hold.
+	 * @throws IOException
+	 *             if the file exists or cannot be created.
+	 */
+	public static MappedAccountTable create(String filename, int maxAccounts)
+			throws IOException {
+		if (maxAccounts < 1) {
+			throw new IllegalArgumentException(
+					"Maximum number of accounts must be positive: "
+							+ maxAccounts);
+		}
+		/* Keep the index at most half full. */
+		long indexCapacity = Math.max(16,
+				Long.highestOneBit((long) maxAccounts * 2 - 1) << 1);
+		if (indexCapacity > 1 << 30) {
+			throw new IllegalArgumentException("Too many accounts: "
+					+ maxAccounts);
+		}
+		long size = HEADER_SIZE + indexCapacity * 4 + (long) maxAccounts
+				* SLOT_SIZE;
+
+		FileChannel channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+					ByteOrder.nativeOrder());
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putInt(8, BYTE_ORDER_MARK);
+			header.putInt(12, SLOT_SIZE);
+			header.putLong(MAX_ACCOUNTS_OFFSET, maxAccounts);
+			header.putLong(INDEX_CAPACITY_OFFSET, indexCapacity);
+			header.putLong(COUNT_OFFSET, 0);
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			/* Extend the file; the index and slots read as zero. */
+			channel.write(ByteBuffer.allocate(1), size - 1);
+			return new MappedAccountTable(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens an existing table.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be opened or is not an account table.
+	 */
+	public static MappedAccountTable open(String filename) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (channel.size() < HEADER_SIZE) {
+				throw new IOException(filename + " is not an account table");
+			}
+			return new MappedAccountTable(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Adds an account to the table, copying its current state into a slot.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the table already holds an account with the same number,
+	 *             or the number or name is too long for a slot.
+	 * @throws IllegalStateException
+	 *             if the table is full.
+	 */
+	public synchronized void add(Account account) {
+		byte[] number = account.getNumber().getBytes(StandardCharsets.UTF_8);
+		byte[] name = account.getName().getBytes(StandardCharsets.UTF_8);
+		if (number.length > MAX_NUMBER_LENGTH) {
+			throw new IllegalArgumentException("Account number too long: "
+					+ account.getNumber());
+		}
+		if (name.length > MAX_NAME_LENGTH) {
+			throw new IllegalArgumentException("Account name too long: "
+					+ account.getName());
+		}
+		int entry = find(account.getNumber());
+		if (entry >= 0) {
+			throw new IllegalArgumentException("Duplicate account number: "
+					+ account.getNumber());
+		}
+		int slot = fCount;
+		if (slot == fMaxAccounts) {
+			throw new IllegalStateException("Account table is full ("
+					+ fMaxAccounts + " accounts)");
+		}
+
+		long offset = fSlotsOffset + (long) slot * SLOT_SIZE;
+		ByteBuffer segment = segment(offset);
+		int position = position(offset);
+		segment.putLong(position + BALANCE, account.getBalanceCents());
+		segment.putLong(position + MAX_WITHDRAWAL, account
+				.getMaxWithdrawalCents());
+		segment.put(position + NUMBER_LENGTH, (byte) number.length);
+		for (int i = 0; i < number.length; i++) {
+			segment.put(position + NUMBER + i, number[i]);
+		}
+		segment.put(position + NAME_LENGTH, (byte) name.length);
+		for (int i = 0; i < name.length; i++) {
+			segment.put(position + NAME + i, name[i]);
+		}
+
+		/* Count the slot, then publish it. */
+		fSegments[0].putLong(COUNT_OFFSET, slot + 1);
+		fCount = slot + 1;
+		long indexOffset = HEADER_SIZE + (long) (-entry - 1) * 4;
+		INTS.setRelease(segment(indexOffset), position(indexOffset), slot + 1);
+	}
+
+	/**
+	 * Returns a view of the account with the specified number, or null if
+	 * the table holds no such account.
+	 */
+	public Account get(String number) {
+		int entry = find(number);
+		if (entry < 0) {
+			return null;
+		}
+		long indexOffset = HEADER_SIZE + (long) entry * 4;
+		int slot = (int) INTS.getAcquire(segment(indexOffset),
+				position(indexOffset)) - 1;
+		return view(slot, number);
+	}
+
+	/**
+	 * Returns the number of accounts held in the table.
+	 */
+	public int size() {
+		return fCount;
+	}
+
+	/**
+	 * Returns the number of accounts the table can hold.
+	 */
+	public int getMaxAccounts() {
+		return fMaxAccounts;
+	}
+
+	/**
+	 * Returns views of the accounts held in the table, in the order in which
+	 * they were added.
+	 */
+	public List<Account> accounts() {
+		int count = fCount;
+		List<Account> accounts = new ArrayList<Account>(count);
+		for (int slot = 0; slot < count; slot++) {
+			accounts.add(view(slot, null));
+		}
+		return accounts;
+	}
+
+	/**
+	 * Writes any changes to the mapped file back to the storage device.
+	 */
+	public void force() {
+		for (MappedByteBuffer segment : fSegments) {
+			segment.force();
+		}
+	}
+
+	/**
+	 * Forces the table and closes the file. The table must not be used
+	 * afterwards.
+	 */
+	public void close() throws IOException {
+		force();
+		fChannel.close();
+	}
+
+	/*
+	 * Returns the index entry holding the specified account number or, if
+	 * there is none, -(e + 1) where e is the empty entry at which the number
+	 * would be inserted.
+	 */
+	private int find(String number) {
+		int h = number.hashCode() * 0x9E3779B9;
+		int entry = (h ^ (h >>> 16)) & fIndexMask;
+		while (true) {
+			long indexOffset = HEADER_SIZE + (long) entry * 4;
+			int slot = (int) INTS.getAcquire(segment(indexOffset),
+					position(indexOffset)) - 1;
+			if (slot < 0) {
+				return -entry - 1;
+			}
+			if (numberEquals(slot, number)) {
+				return entry;
+			}
+			entry = (entry + 1) & fIndexMask;
+		}
+	}
+
+	/*
+	 * Returns true if the slot holds the specified number. An ASCII number
+	 * is compared without encoding it, since each character is then a single
+	 * byte of UTF-8.
+	 */
+	private boolean numberEquals(int slot, String number) {
+		long offset = fSlotsOffset + (long) slot * SLOT_SIZE;
+		ByteBuffer segment = segment(offset);
+		int position = position(offset);
+		int length = segment.get(position + NUMBER_LENGTH);
+		for (int i = 0; i < number.length(); i++) {
+			char c = number.charAt(i);
+			if (c >= 0x80) {
+				return bytesEqual(segment, position,
+						number.getBytes(StandardCharsets.UTF_8));
+			}
+			if (i >= length || segment.get(position + NUMBER + i) != c) {
+				return false;
+			}
+		}
+		return length == number.length();
+	}
+
+	private static boolean bytesEqual(ByteBuffer segment, int position,
+			byte[] bytes) {
+		if (segment.get(position + NUMBER_LENGTH) != bytes.length) {
+			return false;
+		}
+		for (int i = 0; i < bytes.length; i++) {
+			if (segment.get(position + NUMBER + i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Returns a view of a slot. The number, if known, is that of the slot,
+	 * and saves decoding it.
+	 */
+	private Account view(int slot, String number) {
+		long offset = fSlotsOffset + (long) slot * SLOT_SIZE;
+		ByteBuffer segment = segment(offset);
+		int position = position(offset);
+		return new MappedAccount(segment, position, number, segment
+				.getLong(position + MAX_WITHDRAWAL));
+	}
+
+	/*
+	 * Decodes a string held as a length byte followed by UTF-8 bytes.
+	 */
+	private static String string(ByteBuffer segment, int position) {
+		byte[] bytes = new byte[segment.get(position)];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = segment.get(position + 1 + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private ByteBuffer segment(long offset) {
+		return fSegments[(int) (offset >>> SEGMENT_SHIFT)];
+	}
+
+	private static int position(long offset) {
+		return (int) (offset & SEGMENT_MASK);
+	}
+
+	/*
+	 * An Account whose balance is held in a slot of the mapped file. The
+	 * number and name are decoded from the slot when first asked for; a
+	 * string decoded twice by racing threads is equal either way.
+	 */
+	private static class MappedAccount extends Account {
+		private final ByteBuffer fSegment;
+
+		private final int fPosition;
+
+		private String fNumber;
+
+		private String fName;
+
+		MappedAccount(ByteBuffer segment, int position, String number,
+				long maxWithdrawalCents) {
+			super(null, null, maxWithdrawalCents, null);
+			fSegment = segment;
+			fPosition = position;
+			fNumber = number;
+		}
+
+		public String getNumber() {
+			String number = fNumber;
+			if (number == null) {
+				number = string(fSegment, fPosition + NUMBER_LENGTH);
+				fNumber = number;
+			}
+			return number;
+		}
+
+		public String getName() {
+			String name = fName;
+			if (name == null) {
+				name = string(fSegment, fPosition + NAME_LENGTH);
+				fName = name;
+			}
+			return name;
+		}
+
+		public long getBalanceCents() {
+			return (long) LONGS.getVolatile(fSegment, fPosition + BALANCE);
+		}
+
+		/*
+		 * Applies the change with compare-and-set, so that a result outside
+		 * the range of a long throws instead of wrapping around.
+		 */
+		protected void addCents(long cents) {
+			while (true) {
+				long current = (long) LONGS.getVolatile(fSegment, fPosition
+						+ BALANCE);
+				if (LONGS.compareAndSet(fSegment, fPosition + BALANCE,
+						current, Math.addExact(current, cents))) {
+					return;
+				}
+			}
+		}
+	}
+}
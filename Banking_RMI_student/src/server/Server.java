@@ -1,22 +1,91 @@
 package server;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
+
+import javax.management.JMException;
 
 import common.IllegalMoneyException;
 import common.Money;
+import common.Bank;
 import common.BankAccount;
+import common.NoSuchAccountException;
 
 public class Server {
 
 	public static void main(String[] args) {
-		
+
 		String registryHost = null;
 		String registryPort = null;
 		int serverPort = 0;
-		
+
+		/*
+		 * When set (-Dserver.exportAccounts=true), each account is also
+		 * exported as its own BankAccount object and registered under
+		 * BankAccount.NAME_PREFIX followed by its account number, for clients
+		 * that look accounts up individually.
+		 */
+		boolean exportAccounts = Boolean.getBoolean("server.exportAccounts");
+
+		/*
+		 * With -Dserver.wal=<file>, accepted deposits and withdrawals are
+		 * recorded in a write-ahead log, which is replayed at startup.
+		 * server.durability selects when a call returns: "batch" (default)
+		 * once its record has been forced to disk, "window" once it has been
+		 * written, with the file forced every server.walWindow milliseconds,
+		 * or "async" without waiting for the record.
+		 */
+		String walFile = System.getProperty("server.wal", "");
+		WriteAheadLog.Durability durability = WriteAheadLog.Durability
+				.valueOf(System.getProperty("server.durability", "batch")
+						.toUpperCase());
+		long walWindow = Long.getLong("server.walWindow", 10);
+
+		/*
+		 * With -Dserver.accountTable=<file>, accounts are held in a
+		 * memory-mapped MappedAccountTable instead of on the heap. An
+		 * existing table is reopened as it stands; otherwise a table for
+		 * server.tableCapacity accounts is created holding the default
+		 * accounts. The table itself persists the balances, so it cannot be
+		 * combined with the write-ahead log, whose replay assumes that every
+		 * account starts from its initial balance.
+		 */
+		String tableFile = System.getProperty("server.accountTable", "");
+		int tableCapacity = Integer.getInteger("server.tableCapacity", 1000000);
+
+		/*
+		 * With -Dserver.catalog=<file>, the accounts are loaded from an
+		 * AccountCatalog file, parsed on server.catalogThreads threads,
+		 * instead of the default accounts being created. A reopened account
+		 * table is not reloaded.
+		 */
+		String catalogFile = System.getProperty("server.catalog", "");
+		int catalogThreads = Integer.getInteger("server.catalogThreads",
+				Runtime.getRuntime().availableProcessors());
+
+		/*
+		 * The BankAccount objects handed out by the Bank are exported when
+		 * first requested. With -Dserver.idleTimeout=<ms>, those that are not
+		 * used for that long are unexported again, and clients holding their
+		 * stubs must request new ones (see client.ExportedBankAccount).
+		 * Accounts registered individually stay exported.
+		 */
+		long idleTimeout = Long.getLong("server.idleTimeout", 0);
+
+		/*
+		 * Deposits and withdrawals tagged with an operation id are applied
+		 * at most once. The outcomes of the last server.dedupWindow
+		 * operations are remembered for each of up to server.dedupClients
+		 * clients.
+		 */
+		int dedupClients = Integer.getInteger("server.dedupClients",
+				BankServant.DEFAULT_DEDUP_CLIENTS);
+		int dedupWindow = Integer.getInteger("server.dedupWindow",
+				BankServant.DEFAULT_DEDUP_WINDOW);
+
 		try {
 			// Read command line arguments for the lookup service's machine and port.
 			if(args.length != 3) {
@@ -25,27 +94,124 @@ public class Server {
 			registryHost = args[0];
 			registryPort = args[1];
 			serverPort = Integer.parseInt(args[2]);
-			
-			// Create remote BankAccount instances.
-			BankAccount acc1 = new BankAccountServant(
-					new Money(), "Brent, D.", "67832189", new Money(1500, 00));
-			BankAccount acc2 = new BankAccountServant(
-					new Money(), "Tinsley, D.", "69826344", new Money(100, 00));
-			BankAccount acc3 = new BankAccountServant(
-					new Money(), "Keenan, G.", "61198701", new Money(250, 00));
-			
-			// Register BankAccounts with the lookup service.
-			Naming.rebind("//" + registryHost + ":" + registryPort + "/" + 
-					"1", acc1);
-			Naming.rebind("//" + registryHost + ":" + registryPort + "/" + 
-					"2", acc2);
-			Naming.rebind("//" + registryHost + ":" + registryPort + "/" + 
-					"3", acc3);
-			
-			
-			// === YOUR CODE HERE ===
-			
-			System.out.println("Bank account objects exported.");
+
+			if (walFile.length() > 0 && tableFile.length() > 0) {
+				System.err.println("server.wal cannot be combined with server.accountTable.");
+				System.exit(1);
+			}
+
+			// Open the write-ahead log, if any.
+			WriteAheadLog log = null;
+			if (walFile.length() > 0) {
+				log = WriteAheadLog.open(walFile, durability, walWindow);
+			}
+
+			// Open or create the accounts held by the bank.
+			AccountStore accounts;
+			boolean addDefaultAccounts = true;
+			if (tableFile.length() > 0) {
+				final MappedAccountTable table;
+				if (new File(tableFile).exists()) {
+					table = MappedAccountTable.open(tableFile);
+					addDefaultAccounts = false;
+					System.out.println("Opened account table " + tableFile
+							+ " holding " + table.size() + " accounts.");
+				} else {
+					table = MappedAccountTable.create(tableFile, tableCapacity);
+				}
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					public void run() {
+						try {
+							table.close();
+						} catch (IOException e) {
+							System.err.println("Unable to close account table: " + e);
+						}
+					}
+				});
+				accounts = table;
+			} else {
+				accounts = new AccountTable();
+			}
+			if (addDefaultAccounts && catalogFile.length() > 0) {
+				long start = System.nanoTime();
+				long loaded = 0;
+				try {
+					loaded = AccountCatalog.load(catalogFile, accounts, log,
+							catalogThreads);
+				} catch (IllegalArgumentException e) {
+					System.err.println("Unable to load account catalog: "
+							+ e.getMessage());
+					// Do not leave a partly loaded table to be reopened.
+					if (tableFile.length() > 0) {
+						new File(tableFile).delete();
+					}
+					System.exit(1);
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.gc();
+				Runtime runtime = Runtime.getRuntime();
+				long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+				System.out.println("Loaded " + loaded + " accounts from "
+						+ catalogFile + " in "
+						+ String.format("%.2f", seconds) + " s, heap used "
+						+ heapUsed / (1024 * 1024) + " MB.");
+			} else if (addDefaultAccounts) {
+				accounts.add(new Account(
+						new Money(), "Brent, D.", "67832189", new Money(1500, 00), log));
+				accounts.add(new Account(
+						new Money(), "Tinsley, D.", "69826344", new Money(100, 00), log));
+				accounts.add(new Account(
+						new Money(), "Keenan, G.", "61198701", new Money(250, 00), log));
+			}
+
+			// Restore the balances recorded in the log before serving calls.
+			if (log != null) {
+				long recovered = log.recover(accounts);
+				System.out.println("Recovered " + recovered
+						+ " operations from " + walFile + " (durability "
+						+ durability.name().toLowerCase() + ").");
+				final WriteAheadLog shutdownLog = log;
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					public void run() {
+						try {
+							shutdownLog.close();
+						} catch (IOException e) {
+							System.err.println("Unable to close write-ahead log: " + e);
+						}
+					}
+				});
+			}
+
+			// Publish the server's metrics to JMX tools.
+			ServerMetrics metrics = new ServerMetrics();
+			try {
+				metrics.register();
+			} catch (JMException e) {
+				System.err.println("Unable to register server metrics: " + e);
+			}
+
+			// Register the Bank with the lookup service.
+			BankServant bank = new BankServant(accounts, serverPort,
+					new DedupTable(dedupClients, dedupWindow), metrics);
+			Naming.rebind("//" + registryHost + ":" + registryPort + "/" +
+					Bank.NAME, bank);
+
+			// Optionally register individual BankAccounts as well, each under
+			// a name that includes its account number.
+			if (exportAccounts) {
+				for (Account account : accounts.accounts()) {
+					BankAccount acc = bank.pinAccount(account.getNumber());
+					Naming.rebind("//" + registryHost + ":" + registryPort + "/" +
+							BankAccount.NAME_PREFIX + account.getNumber(), acc);
+				}
+			}
+
+			if (idleTimeout > 0) {
+				bank.startIdleUnexport(idleTimeout);
+			}
+
+			System.out.println("Bank object exported serving "
+					+ accounts.size() + " accounts.");
 		} catch(RemoteException e) {
 			e.printStackTrace();
 		} catch(IllegalMoneyException e) {
@@ -53,6 +219,11 @@ public class Server {
 		} catch (MalformedURLException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} catch (NoSuchAccountException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			System.err.println("Unable to open account storage: " + e);
+			System.exit(1);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,551 @@
+package server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import common.ExcessiveAmountException;
+import common.LatencyHistogram;
+import common.NegativeAmountException;
+import common.NoSuchAccountException;
+import common.OperationBatch;
+
+/**
+ * Class that records the latency and outcome of every operation served by
+ * BankServant and BankAccountServant, and the accounts they are made on.
+ *
+ * Each thread that serves calls records into a Recorder of its own, found
+ * through a ThreadLocal, holding a LatencyHistogram per operation, rejection
+ * counters and a table of per-account counters. Recording allocates nothing
+ * and touches no memory written by another thread, so it adds no contention
+ * between RMI threads. The readers of the ServerMetricsMBean attributes merge
+ * every Recorder on each read. Resetting the metrics records the merged
+ * counts as a baseline that later reads subtract, so a reset never writes to
+ * a Recorder. RMI creates and retires connection threads as connections come
+ * and go, so once the thread of a Recorder has ended, its counts are folded
+ * into a single set of retired counts and the Recorder is dropped.
+ *
+ * Account usage is counted in a fixed table of slots. An account hashes to a
+ * set of HOT_WAYS slots, and is counted in the slot holding its number. An
+ * account that finds every slot of its set taken by others replaces the one
+ * with the fewest operations, whose count is then lost. A count therefore
+ * only ever includes operations on its own account, but may miss some of
+ * them; the busiest accounts, which are rarely replaced, are reported
+ * accurately. Each thread clears its table when it first records after a
+ * reset.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+	/**
+	 * The kinds of operation measured.
+	 */
+	public enum Operation {
+		DEPOSIT, WITHDRAW, BALANCE, NAME, BATCH, TRANSFER
+	}
+
+	/* Name under which the metrics are registered with the MBean server. */
+	public static final String OBJECT_NAME = "bank.server:type=ServerMetrics";
+
+	/* Kinds of rejection counted. */
+	private static final int NEGATIVE = 0;
+
+	private static final int EXCESSIVE = 1;
+
+	private static final int NO_SUCH_ACCOUNT = 2;
+
+	private static final int EXPIRED = 3;
+
+	private static final int FAILED = 4;
+
+	private static final int REJECTION_KINDS = 5;
+
+	/* Per-account counter slots held by each Recorder, in sets of HOT_WAYS. */
+	private static final int HOT_SLOTS = 4096;
+
+	private static final int HOT_WAYS = 4;
+
+	/* Number of accounts reported by getHotAccounts(). */
+	private static final int HOT_ACCOUNTS = 10;
+
+	private static final VarHandle LONGS = MethodHandles
+			.arrayElementVarHandle(long[].class);
+
+	/* Latencies and rejections, recorded by one thread or merged. */
+	private static class Counts {
+		final LatencyHistogram[] latencies;
+
+		final long[] rejections = new long[REJECTION_KINDS];
+
+		Counts() {
+			latencies = new LatencyHistogram[Operation.values().length];
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] = new LatencyHistogram();
+			}
+		}
+	}
+
+	/* The counts recorded by one thread, and its accounts. */
+	private static class Recorder extends Counts {
+		final WeakReference<Thread> owner;
+
+		final long[] hotCounts = new long[HOT_SLOTS];
+
+		final String[] hotNumbers = new String[HOT_SLOTS];
+
+		/* The reset after which the hot table was last cleared. */
+		volatile int hotEpoch;
+
+		Recorder(Thread owner, int epoch) {
+			this.owner = new WeakReference<Thread>(owner);
+			this.hotEpoch = epoch;
+		}
+
+		boolean isRetired() {
+			Thread thread = owner.get();
+			return thread == null || !thread.isAlive();
+		}
+	}
+
+	private final CopyOnWriteArrayList<Recorder> fRecorders;
+
+	private final ThreadLocal<Recorder> fRecorder;
+
+	/* Number of resets, which invalidates every hot table. */
+	private volatile int fHotEpoch;
+
+	/* Counts of the Recorders of threads that have ended; guarded by this. */
+	private final Counts fRetired;
+
+	private final Map<String, Long> fRetiredHot;
+
+	/* Merged counts at the last reset; guarded by this. */
+	private Counts fBaseline;
+
+	private long fResetNanos;
+
+	/* Count and time of the previous read of the recent rate. */
+	private long fRecentCount;
+
+	private long fRecentNanos;
+
+	/**
+	 * Creates a ServerMetrics with no operations recorded.
+	 */
+	public ServerMetrics() {
+		fRecorders = new CopyOnWriteArrayList<Recorder>();
+		fRecorder = new ThreadLocal<Recorder>() {
+			protected Recorder initialValue() {
+				retire();
+				Recorder recorder = new Recorder(Thread.currentThread(),
+						fHotEpoch);
+				fRecorders.add(recorder);
+				return recorder;
+			}
+		};
+		fRetired = new Counts();
+		fRetiredHot = new HashMap<String, Long>();
+		fBaseline = new Counts();
+		fResetNanos = System.nanoTime();
+		fRecentNanos = fResetNanos;
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server under
+	 * OBJECT_NAME.
+	 *
+	 * @throws JMException
+	 *             if the metrics cannot be registered, for example because
+	 *             another object is registered under the name.
+	 */
+	public void register() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName(OBJECT_NAME));
+	}
+
+	/**
+	 * Records an operation that returned normally or threw the specified
+	 * exception.
+	 *
+	 * @param number
+	 *            the number of the account the operation was made on.
+	 * @param startNanos
+	 *            the value of System.nanoTime() when the operation started.
+	 * @param failure
+	 *            the exception thrown by the operation, or null.
+	 */
+	public void record(Operation operation, String number, long startNanos,
+			Throwable failure) {
+		Recorder recorder = recordLatency(operation, number, startNanos);
+		if (failure != null) {
+			reject(recorder, kindOf(failure));
+		}
+	}
+
+	/**
+	 * Records an operation that returned an OperationBatch outcome code.
+	 */
+	public void record(Operation operation, String number, long startNanos,
+			byte outcome) {
+		Recorder recorder = recordLatency(operation, number, startNanos);
+		if (outcome != OperationBatch.APPLIED) {
+			reject(recorder, kindOf(outcome));
+		}
+	}
+
+	/**
+	 * Records a batch, counting a rejection for each operation of the batch
+	 * that was not applied.
+	 */
+	public void record(Operation operation, String number, long startNanos,
+			byte[] outcomes) {
+		Recorder recorder = recordLatency(operation, number, startNanos);
+		for (int i = 0; i < outcomes.length; i++) {
+			if (outcomes[i] != OperationBatch.APPLIED) {
+				reject(recorder, kindOf(outcomes[i]));
+			}
+		}
+	}
+
+	/**
+	 * Records an operation that returned normally.
+	 */
+	public void record(Operation operation, String number, long startNanos) {
+		recordLatency(operation, number, startNanos);
+	}
+
+	private Recorder recordLatency(Operation operation, String number,
+			long startNanos) {
+		Recorder recorder = fRecorder.get();
+		recorder.latencies[operation.ordinal()].record(System.nanoTime()
+				- startNanos);
+		if (number != null) {
+			countAccount(recorder, number);
+		}
+		return recorder;
+	}
+
+	/*
+	 * Counts an operation on an account in the recorder's hot table. Slots
+	 * of a set are taken in order and never emptied, so the search for the
+	 * account can stop at the first empty slot.
+	 */
+	private void countAccount(Recorder recorder, String number) {
+		int epoch = fHotEpoch;
+		if (recorder.hotEpoch != epoch) {
+			for (int i = 0; i < HOT_SLOTS; i++) {
+				recorder.hotNumbers[i] = null;
+				LONGS.setOpaque(recorder.hotCounts, i, 0L);
+			}
+			recorder.hotEpoch = epoch;
+		}
+		int first = slotOf(number) * HOT_WAYS;
+		int victim = first;
+		long fewest = Long.MAX_VALUE;
+		for (int slot = first; slot < first + HOT_WAYS; slot++) {
+			String held = recorder.hotNumbers[slot];
+			if (held == null) {
+				victim = slot;
+				break;
+			}
+			long count = (long) LONGS.getOpaque(recorder.hotCounts, slot);
+			if (held.equals(number)) {
+				LONGS.setOpaque(recorder.hotCounts, slot, count + 1);
+				return;
+			}
+			if (count < fewest) {
+				fewest = count;
+				victim = slot;
+			}
+		}
+		LONGS.setOpaque(recorder.hotCounts, victim, 0L);
+		recorder.hotNumbers[victim] = number;
+		LONGS.setOpaque(recorder.hotCounts, victim, 1L);
+	}
+
+	private static void reject(Recorder recorder, int kind) {
+		LONGS.setOpaque(recorder.rejections, kind,
+				(long) LONGS.getOpaque(recorder.rejections, kind) + 1);
+	}
+
+	private static int kindOf(Throwable failure) {
+		if (failure instanceof NegativeAmountException) {
+			return NEGATIVE;
+		}
+		if (failure instanceof ExcessiveAmountException) {
+			return EXCESSIVE;
+		}
+		if (failure instanceof NoSuchAccountException) {
+			return NO_SUCH_ACCOUNT;
+		}
+		return FAILED;
+	}
+
+	private static int kindOf(byte outcome) {
+		switch (outcome) {
+		case OperationBatch.NEGATIVE:
+			return NEGATIVE;
+		case OperationBatch.EXCESSIVE:
+			return EXCESSIVE;
+		case OperationBatch.EXPIRED:
+			return EXPIRED;
+		default:
+			return FAILED;
+		}
+	}
+
+	/* Returns the set of hot table slots of an account. */
+	private static int slotOf(String number) {
+		int hash = number.hashCode() * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (HOT_SLOTS / HOT_WAYS - 1);
+	}
+
+	/*
+	 * Folds the counts of Recorders whose threads have ended into the
+	 * retired counts, and drops those Recorders. A thread's writes are
+	 * visible once it is seen to have ended.
+	 */
+	private synchronized void retire() {
+		for (Recorder recorder : fRecorders) {
+			if (!recorder.isRetired()) {
+				continue;
+			}
+			add(fRetired, recorder);
+			if (recorder.hotEpoch == fHotEpoch) {
+				addHot(fRetiredHot, recorder);
+			}
+			fRecorders.remove(recorder);
+		}
+
+		/* Keep only the busiest of the retired accounts. */
+		if (fRetiredHot.size() > 2 * HOT_SLOTS) {
+			List<Map.Entry<String, Long>> entries = sortHot(fRetiredHot);
+			fRetiredHot.clear();
+			for (Map.Entry<String, Long> entry : entries.subList(0,
+					HOT_SLOTS)) {
+				fRetiredHot.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private static void add(Counts total, Counts counts) {
+		for (int i = 0; i < total.latencies.length; i++) {
+			total.latencies[i].add(counts.latencies[i]);
+		}
+		for (int i = 0; i < REJECTION_KINDS; i++) {
+			total.rejections[i] += (long) LONGS.getOpaque(counts.rejections,
+					i);
+		}
+	}
+
+	private static void addHot(Map<String, Long> total, Recorder recorder) {
+		for (int i = 0; i < HOT_SLOTS; i++) {
+			String number = recorder.hotNumbers[i];
+			if (number == null) {
+				continue;
+			}
+			long count = (long) LONGS.getOpaque(recorder.hotCounts, i);
+			Long previous = total.get(number);
+			total.put(number, previous == null ? count : previous + count);
+		}
+	}
+
+	/* Returns the entries of a table of account counts, busiest first. */
+	private static List<Map.Entry<String, Long>> sortHot(
+			Map<String, Long> counts) {
+		List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(
+				counts.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+			public int compare(Map.Entry<String, Long> a,
+					Map.Entry<String, Long> b) {
+				return Long.compare(b.getValue(), a.getValue());
+			}
+		});
+		return entries;
+	}
+
+	/*
+	 * Returns the counts of every Recorder merged, less the baseline.
+	 */
+	private synchronized Counts merge() {
+		retire();
+		Counts merged = new Counts();
+		add(merged, fRetired);
+		for (Recorder recorder : fRecorders) {
+			add(merged, recorder);
+		}
+		for (int i = 0; i < merged.latencies.length; i++) {
+			merged.latencies[i].subtract(fBaseline.latencies[i]);
+		}
+		for (int i = 0; i < REJECTION_KINDS; i++) {
+			merged.rejections[i] -= fBaseline.rejections[i];
+		}
+		return merged;
+	}
+
+	private static long count(Counts recorder) {
+		long count = 0;
+		for (LatencyHistogram latencies : recorder.latencies) {
+			count += latencies.getCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @see ServerMetricsMBean
+	 */
+	public long getOperationCount() {
+		return count(merge());
+	}
+
+	/**
+	 * @see ServerMetricsMBean
+	 */
+	public synchronized double getOperationsPerSecond() {
+		long elapsed = System.nanoTime() - fResetNanos;
+		return elapsed == 0 ? 0 : getOperationCount() * 1e9 / elapsed;
+	}
+
+	/**
+	 * @see ServerMetricsMBean
+	 */
+	public synchronized double getRecentOperationsPerSecond() {
+		long count = getOperationCount();
+		long now = System.nanoTime();
+		long elapsed = now - fRecentNanos;
+		double rate = elapsed == 0 ? 0 : (count - fRecentCount) * 1e9
+				/ elapsed;
+		fRecentCount = count;
+		fRecentNanos = now;
+		return rate;
+	}
+
+	/**
+	 * @see ServerMetricsMBean
+	 */
+	public String[] getLatencies() {
+		Counts merged = merge();
+		Operation[] operations = Operation.values();
+		String[] latencies = new String[operations.length];
+		for (int i = 0; i < operations.length; i++) {
+			latencies[i] = operations[i].name().toLowerCase() + ": "
+					+ merged.latencies[i];
+		}
+		return latencies;
+	}
+
+	/**
+	 * @see ServerMetricsMBean
+	 */
+	public long getNegativeAmountRejections() {
+		return merge().rejections[NEGATIVE];
+	}
+
+	/**
+	 * @see ServerMetricsMBean
+	 */
+	public long getExcessiveAmountRejections() {
+		return merge().rejections[EXCESSIVE];
+	}
+
+	/**
+	 * @see ServerMetricsMBean
+	 */
+	public long getNoSuchAccountRejections() {
+		return merge().rejections[NO_SUCH_ACCOUNT];
+	}
+
+	/**
+	 * @see ServerMetricsMBean
+	 */
+	public long getExpiredRejections() {
+		return merge().rejections[EXPIRED];
+	}
+
+	/**
+	 * @see ServerMetricsMBean
+	 */
+	public long getFailures() {
+		return merge().rejections[FAILED];
+	}
+
+	/**
+	 * @see ServerMetricsMBean
+	 */
+	public synchronized String[] getHotAccounts() {
+		retire();
+		Map<String, Long> counts = new HashMap<String, Long>(fRetiredHot);
+		int epoch = fHotEpoch;
+		for (Recorder recorder : fRecorders) {
+			if (recorder.hotEpoch == epoch) {
+				addHot(counts, recorder);
+			}
+		}
+		List<Map.Entry<String, Long>> entries = sortHot(counts);
+		int n = Math.min(HOT_ACCOUNTS, entries.size());
+		String[] hot = new String[n];
+		for (int i = 0; i < n; i++) {
+			hot[i] = entries.get(i).getKey() + ": " + entries.get(i).getValue();
+		}
+		return hot;
+	}
+
+	/**
+	 * @see ServerMetricsMBean
+	 */
+	public long getCount(String operation) {
+		return merge().latencies[operationOf(operation).ordinal()].getCount();
+	}
+
+	/**
+	 * @see ServerMetricsMBean
+	 */
+	public double getPercentileMicros(String operation, double percentile) {
+		return merge().latencies[operationOf(operation).ordinal()]
+				.getValueAtPercentile(percentile) / 1000.0;
+	}
+
+	/**
+	 * @see ServerMetricsMBean
+	 */
+	public synchronized void reset() {
+		Counts merged = merge();
+		add(merged, fBaseline);
+		fBaseline = merged;
+		fHotEpoch++;
+		fRetiredHot.clear();
+		fResetNanos = System.nanoTime();
+		fRecentCount = 0;
+		fRecentNanos = fResetNanos;
+	}
+
+	private static Operation operationOf(String operation) {
+		return Operation.valueOf(operation.trim().toUpperCase());
+	}
+
+	/**
+	 * Returns the operation count and the latencies of each operation.
+	 */
+	public String toString() {
+		StringBuffer description = new StringBuffer();
+
+		description.append(getOperationCount());
+		description.append(" operations");
+		for (String latencies : getLatencies()) {
+			description.append("\n  ");
+			description.append(latencies);
+		}
+
+		return description.toString();
+	}
+}
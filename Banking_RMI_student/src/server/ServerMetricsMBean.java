@@ -0,0 +1,86 @@
+package server;
+
+/**
+ * Management interface of ServerMetrics, through which standard JMX tools
+ * such as jconsole read the server's operation counts, latencies,
+ * rejections and hot accounts. Latencies are measured from the arrival of a
+ * call at a servant to its return, excluding RMI transport.
+ *
+ * @see ServerMetrics
+ */
+public interface ServerMetricsMBean {
+
+	/**
+	 * Returns the number of operations served since the metrics were reset.
+	 */
+	public long getOperationCount();
+
+	/**
+	 * Returns the mean number of operations served per second since the
+	 * metrics were reset.
+	 */
+	public double getOperationsPerSecond();
+
+	/**
+	 * Returns the number of operations served per second since the previous
+	 * read of this attribute.
+	 */
+	public double getRecentOperationsPerSecond();
+
+	/**
+	 * Returns one line per operation summarizing its count and latency
+	 * percentiles.
+	 */
+	public String[] getLatencies();
+
+	/**
+	 * Returns the number of operations rejected with a
+	 * NegativeAmountException.
+	 */
+	public long getNegativeAmountRejections();
+
+	/**
+	 * Returns the number of operations rejected with an
+	 * ExcessiveAmountException.
+	 */
+	public long getExcessiveAmountRejections();
+
+	/**
+	 * Returns the number of operations rejected with a
+	 * NoSuchAccountException.
+	 */
+	public long getNoSuchAccountRejections();
+
+	/**
+	 * Returns the number of tagged operations rejected because their
+	 * operation id had expired.
+	 */
+	public long getExpiredRejections();
+
+	/**
+	 * Returns the number of operations that failed with any other exception.
+	 */
+	public long getFailures();
+
+	/**
+	 * Returns the most frequently used accounts, most used first, each with
+	 * the number of its operations counted, which may miss some of them.
+	 */
+	public String[] getHotAccounts();
+
+	/**
+	 * Returns the number of operations of the named kind (e.g. "deposit").
+	 */
+	public long getCount(String operation);
+
+	/**
+	 * Returns the latency, in microseconds, below which the specified
+	 * percentage of operations of the named kind completed.
+	 */
+	public double getPercentileMicros(String operation, double percentile);
+
+	/**
+	 * Starts the counts, latencies and rates afresh.
+	 */
+	public void reset();
+}
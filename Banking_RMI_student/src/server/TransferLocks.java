@@ -0,0 +1,164 @@
+package server;
+
+import java.util.concurrent.locks.StampedLock;
+
+import common.ExcessiveAmountException;
+import common.NegativeAmountException;
+import common.OperationBatch;
+
+/**
+ * Class that applies transfers between Accounts atomically with respect to
+ * the other operations on them. Each account number hashes to one of a fixed
+ * number of lock stripes. A transfer holds the stripes of both its accounts
+ * exclusively while it applies its two legs; the two stripes are always
+ * acquired in index order, so concurrent transfers in opposite directions
+ * cannot deadlock, and transfers on accounts in different stripes proceed in
+ * parallel.
+ *
+ * Deposits, withdrawals and batches made through a TransferLocks hold their
+ * account's stripe shared, so they run concurrently with one another but
+ * never while a transfer on the stripe is applying its legs. A balance read
+ * through a TransferLocks takes no lock unless a transfer holds the stripe,
+ * in which case it waits for the transfer, so no read sees one leg of a
+ * transfer without the other.
+ *
+ * An operation waits for its log records to become durable only after
+ * releasing its stripes, so concurrent operations still share the log's
+ * group commit; for the same reason, a transfer rolled back because the log
+ * failed is undone without them.
+ */
+public class TransferLocks {
+
+	/* Default number of stripes. */
+	public static final int DEFAULT_STRIPES = 1024;
+
+	private final StampedLock[] fStripes;
+
+	private final int fMask;
+
+	/**
+	 * Creates a TransferLocks with the specified number of stripes, rounded up
+	 * to a power of two.
+	 */
+	public TransferLocks(int stripes) {
+		if (stripes < 1) {
+			throw new IllegalArgumentException(
+					"Number of stripes must be positive: " + stripes);
+		}
+		int capacity = Integer.highestOneBit(stripes);
+		if (capacity < stripes) {
+			capacity <<= 1;
+		}
+		fStripes = new StampedLock[capacity];
+		for (int i = 0; i < capacity; i++) {
+			fStripes[i] = new StampedLock();
+		}
+		fMask = capacity - 1;
+	}
+
+	/**
+	 * Transfers a number of cents from one Account to another. The amount is
+	 * checked against the source account's withdrawal limit. A transfer from
+	 * an account to itself is validated but leaves the balance unchanged.
+	 *
+	 * @throws NegativeAmountException
+	 *             if the amount is negative. Neither balance is changed.
+	 * @throws ExcessiveAmountException
+	 *             if the amount exceeds the source account's withdrawal
+	 *             limit. Neither balance is changed.
+	 */
+	public void transferCents(Account from, Account to, long cents)
+			throws NegativeAmountException, ExcessiveAmountException {
+		int fromStripe = stripeOf(from);
+		int toStripe = stripeOf(to);
+		StampedLock first = fStripes[Math.min(fromStripe, toStripe)];
+		StampedLock second = fStripes[Math.max(fromStripe, toStripe)];
+
+		long sequence;
+		long firstStamp = first.writeLock();
+		try {
+			/* StampedLock is not reentrant; lock a shared stripe once. */
+			long secondStamp = second != first ? second.writeLock() : 0;
+			try {
+				sequence = from.applyTransfer(to, cents);
+			} finally {
+				if (second != first) {
+					second.unlockWrite(secondStamp);
+				}
+			}
+		} finally {
+			first.unlockWrite(firstStamp);
+		}
+		from.commitTransfer(to, sequence, cents);
+	}
+
+	/**
+	 * Deposits a number of cents into an Account, ordered against transfers.
+	 *
+	 * @throws NegativeAmountException
+	 *             if the amount is negative. The balance is unchanged.
+	 */
+	public void depositCents(Account account, long cents)
+			throws NegativeAmountException {
+		account.depositCents(cents, stripe(account));
+	}
+
+	/**
+	 * Withdraws a number of cents from an Account, ordered against transfers.
+	 *
+	 * @throws NegativeAmountException
+	 *             if the amount is negative. The balance is unchanged.
+	 * @throws ExcessiveAmountException
+	 *             if the amount exceeds the account's withdrawal limit. The
+	 *             balance is unchanged.
+	 */
+	public void withdrawCents(Account account, long cents)
+			throws NegativeAmountException, ExcessiveAmountException {
+		account.withdrawCents(cents, stripe(account));
+	}
+
+	/**
+	 * Applies a batch to an Account, ordered against transfers.
+	 *
+	 * @return one OperationBatch outcome code per operation.
+	 * @see Account#applyBatch(OperationBatch)
+	 */
+	public byte[] applyBatch(Account account, OperationBatch batch) {
+		return account.applyBatch(batch, stripe(account));
+	}
+
+	/**
+	 * Returns the balance of an Account in cents, never including one leg of
+	 * a transfer without the other.
+	 */
+	public long getBalanceCents(Account account) {
+		StampedLock stripe = stripe(account);
+		long stamp = stripe.tryOptimisticRead();
+		long cents = account.getBalanceCents();
+		if (stripe.validate(stamp)) {
+			return cents;
+		}
+		stamp = stripe.readLock();
+		try {
+			return account.getBalanceCents();
+		} finally {
+			stripe.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns the number of stripes.
+	 */
+	public int getStripeCount() {
+		return fStripes.length;
+	}
+
+	private StampedLock stripe(Account account) {
+		return fStripes[stripeOf(account)];
+	}
+
+	private int stripeOf(Account account) {
+		int hash = account.getNumber().hashCode() * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & fMask;
+	}
+}
@@ -0,0 +1,506 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Class to represent an append-only log of the deposits and withdrawals
+ * accepted by the server, from which the balances of its accounts can be
+ * recovered after a restart.
+ *
+ * Threads applying an operation append a record to an in-memory buffer and
+ * then wait, according to the log's Durability, for the record to reach the
+ * file. A single flusher thread writes everything appended since its last
+ * write as one frame and, when required, forces the file to disk, so that
+ * concurrent operations share one write and one FileChannel.force (group
+ * commit). Each frame is preceded by its length and CRC32, and recovery
+ * stops at the first frame that is incomplete or corrupt; that tail, which
+ * holds no acknowledged operation under BATCH durability, is discarded. If
+ * writing or forcing the file fails, the log stops accepting records and the
+ * operations still waiting for theirs are told that it failed.
+ *
+ * File format: the int MAGIC and VERSION, followed by frames of the form
+ * int length, int crc, then length bytes of records, each record being a
+ * short account number length, the account number in UTF-8 and a long
+ * amount in cents, positive for deposits and negative for withdrawals.
+ * Records are big-endian.
+ */
+public class WriteAheadLog implements Closeable {
+
+	/**
+	 * When an operation is acknowledged relative to its record being written.
+	 */
+	public enum Durability {
+		/* Wait for the record to be forced to disk. */
+		BATCH,
+		/*
+		 * Wait for the record to be written to the file; the file is forced
+		 * once per time window.
+		 */
+		WINDOW,
+		/* Do not wait; records are written in the background. */
+		ASYNC
+	}
+
+	/* "BWAL" */
+	private static final int MAGIC = 0x4257414C;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 8;
+
+	private static final int FRAME_HEADER_SIZE = 8;
+
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel fChannel;
+
+	private final Durability fDurability;
+
+	private final long fWindowNanos;
+
+	/* Offset of the end of the valid frames found when the log was opened. */
+	private final long fRecoveredEnd;
+
+	private final Thread fFlusher;
+
+	/*
+	 * Records appended but not yet taken by the flusher, and the buffer the
+	 * flusher last wrote, which is reused for the next records. Guarded by
+	 * this.
+	 */
+	private ByteBuffer fPending;
+
+	private ByteBuffer fSpare;
+
+	/* Sequence numbers of the last record appended, written and forced. */
+	private long fAppended;
+
+	private long fWritten;
+
+	private long fForced;
+
+	/* The error that stopped the flusher, or null. */
+	private IOException fFailure;
+
+	private boolean fClosed;
+
+	private WriteAheadLog(FileChannel channel, Durability durability,
+			long windowMillis, long recoveredEnd) {
+		fChannel = channel;
+		fDurability = durability;
+		fWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		fRecoveredEnd = recoveredEnd;
+		fPending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		fSpare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		fFlusher = new Thread(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, "WriteAheadLog flusher");
+		fFlusher.setDaemon(true);
+	}
+
+	/**
+	 * Opens a log for appending, creating the file if it does not exist. Any
+	 * incomplete or corrupt frames at the end of an existing file are
+	 * truncated. The records already in the file can then be applied to the
+	 * accounts with recover().
+	 *
+	 * @param windowMillis
+	 *            the interval between forces under WINDOW durability.
+	 * @throws IOException
+	 *             if the file cannot be opened or is not a write-ahead log.
+	 */
+	public static WriteAheadLog open(String filename, Durability durability,
+			long windowMillis) throws IOException {
+		if (windowMillis < 1 && durability == Durability.WINDOW) {
+			throw new IllegalArgumentException("Window must be positive: "
+					+ windowMillis);
+		}
+		FileChannel channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			long end;
+			if (channel.size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).flip();
+				writeFully(channel, header, 0);
+				channel.force(true);
+				end = HEADER_SIZE;
+			} else {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				if (!readFully(channel, header, 0)
+						|| header.getInt(0) != MAGIC) {
+					throw new IOException(filename
+							+ " is not a write-ahead log");
+				}
+				if (header.getInt(4) != VERSION) {
+					throw new IOException("Unsupported write-ahead log version "
+							+ header.getInt(4) + " in " + filename);
+				}
+				end = replay(channel, Long.MAX_VALUE, null).end;
+				if (end < channel.size()) {
+					channel.truncate(end);
+					channel.force(true);
+				}
+			}
+			channel.position(end);
+
+			WriteAheadLog log = new WriteAheadLog(channel, durability,
+					windowMillis, end);
+			log.fFlusher.start();
+			return log;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Applies every record that was in the file when it was opened to the
+	 * corresponding account, without logging them again. Records for
+	 * accounts that are not in the table are skipped. Must be called before
+	 * the accounts are used.
+	 *
+	 * @return the number of records applied.
+	 */
+	public long recover(AccountStore accounts) throws IOException {
+		return replay(fChannel, fRecoveredEnd, accounts).applied;
+	}
+
+	/**
+	 * Returns the durability of this log.
+	 */
+	public Durability getDurability() {
+		return fDurability;
+	}
+
+	/**
+	 * Appends a record of an operation and returns its sequence number, to
+	 * be passed to await(). The record is not yet in the file.
+	 *
+	 * @param number
+	 *            the account number.
+	 * @param cents
+	 *            the amount, positive for a deposit and negative for a
+	 *            withdrawal.
+	 * @throws UncheckedIOException
+	 *             if the log can no longer be written.
+	 */
+	public synchronized long append(String number, long cents) {
+		checkOpen();
+		boolean wasEmpty = fPending.position() == 0;
+		put(number, cents);
+		fAppended++;
+		if (wasEmpty) {
+			notifyAll();
+		}
+		return fAppended;
+	}
+
+	/**
+	 * Appends the records of the two legs of a transfer and returns the
+	 * sequence number of the second. Both records are written in the same
+	 * frame, so recovery restores either both legs or neither.
+	 *
+	 * @throws UncheckedIOException
+	 *             if the log can no longer be written.
+	 * @see #append(String, long)
+	 */
+	public synchronized long append(String number, long cents,
+			String otherNumber, long otherCents) {
+		checkOpen();
+		boolean wasEmpty = fPending.position() == 0;
+		put(number, cents);
+		put(otherNumber, otherCents);
+		fAppended += 2;
+		if (wasEmpty) {
+			notifyAll();
+		}
+		return fAppended;
+	}
+
+	/*
+	 * Adds a record to the pending buffer, enlarging it if necessary. Must be
+	 * called while holding the lock of this log.
+	 */
+	private void put(String number, long cents) {
+		byte[] bytes = number.getBytes(StandardCharsets.UTF_8);
+		int size = 2 + bytes.length + 8;
+		if (fPending.remaining() < size) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(
+					fPending.capacity() * 2, fPending.position() + size));
+			fPending.flip();
+			larger.put(fPending);
+			fPending = larger;
+		}
+		fPending.putShort((short) bytes.length).put(bytes).putLong(cents);
+	}
+
+	/**
+	 * Waits until the record with the specified sequence number is as
+	 * durable as this log's Durability requires: forced to disk for BATCH,
+	 * written to the file for WINDOW, and not at all for ASYNC. Interrupts
+	 * are deferred until the wait is over.
+	 *
+	 * @throws UncheckedIOException
+	 *             if the log failed before the record became durable.
+	 */
+	public synchronized void await(long sequence) {
+		if (fDurability == Durability.ASYNC) {
+			return;
+		}
+		boolean interrupted = false;
+		while ((fDurability == Durability.BATCH ? fForced : fWritten) < sequence) {
+			if (fFailure != null) {
+				throw new UncheckedIOException("Write-ahead log failed",
+						fFailure);
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes and forces every record appended, then closes the file.
+	 * Operations that are appended afterwards fail.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (fClosed) {
+				return;
+			}
+			fClosed = true;
+			notifyAll();
+		}
+		try {
+			fFlusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		fChannel.close();
+		synchronized (this) {
+			if (fFailure != null) {
+				throw fFailure;
+			}
+		}
+	}
+
+	/*
+	 * Throws if the flusher has failed or the log is closed. Must be called
+	 * while holding the lock of this log.
+	 */
+	private void checkOpen() {
+		if (fFailure != null) {
+			throw new UncheckedIOException("Write-ahead log failed", fFailure);
+		}
+		if (fClosed) {
+			throw new IllegalStateException("Write-ahead log is closed");
+		}
+	}
+
+	/*
+	 * Body of the flusher thread. Each pass takes everything appended since
+	 * the previous pass, writes it as one frame and forces the file if the
+	 * durability requires it. Under WINDOW durability the flusher also wakes
+	 * when the window expires, so written records are forced even when no
+	 * more arrive.
+	 */
+	private void flush() {
+		CRC32 crc = new CRC32();
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+		long nextForce = System.nanoTime() + fWindowNanos;
+
+		/* End of the last frame whose records have been acknowledged. */
+		long acknowledged = fRecoveredEnd;
+		try {
+			while (true) {
+				ByteBuffer records;
+				long sequence;
+				boolean closing;
+				synchronized (this) {
+					while (fPending.position() == 0 && !fClosed) {
+						if (fDurability == Durability.WINDOW
+								&& fForced < fWritten) {
+							long remaining = nextForce - System.nanoTime();
+							if (remaining <= 0) {
+								break;
+							}
+							TimeUnit.NANOSECONDS.timedWait(this, remaining);
+						} else {
+							wait();
+						}
+					}
+					closing = fClosed;
+					records = fPending;
+					fPending = fSpare;
+					fSpare = records;
+					sequence = fAppended;
+				}
+
+				records.flip();
+				if (records.hasRemaining()) {
+					crc.reset();
+					crc.update(records);
+					records.rewind();
+					header.clear();
+					header.putInt(records.remaining()).putInt(
+							(int) crc.getValue()).flip();
+					ByteBuffer[] frame = { header, records };
+					while (records.hasRemaining()) {
+						fChannel.write(frame);
+					}
+				}
+				records.clear();
+				long end = fChannel.position();
+
+				long now = System.nanoTime();
+				boolean force = closing || fDurability == Durability.BATCH
+						|| (fDurability == Durability.WINDOW
+								&& now - nextForce >= 0);
+				if (force) {
+					fChannel.force(false);
+					nextForce = now + fWindowNanos;
+				}
+
+				synchronized (this) {
+					fWritten = sequence;
+					if (force) {
+						fForced = sequence;
+					}
+					notifyAll();
+				}
+				acknowledged = end;
+				if (closing) {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			fail(e, acknowledged);
+		} catch (InterruptedException e) {
+			fail(new InterruptedIOException("Write-ahead log flusher interrupted"),
+					acknowledged);
+		}
+	}
+
+	/*
+	 * Stops the log after the flusher has failed. Under BATCH and WINDOW
+	 * durability, the operations whose records were not acknowledged are
+	 * rolled back by their callers, so the records are truncated from the
+	 * file, where they might otherwise be recovered after a restart. The
+	 * truncation is best effort: if it fails too, such records may survive.
+	 */
+	private void fail(IOException e, long acknowledged) {
+		if (fDurability != Durability.ASYNC) {
+			try {
+				fChannel.truncate(acknowledged);
+				fChannel.force(false);
+			} catch (IOException ignored) {
+			}
+		}
+		synchronized (this) {
+			fFailure = e;
+			notifyAll();
+		}
+	}
+
+	/* Outcome of replay(). */
+	private static class Replay {
+		/* Offset at which reading stopped. */
+		long end;
+
+		/* Number of records applied to accounts. */
+		long applied;
+	}
+
+	/*
+	 * Reads the frames of a log from the end of its header up to limit,
+	 * stopping at the first frame that is incomplete or fails its CRC. If
+	 * accounts is not null, each record is applied to its account.
+	 */
+	private static Replay replay(FileChannel channel, long limit,
+			AccountStore accounts) throws IOException {
+		Replay replay = new Replay();
+		CRC32 crc = new CRC32();
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+		long size = Math.min(limit, channel.size());
+		long position = HEADER_SIZE;
+		while (position + FRAME_HEADER_SIZE <= size) {
+			header.clear();
+			if (!readFully(channel, header, position)) {
+				break;
+			}
+			int length = header.getInt(0);
+			if (length <= 0 || position + FRAME_HEADER_SIZE + length > size) {
+				break;
+			}
+			ByteBuffer records = ByteBuffer.allocate(length);
+			if (!readFully(channel, records, position + FRAME_HEADER_SIZE)) {
+				break;
+			}
+			crc.reset();
+			crc.update(records.array(), 0, length);
+			if ((int) crc.getValue() != header.getInt(4)) {
+				break;
+			}
+
+			if (accounts != null) {
+				while (records.hasRemaining()) {
+					byte[] bytes = new byte[records.getShort()];
+					records.get(bytes);
+					long cents = records.getLong();
+					Account account = accounts.get(new String(bytes,
+							StandardCharsets.UTF_8));
+					if (account != null) {
+						account.restore(cents);
+						replay.applied++;
+					}
+				}
+			}
+			position += FRAME_HEADER_SIZE + length;
+		}
+		replay.end = position;
+		return replay;
+	}
+
+	/*
+	 * Fills a buffer from the channel at the specified position, returning
+	 * false if the end of the file is reached first. The buffer is flipped.
+	 */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				return false;
+			}
+			position += read;
+		}
+		buffer.flip();
+		return true;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+}